@@ -20,12 +20,14 @@ shift
 shift
 
 RUN_BUILD=false
+RUN_INSTALL=false
 for ARG in $*; do
    if [ "$ARG" = "package" ]; then
        RUN_BUILD=true
    fi
    if [ "$ARG" = "install" ]; then
        RUN_BUILD=true
+       RUN_INSTALL=true
    fi
 done
 
@@ -43,11 +45,26 @@ if [ $RUN_BUILD = "true" ]; then
     fi
 fi
 
+GIT_REVISION=`git rev-list HEAD --max-count 1 --abbrev=0 --abbrev-commit`
+
 # Invoke the maven 3 on the real pom.xml
-( cd thresh; ${MVN} -DgitRevision=`git rev-list HEAD --max-count 1 --abbrev=0 --abbrev-commit` $* )
+( cd thresh; ${MVN} -DgitRevision=${GIT_REVISION} $* )
 
 RC=$?
 
+# Build the benchmarks so they keep compiling against the thresh jar. They get it from the local
+# repository, so install it first unless this build already did
+if [ $RC = 0 -a $RUN_BUILD = "true" ]; then
+    if [ $RUN_INSTALL = "false" ]; then
+        ( cd thresh; ${MVN} -DgitRevision=${GIT_REVISION} -DskipTests install )
+        RC=$?
+    fi
+    if [ $RC = 0 ]; then
+        ( cd thresh-benchmarks; ${MVN} package )
+        RC=$?
+    fi
+fi
+
 # Copy the jars where the publisher will find them
 if [ $RUN_BUILD = "true" ]; then
    if [ ! -L target ]; then
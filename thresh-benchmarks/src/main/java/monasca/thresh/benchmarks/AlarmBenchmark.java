@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.SubAlarm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluating an Alarm after one of its SubAlarms changed state, as the AlarmThresholdingBolt does
+ * for every SubAlarm state change. The SubAlarm states cycle through generated combinations so
+ * some evaluations transition the Alarm and some do not.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class AlarmBenchmark {
+  private static final int COMBINATIONS = 256;
+  private static final AlarmState[] STATES = {AlarmState.OK, AlarmState.OK, AlarmState.ALARM,
+      AlarmState.UNDETERMINED};
+
+  @Param({"avg(cpu.idle_perc{service=nova}, 60) < 10 times 3",
+      "avg(cpu.idle_perc{service=nova}, 60) < 10 or max(mem.usable_perc{service=nova}) < 5",
+      "(avg(cpu.idle_perc{service=nova}) < 10 or max(mem.usable_perc{service=nova}) < 5) and "
+          + "avg(disk.space_used_perc{service=nova}, 120) > 90 times 2 and "
+          + "max(load.avg_1_min{service=nova}) > 20 and "
+          + "avg(net.in_bytes_sec{service=nova}, 300) > 100000000"})
+  public String expression;
+
+  private AlarmDefinition alarmDefinition;
+  private Alarm alarm;
+  private List<SubAlarm> subAlarms;
+  private AlarmState[][] combinations;
+  private int next;
+
+  @Setup
+  public void setup() {
+    final GeneratedData data = new GeneratedData(1);
+    alarmDefinition = GeneratedData.alarmDefinition(data.tenantId(0), expression,
+        Collections.<String>emptyList());
+    alarm = new Alarm(alarmDefinition);
+    subAlarms = new ArrayList<>(alarm.getSubAlarms());
+    combinations = new AlarmState[COMBINATIONS][subAlarms.size()];
+    for (int i = 0; i < COMBINATIONS; i++) {
+      for (int j = 0; j < subAlarms.size(); j++) {
+        combinations[i][j] = STATES[data.random().nextInt(STATES.length)];
+      }
+    }
+  }
+
+  private void nextStates() {
+    next = (next + 1) % COMBINATIONS;
+    for (int i = 0; i < subAlarms.size(); i++) {
+      subAlarms.get(i).setState(combinations[next][i]);
+    }
+  }
+
+  /**
+   * Evaluates with the AlarmDefinition's compiled expression
+   */
+  @Benchmark
+  public boolean evaluate() {
+    nextStates();
+    return alarm.evaluate(alarmDefinition);
+  }
+
+  /**
+   * Evaluates by walking the AlarmExpression
+   */
+  @Benchmark
+  public boolean evaluateExpression() {
+    nextStates();
+    return alarm.evaluate(alarmDefinition.getAlarmExpression());
+  }
+}
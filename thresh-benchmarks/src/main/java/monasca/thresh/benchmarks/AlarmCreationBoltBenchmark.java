@@ -0,0 +1,141 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import static org.mockito.Mockito.when;
+
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.service.AlarmDAO;
+import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.infrastructure.thresholding.AlarmCreationBolt;
+import monasca.thresh.infrastructure.thresholding.MetricFilteringBolt;
+
+import org.apache.storm.tuple.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handling the first Metric from a new host for an Alarm Definition matched by hostname, which
+ * checks the Metric against every existing Alarm of the Alarm Definition and creates a new Alarm.
+ * <p/>
+ * Each call creates an Alarm, so the Bolt is recreated with the existing Alarms before each
+ * iteration and an iteration is a fixed batch of BATCH_SIZE calls. The score is the time for the
+ * batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 10, batchSize = AlarmCreationBoltBenchmark.BATCH_SIZE)
+@Measurement(iterations = 20, batchSize = AlarmCreationBoltBenchmark.BATCH_SIZE)
+@Fork(1)
+public class AlarmCreationBoltBenchmark {
+  static final int BATCH_SIZE = 1000;
+  private static final String METRIC_NAME = "disk.space_used_perc";
+
+  @Param({"1000", "10000"})
+  public int existingAlarms;
+
+  @Param({"hostname", "hostname,device"})
+  public String matchBy;
+
+  private AlarmDefinition alarmDefinition;
+  private final List<Alarm> alarms = new ArrayList<>();
+  private AlarmDefinitionDAO alarmDefinitionDAO;
+  private AlarmDAO alarmDAO;
+  private AlarmCreationBolt bolt;
+  private final List<MetricDefinitionAndTenantId> newMetrics = new ArrayList<>(BATCH_SIZE);
+  private final List<Object> values = Arrays.<Object>asList(null, null);
+  private final Tuple tuple = Stubs.tuple("filtering-bolt",
+      MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM, values);
+  private int next;
+
+  @Setup
+  public void setup() {
+    final GeneratedData data = new GeneratedData(1);
+    alarmDefinition = GeneratedData.alarmDefinition(data.tenantId(0),
+        "max(" + METRIC_NAME + "{service=nova}, 60) > 90 times 3",
+        Arrays.asList(matchBy.split(",")));
+    for (int host = 0; host < existingAlarms; host++) {
+      final Alarm alarm = new Alarm(alarmDefinition);
+      alarm.addAlarmedMetric(metric(host));
+      alarms.add(alarm);
+    }
+    alarmDefinitionDAO = Stubs.stub(AlarmDefinitionDAO.class);
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+    alarmDAO = Stubs.stub(AlarmDAO.class);
+    for (int host = existingAlarms; host < existingAlarms + BATCH_SIZE; host++) {
+      newMetrics.add(metric(host));
+    }
+    values.set(1, alarmDefinition.getId());
+  }
+
+  private MetricDefinitionAndTenantId metric(int host) {
+    final Map<String, String> dimensions = GeneratedData.hostDimensions(METRIC_NAME, host);
+    dimensions.put("service", "nova");
+    return new MetricDefinitionAndTenantId(new MetricDefinition(METRIC_NAME, dimensions),
+        alarmDefinition.getTenantId());
+  }
+
+  /**
+   * Starts from the same existing Alarms each iteration
+   */
+  @Setup(Level.Iteration)
+  public void createBolt() {
+    when(alarmDAO.findForAlarmDefinitionId(alarmDefinition.getId())).thenReturn(
+        new ArrayList<Alarm>(alarms));
+    bolt = new AlarmCreationBolt(alarmDefinitionDAO, alarmDAO);
+    bolt.prepare(new HashMap<String, String>(), Stubs.topologyContext(),
+        Stubs.outputCollector());
+    next = 0;
+  }
+
+  @TearDown(Level.Iteration)
+  public void cleanupBolt() {
+    bolt.cleanup();
+  }
+
+  /**
+   * Sends the Bolt the next new Metric as the MetricFilteringBolt does
+   */
+  @Benchmark
+  public void newMetricDefinition() {
+    values.set(0, newMetrics.get(next++));
+    bolt.execute(tuple);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.thresh.infrastructure.embedded.EmbeddedTopology;
+
+import org.apache.storm.Config;
+import org.apache.storm.LocalCluster;
+import org.apache.storm.generated.KillOptions;
+import org.apache.storm.generated.StormTopology;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.TopologyBuilder;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.topology.base.BaseRichSpout;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A topology with the shape of the thresh topology, a Spout and two Bolts grouped by metric,
+ * run either by an EmbeddedTopology or by a Storm LocalCluster. The Spout only emits the tuples
+ * it is allowed to, so a benchmark can time how long the tuples take to reach the last Bolt.
+ */
+final class BenchmarkTopology {
+  static final String EMBEDDED = "embedded";
+  static final String LOCAL_CLUSTER = "localCluster";
+
+  private static final String NAME = "thresh-benchmark";
+  private static final int EMBEDDED_THREADS = 4;
+  private static final int BOLT_TASKS = 4;
+  private static final int KEYS = 1000;
+  private static final int SPOUT_BATCH = 100;
+  private static final long WAIT_PARK_NS = TimeUnit.MICROSECONDS.toNanos(50);
+
+  /** The Spout and the Bolts are deserialized copies, so they count in static fields */
+  private static final AtomicLong permits = new AtomicLong();
+  private static final AtomicLong delivered = new AtomicLong();
+
+  private final String runner;
+  private EmbeddedTopology embeddedTopology;
+  private LocalCluster localCluster;
+
+  BenchmarkTopology(String runner) {
+    if (!EMBEDDED.equals(runner) && !LOCAL_CLUSTER.equals(runner)) {
+      throw new IllegalArgumentException("Unknown runner " + runner);
+    }
+    this.runner = runner;
+  }
+
+  void start() throws Exception {
+    permits.set(0);
+    delivered.set(0);
+    final TopologyBuilder builder = new TopologyBuilder();
+    builder.setSpout("metrics-spout", new MetricSpout(), 1);
+    builder.setBolt("filtering-bolt", new FilteringBolt(), BOLT_TASKS).fieldsGrouping(
+        "metrics-spout", new Fields("key"));
+    builder.setBolt("aggregation-bolt", new AggregationBolt(), BOLT_TASKS).fieldsGrouping(
+        "filtering-bolt", new Fields("key"));
+    final StormTopology topology = builder.createTopology();
+    final Config config = new Config();
+    config.setNumAckers(0);
+
+    if (EMBEDDED.equals(runner)) {
+      embeddedTopology = new EmbeddedTopology(NAME, config, topology, EMBEDDED_THREADS);
+      embeddedTopology.start();
+    } else {
+      localCluster = new LocalCluster();
+      localCluster.submitTopology(NAME, config, topology);
+    }
+  }
+
+  /**
+   * Lets the Spout emit {@code count} more tuples and waits until they reached the last Bolt
+   */
+  void deliver(long count) {
+    final long expected = delivered.get() + count;
+    permits.addAndGet(count);
+    while (delivered.get() < expected) {
+      LockSupport.parkNanos(WAIT_PARK_NS);
+    }
+  }
+
+  void close() throws Exception {
+    if (embeddedTopology != null) {
+      embeddedTopology.close();
+      embeddedTopology = null;
+    }
+    if (localCluster != null) {
+      final KillOptions options = new KillOptions();
+      options.set_wait_secs(0);
+      localCluster.killTopologyWithOpts(NAME, options);
+      localCluster.shutdown();
+      localCluster = null;
+    }
+  }
+
+  private static class MetricSpout extends BaseRichSpout {
+    private static final long serialVersionUID = 1L;
+    private final String[] keys = new String[KEYS];
+    private SpoutOutputCollector collector;
+    private long next;
+
+    @Override
+    public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+        SpoutOutputCollector collector) {
+      this.collector = collector;
+      for (int i = 0; i < KEYS; i++) {
+        keys[i] = "metric-" + i;
+      }
+    }
+
+    @Override
+    public void nextTuple() {
+      for (int i = 0; i < SPOUT_BATCH && permits.get() > 0; i++) {
+        permits.decrementAndGet();
+        collector.emit(new Values(keys[(int) (next % KEYS)], next));
+        next++;
+      }
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+      declarer.declare(new Fields("key", "value"));
+    }
+  }
+
+  private static class FilteringBolt extends BaseRichBolt {
+    private static final long serialVersionUID = 1L;
+    private OutputCollector collector;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+        OutputCollector collector) {
+      this.collector = collector;
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+      collector.emit(new Values(tuple.getValue(0), tuple.getValue(1)));
+      collector.ack(tuple);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+      declarer.declare(new Fields("key", "value"));
+    }
+  }
+
+  private static class AggregationBolt extends BaseRichBolt {
+    private static final long serialVersionUID = 1L;
+    private OutputCollector collector;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+        OutputCollector collector) {
+      this.collector = collector;
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+      delivered.incrementAndGet();
+      collector.ack(tuple);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    }
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Generates metrics and Alarm Definitions that look like the ones the monasca-agent and the
+ * Monasca API send for an OpenStack deployment: a few tenants, many hosts, each with the usual
+ * system metrics and hostname, service and component dimensions.
+ * <p/>
+ * The data comes from a fixed seed so runs of the same release, and of different releases, work
+ * on the same data and their results can be compared.
+ */
+public class GeneratedData {
+  public static final long SEED = 20161019L;
+
+  public static final String[] METRIC_NAMES = {"cpu.idle_perc", "cpu.system_perc",
+      "cpu.wait_perc", "mem.free_mb", "mem.usable_perc", "disk.space_used_perc",
+      "disk.inode_used_perc", "io.read_kbytes_sec", "io.write_kbytes_sec", "net.in_bytes_sec",
+      "net.out_bytes_sec", "load.avg_1_min", "process.pid_count", "http_status",
+      "vm.cpu.utilization_perc", "vm.mem.free_mb"};
+  public static final String[] SERVICES = {"nova", "neutron", "cinder", "glance", "swift",
+      "keystone", "monitoring"};
+  public static final String[] COMPONENTS = {"api", "scheduler", "conductor", "compute",
+      "l3-agent", "volume", "registry", "proxy-server", "persister"};
+  private static final String[] DEVICES = {"sda1", "sdb1", "vda1", "eth0", "eth1"};
+
+  private final Random random = new Random(SEED);
+  private final ObjectMapper objectMapper = new ObjectMapper();
+  private final List<String> tenantIds = new ArrayList<>();
+
+  public GeneratedData(int tenants) {
+    for (int i = 0; i < tenants; i++) {
+      tenantIds.add(id());
+    }
+  }
+
+  /**
+   * Returns an id formatted like the ones from Keystone
+   */
+  public String id() {
+    return new UUID(random.nextLong(), random.nextLong()).toString().replace("-", "");
+  }
+
+  public String tenantId(int index) {
+    return tenantIds.get(index % tenantIds.size());
+  }
+
+  public String randomTenantId() {
+    return tenantIds.get(random.nextInt(tenantIds.size()));
+  }
+
+  public Random random() {
+    return random;
+  }
+
+  public static String hostname(int host) {
+    return String.format("compute-%05d.example.net", host);
+  }
+
+  /**
+   * Returns the dimensions the agent sends for a host, with a device for the disk, io and net
+   * metrics
+   */
+  public static Map<String, String> hostDimensions(String metricName, int host) {
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", hostname(host));
+    dimensions.put("service", SERVICES[host % SERVICES.length]);
+    dimensions.put("component", COMPONENTS[host % COMPONENTS.length]);
+    dimensions.put("cluster", "cluster-" + (host % 16));
+    if (metricName.startsWith("disk.") || metricName.startsWith("io.")
+        || metricName.startsWith("net.")) {
+      dimensions.put("device", DEVICES[host % DEVICES.length]);
+    }
+    return dimensions;
+  }
+
+  public static MetricDefinition metricDefinition(String metricName, int host) {
+    return new MetricDefinition(metricName, hostDimensions(metricName, host));
+  }
+
+  /**
+   * Returns count metrics spread over the tenants, metric names and hosts
+   */
+  public List<MetricDefinitionAndTenantId> metrics(int count, int hosts) {
+    final List<MetricDefinitionAndTenantId> metrics = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final String metricName = METRIC_NAMES[random.nextInt(METRIC_NAMES.length)];
+      metrics.add(new MetricDefinitionAndTenantId(
+          metricDefinition(metricName, random.nextInt(hosts)), randomTenantId()));
+    }
+    return metrics;
+  }
+
+  /**
+   * Returns the dimensions an Alarm Definition typically filters on: none, a service, a service
+   * and component or a single host
+   */
+  public Map<String, String> alarmDefinitionDimensions(int hosts) {
+    final Map<String, String> dimensions = new HashMap<>();
+    final int host = random.nextInt(hosts);
+    switch (random.nextInt(4)) {
+      case 0:
+        break;
+      case 1:
+        dimensions.put("service", SERVICES[host % SERVICES.length]);
+        break;
+      case 2:
+        dimensions.put("service", SERVICES[host % SERVICES.length]);
+        dimensions.put("component", COMPONENTS[host % COMPONENTS.length]);
+        break;
+      default:
+        dimensions.put("hostname", hostname(host));
+        break;
+    }
+    return dimensions;
+  }
+
+  public static AlarmDefinition alarmDefinition(String tenantId, String expression,
+      List<String> matchBy) {
+    return new AlarmDefinition(tenantId, "Generated Alarm", "Generated for a benchmark",
+        new AlarmExpression(expression), "HIGH", true, matchBy);
+  }
+
+  /**
+   * Returns the JSON for a MetricEnvelope the way the Monasca API writes it to Kafka
+   */
+  public byte[] metricEnvelopeJson(MetricDefinitionAndTenantId metricDefinitionAndTenantId,
+      long timestamp) {
+    final Map<String, Object> metric = new LinkedHashMap<>();
+    metric.put("name", metricDefinitionAndTenantId.metricDefinition.name);
+    metric.put("dimensions", metricDefinitionAndTenantId.metricDefinition.dimensions);
+    metric.put("timestamp", timestamp);
+    metric.put("value", Math.round(random.nextDouble() * 10000.0) / 100.0);
+    metric.put("value_meta", null);
+    final Map<String, Object> meta = new LinkedHashMap<>();
+    meta.put("tenantId", metricDefinitionAndTenantId.tenantId);
+    meta.put("region", "useast");
+    final Map<String, Object> envelope = new LinkedHashMap<>();
+    envelope.put("metric", metric);
+    envelope.put("meta", meta);
+    envelope.put("creation_time", timestamp / 1000);
+    try {
+      return objectMapper.writeValueAsString(envelope).getBytes(StandardCharsets.UTF_8);
+    } catch (JsonProcessingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
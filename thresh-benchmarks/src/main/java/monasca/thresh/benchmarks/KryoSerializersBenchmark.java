@@ -0,0 +1,142 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubExpression;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.infrastructure.serialization.KryoSerializers;
+import monasca.thresh.infrastructure.thresholding.EventProcessingBolt;
+
+import org.apache.storm.Config;
+import org.apache.storm.serialization.KryoValuesDeserializer;
+import org.apache.storm.serialization.KryoValuesSerializer;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing and deserializing the tuples of the busiest streams between workers, with the
+ * serializers of KryoSerializers or with only SubAlarm and SubExpression registered, as before
+ * KryoSerializers. The bytes per tuple are checked by KryoSerializersTest.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class KryoSerializersBenchmark {
+  private static final String TENANT_ID = "7d1e4c2a8b3f4e6d9a0b1c2d3e4f5a6b";
+
+  @Param({"metric", "subAlarm", "alarmCreation"})
+  public String tuple;
+
+  @Param({"true", "false"})
+  public boolean serializers;
+
+  private KryoValuesSerializer serializer;
+  private KryoValuesDeserializer deserializer;
+  private List<Object> values;
+  private byte[] serialized;
+
+  @Setup
+  public void setup() {
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", "compute-host-0042.example.com");
+    dimensions.put("service", "compute");
+    dimensions.put("component", "vm");
+    dimensions.put("resource_id", "0b7bd1a4-5b2f-4a4c-8e54-0e3f6fb1a0d5");
+    final MetricDefinition metricDefinition =
+        new MetricDefinition("cpu.utilization_perc", dimensions);
+    final MetricDefinitionAndTenantId metricDefinitionAndTenantId =
+        new MetricDefinitionAndTenantId(metricDefinition, TENANT_ID);
+    final TenantIdAndMetricName key = new TenantIdAndMetricName(metricDefinitionAndTenantId);
+    final SubAlarm subAlarm = new SubAlarm("111", "222", new SubExpression("444",
+        AlarmSubExpression.of("avg(cpu.utilization_perc{hostname=compute-host-0042.example.com},"
+            + " 60) >= 90 times 3")));
+
+    switch (tuple) {
+      case "metric":
+        values = new Values(key, new Metric(metricDefinition.name, metricDefinition.dimensions,
+            1461349830000L, 42.5, null));
+        break;
+      case "subAlarm":
+        values = new Values("222", subAlarm);
+        break;
+      case "alarmCreation":
+        values = new Values(EventProcessingBolt.CREATED, key, metricDefinitionAndTenantId, "333",
+            subAlarm);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown tuple " + tuple);
+    }
+
+    final Map<String, Object> conf = topologyConf(serializers);
+    serializer = new KryoValuesSerializer(conf);
+    deserializer = new KryoValuesDeserializer(conf);
+    serialized = serializer.serialize(values);
+  }
+
+  /**
+   * Returns the configuration the workers would use, with the serializers from KryoSerializers or
+   * with only the classes that were registered before
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> topologyConf(boolean registerSerializers) {
+    final Config config = new Config();
+    if (registerSerializers) {
+      KryoSerializers.register(config);
+    } else {
+      config.registerSerialization(SubAlarm.class);
+      config.registerSerialization(SubExpression.class);
+    }
+    final Map<String, Object> conf = Utils.readDefaultConfig();
+    conf.putAll(config);
+    return conf;
+  }
+
+  @Benchmark
+  public byte[] serialize() {
+    return serializer.serialize(values);
+  }
+
+  @Benchmark
+  public List<Object> deserialize() {
+    return deserializer.deserialize(serialized);
+  }
+}
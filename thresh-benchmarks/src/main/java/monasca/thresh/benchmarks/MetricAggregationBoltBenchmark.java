@@ -0,0 +1,182 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.ThresholdingConfiguration;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubExpression;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.domain.service.AlarmDAO;
+import monasca.thresh.infrastructure.thresholding.AlarmCreationBolt;
+import monasca.thresh.infrastructure.thresholding.EventProcessingBolt;
+import monasca.thresh.infrastructure.thresholding.MetricAggregationBolt;
+import monasca.thresh.infrastructure.thresholding.MetricFilteringBolt;
+
+import org.apache.storm.tuple.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The once a minute evaluation of every SubAlarm held by a MetricAggregationBolt.
+ * <p/>
+ * Each SubAlarm belongs to an Alarm of one of a few Alarm Definitions matched by hostname, so the
+ * SubAlarms of an Alarm Definition share their expression, as they do in a real deployment. Each
+ * call is the next minute. Before each call, outside of the measurement, about half of the
+ * SubAlarms get a value so the windows are evaluated with data and some SubAlarms change state.
+ * The Bolt gets everything through Tuples, as it does in the Topology: the SubAlarms on the
+ * alarm creation stream, the values in a batch per tenant and the evaluation on a tick.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms6g", "-Xmx6g"})
+public class MetricAggregationBoltBenchmark {
+  private static final long START_SECONDS = 1476835200L;
+  private static final int TENANTS = 10;
+  private static final String[] EXPRESSIONS = {
+      "avg(cpu.idle_perc{service=nova}, 60) < 10 times 3",
+      "avg(mem.usable_perc{service=nova}, 60) < 5 times 2",
+      "max(disk.space_used_perc{service=nova}, 300) > 90",
+      "avg(net.in_bytes_sec{service=nova}, 120) > 100000000 times 2",
+      "max(load.avg_1_min{service=nova}) > 20",
+      "count(http_status{service=nova}, deterministic, 60) > 5"};
+
+  @Param({"10000", "100000", "1000000"})
+  public int subAlarms;
+
+  private MockMetricAggregationBolt bolt;
+  private final List<Metric> values = new ArrayList<>();
+  private final List<Tuple> batches = new ArrayList<>();
+  private final Tuple tick = Stubs.tickTuple();
+
+  @Setup
+  public void setup() {
+    final GeneratedData data = new GeneratedData(TENANTS);
+    final List<SubExpression> subExpressions = new ArrayList<>(EXPRESSIONS.length);
+    final List<String> alarmDefinitionIds = new ArrayList<>(EXPRESSIONS.length);
+    for (final String expression : EXPRESSIONS) {
+      subExpressions.add(new SubExpression(data.id(), AlarmSubExpression.of(expression)));
+      alarmDefinitionIds.add(data.id());
+    }
+
+    final ThresholdingConfiguration config = new ThresholdingConfiguration();
+    bolt = new MockMetricAggregationBolt(config, Stubs.stub(AlarmDAO.class));
+    bolt.prepare(null, Stubs.topologyContext(), Stubs.outputCollector());
+
+    final List<Object> created = Arrays.<Object>asList(EventProcessingBolt.CREATED, null, null,
+        null, null);
+    final Tuple alarmCreated =
+        Stubs.tuple("alarm-creation-bolt", AlarmCreationBolt.ALARM_CREATION_STREAM, created);
+    final Map<String, List<Metric>> tenantValues = new HashMap<>();
+    for (int i = 0; i < subAlarms; i++) {
+      final SubExpression subExpression = subExpressions.get(i % subExpressions.size());
+      final String alarmDefinitionId = alarmDefinitionIds.get(i % subExpressions.size());
+      final int host = i / subExpressions.size();
+      final String metricName = subExpression.getAlarmSubExpression().getMetricDefinition().name;
+      final Map<String, String> dimensions = GeneratedData.hostDimensions(metricName, host);
+      dimensions.put("service", "nova");
+      final MetricDefinition metricDefinition = new MetricDefinition(metricName, dimensions);
+      final MetricDefinitionAndTenantId metric =
+          new MetricDefinitionAndTenantId(metricDefinition, data.tenantId(host));
+      created.set(1, new TenantIdAndMetricName(metric));
+      created.set(2, metric);
+      created.set(3, alarmDefinitionId);
+      created.set(4, new SubAlarm(data.id(), data.id(), subExpression));
+      bolt.execute(alarmCreated);
+      if (data.random().nextBoolean()) {
+        final Metric value =
+            new Metric(metricDefinition, 0, data.random().nextDouble() * 100.0, null);
+        values.add(value);
+        List<Metric> batch = tenantValues.get(metric.tenantId);
+        if (batch == null) {
+          batch = new ArrayList<>();
+          tenantValues.put(metric.tenantId, batch);
+        }
+        batch.add(value);
+      }
+    }
+    for (final Map.Entry<String, List<Metric>> entry : tenantValues.entrySet()) {
+      batches.add(Stubs.tuple("filtering-bolt", MetricFilteringBolt.METRIC_BATCH_STREAM,
+          new TenantIdAndMetricName(entry.getKey(), "batch"), entry.getValue(), null));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    bolt.cleanup();
+  }
+
+  /**
+   * Adds this minute's values. Even with 10^4 SubAlarms the evaluation takes long enough for the
+   * overhead of a per invocation setup not to matter
+   */
+  @Setup(Level.Invocation)
+  public void aggregateValues() {
+    final long timestampMs = bolt.currentTime * 1000;
+    for (final Metric value : values) {
+      value.timestamp = timestampMs;
+    }
+    for (final Tuple batch : batches) {
+      bolt.execute(batch);
+    }
+  }
+
+  @Benchmark
+  public void evaluateAlarmsAndSlideWindows() {
+    bolt.currentTime += 60;
+    bolt.execute(tick);
+  }
+
+  private static class MockMetricAggregationBolt extends MetricAggregationBolt {
+    private static final long serialVersionUID = 1L;
+    private long currentTime = START_SECONDS;
+
+    public MockMetricAggregationBolt(ThresholdingConfiguration config, AlarmDAO alarmDAO) {
+      super(config, alarmDAO);
+    }
+
+    @Override
+    protected long currentTimeSeconds() {
+      return currentTime;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantIdMatcher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching each incoming Metric against the dimensions of the Alarm Definitions, as the
+ * MetricFilteringBolt does for every Metric it has not seen before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MetricDefinitionAndTenantIdMatcherBenchmark {
+  private static final int TENANTS = 10;
+  private static final int HOSTS = 5000;
+  private static final int METRICS = 4096;
+
+  /** Number of Alarm Definition dimension sets in the matcher */
+  @Param({"100", "1000", "10000", "100000"})
+  public int definitions;
+
+  private final MetricDefinitionAndTenantIdMatcher matcher =
+      new MetricDefinitionAndTenantIdMatcher();
+  private List<MetricDefinitionAndTenantId> metrics;
+  private int next;
+
+  @Setup
+  public void setup() {
+    final GeneratedData data = new GeneratedData(TENANTS);
+    for (int i = 0; i < definitions; i++) {
+      final String metricName =
+          GeneratedData.METRIC_NAMES[data.random().nextInt(GeneratedData.METRIC_NAMES.length)];
+      matcher.add(new MetricDefinitionAndTenantId(new MetricDefinition(metricName,
+          data.alarmDefinitionDimensions(HOSTS)), data.tenantId(i)), data.id());
+    }
+    metrics = data.metrics(METRICS, HOSTS);
+  }
+
+  @Benchmark
+  public Set<String> match() {
+    next = (next + 1) % METRICS;
+    return matcher.match(metrics.get(next));
+  }
+}
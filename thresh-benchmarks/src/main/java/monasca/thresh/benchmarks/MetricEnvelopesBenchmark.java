@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.metric.MetricEnvelope;
+import monasca.common.model.metric.MetricEnvelopes;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing the MetricEnvelopes read from Kafka, as the MetricSpout does for every Metric.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MetricEnvelopesBenchmark {
+  private static final long START_MS = 1476835200000L;
+  private static final int TENANTS = 10;
+  private static final int HOSTS = 5000;
+  private static final int MESSAGES = 4096;
+
+  private byte[][] messages;
+  private int next;
+
+  @Setup
+  public void setup() {
+    final GeneratedData data = new GeneratedData(TENANTS);
+    final List<MetricDefinitionAndTenantId> metrics = data.metrics(MESSAGES, HOSTS);
+    messages = new byte[MESSAGES][];
+    for (int i = 0; i < MESSAGES; i++) {
+      messages[i] = data.metricEnvelopeJson(metrics.get(i), START_MS + i * 1000L);
+    }
+  }
+
+  @Benchmark
+  public MetricEnvelope fromJson() {
+    next = (next + 1) % MESSAGES;
+    return MetricEnvelopes.fromJson(messages[next]);
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+import org.apache.storm.Constants;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.tuple.Tuple;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stand ins for what Storm and the database give the Bolts. They do not remember their calls,
+ * unlike regular Mockito mocks, so the heap does not grow while a benchmark runs.
+ */
+public final class Stubs {
+  private Stubs() {
+  }
+
+  public static <T> T stub(Class<T> type) {
+    return mock(type, withSettings().stubOnly());
+  }
+
+  public static TopologyContext topologyContext() {
+    return stub(TopologyContext.class);
+  }
+
+  /**
+   * Returns a Tuple from {@code componentId} on {@code streamId} holding {@code values}. The values
+   * are read each time, so a benchmark may change them between calls to the Bolt.
+   */
+  public static Tuple tuple(final String componentId, final String streamId,
+      final List<Object> values) {
+    return mock(Tuple.class, withSettings().stubOnly().defaultAnswer(new Answer<Object>() {
+      @Override
+      public Object answer(InvocationOnMock invocation) throws Throwable {
+        switch (invocation.getMethod().getName()) {
+          case "getSourceComponent":
+            return componentId;
+          case "getSourceStreamId":
+            return streamId;
+          case "getValue":
+          case "getString":
+          case "getLong":
+            return values.get((Integer) invocation.getArguments()[0]);
+          case "getValues":
+            return values;
+          case "size":
+            return values.size();
+          default:
+            return Mockito.RETURNS_DEFAULTS.answer(invocation);
+        }
+      }
+    }));
+  }
+
+  public static Tuple tuple(String componentId, String streamId, Object... values) {
+    return tuple(componentId, streamId, Arrays.asList(values));
+  }
+
+  /**
+   * Returns the tick Tuple Storm sends the Bolts
+   */
+  public static Tuple tickTuple() {
+    return tuple(Constants.SYSTEM_COMPONENT_ID, Constants.SYSTEM_TICK_STREAM_ID);
+  }
+
+  /**
+   * Returns an OutputCollector that drops everything emitted
+   */
+  public static OutputCollector outputCollector() {
+    return new OutputCollector(null) {
+      @Override
+      public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors,
+          List<Object> tuple) {
+      }
+
+      @Override
+      public void ack(Tuple input) {
+      }
+
+      @Override
+      public void fail(Tuple input) {
+      }
+
+      @Override
+      public void reportError(Throwable error) {
+      }
+    };
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubAlarmStats;
+import monasca.thresh.domain.model.SubExpression;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding a Metric's value to the window of a SubAlarm, and evaluating and sliding the window as
+ * the MetricAggregationBolt does for each SubAlarm every minute.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SubAlarmStatsBenchmark {
+  private static final long START_SECONDS = 1476835200L;
+  private static final int ALARM_DELAY = 30;
+  private static final int VALUES = 1024;
+
+  @Param({"avg(cpu.idle_perc{service=nova}, 60) < 10 times 3",
+      "max(disk.space_used_perc{service=swift}, 300) > 90 times 2",
+      "count(http_status{component=api}, deterministic, 60) > 5"})
+  public String expression;
+
+  private SubAlarmStats subAlarmStats;
+  private double[] values;
+  private int next;
+  private long now;
+  private int period;
+
+  @Setup
+  public void setup() {
+    final SubExpression subExpression =
+        new SubExpression("111", AlarmSubExpression.of(expression));
+    period = subExpression.getAlarmSubExpression().getPeriod();
+    now = START_SECONDS;
+    subAlarmStats = new SubAlarmStats(new SubAlarm("222", "333", subExpression), now + period);
+    final GeneratedData data = new GeneratedData(1);
+    values = new double[VALUES];
+    for (int i = 0; i < VALUES; i++) {
+      values[i] = Math.round(data.random().nextDouble() * 10000.0) / 100.0;
+    }
+  }
+
+  private double nextValue() {
+    next = (next + 1) % VALUES;
+    return values[next];
+  }
+
+  @Benchmark
+  public boolean addValue() {
+    return subAlarmStats.addValue(nextValue(), now);
+  }
+
+  /**
+   * Each call is the next minute, with a value for the minute that ended
+   */
+  @Benchmark
+  public boolean evaluateAndSlideWindow() {
+    subAlarmStats.addValue(nextValue(), now);
+    now += 60;
+    return subAlarmStats.evaluateAndSlideWindow(now, ALARM_DELAY);
+  }
+}
@@ -0,0 +1,68 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starting the topology until the first tuple reaches the last Bolt, with an EmbeddedTopology or
+ * with a Storm LocalCluster. Each call starts a new topology, so the score is the time for one
+ * start.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(3)
+public class TopologyStartupBenchmark {
+  @Param({BenchmarkTopology.EMBEDDED, BenchmarkTopology.LOCAL_CLUSTER})
+  public String runner;
+
+  private BenchmarkTopology topology;
+
+  @Setup(Level.Invocation)
+  public void createTopology() {
+    topology = new BenchmarkTopology(runner);
+  }
+
+  @TearDown(Level.Invocation)
+  public void closeTopology() throws Exception {
+    topology.close();
+  }
+
+  @Benchmark
+  public void start() throws Exception {
+    topology.start();
+    topology.deliver(1);
+  }
+}
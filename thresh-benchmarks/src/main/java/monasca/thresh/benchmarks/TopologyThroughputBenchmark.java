@@ -0,0 +1,71 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuples per second through the Spout and both Bolts of a running topology, with an
+ * EmbeddedTopology or with a Storm LocalCluster. Each call sends TUPLES tuples and waits until the
+ * last Bolt executed all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(TopologyThroughputBenchmark.TUPLES)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(1)
+public class TopologyThroughputBenchmark {
+  static final int TUPLES = 10000;
+
+  @Param({BenchmarkTopology.EMBEDDED, BenchmarkTopology.LOCAL_CLUSTER})
+  public String runner;
+
+  private BenchmarkTopology topology;
+
+  @Setup
+  public void start() throws Exception {
+    topology = new BenchmarkTopology(runner);
+    topology.start();
+  }
+
+  @TearDown
+  public void close() throws Exception {
+    topology.close();
+  }
+
+  @Benchmark
+  public void deliver() {
+    topology.deliver(TUPLES);
+  }
+}
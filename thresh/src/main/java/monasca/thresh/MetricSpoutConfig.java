@@ -17,7 +17,32 @@
 
 package monasca.thresh;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 public class MetricSpoutConfig extends KafkaSpoutConfig {
 
   private static final long serialVersionUID = -4285448019855024921L;
+
+  /**
+   * Maximum number of metrics with the same tenant id and metric name sent in one tuple. 1 sends
+   * each metric in its own tuple.
+   */
+  @JsonProperty
+  public Integer batchSize = 1;
+
+  /** Maximum time in milliseconds a metric waits for its batch to fill up before it is sent. */
+  @JsonProperty
+  public Integer batchMaxLatencyMs = 100;
+
+  /**
+   * Emit the metrics with a message id so Storm tracks each one through the topology. The
+   * KafkaSpout does not replay failed tuples, so a metric lost in a worker crash or queue
+   * overflow is lost in either mode and the only difference is the cost: with false the metrics
+   * are emitted without a message id, the ackers do no work for them and Storm's message timeout
+   * does not apply. A dropped metric only delays threshold evaluation by one period at most.
+   * The EventSpout emits without message ids in either mode, so with false numAckerThreads can
+   * be set to 0.
+   */
+  @JsonProperty
+  public Boolean reliable = true;
 }
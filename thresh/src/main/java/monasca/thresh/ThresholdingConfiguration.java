@@ -22,6 +22,7 @@ import monasca.thresh.infrastructure.thresholding.DataSourceFactory;
 import monasca.thresh.utils.StatsdConfig;
 
 import java.io.Serializable;
+import java.util.HashSet;
 import java.util.Set;
 
 import javax.validation.Valid;
@@ -37,6 +38,13 @@ public class ThresholdingConfiguration implements Serializable {
   @NotNull public Integer numWorkerProcesses = 12;
   /** Total number of acker threads across the cluster. */
   @NotNull public Integer numAckerThreads = 12;
+  /**
+   * Run the topology in the thresh process without Storm, see EmbeddedTopology. The local
+   * argument is ignored when set.
+   */
+  @NotNull public Boolean embedded = false;
+  /** Number of threads running the bolt tasks when the topology is run embedded, without Storm. */
+  @NotNull public Integer embeddedThreads = 4;
 
   @NotNull public Integer metricSpoutThreads = 6;
   @NotNull public Integer metricSpoutTasks = 6;
@@ -46,15 +54,43 @@ public class ThresholdingConfiguration implements Serializable {
 
   @NotNull public Integer eventBoltThreads = 3;
   @NotNull public Integer eventBoltTasks = 3;
+  /**
+   * Send alarm, alarm definition and sub alarm events to only the bolt tasks that hold state for
+   * them instead of broadcasting them to every task.
+   */
+  @NotNull public Boolean eventBoltDirectRouting = false;
 
   @NotNull public Integer filteringBoltThreads = 6;
   @NotNull public Integer filteringBoltTasks = 15;
+  /**
+   * Each worker only loads the alarmed metrics routed to its own filtering bolt tasks instead of
+   * all of them. Metric alarm events are then grouped the same way as the metrics.
+   */
+  @NotNull public Boolean filteringBoltSharded = false;
 
   @NotNull public Integer alarmCreationBoltThreads = 4;
   @NotNull public Integer alarmCreationBoltTasks = 4;
 
   @NotNull public Integer aggregationBoltThreads = 12;
   @NotNull public Integer aggregationBoltTasks = 30;
+  /**
+   * Metric names with so many metric definitions that one aggregation bolt task cannot keep up.
+   * Their metrics are spread over hotMetricSplit tasks by metric definition. Only list a name if
+   * every alarm on it has a single metric, that is every alarm definition using it has a match_by
+   * on all of the dimensions that tell its metric definitions apart. A sub alarm with several
+   * metric definitions would be aggregated separately on several tasks, each seeing only part of
+   * its metrics, and evaluate to the wrong state. Alarm definitions without a match_by on a
+   * listed name are refused, see MetricGrouping.
+   */
+  @NotNull public Set<String> hotMetricNames = new HashSet<>();
+  @NotNull public Integer hotMetricSplit = 4;
+  /**
+   * Spread the metrics of every name over all of the aggregation bolt tasks by metric definition
+   * instead of grouping them by tenant id and metric name. Only for deployments where every
+   * alarm has a single metric, alarm definitions without a match_by are refused, see
+   * MetricGrouping.
+   */
+  @NotNull public Boolean aggregationBoltGroupByMetricDefinition = false;
 
   @NotNull public Integer thresholdingBoltThreads = 6;
   @NotNull public Integer thresholdingBoltTasks = 15;
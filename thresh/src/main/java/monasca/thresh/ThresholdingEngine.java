@@ -19,6 +19,8 @@ package monasca.thresh;
 
 import monasca.common.util.Injector;
 import monasca.common.util.config.ConfigurationFactory;
+import monasca.thresh.infrastructure.embedded.EmbeddedTopology;
+import monasca.thresh.infrastructure.serialization.KryoSerializers;
 
 import org.apache.storm.Config;
 import org.apache.storm.LocalCluster;
@@ -44,7 +46,7 @@ public class ThresholdingEngine {
     this.threshConfig = threshConfig;
     this.topologyName = topologyName;
     this.local = local;
-    logger.info("local set to {}", local);
+    logger.info("local set to {}, embedded set to {}", local, threshConfig.embedded);
   }
 
   public static final ThresholdingConfiguration configFor(String configFileName) throws Exception {
@@ -97,10 +99,20 @@ public class ThresholdingEngine {
   protected void run() throws Exception {
     Config config = Injector.getInstance(Config.class);
     StormTopology topology = Injector.getInstance(StormTopology.class);
-    config.registerSerialization(monasca.thresh.domain.model.SubAlarm.class);
-    config.registerSerialization(monasca.thresh.domain.model.SubExpression.class);
-
-    if (local) {
+    KryoSerializers.register(config);
+
+    if (threshConfig.embedded) {
+      logger.info("running topology {} embedded", topologyName);
+      final EmbeddedTopology embeddedTopology =
+          new EmbeddedTopology(topologyName, config, topology, threshConfig.embeddedThreads);
+      embeddedTopology.start();
+      Runtime.getRuntime().addShutdownHook(new Thread() {
+        @Override
+        public void run() {
+          embeddedTopology.close();
+        }
+      });
+    } else if (local) {
       logger.info("submitting topology {} to local storm cluster", topologyName);
       new LocalCluster().submitTopology(topologyName, config, topology);
     } else {
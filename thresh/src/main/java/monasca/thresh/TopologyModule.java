@@ -20,9 +20,12 @@ package monasca.thresh;
 import monasca.thresh.infrastructure.thresholding.AlarmCreationBolt;
 import monasca.thresh.infrastructure.thresholding.AlarmThresholdingBolt;
 import monasca.thresh.infrastructure.thresholding.EventProcessingBolt;
+import monasca.thresh.infrastructure.thresholding.EventRouter;
+import monasca.thresh.infrastructure.thresholding.EventRouter.Route;
 import monasca.thresh.infrastructure.thresholding.EventSpout;
 import monasca.thresh.infrastructure.thresholding.MetricAggregationBolt;
 import monasca.thresh.infrastructure.thresholding.MetricFilteringBolt;
+import monasca.thresh.infrastructure.thresholding.MetricGrouping;
 import monasca.thresh.infrastructure.thresholding.MetricSpout;
 import monasca.thresh.infrastructure.thresholding.deserializer.EventDeserializer;
 import monasca.thresh.utils.StatsdMetricConsumer;
@@ -34,6 +37,7 @@ import com.google.inject.Provides;
 
 import org.apache.storm.Config;
 import org.apache.storm.generated.StormTopology;
+import org.apache.storm.topology.BoltDeclarer;
 import org.apache.storm.topology.IRichSpout;
 import org.apache.storm.topology.TopologyBuilder;
 import org.apache.storm.tuple.Fields;
@@ -97,6 +101,12 @@ public class TopologyModule extends AbstractModule {
       if (config.statsdConfig.getDebugmetrics() != null)
         statsdConfig.put(StatsdMetricConsumer.STATSD_DEBUGMETRICS,
             config.statsdConfig.getDebugmetrics());
+      if (config.statsdConfig.getMaxpacketbytes() != null)
+        statsdConfig.put(StatsdMetricConsumer.STATSD_MAX_PACKET_BYTES,
+            config.statsdConfig.getMaxpacketbytes());
+      if (config.statsdConfig.getAggregationwindow() != null)
+        statsdConfig.put(StatsdMetricConsumer.STATSD_AGGREGATION_WINDOW,
+            config.statsdConfig.getAggregationwindow());
 
       stormConfig.registerMetricsConsumer(StatsdMetricConsumer.class,
               statsdConfig, 2);
@@ -131,59 +141,131 @@ public class TopologyModule extends AbstractModule {
         config.eventSpoutThreads).setNumTasks(config.eventSpoutTasks);
 
     // Event -> Events
+    final boolean directEvents = config.eventBoltDirectRouting;
     builder
-        .setBolt("event-bolt", new EventProcessingBolt(config.database), config.eventBoltThreads)
+        .setBolt("event-bolt",
+            directEvents ? new EventProcessingBolt(config.database, createEventRouter(config))
+                : new EventProcessingBolt(config.database), config.eventBoltThreads)
         .shuffleGrouping("event-spout").setNumTasks(config.eventBoltTasks);
 
     // Metrics / Event -> Filtering
-    builder
-        .setBolt("filtering-bolt", new MetricFilteringBolt(config.database),
+    final boolean batchedMetrics =
+        config.metricSpoutConfig != null && config.metricSpoutConfig.batchSize > 1;
+    final BoltDeclarer filteringBolt = builder
+        .setBolt("filtering-bolt",
+            new MetricFilteringBolt(config.database, config.filteringBoltSharded,
+                createMetricGrouping(config)),
             config.filteringBoltThreads)
         .fieldsGrouping("metrics-spout", new Fields(MetricSpout.FIELDS[0]))
-        .allGrouping("event-bolt", EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID)
-        .allGrouping("event-bolt", EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID)
         .setNumTasks(config.filteringBoltTasks);
+    if (batchedMetrics) {
+      filteringBolt.fieldsGrouping("metrics-spout", MetricSpout.METRIC_BATCH_STREAM,
+          new Fields(MetricSpout.METRIC_BATCH_FIELDS[0]));
+    }
+    eventGrouping(filteringBolt, EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID,
+        directEvents);
+    if (config.filteringBoltSharded) {
+      // Only the task that owns the metric knows about it
+      filteringBolt.fieldsGrouping("event-bolt", EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID,
+          new Fields(EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_FIELDS[1]));
+    } else {
+      filteringBolt.allGrouping("event-bolt", EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID);
+    }
 
     // Filtering /Event -> Alarm Creation
-    builder
+    final BoltDeclarer alarmCreationBolt = builder
         .setBolt("alarm-creation-bolt", new AlarmCreationBolt(config.database),
             config.alarmCreationBoltThreads)
         .fieldsGrouping("filtering-bolt",
             MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM,
             new Fields(AlarmCreationBolt.ALARM_CREATION_FIELDS[3]))
-        .allGrouping("event-bolt", EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID)
-        .allGrouping("event-bolt", EventProcessingBolt.ALARM_EVENT_STREAM_ID)
-        .allGrouping("event-bolt", EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID)
+        .fieldsGrouping("filtering-bolt",
+            MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM,
+            new Fields(AlarmCreationBolt.ALARM_CREATION_FIELDS[3]))
         .setNumTasks(config.alarmCreationBoltTasks);
+    eventGrouping(alarmCreationBolt, EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID,
+        directEvents);
+    eventGrouping(alarmCreationBolt, EventProcessingBolt.ALARM_EVENT_STREAM_ID, directEvents);
+    eventGrouping(alarmCreationBolt, EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID,
+        directEvents);
 
     // Filtering / Event / Alarm Creation -> Aggregation
-    builder
+    final BoltDeclarer aggregationBolt = builder
         .setBolt("aggregation-bolt",
             new MetricAggregationBolt(config, config.database), config.aggregationBoltThreads)
-        .fieldsGrouping("filtering-bolt", new Fields(MetricFilteringBolt.FIELDS[0]))
+        .customGrouping("filtering-bolt", createMetricGrouping(config))
         .allGrouping("filtering-bolt", MetricAggregationBolt.METRIC_AGGREGATION_CONTROL_STREAM)
-        .fieldsGrouping("filtering-bolt", AlarmCreationBolt.ALARM_CREATION_STREAM,
-            new Fields(AlarmCreationBolt.ALARM_CREATION_FIELDS[1]))
-        .allGrouping("event-bolt", EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID)
-        .fieldsGrouping("event-bolt", EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID,
-            new Fields(EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_FIELDS[1]))
-        .fieldsGrouping("alarm-creation-bolt", AlarmCreationBolt.ALARM_CREATION_STREAM,
-            new Fields(AlarmCreationBolt.ALARM_CREATION_FIELDS[1]))
+        .customGrouping("filtering-bolt", AlarmCreationBolt.ALARM_CREATION_STREAM,
+            createMetricGrouping(config))
+        .customGrouping("event-bolt", EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID,
+            createMetricGrouping(config))
+        .customGrouping("alarm-creation-bolt", AlarmCreationBolt.ALARM_CREATION_STREAM,
+            createMetricGrouping(config))
         .setNumTasks(config.aggregationBoltTasks);
+    if (batchedMetrics) {
+      aggregationBolt.customGrouping("filtering-bolt", MetricFilteringBolt.METRIC_BATCH_STREAM,
+          createMetricGrouping(config));
+    }
+    eventGrouping(aggregationBolt, EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID,
+        directEvents);
 
     // Alarm Creation / Event
     // Aggregation / Event -> Thresholding
-    builder
+    final BoltDeclarer thresholdingBolt = builder
         .setBolt("thresholding-bolt",
             new AlarmThresholdingBolt(config.database, config.kafkaProducerConfig),
             config.thresholdingBoltThreads)
         .fieldsGrouping("aggregation-bolt", new Fields(MetricAggregationBolt.FIELDS[0]))
-        .fieldsGrouping("event-bolt", EventProcessingBolt.ALARM_EVENT_STREAM_ID,
-            new Fields(EventProcessingBolt.ALARM_EVENT_STREAM_FIELDS[1]))
-        .allGrouping("event-bolt", EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID)
-        .allGrouping("event-bolt", EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID)
         .setNumTasks(config.thresholdingBoltTasks);
+    if (directEvents) {
+      thresholdingBolt.directGrouping("event-bolt", EventProcessingBolt.ALARM_EVENT_STREAM_ID);
+    } else {
+      thresholdingBolt.fieldsGrouping("event-bolt", EventProcessingBolt.ALARM_EVENT_STREAM_ID,
+          new Fields(EventProcessingBolt.ALARM_EVENT_STREAM_FIELDS[1]));
+    }
+    eventGrouping(thresholdingBolt, EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID,
+        directEvents);
+    eventGrouping(thresholdingBolt, EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID,
+        directEvents);
 
     return builder.createTopology();
   }
+
+  /**
+   * Subscribes the bolt to an event stream that is either broadcast to all of its tasks or, if
+   * direct, sent to only the tasks chosen by the EventRouter
+   */
+  private static void eventGrouping(BoltDeclarer bolt, String streamId, boolean direct) {
+    if (direct) {
+      bolt.directGrouping("event-bolt", streamId);
+    } else {
+      bolt.allGrouping("event-bolt", streamId);
+    }
+  }
+
+  /**
+   * The routes must match the streams subscribed with eventGrouping when direct
+   */
+  private static EventRouter createEventRouter(ThresholdingConfiguration config) {
+    return new EventRouter(createMetricGrouping(config))
+        .route(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID, "filtering-bolt", Route.ALL)
+        .route(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID, "alarm-creation-bolt",
+            Route.ALARM_DEFINITION)
+        .route(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID, "thresholding-bolt",
+            Route.ALARM)
+        .route(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID, "alarm-creation-bolt",
+            Route.ALARM_DEFINITION)
+        .route(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID, "aggregation-bolt",
+            Route.METRIC)
+        .route(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID, "thresholding-bolt",
+            Route.ALARM)
+        .route(EventProcessingBolt.ALARM_EVENT_STREAM_ID, "alarm-creation-bolt",
+            Route.ALARM_DEFINITION)
+        .route(EventProcessingBolt.ALARM_EVENT_STREAM_ID, "thresholding-bolt", Route.ALARM);
+  }
+
+  private static MetricGrouping createMetricGrouping(ThresholdingConfiguration config) {
+    return new MetricGrouping(config.hotMetricNames, config.hotMetricSplit,
+        config.aggregationBoltGroupByMetricDefinition);
+  }
 }
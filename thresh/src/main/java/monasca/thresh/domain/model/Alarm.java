@@ -150,35 +150,52 @@ public class Alarm extends AbstractEntity {
   }
 
   /**
-   * Evaluates the {@code alarm}, updating the alarm's state if necessary.
+   * Evaluates the {@code alarm}, updating the alarm's state if necessary. Uses the compiled
+   * expression of the {@code alarmDefinition} when there is one.
    *
-   * @param expression expression to evaluate
+   * @param alarmDefinition definition whose expression is evaluated
    *
    * @return {@link Boolean#TRUE} if alarm's state has changed, {@link Boolean#FALSE} otherwise
    */
-  public boolean evaluate(AlarmExpression expression) {
-    transitionSubAlarms.clear();
+  public boolean evaluate(AlarmDefinition alarmDefinition) {
+    final CompiledAlarmExpression compiledExpression = alarmDefinition.getCompiledExpression();
+    if ((compiledExpression == null) || (compiledExpression.size() != subAlarms.size())) {
+      return evaluate(alarmDefinition.getAlarmExpression());
+    }
 
-    AlarmState initialState = state;
     boolean uninitialized = false;
-
+    int alarmBits = 0;
     for (SubAlarm subAlarm : subAlarms.values()) {
-      if (AlarmState.UNDETERMINED.equals(subAlarm.getState())) {
+      final int ordinal = compiledExpression.ordinalOf(subAlarm.getAlarmSubExpressionId());
+      if (ordinal < 0) {
+        return evaluate(alarmDefinition.getAlarmExpression());
+      }
+      final AlarmState subAlarmState = subAlarm.getState();
+      if (AlarmState.UNDETERMINED.equals(subAlarmState)) {
         uninitialized = true;
+      } else if (AlarmState.ALARM.equals(subAlarmState)) {
+        alarmBits |= 1 << ordinal;
       }
-      transitionSubAlarms.add(new AlarmTransitionSubAlarm(subAlarm.getExpression(),
-        subAlarm.getState(), subAlarm.getCurrentValues()));
     }
 
-    // Handle UNDETERMINED state
     if (uninitialized) {
-      if (AlarmState.UNDETERMINED.equals(initialState)) {
-        return false;
-      }
+      return transitionTo(AlarmState.UNDETERMINED);
+    }
+    return transitionTo(compiledExpression.evaluate(alarmBits) ? AlarmState.ALARM : AlarmState.OK);
+  }
 
-      state = AlarmState.UNDETERMINED;
-      stateChangeReason = buildStateChangeReason(state);
-      return true;
+  /**
+   * Evaluates the {@code alarm}, updating the alarm's state if necessary.
+   *
+   * @param expression expression to evaluate
+   *
+   * @return {@link Boolean#TRUE} if alarm's state has changed, {@link Boolean#FALSE} otherwise
+   */
+  public boolean evaluate(AlarmExpression expression) {
+    for (SubAlarm subAlarm : subAlarms.values()) {
+      if (AlarmState.UNDETERMINED.equals(subAlarm.getState())) {
+        return transitionTo(AlarmState.UNDETERMINED);
+      }
     }
 
     Map<AlarmSubExpression, Boolean> subExpressionValues = new HashMap<>(subAlarms.size());
@@ -189,20 +206,25 @@ public class Alarm extends AbstractEntity {
       );
     }
 
-    // Handle ALARM state
-    if (expression.evaluate(subExpressionValues)) {
-      if (AlarmState.ALARM.equals(initialState)) {
-        return false;
-      }
-      state = AlarmState.ALARM;
-      stateChangeReason = buildStateChangeReason(state);
-      return true;
-    }
+    return transitionTo(expression.evaluate(subExpressionValues) ? AlarmState.ALARM
+        : AlarmState.OK);
+  }
 
-    if (AlarmState.OK.equals(initialState)) {
+  /**
+   * Moves the alarm to {@code newState}. The transition details and reason are only built when
+   * the state actually changes.
+   */
+  private boolean transitionTo(final AlarmState newState) {
+    if (newState.equals(state)) {
       return false;
     }
-    state = AlarmState.OK;
+    state = newState;
+    final List<AlarmTransitionSubAlarm> transitions = new ArrayList<>(subAlarms.size());
+    for (SubAlarm subAlarm : subAlarms.values()) {
+      transitions.add(new AlarmTransitionSubAlarm(subAlarm.getExpression(),
+          subAlarm.getState(), subAlarm.getCurrentValues()));
+    }
+    transitionSubAlarms = transitions;
     stateChangeReason = buildStateChangeReason(state);
     return true;
   }
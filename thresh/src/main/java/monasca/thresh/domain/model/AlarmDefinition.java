@@ -37,6 +37,8 @@ public class AlarmDefinition extends AbstractEntity {
   private boolean actionsEnabled = true;
   private String severity;
   private List<SubExpression> subExpressions = new ArrayList<>();
+  private transient CompiledAlarmExpression compiledExpression;
+  private transient boolean compiled = false;
 
   public AlarmDefinition() {
   }
@@ -158,6 +160,26 @@ public class AlarmDefinition extends AbstractEntity {
 
   public void setExpression(String expression) {
     this.expression = AlarmExpression.of(expression);
+    invalidateCompiledExpression();
+  }
+
+  /**
+   * Returns the expression compiled for fast evaluation. It is compiled on first use and again
+   * after the expression or SubExpressions change.
+   *
+   * @return the compiled expression or null if it can't be compiled
+   */
+  public CompiledAlarmExpression getCompiledExpression() {
+    if (!compiled) {
+      compiledExpression = CompiledAlarmExpression.compile(this);
+      compiled = true;
+    }
+    return compiledExpression;
+  }
+
+  private void invalidateCompiledExpression() {
+    compiledExpression = null;
+    compiled = false;
   }
 
   public void setId(String id) {
@@ -215,12 +237,14 @@ public class AlarmDefinition extends AbstractEntity {
 
   public void setSubExpressions(List<SubExpression> subExpressions) {
     this.subExpressions = subExpressions;
+    invalidateCompiledExpression();
   }
 
   public boolean updateSubExpression(final String id, final AlarmSubExpression alarmSubExpression) {
     for (final SubExpression subExpression : this.subExpressions) {
       if (subExpression.getId().equals(id)) {
         subExpression.setAlarmSubExpression(alarmSubExpression);
+        invalidateCompiledExpression();
         return true;
       }
     }
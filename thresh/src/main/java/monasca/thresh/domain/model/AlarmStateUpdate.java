@@ -0,0 +1,53 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import monasca.common.model.alarm.AlarmState;
+
+/**
+ * The state of an Alarm to be persisted and when it changed to that state.
+ */
+public class AlarmStateUpdate {
+  private final String alarmId;
+  private final AlarmState state;
+  private final long msTimestamp;
+
+  public AlarmStateUpdate(String alarmId, AlarmState state, long msTimestamp) {
+    this.alarmId = alarmId;
+    this.state = state;
+    this.msTimestamp = msTimestamp;
+  }
+
+  public String getAlarmId() {
+    return alarmId;
+  }
+
+  public AlarmState getState() {
+    return state;
+  }
+
+  public long getMsTimestamp() {
+    return msTimestamp;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("AlarmStateUpdate [alarmId=%s, state=%s, msTimestamp=%d]", alarmId,
+        state, msTimestamp);
+  }
+}
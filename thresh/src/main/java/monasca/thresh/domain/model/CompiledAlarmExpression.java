@@ -0,0 +1,113 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.domain.model;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.alarm.AlarmSubExpression;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An AlarmExpression flattened into a truth table so it can be evaluated without walking the
+ * expression or hashing AlarmSubExpressions.
+ *
+ * Each SubExpression of the AlarmDefinition is given an ordinal. The value for a set of SubAlarm
+ * states is found by setting bit N of an int if the SubAlarm for ordinal N is in ALARM and using
+ * that as the index into the table. The table is built once by evaluating the AlarmExpression for
+ * every combination, so it is only used for expressions with at most MAX_SUB_EXPRESSIONS
+ * SubExpressions.
+ */
+public class CompiledAlarmExpression {
+  public static final int MAX_SUB_EXPRESSIONS = 12;
+
+  private final Map<String, Integer> ordinals;
+  private final long[] truthTable;
+
+  private CompiledAlarmExpression(Map<String, Integer> ordinals, long[] truthTable) {
+    this.ordinals = ordinals;
+    this.truthTable = truthTable;
+  }
+
+  /**
+   * Compiles the expression of the AlarmDefinition.
+   *
+   * @return the compiled expression or null if the AlarmDefinition can't be compiled, in which
+   *         case the AlarmExpression must be evaluated directly
+   */
+  public static CompiledAlarmExpression compile(final AlarmDefinition alarmDefinition) {
+    final AlarmExpression expression = alarmDefinition.getAlarmExpression();
+    if (expression == null) {
+      return null;
+    }
+    final List<AlarmSubExpression> expressionSubExpressions = expression.getSubExpressions();
+    final int count = expressionSubExpressions.size();
+    if ((count == 0) || (count > MAX_SUB_EXPRESSIONS)
+        || (alarmDefinition.getSubExpressions().size() != count)) {
+      return null;
+    }
+
+    final Map<String, Integer> ordinals = new HashMap<>(count * 2);
+    final boolean[] used = new boolean[count];
+    for (final SubExpression subExpression : alarmDefinition.getSubExpressions()) {
+      final int ordinal = expressionSubExpressions.indexOf(subExpression.getAlarmSubExpression());
+      // Duplicate SubExpressions can't be told apart by AlarmExpression.evaluate()
+      if ((ordinal < 0) || used[ordinal]) {
+        return null;
+      }
+      used[ordinal] = true;
+      ordinals.put(subExpression.getId(), ordinal);
+    }
+
+    final int combinations = 1 << count;
+    final long[] truthTable = new long[(combinations + 63) / 64];
+    final Map<AlarmSubExpression, Boolean> subExpressionValues = new HashMap<>(count * 2);
+    for (int bits = 0; bits < combinations; bits++) {
+      for (int ordinal = 0; ordinal < count; ordinal++) {
+        subExpressionValues.put(expressionSubExpressions.get(ordinal),
+            (bits & (1 << ordinal)) != 0);
+      }
+      if (expression.evaluate(subExpressionValues)) {
+        truthTable[bits >>> 6] |= 1L << (bits & 63);
+      }
+    }
+    return new CompiledAlarmExpression(ordinals, truthTable);
+  }
+
+  /**
+   * @return the ordinal for the SubExpression with the given id or -1 if it is not part of the
+   *         expression
+   */
+  public int ordinalOf(final String subExpressionId) {
+    final Integer ordinal = ordinals.get(subExpressionId);
+    return ordinal == null ? -1 : ordinal.intValue();
+  }
+
+  public int size() {
+    return ordinals.size();
+  }
+
+  /**
+   * @param alarmBits bit N set if the SubAlarm for ordinal N is in ALARM
+   * @return true if the expression is in ALARM
+   */
+  public boolean evaluate(final int alarmBits) {
+    return (truthTable[alarmBits >>> 6] & (1L << (alarmBits & 63))) != 0;
+  }
+}
@@ -119,6 +119,20 @@ public class MetricDefinitionAndTenantIdMatcher {
     return byTenantId.isEmpty();
   }
 
+  /**
+   * Returns the number of dimension sets held. Walks the tenants and metric names so it is meant
+   * for reporting, not for every Metric
+   */
+  public int size() {
+    int size = 0;
+    for (final Map<String, List<AlarmDefinitionDimensions>> byMetricName : byTenantId.values()) {
+      for (final List<AlarmDefinitionDimensions> alarmDefDimensions : byMetricName.values()) {
+        size += alarmDefDimensions.size();
+      }
+    }
+    return size;
+  }
+
   public void clear() {
     byTenantId.clear();
   }
@@ -17,19 +17,28 @@
 
 package monasca.thresh.domain.model;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
 import java.io.Serializable;
 
 /**
  * This class is used for routing
+ * <p/>
+ * The fieldsGrouping uses the hashCode to pick the task, so it is a murmur3 hash of both fields.
+ * Adding the String hashes put similar tenant ids and metric names on the same few tasks.
  * 
  * @author craigbr
  * 
  */
 public class TenantIdAndMetricName implements Serializable {
   private static final long serialVersionUID = -2213662242536216424L;
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
 
   private final String tenantId;
   private final String metricName;
+  private transient int hash;
 
   public TenantIdAndMetricName(String tenantId, String metricName) {
     this.tenantId = tenantId;
@@ -50,7 +59,16 @@ public class TenantIdAndMetricName implements Serializable {
 
   @Override
   public int hashCode() {
-    return tenantId.hashCode() + metricName.hashCode();
+    int result = hash;
+    if (result == 0) {
+      result = HASH_FUNCTION.newHasher()
+          .putString(tenantId, Charsets.UTF_8)
+          .putInt(tenantId.length())
+          .putString(metricName, Charsets.UTF_8)
+          .hash().asInt();
+      hash = result;
+    }
+    return result;
   }
 
   @Override
@@ -20,32 +20,68 @@ package monasca.thresh.domain.service;
 import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmStateUpdate;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Alarm DAO.
  */
 public interface AlarmDAO {
+  /** Receives the Alarms read by {@link AlarmDAO#listAll(AlarmCallback)} one at a time */
+  interface AlarmCallback {
+    void onAlarm(Alarm alarm);
+  }
+
   /** Finds and returns the Alarm for the {@code id}. */
   Alarm findById(String id);
 
+  /** Finds and returns the Alarms for the {@code ids}. Ids that are not found are skipped. */
+  List<Alarm> findByIds(Collection<String> ids);
+
   /** Finds all Alarms for the given AlarmDefinition */
   List<Alarm> findForAlarmDefinitionId(String alarmDefinitionId);
 
   /** List all Alarms */
   public List<Alarm> listAll();
 
+  /**
+   * Streams all Alarms to the {@code callback} as they are read without holding all of them in
+   * memory
+   */
+  void listAll(AlarmCallback callback);
+
+  /**
+   * Streams the Alarms with {@code fromId <= id < toId} to the {@code callback}. A null bound is
+   * unbounded.
+   */
+  void listAll(String fromId, String toId, AlarmCallback callback);
+
+  /** List the ids of all Alarms */
+  List<String> listAllIds();
+
   /** Updates the alarm state. */
   void updateState(String id, AlarmState state, long msTimestamp);
 
+  /** Updates the state of a batch of Alarms in a single transaction */
+  void updateStates(Collection<AlarmStateUpdate> updates);
+
   /** Adds a new AlarmedMetric to an Alarm */
   void addAlarmedMetric(String id, MetricDefinitionAndTenantId metricDefinition);
 
+  /** Adds a batch of new AlarmedMetrics to existing Alarms in a single transaction */
+  void addAlarmedMetrics(Collection<AlarmedMetric> alarmedMetrics);
+
   /** Create a new Alarm */
   void createAlarm(Alarm newAlarm);
 
+  /** Create a batch of new Alarms in a single transaction */
+  void createAlarms(Collection<Alarm> newAlarms);
+
   /** Update SubAlarms when AlarmDefinition changes */
   int updateSubAlarmExpressions(final String alarmSubExpressionId, AlarmSubExpression alarmSubExpression);
 
@@ -54,4 +90,7 @@ public interface AlarmDAO {
 
   /** Update the state of the given SubAlarm */
   void updateSubAlarmState(String subAlarmId, AlarmState subAlarmState);
+
+  /** Update the states of a batch of SubAlarms, keyed by SubAlarm id, in a single transaction */
+  void updateSubAlarmStates(Map<String, AlarmState> subAlarmStates);
 }
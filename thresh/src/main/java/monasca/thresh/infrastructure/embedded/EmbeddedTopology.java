@@ -0,0 +1,616 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.embedded;
+
+import monasca.thresh.infrastructure.thresholding.PropertyFinder;
+
+import clojure.lang.Atom;
+
+import org.apache.storm.Config;
+import org.apache.storm.Constants;
+import org.apache.storm.generated.Bolt;
+import org.apache.storm.generated.ComponentCommon;
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.generated.Grouping;
+import org.apache.storm.generated.SpoutSpec;
+import org.apache.storm.generated.StormTopology;
+import org.apache.storm.generated.StreamInfo;
+import org.apache.storm.grouping.CustomStreamGrouping;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.spout.ISpout;
+import org.apache.storm.spout.ISpoutOutputCollector;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.GeneralTopologyContext;
+import org.apache.storm.task.IBolt;
+import org.apache.storm.task.IOutputCollector;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.task.WorkerTopologyContext;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.TupleImpl;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a StormTopology in this JVM without Storm. Every task of the topology's Bolts and Spouts is
+ * created from the topology the same way as in a Storm worker, and the tuples are routed with the
+ * same groupings, so the Bolts run unchanged.
+ * <p/>
+ * Each Bolt task has a lock free inbox queue. The Bolt tasks are partitioned over a fixed number
+ * of threads, so a task is only ever executed by one thread. Tuples are passed by reference
+ * without serialization and there are no ackers, acks and fails are ignored. Each Spout task has
+ * its own thread, which stops calling nextTuple while more than MAX_PENDING tuples are queued.
+ * <p/>
+ * The threads are not daemons so the JVM keeps running until close() is called.
+ * <p/>
+ * Metrics registered by the Bolts are not reported.
+ */
+public class EmbeddedTopology {
+  private static final Logger logger = LoggerFactory.getLogger(EmbeddedTopology.class);
+
+  public static final String MAX_PENDING_KEY = "monasca.thresh.embedded.maxPending";
+  public static final int MAX_PENDING_DEFAULT = 100000;
+  private static final int MAX_PENDING = PropertyFinder.getIntProperty(MAX_PENDING_KEY,
+      MAX_PENDING_DEFAULT, 1, Integer.MAX_VALUE);
+
+  private static final int SYSTEM_TASK_ID = -1;
+  /** Tuples executed for a task before going on to the next task of the thread */
+  private static final int BATCH_SIZE = 100;
+  private static final long IDLE_PARK_NS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final String name;
+  private final Map<String, Object> stormConf;
+  private final StormTopology topology;
+  private final int numThreads;
+
+  private final Map<Integer, String> taskToComponent = new HashMap<>();
+  private final Map<String, List<Integer>> componentToSortedTasks = new HashMap<>();
+  private final Map<String, Map<String, Fields>> componentToStreamToFields = new HashMap<>();
+  private final Map<String, Map<String, Object>> componentConf = new HashMap<>();
+  private final GeneralTopologyContext generalContext;
+  private final WorkerTopologyContext workerContext;
+
+  /** source component -> stream -> subscribed groupings */
+  private final Map<String, Map<String, List<CustomStreamGrouping>>> subscriptions =
+      new HashMap<>();
+  private final Map<Integer, BoltTask> boltTasks = new HashMap<>();
+  private final List<SpoutTask> spoutTasks = new ArrayList<>();
+  private final List<Worker> workers = new ArrayList<>();
+  private final AtomicLong pending = new AtomicLong();
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+  private final ScheduledExecutorService timer;
+  private volatile boolean running;
+
+  public EmbeddedTopology(String name, Map<String, Object> stormConf, StormTopology topology,
+      int numThreads) {
+    this.name = name;
+    this.stormConf = stormConf;
+    this.topology = topology;
+    this.numThreads = Math.max(numThreads, 1);
+    assignTasks();
+    generalContext =
+        new GeneralTopologyContext(topology, stormConf, taskToComponent, componentToSortedTasks,
+            componentToStreamToFields, name);
+    workerContext =
+        new WorkerTopologyContext(topology, stormConf, taskToComponent, componentToSortedTasks,
+            componentToStreamToFields, name, null, null, null, allTasks(),
+            new HashMap<String, Object>(), new HashMap<String, Object>());
+    subscribe();
+    timer = Executors.newSingleThreadScheduledExecutor(daemonThreads(name + "-timer"));
+  }
+
+  private void assignTasks() {
+    final SortedMap<String, ComponentCommon> components = new TreeMap<>();
+    for (final Map.Entry<String, SpoutSpec> entry : topology.get_spouts().entrySet()) {
+      components.put(entry.getKey(), entry.getValue().get_common());
+    }
+    for (final Map.Entry<String, Bolt> entry : topology.get_bolts().entrySet()) {
+      components.put(entry.getKey(), entry.getValue().get_common());
+    }
+
+    taskToComponent.put(SYSTEM_TASK_ID, Constants.SYSTEM_COMPONENT_ID);
+    componentToSortedTasks.put(Constants.SYSTEM_COMPONENT_ID,
+        Collections.singletonList(SYSTEM_TASK_ID));
+    componentToStreamToFields.put(Constants.SYSTEM_COMPONENT_ID,
+        Collections.singletonMap(Constants.SYSTEM_TICK_STREAM_ID, new Fields("rate_secs")));
+
+    int nextTaskId = 1;
+    for (final Map.Entry<String, ComponentCommon> entry : components.entrySet()) {
+      final String componentId = entry.getKey();
+      final ComponentCommon common = entry.getValue();
+      final Map<String, Object> conf = parseConf(common);
+      componentConf.put(componentId, conf);
+
+      final List<Integer> tasks = new ArrayList<>();
+      for (int i = 0; i < numTasks(common, conf); i++) {
+        taskToComponent.put(nextTaskId, componentId);
+        tasks.add(nextTaskId++);
+      }
+      componentToSortedTasks.put(componentId, tasks);
+
+      final Map<String, Fields> streams = new HashMap<>();
+      for (final Map.Entry<String, StreamInfo> stream : common.get_streams().entrySet()) {
+        streams.put(stream.getKey(), new Fields(stream.getValue().get_output_fields()));
+      }
+      componentToStreamToFields.put(componentId, streams);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> parseConf(ComponentCommon common) {
+    if (common.get_json_conf() == null) {
+      return Collections.emptyMap();
+    }
+    final Object conf = Utils.from_json(common.get_json_conf());
+    return conf instanceof Map ? (Map<String, Object>) conf : Collections.<String, Object>emptyMap();
+  }
+
+  private static int numTasks(ComponentCommon common, Map<String, Object> conf) {
+    final Object tasks = conf.get(Config.TOPOLOGY_TASKS);
+    if (tasks instanceof Number) {
+      return ((Number) tasks).intValue();
+    }
+    return common.is_set_parallelism_hint() ? common.get_parallelism_hint() : 1;
+  }
+
+  private List<Integer> allTasks() {
+    final List<Integer> tasks = new ArrayList<>();
+    for (final Integer taskId : taskToComponent.keySet()) {
+      if (taskId != SYSTEM_TASK_ID) {
+        tasks.add(taskId);
+      }
+    }
+    Collections.sort(tasks);
+    return tasks;
+  }
+
+  private void subscribe() {
+    for (final Map.Entry<String, Bolt> entry : topology.get_bolts().entrySet()) {
+      final List<Integer> targetTasks = componentToSortedTasks.get(entry.getKey());
+      for (final Map.Entry<GlobalStreamId, Grouping> input : entry.getValue().get_common()
+          .get_inputs().entrySet()) {
+        final GlobalStreamId stream = input.getKey();
+        final CustomStreamGrouping grouping = Groupings.create(input.getValue());
+        if (grouping == null) {
+          // Direct, the emitter picks the task
+          continue;
+        }
+        grouping.prepare(workerContext, stream, targetTasks);
+        Map<String, List<CustomStreamGrouping>> streams =
+            subscriptions.get(stream.get_componentId());
+        if (streams == null) {
+          streams = new HashMap<>();
+          subscriptions.put(stream.get_componentId(), streams);
+        }
+        List<CustomStreamGrouping> groupings = streams.get(stream.get_streamId());
+        if (groupings == null) {
+          groupings = new ArrayList<>();
+          streams.put(stream.get_streamId(), groupings);
+        }
+        groupings.add(grouping);
+      }
+    }
+  }
+
+  /**
+   * Creates and prepares all of the Bolts, then opens the Spouts. Returns once the Spouts are
+   * running.
+   */
+  public void start() throws InterruptedException {
+    final long start = System.currentTimeMillis();
+    running = true;
+
+    for (int i = 0; i < numThreads; i++) {
+      workers.add(new Worker(name + "-worker-" + i));
+    }
+    int next = 0;
+    for (final Map.Entry<String, Bolt> entry : new TreeMap<>(topology.get_bolts()).entrySet()) {
+      for (final Integer taskId : componentToSortedTasks.get(entry.getKey())) {
+        final IBolt bolt =
+            Utils.javaDeserialize(entry.getValue().get_bolt_object().get_serialized_java(),
+                IBolt.class);
+        final Worker worker = workers.get(next++ % numThreads);
+        final BoltTask task = new BoltTask(taskId, entry.getKey(), bolt, worker);
+        worker.tasks.add(task);
+        boltTasks.put(taskId, task);
+      }
+    }
+
+    // The Bolts are prepared on the threads that run them
+    final CountDownLatch prepared = new CountDownLatch(workers.size());
+    for (final Worker worker : workers) {
+      worker.start(prepared);
+    }
+    prepared.await();
+    if (failure.get() != null) {
+      close();
+      throw failure.get();
+    }
+    scheduleTicks();
+
+    for (final Map.Entry<String, SpoutSpec> entry : new TreeMap<>(topology.get_spouts())
+        .entrySet()) {
+      for (final Integer taskId : componentToSortedTasks.get(entry.getKey())) {
+        final ISpout spout =
+            Utils.javaDeserialize(entry.getValue().get_spout_object().get_serialized_java(),
+                ISpout.class);
+        final SpoutTask task = new SpoutTask(taskId, entry.getKey(), spout);
+        spoutTasks.add(task);
+        task.start();
+      }
+    }
+    logger.info("Started topology {} with {} bolt tasks on {} threads and {} spout tasks in {} ms",
+        name, boltTasks.size(), numThreads, spoutTasks.size(), System.currentTimeMillis() - start);
+  }
+
+  private void scheduleTicks() {
+    for (final BoltTask task : boltTasks.values()) {
+      final Object frequency =
+          componentConf.get(task.componentId).get(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS);
+      if (frequency instanceof Number && ((Number) frequency).intValue() > 0) {
+        final int seconds = ((Number) frequency).intValue();
+        timer.scheduleAtFixedRate(new Runnable() {
+          @Override
+          public void run() {
+            deliver(task, new TupleImpl(generalContext, new Values(seconds), SYSTEM_TASK_ID,
+                Constants.SYSTEM_TICK_STREAM_ID));
+          }
+        }, seconds, seconds, TimeUnit.SECONDS);
+      }
+    }
+  }
+
+  /**
+   * Stops the Spouts and Bolts. Tuples still queued are dropped.
+   */
+  public void close() {
+    running = false;
+    timer.shutdownNow();
+    for (final SpoutTask task : spoutTasks) {
+      task.join();
+    }
+    for (final Worker worker : workers) {
+      worker.join();
+    }
+    logger.info("Stopped topology {}", name);
+  }
+
+  /** Number of tuples queued for the Bolts and not yet executed */
+  public long pending() {
+    return pending.get();
+  }
+
+  private List<Integer> emit(int sourceTaskId, String streamId, List<Object> values) {
+    final Map<String, List<CustomStreamGrouping>> streams =
+        subscriptions.get(taskToComponent.get(sourceTaskId));
+    final List<CustomStreamGrouping> groupings = streams == null ? null : streams.get(streamId);
+    if (groupings == null) {
+      return Collections.emptyList();
+    }
+    final Tuple tuple = new TupleImpl(generalContext, values, sourceTaskId, streamId);
+    final List<Integer> sent = new ArrayList<>();
+    for (final CustomStreamGrouping grouping : groupings) {
+      for (final Integer taskId : grouping.chooseTasks(sourceTaskId, values)) {
+        deliver(boltTasks.get(taskId), tuple);
+        sent.add(taskId);
+      }
+    }
+    return sent;
+  }
+
+  private void emitDirect(int sourceTaskId, int taskId, String streamId, List<Object> values) {
+    final BoltTask task = boltTasks.get(taskId);
+    if (task == null) {
+      logger.warn("Dropping tuple on stream {} sent to unknown task {}", streamId, taskId);
+      return;
+    }
+    deliver(task, new TupleImpl(generalContext, values, sourceTaskId, streamId));
+  }
+
+  private void deliver(BoltTask task, Tuple tuple) {
+    pending.incrementAndGet();
+    task.inbox.offer(tuple);
+    task.worker.wake();
+  }
+
+  private TopologyContext createContext(int taskId) {
+    return new TopologyContext(topology, stormConf, taskToComponent, componentToSortedTasks,
+        componentToStreamToFields, name, null, null, taskId, null, allTasks(),
+        new HashMap<String, Object>(), new HashMap<String, Object>(),
+        new HashMap<String, Object>(), new HashMap<Integer, Map<Integer, Map<String, IMetric>>>(),
+        new Atom(false));
+  }
+
+  private static ThreadFactory daemonThreads(final String threadName) {
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        final Thread thread = new Thread(runnable, threadName);
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static class BoltTask {
+    final int taskId;
+    final String componentId;
+    final IBolt bolt;
+    final Worker worker;
+    final Queue<Tuple> inbox = new ConcurrentLinkedQueue<>();
+
+    BoltTask(int taskId, String componentId, IBolt bolt, Worker worker) {
+      this.taskId = taskId;
+      this.componentId = componentId;
+      this.bolt = bolt;
+      this.worker = worker;
+    }
+  }
+
+  /**
+   * Thread that runs a partition of the Bolt tasks
+   */
+  private class Worker implements Runnable {
+    final List<BoltTask> tasks = new ArrayList<>();
+    private final Thread thread;
+    private volatile boolean idle;
+    private CountDownLatch prepared;
+
+    Worker(String threadName) {
+      thread = new Thread(this, threadName);
+    }
+
+    void start(CountDownLatch prepared) {
+      this.prepared = prepared;
+      thread.start();
+    }
+
+    void wake() {
+      if (idle) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    void join() {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        for (final BoltTask task : tasks) {
+          task.bolt.prepare(stormConf, createContext(task.taskId),
+              new OutputCollector(new BoltCollector(task.taskId)));
+        }
+      } catch (RuntimeException e) {
+        logger.error("Unable to prepare Bolts", e);
+        failure.compareAndSet(null, e);
+        running = false;
+      } finally {
+        prepared.countDown();
+      }
+
+      while (running) {
+        boolean executed = false;
+        for (final BoltTask task : tasks) {
+          for (int i = 0; i < BATCH_SIZE; i++) {
+            final Tuple tuple = task.inbox.poll();
+            if (tuple == null) {
+              break;
+            }
+            executed = true;
+            try {
+              task.bolt.execute(tuple);
+            } catch (RuntimeException e) {
+              logger.error("Error executing tuple {} in task {}", tuple, task.taskId, e);
+            } finally {
+              pending.decrementAndGet();
+            }
+          }
+        }
+        if (!executed) {
+          idle = true;
+          if (isEmpty()) {
+            LockSupport.parkNanos(IDLE_PARK_NS);
+          }
+          idle = false;
+        }
+      }
+
+      for (final BoltTask task : tasks) {
+        try {
+          task.bolt.cleanup();
+        } catch (RuntimeException e) {
+          logger.warn("Error cleaning up task {}", task.taskId, e);
+        }
+      }
+    }
+
+    private boolean isEmpty() {
+      for (final BoltTask task : tasks) {
+        if (!task.inbox.isEmpty()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Thread that calls nextTuple on a Spout
+   */
+  private class SpoutTask implements Runnable {
+    final int taskId;
+    final String componentId;
+    final ISpout spout;
+    private final Thread thread;
+    private long emitted;
+
+    SpoutTask(int taskId, String componentId, ISpout spout) {
+      this.taskId = taskId;
+      this.componentId = componentId;
+      this.spout = spout;
+      this.thread = new Thread(this, name + "-" + componentId + "-" + taskId);
+    }
+
+    void start() {
+      thread.start();
+    }
+
+    void join() {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        spout.open(stormConf, createContext(taskId),
+            new SpoutOutputCollector(new SpoutCollector(this)));
+        spout.activate();
+        while (running) {
+          if (pending.get() >= MAX_PENDING) {
+            LockSupport.parkNanos(IDLE_PARK_NS);
+            continue;
+          }
+          final long before = emitted;
+          spout.nextTuple();
+          if (emitted == before) {
+            LockSupport.parkNanos(IDLE_PARK_NS);
+          }
+        }
+        spout.deactivate();
+      } catch (RuntimeException e) {
+        logger.error("Spout task {} of {} failed", taskId, componentId, e);
+      } finally {
+        try {
+          spout.close();
+        } catch (RuntimeException e) {
+          logger.warn("Error closing spout task {}", taskId, e);
+        }
+      }
+    }
+  }
+
+  private class BoltCollector implements IOutputCollector {
+    private final int taskId;
+
+    BoltCollector(int taskId) {
+      this.taskId = taskId;
+    }
+
+    @Override
+    public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+      return EmbeddedTopology.this.emit(taskId, streamId, tuple);
+    }
+
+    @Override
+    public void emitDirect(int targetTaskId, String streamId, Collection<Tuple> anchors,
+        List<Object> tuple) {
+      EmbeddedTopology.this.emitDirect(taskId, targetTaskId, streamId, tuple);
+    }
+
+    @Override
+    public void ack(Tuple input) {
+      // There are no ackers
+    }
+
+    @Override
+    public void fail(Tuple input) {
+      // There are no ackers
+    }
+
+    @Override
+    public void resetTimeout(Tuple input) {
+      // There are no ackers
+    }
+
+    @Override
+    public void reportError(Throwable error) {
+      logger.error("Error reported by task {}", taskId, error);
+    }
+  }
+
+  private class SpoutCollector implements ISpoutOutputCollector {
+    private final SpoutTask task;
+
+    SpoutCollector(SpoutTask task) {
+      this.task = task;
+    }
+
+    @Override
+    public List<Integer> emit(String streamId, List<Object> tuple, Object messageId) {
+      task.emitted++;
+      final List<Integer> sent = EmbeddedTopology.this.emit(task.taskId, streamId, tuple);
+      if (messageId != null) {
+        // Like Storm without ackers, the tuple is acked as soon as it is emitted
+        task.spout.ack(messageId);
+      }
+      return sent;
+    }
+
+    @Override
+    public void emitDirect(int targetTaskId, String streamId, List<Object> tuple,
+        Object messageId) {
+      task.emitted++;
+      EmbeddedTopology.this.emitDirect(task.taskId, targetTaskId, streamId, tuple);
+      if (messageId != null) {
+        task.spout.ack(messageId);
+      }
+    }
+
+    @Override
+    public long getPendingCount() {
+      return pending.get();
+    }
+
+    @Override
+    public void reportError(Throwable error) {
+      logger.error("Error reported by spout task {}", task.taskId, error);
+    }
+  }
+}
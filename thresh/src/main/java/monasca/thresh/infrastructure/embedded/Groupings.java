@@ -0,0 +1,161 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.embedded;
+
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.generated.Grouping;
+import org.apache.storm.grouping.CustomStreamGrouping;
+import org.apache.storm.task.WorkerTopologyContext;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stream groupings of a topology, implemented the same way as Storm does so the embedded
+ * topology sends each tuple to the same task a Storm worker would.
+ */
+final class Groupings {
+  private Groupings() {
+  }
+
+  /**
+   * Returns the grouping for a subscription, or null for a direct grouping, where the emitting
+   * component picks the task
+   */
+  static CustomStreamGrouping create(Grouping grouping) {
+    switch (grouping.getSetField()) {
+      case ALL:
+        return new All();
+      case FIELDS:
+        if (grouping.get_fields().isEmpty()) {
+          return new Global();
+        }
+        return new ByFields(new Fields(grouping.get_fields()));
+      case CUSTOM_SERIALIZED:
+        return Utils.javaDeserialize(grouping.get_custom_serialized(),
+            CustomStreamGrouping.class);
+      case DIRECT:
+        return null;
+      case SHUFFLE:
+      case LOCAL_OR_SHUFFLE:
+      case NONE:
+        return new Shuffle();
+      default:
+        throw new IllegalArgumentException("Unsupported grouping " + grouping);
+    }
+  }
+
+  /** Returns the sorted target tasks, each as a singleton list so it can be returned as is */
+  private static List<List<Integer>> choices(List<Integer> targetTasks) {
+    final List<Integer> tasks = new ArrayList<>(targetTasks);
+    Collections.sort(tasks);
+    final List<List<Integer>> choices = new ArrayList<>(tasks.size());
+    for (final Integer task : tasks) {
+      choices.add(Collections.singletonList(task));
+    }
+    return choices;
+  }
+
+  private static class All implements CustomStreamGrouping {
+    private static final long serialVersionUID = 1L;
+    private List<Integer> tasks;
+
+    @Override
+    public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+        List<Integer> targetTasks) {
+      tasks = Collections.unmodifiableList(new ArrayList<>(targetTasks));
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+      return tasks;
+    }
+  }
+
+  private static class Global implements CustomStreamGrouping {
+    private static final long serialVersionUID = 1L;
+    private List<Integer> task;
+
+    @Override
+    public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+        List<Integer> targetTasks) {
+      task = Collections.singletonList(Collections.min(targetTasks));
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+      return task;
+    }
+  }
+
+  private static class Shuffle implements CustomStreamGrouping {
+    private static final long serialVersionUID = 1L;
+    private final AtomicInteger next = new AtomicInteger();
+    private List<List<Integer>> choices;
+
+    @Override
+    public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+        List<Integer> targetTasks) {
+      choices = Groupings.choices(targetTasks);
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+      final int index = (next.getAndIncrement() & Integer.MAX_VALUE) % choices.size();
+      return choices.get(index);
+    }
+  }
+
+  private static class ByFields implements CustomStreamGrouping {
+    private static final long serialVersionUID = 1L;
+    private final Fields groupingFields;
+    private int[] indexes;
+    private List<List<Integer>> choices;
+
+    ByFields(Fields groupingFields) {
+      this.groupingFields = groupingFields;
+    }
+
+    @Override
+    public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+        List<Integer> targetTasks) {
+      final Fields outputFields = context.getComponentOutputFields(stream);
+      indexes = new int[groupingFields.size()];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = outputFields.fieldIndex(groupingFields.get(i));
+      }
+      choices = Groupings.choices(targetTasks);
+    }
+
+    @Override
+    public List<Integer> chooseTasks(int taskId, List<Object> values) {
+      final Object[] selected = new Object[indexes.length];
+      for (int i = 0; i < indexes.length; i++) {
+        selected[i] = values.get(indexes[i]);
+      }
+      // Same as TupleUtils.listHashCode() used by the Storm fieldsGrouping
+      final int index = Arrays.deepHashCode(selected) % choices.size();
+      return choices.get(index < 0 ? index + choices.size() : index);
+    }
+  }
+}
@@ -21,25 +21,37 @@ import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.metric.MetricDefinition;
 import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmStateUpdate;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.service.AlarmDAO;
 
+import com.google.common.collect.Lists;
+
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.PreparedBatch;
 import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
+import org.skife.jdbi.v2.util.StringMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 import java.util.TreeMap;
@@ -54,6 +66,38 @@ public class AlarmDAOImpl implements AlarmDAO {
 
   public static final int MAX_COLUMN_LENGTH = 255;
 
+  private static final String INSERT_ALARM_SQL =
+      "insert into alarm (id, alarm_definition_id, state, state_updated_at, created_at, updated_at) values (?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_SUB_ALARM_SQL =
+      "insert into sub_alarm (id, alarm_id, sub_expression_id, expression, state, created_at, updated_at) values (?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_METRIC_DEFINITION_SQL =
+      "insert into metric_definition(id, name, tenant_id) values (?, ?, ?) "
+          + "on duplicate key update id=id";
+  private static final String INSERT_METRIC_DIMENSION_SQL =
+      "insert into metric_dimension(dimension_set_id, name, value) values (?, ?, ?) "
+          + "on duplicate key update dimension_set_id=dimension_set_id";
+  private static final String INSERT_METRIC_DEFINITION_DIMENSIONS_SQL =
+      "insert into metric_definition_dimensions (id, metric_definition_id, metric_dimension_set_id) values (?, ?, ?)"
+          + "on duplicate key update id=id";
+  private static final String INSERT_ALARM_METRIC_SQL =
+      "insert into alarm_metric (alarm_id, metric_definition_dimensions_id) values (?, ?)";
+  private static final String UPDATE_ALARM_STATE_SQL =
+      "update alarm set state = ?, state_updated_at = ?, updated_at = ? where id = ?";
+  private static final String UPDATE_SUB_ALARM_STATE_SQL =
+      "update sub_alarm set state = ?, updated_at = ? where id = ?";
+
+  /** Limits the size of the "in" list used when looking up Alarms by id */
+  private static final int MAX_IDS_PER_QUERY = 1000;
+  private static final int FETCH_SIZE = 1000;
+
+  private static final String ALARMS_SQL =
+        "select a.id, a.alarm_definition_id, a.state, sa.id as sub_alarm_id, sa.expression, "
+      + "sa.state as sub_alarm_state, sa.sub_expression_id, ad.tenant_id from alarm a "
+      + "inner join sub_alarm sa on sa.alarm_id = a.id "
+      + "inner join alarm_definition ad on a.alarm_definition_id = ad.id "
+      + "where ad.deleted_at is null and %s "
+      + "order by a.id";
+
   private final DBI db;
 
   private final ThreadLocal<SimpleDateFormat> simpleDateFormatter;
@@ -75,53 +119,131 @@ public class AlarmDAOImpl implements AlarmDAO {
     return findAlarms("1=1"); // This is basically "true" and gets optimized out
   }
 
-  private List<Alarm> findAlarms(final String additionalWhereClause, String ... params) {
+  @Override
+  public void listAll(final AlarmCallback callback) {
+    listAll(null, null, callback);
+  }
+
+  @Override
+  public void listAll(final String fromId, final String toId, final AlarmCallback callback) {
+    final StringBuilder whereClause = new StringBuilder("1=1");
+    final List<String> params = new ArrayList<>(4);
+    if (fromId != null) {
+      whereClause.append(" and a.id >= :fromId");
+      params.add("fromId");
+      params.add(fromId);
+    }
+    if (toId != null) {
+      whereClause.append(" and a.id < :toId");
+      params.add("toId");
+      params.add(toId);
+    }
+    // The AlarmedMetrics are read on a second Handle while the Alarms are still being streamed
+    try (final Handle h = db.open(); final Handle metricsHandle = db.open()) {
+      final Map<String, Alarm> alarmMap = new LinkedHashMap<>();
+      final Map<String, String> tenantIdMap = new HashMap<>();
+      final Query<Map<String, Object>> query =
+          h.createQuery(String.format(ALARMS_SQL, whereClause)).setFetchSize(FETCH_SIZE);
+      addQueryParameters(query, params.toArray(new String[params.size()]));
+      final ResultIterator<Map<String, Object>> rows = query.iterator();
+      try {
+        readAlarms(rows, tenantIdMap, new AlarmCallback() {
+          @Override
+          public void onAlarm(Alarm alarm) {
+            alarmMap.put(alarm.getId(), alarm);
+            if (alarmMap.size() >= MAX_IDS_PER_QUERY) {
+              sendAlarms(metricsHandle, alarmMap, tenantIdMap, callback);
+            }
+          }
+        });
+      } finally {
+        rows.close();
+      }
+      sendAlarms(metricsHandle, alarmMap, tenantIdMap, callback);
+    }
+  }
+
+  /**
+   * Adds the AlarmedMetrics to the Alarms read so far, passes them to the callback and then
+   * forgets them
+   */
+  private void sendAlarms(Handle h, Map<String, Alarm> alarmMap, Map<String, String> tenantIdMap,
+      AlarmCallback callback) {
+    if (alarmMap.isEmpty()) {
+      return;
+    }
+    final List<String> ids = new ArrayList<>(alarmMap.keySet());
+    final String[] params = new String[ids.size() * 2];
+    getAlarmedMetrics(h, alarmMap, tenantIdMap, idsInClause(ids, params), params);
+    for (final Alarm alarm : alarmMap.values()) {
+      callback.onAlarm(alarm);
+    }
+    alarmMap.clear();
+    for (final String id : ids) {
+      tenantIdMap.remove(id);
+    }
+  }
+
+  @Override
+  public List<String> listAllIds() {
     try (final Handle h = db.open()) {
+      return h
+          .createQuery(
+              "select a.id from alarm a "
+                  + "inner join alarm_definition ad on a.alarm_definition_id = ad.id "
+                  + "where ad.deleted_at is null")
+          .map(StringMapper.FIRST).list();
+    }
+  }
+
+  @Override
+  public List<Alarm> findByIds(Collection<String> ids) {
+    final List<Alarm> alarms = new ArrayList<>(ids.size());
+    for (final List<String> chunk : Lists.partition(new ArrayList<String>(ids), MAX_IDS_PER_QUERY)) {
+      final String[] params = new String[chunk.size() * 2];
+      alarms.addAll(findAlarms(idsInClause(chunk, params), params));
+    }
+    return alarms;
+  }
+
+  /**
+   * Builds an "a.id in (...)" clause for the {@code ids} and fills {@code params} with the matching
+   * name and value pairs
+   */
+  private String idsInClause(List<String> ids, String[] params) {
+    final StringBuilder inClause = new StringBuilder("a.id in (");
+    for (int i = 0; i < ids.size(); i++) {
+      final String name = "id" + i;
+      if (i > 0) {
+        inClause.append(',');
+      }
+      inClause.append(':').append(name);
+      params[i * 2] = name;
+      params[i * 2 + 1] = ids.get(i);
+    }
+    return inClause.append(") ").toString();
+  }
 
-      final String ALARMS_SQL =
-            "select a.id, a.alarm_definition_id, a.state, sa.id as sub_alarm_id, sa.expression, "
-          + "sa.state as sub_alarm_state, sa.sub_expression_id, ad.tenant_id from alarm a "
-          + "inner join sub_alarm sa on sa.alarm_id = a.id "
-          + "inner join alarm_definition ad on a.alarm_definition_id = ad.id "
-          + "where ad.deleted_at is null and %s "
-          + "order by a.id";
+  private List<Alarm> findAlarms(final String additionalWhereClause, String ... params) {
+    try (final Handle h = db.open()) {
       final String sql = String.format(ALARMS_SQL, additionalWhereClause);
       final Query<Map<String, Object>> query = h.createQuery(sql);
       addQueryParameters(query, params);
-      final List<Map<String, Object>> rows = query.list();
 
-      final List<Alarm> alarms = new ArrayList<>(rows.size());
-      List<SubAlarm> subAlarms = new ArrayList<SubAlarm>();
-      String prevAlarmId = null;
-      Alarm alarm = null;
+      final List<Alarm> alarms = new ArrayList<>();
       final Map<String, Alarm> alarmMap = new HashMap<>();
       final Map<String, String> tenantIdMap = new HashMap<>();
-      for (final Map<String, Object> row : rows) {
-        final String alarmId = getString(row, "id");
-        if (!alarmId.equals(prevAlarmId)) {
-          if (alarm != null) {
-            alarm.setSubAlarms(subAlarms);
+      final ResultIterator<Map<String, Object>> rows = query.iterator();
+      try {
+        readAlarms(rows, tenantIdMap, new AlarmCallback() {
+          @Override
+          public void onAlarm(Alarm alarm) {
+            alarms.add(alarm);
+            alarmMap.put(alarm.getId(), alarm);
           }
-          alarm = new Alarm();
-          alarm.setId(alarmId);
-          alarm.setAlarmDefinitionId(getString(row, "alarm_definition_id"));
-          alarm.setState(AlarmState.valueOf(getString(row, "state")));
-          subAlarms = new ArrayList<SubAlarm>();
-          alarms.add(alarm);
-          alarmMap.put(alarmId, alarm);
-          tenantIdMap.put(alarmId, getString(row, "tenant_id"));
-        }
-        final SubExpression subExpression =
-            new SubExpression(getString(row, "sub_expression_id"), AlarmSubExpression.of(getString(
-                row, "expression")));
-        final AlarmState subAlarmState = AlarmState.valueOf(getString(row, "sub_alarm_state"));
-        final SubAlarm subAlarm =
-            new SubAlarm(getString(row, "sub_alarm_id"), alarmId, subExpression, subAlarmState);
-        subAlarms.add(subAlarm);
-        prevAlarmId = alarmId;
-      }
-      if (alarm != null) {
-        alarm.setSubAlarms(subAlarms);
+        });
+      } finally {
+        rows.close();
       }
       if (!alarms.isEmpty()) {
         getAlarmedMetrics(h, alarmMap, tenantIdMap, additionalWhereClause, params);
@@ -130,6 +252,43 @@ public class AlarmDAOImpl implements AlarmDAO {
     }
   }
 
+  /**
+   * Builds the Alarms with their SubAlarms from rows ordered by Alarm id and passes each one to
+   * the {@code callback} as soon as all of its rows have been read
+   */
+  private void readAlarms(final Iterator<Map<String, Object>> rows,
+      final Map<String, String> tenantIdMap, final AlarmCallback callback) {
+    List<SubAlarm> subAlarms = null;
+    Alarm alarm = null;
+    while (rows.hasNext()) {
+      final Map<String, Object> row = rows.next();
+      final String alarmId = getString(row, "id");
+      if (alarm == null || !alarmId.equals(alarm.getId())) {
+        if (alarm != null) {
+          alarm.setSubAlarms(subAlarms);
+          callback.onAlarm(alarm);
+        }
+        alarm = new Alarm();
+        alarm.setId(alarmId);
+        alarm.setAlarmDefinitionId(getString(row, "alarm_definition_id"));
+        alarm.setState(AlarmState.valueOf(getString(row, "state")));
+        subAlarms = new ArrayList<SubAlarm>();
+        tenantIdMap.put(alarmId, getString(row, "tenant_id"));
+      }
+      final SubExpression subExpression =
+          new SubExpression(getString(row, "sub_expression_id"), AlarmSubExpression.of(getString(
+              row, "expression")));
+      final AlarmState subAlarmState = AlarmState.valueOf(getString(row, "sub_alarm_state"));
+      final SubAlarm subAlarm =
+          new SubAlarm(getString(row, "sub_alarm_id"), alarmId, subExpression, subAlarmState);
+      subAlarms.add(subAlarm);
+    }
+    if (alarm != null) {
+      alarm.setSubAlarms(subAlarms);
+      callback.onAlarm(alarm);
+    }
+  }
+
   private void addQueryParameters(final Query<Map<String, Object>> query, String... params) {
     for (int i = 0; i < params.length;) {
       query.bind(params[i], params[i+1]);
@@ -181,13 +340,34 @@ public class AlarmDAOImpl implements AlarmDAO {
     }
   }
 
+  @Override
+  public void addAlarmedMetrics(Collection<AlarmedMetric> alarmedMetrics) {
+    if (alarmedMetrics.isEmpty()) {
+      return;
+    }
+    Handle h = db.open();
+    try {
+      h.begin();
+      final AlarmedMetricBatch batch = new AlarmedMetricBatch(h);
+      for (final AlarmedMetric alarmedMetric : alarmedMetrics) {
+        batch.add(alarmedMetric.getMetricDefinitionAndTenantId(), alarmedMetric.getAlarm().getId());
+      }
+      batch.execute();
+      h.commit();
+    } catch (RuntimeException e) {
+      h.rollback();
+      throw e;
+    } finally {
+      h.close();
+    }
+  }
+
   private void createAlarmedMetric(Handle h, MetricDefinitionAndTenantId metricDefinition,
       String alarmId) {
     final Sha1HashId metricDefinitionDimensionId =
         insertMetricDefinitionDimension(h, metricDefinition);
 
-    h.insert("insert into alarm_metric (alarm_id, metric_definition_dimensions_id) values (?, ?)",
-        alarmId, metricDefinitionDimensionId.getSha1Hash());
+    h.insert(INSERT_ALARM_METRIC_SQL, alarmId, metricDefinitionDimensionId.getSha1Hash());
   }
 
   private Sha1HashId insertMetricDefinitionDimension(Handle h, MetricDefinitionAndTenantId mdtid) {
@@ -195,20 +375,21 @@ public class AlarmDAOImpl implements AlarmDAO {
     final Sha1HashId metricDimensionSetId =
         insertMetricDimensionSet(h, mdtid.metricDefinition.dimensions);
     final byte[] definitionDimensionsIdSha1Hash =
-        DigestUtils.sha(metricDefinitionId.toHexString() + metricDimensionSetId.toHexString());
-    h.insert(
-        "insert into metric_definition_dimensions (id, metric_definition_id, metric_dimension_set_id) values (?, ?, ?)"
-            + "on duplicate key update id=id", definitionDimensionsIdSha1Hash,
+        calculateDefinitionDimensionsSHA1(metricDefinitionId, metricDimensionSetId);
+    h.insert(INSERT_METRIC_DEFINITION_DIMENSIONS_SQL, definitionDimensionsIdSha1Hash,
         metricDefinitionId.getSha1Hash(), metricDimensionSetId.getSha1Hash());
     return new Sha1HashId(definitionDimensionsIdSha1Hash);
   }
 
+  private byte[] calculateDefinitionDimensionsSHA1(final Sha1HashId metricDefinitionId,
+      final Sha1HashId metricDimensionSetId) {
+    return DigestUtils.sha(metricDefinitionId.toHexString() + metricDimensionSetId.toHexString());
+  }
+
   private Sha1HashId insertMetricDimensionSet(Handle h, Map<String, String> dimensions) {
     final byte[] dimensionSetId = calculateDimensionSHA1(dimensions);
     for (final Map.Entry<String, String> entry : dimensions.entrySet()) {
-      h.insert("insert into metric_dimension(dimension_set_id, name, value) values (?, ?, ?) "
-          + "on duplicate key update dimension_set_id=dimension_set_id", dimensionSetId,
-          entry.getKey(), entry.getValue());
+      h.insert(INSERT_METRIC_DIMENSION_SQL, dimensionSetId, entry.getKey(), entry.getValue());
     }
     return new Sha1HashId(dimensionSetId);
   }
@@ -235,14 +416,17 @@ public class AlarmDAOImpl implements AlarmDAO {
   }
 
   private Sha1HashId insertMetricDefinition(Handle h, MetricDefinitionAndTenantId mdtid) {
+    final byte[] id = calculateMetricDefinitionSHA1(mdtid);
+    h.insert(INSERT_METRIC_DEFINITION_SQL, id, mdtid.metricDefinition.name, mdtid.tenantId);
+    return new Sha1HashId(id);
+  }
+
+  private byte[] calculateMetricDefinitionSHA1(final MetricDefinitionAndTenantId mdtid) {
     final String region = ""; // TODO We currently don't have region
     final String definitionIdStringToHash =
         trunc(mdtid.metricDefinition.name, MAX_COLUMN_LENGTH)
             + trunc(mdtid.tenantId, MAX_COLUMN_LENGTH) + trunc(region, MAX_COLUMN_LENGTH);
-    final byte[] id = DigestUtils.sha(definitionIdStringToHash);
-    h.insert("insert into metric_definition(id, name, tenant_id) values (?, ?, ?) " +
-             "on duplicate key update id=id", id, mdtid.metricDefinition.name, mdtid.tenantId);
-    return new Sha1HashId(id);
+    return DigestUtils.sha(definitionIdStringToHash);
   }
 
   @Override
@@ -251,16 +435,13 @@ public class AlarmDAOImpl implements AlarmDAO {
     try {
       String timestamp = formatDateFromMillis(System.currentTimeMillis());
       h.begin();
-      h.insert(
-          "insert into alarm (id, alarm_definition_id, state, state_updated_at, created_at, updated_at) values (?, ?, ?, ?, ?, ?)",
-          alarm.getId(), alarm.getAlarmDefinitionId(), alarm.getState().toString(), timestamp,
-              timestamp, timestamp);
+      h.insert(INSERT_ALARM_SQL, alarm.getId(), alarm.getAlarmDefinitionId(),
+          alarm.getState().toString(), timestamp, timestamp, timestamp);
 
       for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
-        h.insert(
-            "insert into sub_alarm (id, alarm_id, sub_expression_id, expression, state, created_at, updated_at) values (?, ?, ?, ?, ?, ?, ?)",
-            subAlarm.getId(), subAlarm.getAlarmId(), subAlarm.getAlarmSubExpressionId(), subAlarm
-                .getExpression().getExpression(), subAlarm.getState().toString(), timestamp, timestamp);
+        h.insert(INSERT_SUB_ALARM_SQL, subAlarm.getId(), subAlarm.getAlarmId(),
+            subAlarm.getAlarmSubExpressionId(), subAlarm.getExpression().getExpression(),
+            subAlarm.getState().toString(), timestamp, timestamp);
       }
       for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
         createAlarmedMetric(h, md, alarm.getId());
@@ -274,6 +455,47 @@ public class AlarmDAOImpl implements AlarmDAO {
     }
   }
 
+  @Override
+  public void createAlarms(Collection<Alarm> alarms) {
+    if (alarms.isEmpty()) {
+      return;
+    }
+    Handle h = db.open();
+    try {
+      final String timestamp = formatDateFromMillis(System.currentTimeMillis());
+      h.begin();
+      final PreparedBatch alarmBatch = h.prepareBatch(INSERT_ALARM_SQL);
+      final PreparedBatch subAlarmBatch = h.prepareBatch(INSERT_SUB_ALARM_SQL);
+      final AlarmedMetricBatch alarmedMetricBatch = new AlarmedMetricBatch(h);
+      boolean hasSubAlarms = false;
+      for (final Alarm alarm : alarms) {
+        alarmBatch.add(alarm.getId(), alarm.getAlarmDefinitionId(), alarm.getState().toString(),
+            timestamp, timestamp, timestamp);
+        for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+          subAlarmBatch.add(subAlarm.getId(), subAlarm.getAlarmId(),
+              subAlarm.getAlarmSubExpressionId(), subAlarm.getExpression().getExpression(),
+              subAlarm.getState().toString(), timestamp, timestamp);
+          hasSubAlarms = true;
+        }
+        for (final MetricDefinitionAndTenantId md : alarm.getAlarmedMetrics()) {
+          alarmedMetricBatch.add(md, alarm.getId());
+        }
+      }
+      // Parents must be written before the rows that reference them
+      alarmBatch.execute();
+      if (hasSubAlarms) {
+        subAlarmBatch.execute();
+      }
+      alarmedMetricBatch.execute();
+      h.commit();
+    } catch (RuntimeException e) {
+      h.rollback();
+      throw e;
+    } finally {
+      h.close();
+    }
+  }
+
   @Override
   public Alarm findById(String id) {
     final List<Alarm> alarms = findAlarms("a.id = :alarm_id ", "alarm_id", id);
@@ -295,6 +517,29 @@ public class AlarmDAOImpl implements AlarmDAO {
     }
   }
 
+  @Override
+  public void updateStates(Collection<AlarmStateUpdate> updates) {
+    if (updates.isEmpty()) {
+      return;
+    }
+    final Handle h = db.open();
+    try {
+      h.begin();
+      final PreparedBatch batch = h.prepareBatch(UPDATE_ALARM_STATE_SQL);
+      for (final AlarmStateUpdate update : updates) {
+        final String timestamp = formatDateFromMillis(update.getMsTimestamp());
+        batch.add(update.getState().toString(), timestamp, timestamp, update.getAlarmId());
+      }
+      batch.execute();
+      h.commit();
+    } catch (RuntimeException e) {
+      h.rollback();
+      throw e;
+    } finally {
+      h.close();
+    }
+  }
+
   @Override
   public int updateSubAlarmExpressions(String alarmSubExpressionId,
       AlarmSubExpression alarmSubExpression) {
@@ -320,6 +565,29 @@ public class AlarmDAOImpl implements AlarmDAO {
       }
   }
 
+  @Override
+  public void updateSubAlarmStates(Map<String, AlarmState> subAlarmStates) {
+    if (subAlarmStates.isEmpty()) {
+      return;
+    }
+    final Handle h = db.open();
+    try {
+      h.begin();
+      final String timestamp = formatDateFromMillis(System.currentTimeMillis());
+      final PreparedBatch batch = h.prepareBatch(UPDATE_SUB_ALARM_STATE_SQL);
+      for (final Map.Entry<String, AlarmState> entry : subAlarmStates.entrySet()) {
+        batch.add(entry.getValue().toString(), timestamp, entry.getKey());
+      }
+      batch.execute();
+      h.commit();
+    } catch (RuntimeException e) {
+      h.rollback();
+      throw e;
+    } finally {
+      h.close();
+    }
+  }
+
   @Override
   public void deleteByDefinitionId(String alarmDefinitionId){
     try (Handle h = db.open()) {
@@ -367,6 +635,66 @@ public class AlarmDAOImpl implements AlarmDAO {
     }
   }
 
+  /**
+   * Accumulates the inserts needed for a set of AlarmedMetrics into one JDBC batch per table.
+   * Metric definitions and dimension sets shared by several AlarmedMetrics are only sent once.
+   */
+  private class AlarmedMetricBatch {
+    private final PreparedBatch metricDefinitionBatch;
+    private final PreparedBatch metricDimensionBatch;
+    private final PreparedBatch metricDefinitionDimensionsBatch;
+    private final PreparedBatch alarmMetricBatch;
+    private final Set<Sha1HashId> metricDefinitionIds = new HashSet<>();
+    private final Set<Sha1HashId> metricDimensionSetIds = new HashSet<>();
+    private final Set<Sha1HashId> metricDefinitionDimensionsIds = new HashSet<>();
+    private boolean hasDimensions = false;
+    private boolean hasAlarmMetrics = false;
+
+    AlarmedMetricBatch(Handle h) {
+      metricDefinitionBatch = h.prepareBatch(INSERT_METRIC_DEFINITION_SQL);
+      metricDimensionBatch = h.prepareBatch(INSERT_METRIC_DIMENSION_SQL);
+      metricDefinitionDimensionsBatch = h.prepareBatch(INSERT_METRIC_DEFINITION_DIMENSIONS_SQL);
+      alarmMetricBatch = h.prepareBatch(INSERT_ALARM_METRIC_SQL);
+    }
+
+    void add(MetricDefinitionAndTenantId mdtid, String alarmId) {
+      final Sha1HashId metricDefinitionId = new Sha1HashId(calculateMetricDefinitionSHA1(mdtid));
+      if (metricDefinitionIds.add(metricDefinitionId)) {
+        metricDefinitionBatch.add(metricDefinitionId.getSha1Hash(), mdtid.metricDefinition.name,
+            mdtid.tenantId);
+      }
+      final Map<String, String> dimensions = mdtid.metricDefinition.dimensions;
+      final Sha1HashId metricDimensionSetId = new Sha1HashId(calculateDimensionSHA1(dimensions));
+      if (metricDimensionSetIds.add(metricDimensionSetId)) {
+        for (final Map.Entry<String, String> entry : dimensions.entrySet()) {
+          metricDimensionBatch.add(metricDimensionSetId.getSha1Hash(), entry.getKey(),
+              entry.getValue());
+          hasDimensions = true;
+        }
+      }
+      final Sha1HashId metricDefinitionDimensionsId =
+          new Sha1HashId(calculateDefinitionDimensionsSHA1(metricDefinitionId, metricDimensionSetId));
+      if (metricDefinitionDimensionsIds.add(metricDefinitionDimensionsId)) {
+        metricDefinitionDimensionsBatch.add(metricDefinitionDimensionsId.getSha1Hash(),
+            metricDefinitionId.getSha1Hash(), metricDimensionSetId.getSha1Hash());
+      }
+      alarmMetricBatch.add(alarmId, metricDefinitionDimensionsId.getSha1Hash());
+      hasAlarmMetrics = true;
+    }
+
+    void execute() {
+      if (!hasAlarmMetrics) {
+        return;
+      }
+      metricDefinitionBatch.execute();
+      if (hasDimensions) {
+        metricDimensionBatch.execute();
+      }
+      metricDefinitionDimensionsBatch.execute();
+      alarmMetricBatch.execute();
+    }
+  }
+
   /**
    * This class is used when a binary id needs to be used in a map. Just using a byte[] as
    * a key fails because they are not considered as equal because the check is ==
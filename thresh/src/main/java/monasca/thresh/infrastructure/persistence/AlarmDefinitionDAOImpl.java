@@ -32,6 +32,7 @@ import monasca.thresh.domain.service.AlarmDefinitionDAO;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.ResultIterator;
 import org.skife.jdbi.v2.StatementContext;
 import org.skife.jdbi.v2.tweak.ResultSetMapper;
 
@@ -40,6 +41,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -68,6 +70,12 @@ public class AlarmDefinitionDAOImpl implements AlarmDefinitionDAO {
       "select sad.*, sadd.* from sub_alarm_definition sad " +
       "left outer join sub_alarm_definition_dimension sadd on sadd.sub_alarm_definition_id=sad.id " +
       "where sad.alarm_definition_id = :alarmDefId order by sad.id";
+  private static final String ALL_SUB_ALARM_SQL =
+      "select sad.*, sadd.* from sub_alarm_definition sad " +
+      "inner join alarm_definition ad on ad.id=sad.alarm_definition_id " +
+      "left outer join sub_alarm_definition_dimension sadd on sadd.sub_alarm_definition_id=sad.id " +
+      "where ad.deleted_at is NULL order by sad.alarm_definition_id, sad.id";
+  private static final int FETCH_SIZE = 1000;
 
   private final DBI db;
 
@@ -86,67 +94,102 @@ public class AlarmDefinitionDAOImpl implements AlarmDefinitionDAO {
           h.createQuery(sql).map(new AlarmDefinitionMapper());
 
       final List<AlarmDefinition> alarmDefs = q.list();
+
+      // Load the SubExpressions of all of the AlarmDefinitions with one query instead of one
+      // query per AlarmDefinition
+      final Map<String, List<SubExpression>> subExpressions = new HashMap<>(alarmDefs.size());
+      final ResultIterator<Map<String, Object>> rows =
+          h.createQuery(ALL_SUB_ALARM_SQL).setFetchSize(FETCH_SIZE).iterator();
+      try {
+        addSubExpressions(subExpressions, rows);
+      } finally {
+        rows.close();
+      }
       for (final AlarmDefinition alarmDef : alarmDefs) {
-        alarmDef.setSubExpressions(findSubExpressions(h, alarmDef.getId()));
+        alarmDef.setSubExpressions(getSubExpressions(subExpressions, alarmDef.getId()));
       }
       return alarmDefs;
     }
   }
 
   private List<SubExpression> findSubExpressions(Handle h, String alarmDefId) {
-    List<Map<String, Object>> rows =
-        h.createQuery(SUB_ALARM_SQL).bind("alarmDefId", alarmDefId).list();
-    final List<SubExpression> subExpressions = new ArrayList<>(rows.size());
-    int index = 0;
-    while (index < rows.size()) {
-      Map<String, Object> row = rows.get(index);
-      String id = (String) row.get("id");
-      AggregateFunction function = AggregateFunction.fromJson((String) row.get("function"));
-      String metricName = (String) row.get("metric_name");
-      AlarmOperator operator = AlarmOperator.fromJson((String) row.get("operator"));
-      Double threshold = (Double) row.get("threshold");
-      // MySQL connector returns an Integer, Drizzle returns a Long for period and periods.
-      // Need to convert the results appropriately based on type.
-      Integer period = Conversions.variantToInteger(row.get("period"));
-      Integer periods = Conversions.variantToInteger(row.get("periods"));
-      Boolean deterministic = BOOLEAN_MAPPER_FUNCTION.apply(row.get("is_deterministic"));
-      Map<String, String> dimensions = new HashMap<>();
-      while (addedDimension(dimensions, id, rows, index)) {
-        index++;
-      }
-      subExpressions.add(
-          new SubExpression(id,
-              new AlarmSubExpression(
-                  function,
-                  new MetricDefinition(metricName, dimensions),
-                  operator,
-                  threshold,
-                  period,
-                  periods,
-                  deterministic
-              )
-          )
-      );
+    final Map<String, List<SubExpression>> subExpressions = new HashMap<>();
+    final ResultIterator<Map<String, Object>> rows =
+        h.createQuery(SUB_ALARM_SQL).bind("alarmDefId", alarmDefId).iterator();
+    try {
+      addSubExpressions(subExpressions, rows);
+    } finally {
+      rows.close();
     }
+    return getSubExpressions(subExpressions, alarmDefId);
+  }
 
-    return subExpressions;
+  private List<SubExpression> getSubExpressions(Map<String, List<SubExpression>> subExpressions,
+      String alarmDefId) {
+    final List<SubExpression> found = subExpressions.get(alarmDefId);
+    return found == null ? new ArrayList<SubExpression>(0) : found;
   }
 
-  private boolean addedDimension(Map<String, String> dimensions, String id,
-      List<Map<String, Object>> rows, int index) {
-    if (index >= rows.size()) {
-      return false;
+  /**
+   * Builds the SubExpressions from rows of sub_alarm_definition joined with their dimensions. The
+   * rows must be ordered by sub alarm definition id so all of the dimensions of a SubExpression
+   * are next to each other.
+   */
+  private void addSubExpressions(Map<String, List<SubExpression>> subExpressions,
+      Iterator<Map<String, Object>> rows) {
+    Map<String, Object> first = null;
+    Map<String, String> dimensions = null;
+    while (rows.hasNext()) {
+      final Map<String, Object> row = rows.next();
+      if (first == null || !first.get("id").equals(row.get("id"))) {
+        if (first != null) {
+          addSubExpression(subExpressions, first, dimensions);
+        }
+        first = row;
+        dimensions = new HashMap<>();
+      }
+      final String name = (String) row.get("dimension_name");
+      final String value = (String) row.get("value");
+      if ((name != null) && !name.isEmpty()) {
+        dimensions.put(name, value);
+      }
     }
-    final Map<String, Object> row = rows.get(index);
-    if (!row.get("id").equals(id)) {
-      return false;
+    if (first != null) {
+      addSubExpression(subExpressions, first, dimensions);
     }
-    final String name = (String)row.get("dimension_name");
-    final String value = (String)row.get("value");
-    if ((name != null) && !name.isEmpty()) {
-      dimensions.put(name, value);
+  }
+
+  private void addSubExpression(Map<String, List<SubExpression>> subExpressions,
+      Map<String, Object> row, Map<String, String> dimensions) {
+    String id = (String) row.get("id");
+    String alarmDefId = (String) row.get("alarm_definition_id");
+    AggregateFunction function = AggregateFunction.fromJson((String) row.get("function"));
+    String metricName = (String) row.get("metric_name");
+    AlarmOperator operator = AlarmOperator.fromJson((String) row.get("operator"));
+    Double threshold = (Double) row.get("threshold");
+    // MySQL connector returns an Integer, Drizzle returns a Long for period and periods.
+    // Need to convert the results appropriately based on type.
+    Integer period = Conversions.variantToInteger(row.get("period"));
+    Integer periods = Conversions.variantToInteger(row.get("periods"));
+    Boolean deterministic = BOOLEAN_MAPPER_FUNCTION.apply(row.get("is_deterministic"));
+    List<SubExpression> definitionSubExpressions = subExpressions.get(alarmDefId);
+    if (definitionSubExpressions == null) {
+      definitionSubExpressions = new ArrayList<>();
+      subExpressions.put(alarmDefId, definitionSubExpressions);
     }
-    return true;
+    definitionSubExpressions.add(
+        new SubExpression(id,
+            new AlarmSubExpression(
+                function,
+                new MetricDefinition(metricName, dimensions),
+                operator,
+                threshold,
+                period,
+                periods,
+                deterministic
+            )
+        )
+    );
   }
 
   private static class AlarmDefinitionMapper implements ResultSetMapper<AlarmDefinition> {
@@ -0,0 +1,231 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.persistence;
+
+import monasca.thresh.infrastructure.thresholding.DataSourceFactory;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.task.TopologyContext;
+import org.skife.jdbi.v2.tweak.ConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Pool of JDBC connections used by the JDBI DAOs. Without it every Handle opened by the DAOs
+ * creates and then closes a new connection to the database.
+ * <p/>
+ * The pool is sized from the minSize and maxSize of the database configuration. Prepared
+ * statements are cached by the MySQL driver so the DAOs do not parse the same SQL again for each
+ * Handle.
+ */
+public class JdbiConnectionPool implements ConnectionFactory {
+  private static final Logger logger = LoggerFactory.getLogger(JdbiConnectionPool.class);
+
+  public static final String POOL_NAME = "thresh-jdbi";
+  public static final int METRICS_TIME_BUCKET_SECONDS = 60;
+
+  static final int MIN_SIZE_DEFAULT = 1;
+  static final int MAX_SIZE_DEFAULT = 10;
+  static final long MAX_WAIT_MS_DEFAULT = 30000;
+
+  private static final String MYSQL_DRIVER_PREFIX = "com.mysql.";
+  private static final Pattern DURATION_PATTERN = Pattern
+      .compile("\\s*(\\d+)\\s*(ms|milliseconds?|s|seconds?|m|minutes?)?\\s*");
+  private static final AtomicBoolean metricRegistered = new AtomicBoolean();
+
+  private final HikariDataSource dataSource;
+  private final ObjectName poolName;
+
+  private final AtomicLong connections = new AtomicLong();
+  private final AtomicLong waitMs = new AtomicLong();
+  private final AtomicLong maxWaitMs = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  public JdbiConnectionPool(DataSourceFactory dbConfig) {
+    this.dataSource = new HikariDataSource(createConfig(dbConfig));
+    this.poolName = poolObjectName(POOL_NAME);
+  }
+
+  static HikariConfig createConfig(DataSourceFactory dbConfig) {
+    final HikariConfig config = new HikariConfig();
+    config.setPoolName(POOL_NAME);
+    config.setDriverClassName(dbConfig.getDriverClass());
+    config.setJdbcUrl(dbConfig.getUrl());
+    config.setUsername(dbConfig.getUser());
+    config.setPassword(dbConfig.getPassword());
+
+    final int maxSize = parseSize(dbConfig.getMaxSize(), MAX_SIZE_DEFAULT);
+    config.setMaximumPoolSize(maxSize);
+    config.setMinimumIdle(Math.min(parseSize(dbConfig.getMinSize(), MIN_SIZE_DEFAULT), maxSize));
+    config.setConnectionTimeout(parseDurationMs(dbConfig.getMaxWaitForConnection(),
+        MAX_WAIT_MS_DEFAULT));
+    if (dbConfig.getValidationQuery() != null && !dbConfig.getValidationQuery().isEmpty()) {
+      config.setConnectionTestQuery(dbConfig.getValidationQuery());
+    }
+    // Like the DriverManager based DBI this replaces, do not fail if the database is not up yet
+    config.setInitializationFailFast(false);
+    config.setRegisterMbeans(true);
+
+    if (dbConfig.getDriverClass() != null
+        && dbConfig.getDriverClass().startsWith(MYSQL_DRIVER_PREFIX)) {
+      config.addDataSourceProperty("cachePrepStmts", "true");
+      config.addDataSourceProperty("prepStmtCacheSize", "250");
+      config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+      config.addDataSourceProperty("useServerPrepStmts", "true");
+      // Send the JDBI PreparedBatch inserts and updates as multi-row statements
+      config.addDataSourceProperty("rewriteBatchedStatements", "true");
+      // Honor the fetch size of the streaming queries instead of reading the whole result set
+      config.addDataSourceProperty("useCursorFetch", "true");
+    }
+    if (dbConfig.getProperties() != null) {
+      for (String name : dbConfig.getProperties().stringPropertyNames()) {
+        config.addDataSourceProperty(name, dbConfig.getProperties().getProperty(name));
+      }
+    }
+    return config;
+  }
+
+  static int parseSize(String value, int defaultValue) {
+    if (value == null || value.trim().isEmpty()) {
+      return defaultValue;
+    }
+    try {
+      final int size = Integer.parseInt(value.trim());
+      return size > 0 ? size : defaultValue;
+    } catch (NumberFormatException e) {
+      logger.warn("Invalid pool size '{}', using {}", value, defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Parses durations in the form used by the database configuration, for example "1s" or
+   * "500ms". A value without a unit is in milliseconds.
+   */
+  static long parseDurationMs(String value, long defaultValue) {
+    if (value == null) {
+      return defaultValue;
+    }
+    final Matcher matcher = DURATION_PATTERN.matcher(value);
+    if (!matcher.matches()) {
+      logger.warn("Invalid duration '{}', using {} ms", value, defaultValue);
+      return defaultValue;
+    }
+    final long amount = Long.parseLong(matcher.group(1));
+    final String unit = matcher.group(2);
+    if (unit == null || unit.startsWith("ms") || unit.startsWith("milli")) {
+      return amount;
+    }
+    if (unit.startsWith("s")) {
+      return TimeUnit.SECONDS.toMillis(amount);
+    }
+    return TimeUnit.MINUTES.toMillis(amount);
+  }
+
+  private static ObjectName poolObjectName(String name) {
+    try {
+      return new ObjectName("com.zaxxer.hikari:type=Pool (" + name + ")");
+    } catch (Exception e) {
+      logger.warn("Unable to create the pool MBean name, pool metrics are not available", e);
+      return null;
+    }
+  }
+
+  @Override
+  public Connection openConnection() throws SQLException {
+    final long start = System.nanoTime();
+    try {
+      final Connection connection = dataSource.getConnection();
+      final long waited = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      connections.incrementAndGet();
+      waitMs.addAndGet(waited);
+      long max = maxWaitMs.get();
+      while (waited > max && !maxWaitMs.compareAndSet(max, waited)) {
+        max = maxWaitMs.get();
+      }
+      return connection;
+    } catch (SQLException e) {
+      failures.incrementAndGet();
+      throw e;
+    }
+  }
+
+  public void close() {
+    dataSource.close();
+  }
+
+  /**
+   * The pool is shared by all of the Bolts in the worker, so only the first caller registers
+   * the metric.
+   */
+  public void registerMetric(TopologyContext context) {
+    if (metricRegistered.compareAndSet(false, true)) {
+      context.registerMetric("db-pool", metric(), METRICS_TIME_BUCKET_SECONDS);
+    }
+  }
+
+  public IMetric metric() {
+    return new IMetric() {
+      @Override
+      public Object getValueAndReset() {
+        final Map<String, Object> values = new HashMap<>();
+        addPoolAttribute(values, "active", "ActiveConnections");
+        addPoolAttribute(values, "idle", "IdleConnections");
+        addPoolAttribute(values, "total", "TotalConnections");
+        addPoolAttribute(values, "waiting", "ThreadsAwaitingConnection");
+        final long count = connections.getAndSet(0);
+        final long waited = waitMs.getAndSet(0);
+        values.put("connections", count);
+        values.put("avg-wait-ms", count > 0 ? waited / count : 0);
+        values.put("max-wait-ms", maxWaitMs.getAndSet(0));
+        values.put("failures", failures.getAndSet(0));
+        return values;
+      }
+    };
+  }
+
+  private void addPoolAttribute(Map<String, Object> values, String name, String attribute) {
+    if (poolName == null) {
+      return;
+    }
+    try {
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      values.put(name, server.getAttribute(poolName, attribute));
+    } catch (Exception e) {
+      // The pool registers its MBean once it has started
+      logger.debug("Unable to read {} from the connection pool", attribute, e);
+    }
+  }
+}
@@ -79,9 +79,14 @@ public class PersistenceModule extends AbstractModule {
 
   @Provides
   @Singleton
-  public DBI dbi() throws Exception {
-    Class.forName(dbConfig.getDriverClass());
-    return new DBI(dbConfig.getUrl(), dbConfig.getUser(), dbConfig.getPassword());
+  public JdbiConnectionPool connectionPool() {
+    return new JdbiConnectionPool(dbConfig);
+  }
+
+  @Provides
+  @Singleton
+  public DBI dbi(JdbiConnectionPool connectionPool) {
+    return new DBI(connectionPool);
   }
 
   @Provides
@@ -39,6 +39,7 @@ import org.hibernate.ScrollMode;
 import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.criterion.Criterion;
 import org.hibernate.criterion.DetachedCriteria;
 import org.hibernate.criterion.Order;
 import org.hibernate.criterion.Projections;
@@ -78,6 +79,8 @@ public class AlarmDefinitionSqlImpl
 
       if (alarmDefDbList != null) {
         alarmDefinitions = Lists.newArrayListWithExpectedSize(alarmDefDbList.size());
+        final Map<String, List<SubExpression>> subExpressions =
+            this.findSubExpressions(session, null);
 
         for (final AlarmDefinitionDb alarmDefDb : alarmDefDbList) {
           final Collection<String> matchBy = alarmDefDb.getMatchByAsCollection();
@@ -91,7 +94,7 @@ public class AlarmDefinitionSqlImpl
               AlarmExpression.of(alarmDefDb.getExpression()),
               alarmDefDb.getSeverity().name(),
               actionEnable,
-              this.findSubExpressions(session, alarmDefDb.getId()),
+              this.getSubExpressions(subExpressions, alarmDefDb.getId()),
               matchBy.isEmpty() ? Collections.<String>emptyList() : Lists.newArrayList(matchBy)
           ));
 
@@ -132,7 +135,7 @@ public class AlarmDefinitionSqlImpl
             expression,
             alarmDefDb.getSeverity().name(),
             actionEnabled,
-            this.findSubExpressions(session, id),
+            this.getSubExpressions(this.findSubExpressions(session, id), id),
             matchBy.isEmpty() ? Collections.<String>emptyList() : Lists.newArrayList(matchBy)
         );
 
@@ -147,22 +150,33 @@ public class AlarmDefinitionSqlImpl
     }
   }
 
-  @SuppressWarnings("unchecked")
-  private List<SubExpression> findSubExpressions(final Session session, final String alarmDefId) {
+  private List<SubExpression> getSubExpressions(final Map<String, List<SubExpression>> subExpressions,
+                                                final String alarmDefId) {
+    final List<SubExpression> found = subExpressions.get(alarmDefId);
+    return found == null ? Lists.<SubExpression>newArrayList() : found;
+  }
 
-    final List<SubExpression> subExpressions = Lists.newArrayList();
+  /**
+   * Loads the SubExpressions of the given AlarmDefinition, or of every AlarmDefinition that is not
+   * deleted if alarmDefId is null, with one query for the sub alarm definitions and one for their
+   * dimensions.
+   *
+   * @return SubExpressions keyed by AlarmDefinition id
+   */
+  private Map<String, List<SubExpression>> findSubExpressions(final Session session,
+                                                              final String alarmDefId) {
+
+    final Map<String, List<SubExpression>> subExpressions = Maps.newHashMap();
     Map<String, Map<String, String>> dimensionMap = Maps.newHashMap();
 
+    final Criterion alarmDefinitionRestriction = alarmDefId == null
+        ? Restrictions.isNull("ad.deletedAt")
+        : Restrictions.eq("ad.id", alarmDefId);
+
     final DetachedCriteria subAlarmDefinitionCriteria = DetachedCriteria
         .forClass(SubAlarmDefinitionDb.class, "sad")
         .createAlias("alarmDefinition", "ad")
-        .add(
-            Restrictions.conjunction(
-                Restrictions.eqProperty("sad.alarmDefinition.id", "ad.id"),
-                Restrictions.eq("sad.alarmDefinition.id", alarmDefId)
-            )
-        )
-        .addOrder(Order.asc("sad.id"))
+        .add(alarmDefinitionRestriction)
         .setProjection(Projections.property("sad.id"));
 
     final ScrollableResults subAlarmDefinitionDimensionResult = session
@@ -176,8 +190,11 @@ public class AlarmDefinitionSqlImpl
         .scroll(ScrollMode.FORWARD_ONLY);
 
     final ScrollableResults subAlarmDefinitionResult = session
-        .getNamedQuery(SubAlarmDefinitionDb.Queries.BY_ALARMDEFINITION_ID)
-        .setString("id", alarmDefId)
+        .createCriteria(SubAlarmDefinitionDb.class, "sad")
+        .createAlias("alarmDefinition", "ad")
+        .add(alarmDefinitionRestriction)
+        .addOrder(Order.asc("ad.id"))
+        .addOrder(Order.asc("sad.id"))
         .setReadOnly(true)
         .scroll(ScrollMode.FORWARD_ONLY);
 
@@ -202,6 +219,7 @@ public class AlarmDefinitionSqlImpl
       final SubAlarmDefinitionDb def = (SubAlarmDefinitionDb) subAlarmDefinitionResult.get()[0];
 
       final String id = def.getId();
+      final String definitionId = def.getAlarmDefinition().getId();
       final AggregateFunction function = AggregateFunction.fromJson(def.getFunction());
       final String metricName = def.getMetricName();
       final AlarmOperator operator = AlarmOperator.fromJson(def.getOperator());
@@ -216,7 +234,12 @@ public class AlarmDefinitionSqlImpl
         dimensions = Collections.emptyMap();
       }
 
-      subExpressions.add(
+      List<SubExpression> definitionSubExpressions = subExpressions.get(definitionId);
+      if (definitionSubExpressions == null) {
+        definitionSubExpressions = Lists.newArrayList();
+        subExpressions.put(definitionId, definitionSubExpressions);
+      }
+      definitionSubExpressions.add(
           new SubExpression(id,
               new AlarmSubExpression(
                   function,
@@ -15,6 +15,8 @@
 
 package monasca.thresh.infrastructure.persistence.hibernate;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -33,6 +35,8 @@ import com.google.common.collect.Sets;
 import org.apache.commons.codec.digest.DigestUtils;
 import org.hibernate.Criteria;
 import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.StatelessSession;
@@ -57,6 +61,8 @@ import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
 import monasca.common.model.metric.MetricDefinition;
 import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmStateUpdate;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
@@ -79,6 +85,8 @@ public class AlarmSqlImpl
   private static final int SUB_EXPRESSION_ID = 5;
   private static final int TENANT_ID = 6;
   private static final int MAX_COLUMN_LENGTH = 255;
+  private static final int MAX_IDS_PER_QUERY = 1000;
+  private static final int FETCH_SIZE = 1000;
   private final SessionFactory sessionFactory;
 
   @Inject
@@ -130,11 +138,136 @@ public class AlarmSqlImpl
     });
   }
 
+  @Override
+  public List<Alarm> findByIds(final Collection<String> ids) {
+    final List<Alarm> alarms = Lists.newArrayListWithCapacity(ids.size());
+    for (final List<String> chunk : Lists.partition(Lists.newArrayList(ids), MAX_IDS_PER_QUERY)) {
+      alarms.addAll(this.findAlarms(this.idsLookupHelper(chunk)));
+    }
+    return alarms;
+  }
+
+  private LookupHelper idsLookupHelper(final List<String> ids) {
+    return new LookupHelper() {
+
+      @Override
+      public Criteria apply(@Nonnull final Criteria input) {
+        return input.add(Restrictions.in("a.id", ids));
+      }
+
+      @Override
+      public Query apply(@Nonnull final Query query) {
+        return query.setParameterList("alarmIds", ids);
+      }
+
+      @Override
+      public String formatHQL(@Nonnull final String hqlQuery) {
+        return String.format(hqlQuery, "a.id in (:alarmIds)");
+      }
+    };
+  }
+
   @Override
   public List<Alarm> listAll() {
     return this.findAlarms(LookupHelper.NOOP_HELPER);
   }
 
+  @Override
+  public void listAll(final AlarmCallback callback) {
+    this.listAll(null, null, callback);
+  }
+
+  @Override
+  public void listAll(final String fromId, final String toId, final AlarmCallback callback) {
+    StatelessSession session = null;
+    StatelessSession metricsSession = null;
+    ScrollableResults results = null;
+
+    try {
+      session = sessionFactory.openStatelessSession();
+      // The AlarmedMetrics are read on a second session while the Alarms are still being scrolled
+      metricsSession = sessionFactory.openStatelessSession();
+      final LookupHelper rangeHelper = new LookupHelper() {
+        @Override
+        public Criteria apply(@Nonnull final Criteria input) {
+          if (fromId != null) {
+            input.add(Restrictions.ge("a.id", fromId));
+          }
+          if (toId != null) {
+            input.add(Restrictions.lt("a.id", toId));
+          }
+          return input;
+        }
+      };
+      results = this.createAlarmCriteria(session, rangeHelper)
+          .setFetchSize(FETCH_SIZE)
+          .scroll(ScrollMode.FORWARD_ONLY);
+
+      final List<Object[]> alarmRows = Lists.newArrayList();
+      final List<String> alarmIds = Lists.newArrayList();
+      while (results.next()) {
+        final Object[] alarmRow = results.get();
+        final String alarmId = (String) alarmRow[ALARM_ID];
+        if (alarmIds.isEmpty() || !alarmId.equals(alarmIds.get(alarmIds.size() - 1))) {
+          // Only send complete Alarms, so check the size when the next Alarm starts
+          if (alarmIds.size() >= MAX_IDS_PER_QUERY) {
+            this.sendAlarms(metricsSession, alarmRows, alarmIds, callback);
+          }
+          alarmIds.add(alarmId);
+        }
+        alarmRows.add(alarmRow);
+      }
+      this.sendAlarms(metricsSession, alarmRows, alarmIds, callback);
+    } finally {
+      if (results != null) {
+        results.close();
+      }
+      if (metricsSession != null) {
+        metricsSession.close();
+      }
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
+
+  private void sendAlarms(final StatelessSession session,
+                          final List<Object[]> alarmRows,
+                          final List<String> alarmIds,
+                          final AlarmCallback callback) {
+    if (alarmIds.isEmpty()) {
+      return;
+    }
+    final List<Alarm> alarms =
+        this.createAlarms(session, alarmRows, this.idsLookupHelper(Lists.newArrayList(alarmIds)));
+    for (final Alarm alarm : alarms) {
+      callback.onAlarm(alarm);
+    }
+    alarmRows.clear();
+    alarmIds.clear();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<String> listAllIds() {
+    StatelessSession session = null;
+
+    try {
+      session = sessionFactory.openStatelessSession();
+      return (List<String>) session
+          .createCriteria(AlarmDb.class, "a")
+          .createAlias("a.alarmDefinition", "ad")
+          .add(Restrictions.isNull("ad.deletedAt"))
+          .setProjection(Projections.property("a.id"))
+          .setReadOnly(true)
+          .list();
+    } finally {
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
+
   @Override
   public void updateState(String id, AlarmState state, long msTimestamp) {
     Transaction tx = null;
@@ -163,6 +296,39 @@ public class AlarmSqlImpl
     }
   }
 
+  @Override
+  public void updateStates(Collection<AlarmStateUpdate> updates) {
+    Transaction tx = null;
+    Session session = null;
+    try {
+
+      session = sessionFactory.openSession();
+      tx = session.beginTransaction();
+
+      for (final AlarmStateUpdate update : updates) {
+        final AlarmDb alarm = (AlarmDb) session.get(AlarmDb.class, update.getAlarmId());
+        if (alarm == null) {
+          // Deleted since the state changed
+          continue;
+        }
+        final DateTime dt = new DateTime(update.getMsTimestamp());
+        alarm.setState(update.getState());
+        alarm.setUpdatedAt(dt);
+        alarm.setStateUpdatedAt(dt);
+        session.update(alarm);
+      }
+
+      tx.commit();
+      tx = null;
+
+    } finally {
+      this.rollbackIfNotNull(tx);
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
+
   @Override
   public void addAlarmedMetric(String id, MetricDefinitionAndTenantId metricDefinition) {
     Transaction tx = null;
@@ -184,42 +350,49 @@ public class AlarmSqlImpl
   }
 
   @Override
-  @SuppressWarnings("unchecked")
-  public void createAlarm(Alarm newAlarm) {
+  public void addAlarmedMetrics(Collection<AlarmedMetric> alarmedMetrics) {
+    if (alarmedMetrics.isEmpty()) {
+      return;
+    }
     Transaction tx = null;
     Session session = null;
     try {
       session = sessionFactory.openSession();
       tx = session.beginTransaction();
+      for (final AlarmedMetric alarmedMetric : alarmedMetrics) {
+        this.createAlarmedMetric(session, alarmedMetric.getMetricDefinitionAndTenantId(),
+            alarmedMetric.getAlarm().getId());
+      }
+      tx.commit();
+      tx = null;
 
-      final DateTime now = DateTime.now();
-      final AlarmDb alarm = new AlarmDb(
-          newAlarm.getId(),
-          session.get(AlarmDefinitionDb.class, newAlarm.getAlarmDefinitionId()),
-          newAlarm.getState(),
-          null,
-          null,
-          now,
-          now,
-          now
-      );
+    } finally {
+      this.rollbackIfNotNull(tx);
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
 
-      session.save(alarm);
+  @Override
+  public void createAlarm(Alarm newAlarm) {
+    this.createAlarms(Collections.singletonList(newAlarm));
+  }
 
-      for (final SubAlarm subAlarm : newAlarm.getSubAlarms()) {
-        session.save(new SubAlarmDb()
-                .setAlarm(alarm)
-                .setSubExpression(session.get(SubAlarmDefinitionDb.class, subAlarm.getAlarmSubExpressionId()))
-                .setExpression(subAlarm.getExpression().getExpression())
-                .setState(subAlarm.getState())
-                .setUpdatedAt(now)
-                .setCreatedAt(now)
-                .setId(subAlarm.getId())
-        );
-      }
+  @Override
+  public void createAlarms(Collection<Alarm> newAlarms) {
+    if (newAlarms.isEmpty()) {
+      return;
+    }
+    Transaction tx = null;
+    Session session = null;
+    try {
+      session = sessionFactory.openSession();
+      tx = session.beginTransaction();
 
-      for (final MetricDefinitionAndTenantId md : newAlarm.getAlarmedMetrics()) {
-        this.createAlarmedMetric(session, md, newAlarm.getId());
+      final DateTime now = DateTime.now();
+      for (final Alarm newAlarm : newAlarms) {
+        this.saveAlarm(session, newAlarm, now);
       }
 
       tx.commit();
@@ -233,6 +406,38 @@ public class AlarmSqlImpl
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private void saveAlarm(final Session session, final Alarm newAlarm, final DateTime now) {
+    final AlarmDb alarm = new AlarmDb(
+        newAlarm.getId(),
+        session.get(AlarmDefinitionDb.class, newAlarm.getAlarmDefinitionId()),
+        newAlarm.getState(),
+        null,
+        null,
+        now,
+        now,
+        now
+    );
+
+    session.save(alarm);
+
+    for (final SubAlarm subAlarm : newAlarm.getSubAlarms()) {
+      session.save(new SubAlarmDb()
+              .setAlarm(alarm)
+              .setSubExpression(session.get(SubAlarmDefinitionDb.class, subAlarm.getAlarmSubExpressionId()))
+              .setExpression(subAlarm.getExpression().getExpression())
+              .setState(subAlarm.getState())
+              .setUpdatedAt(now)
+              .setCreatedAt(now)
+              .setId(subAlarm.getId())
+      );
+    }
+
+    for (final MetricDefinitionAndTenantId md : newAlarm.getAlarmedMetrics()) {
+      this.createAlarmedMetric(session, md, newAlarm.getId());
+    }
+  }
+
   @Override
   public int updateSubAlarmExpressions(String alarmSubExpressionId, AlarmSubExpression alarmSubExpression) {
     Transaction tx = null;
@@ -290,6 +495,39 @@ public class AlarmSqlImpl
     }
   }
 
+  @Override
+  public void updateSubAlarmStates(Map<String, AlarmState> subAlarmStates) {
+    Transaction tx = null;
+    Session session = null;
+    try {
+
+      session = sessionFactory.openSession();
+      tx = session.beginTransaction();
+
+      final DateTime now = DateTime.now();
+
+      for (final Map.Entry<String, AlarmState> entry : subAlarmStates.entrySet()) {
+        final SubAlarmDb subAlarm = (SubAlarmDb) session.get(SubAlarmDb.class, entry.getKey());
+        if (subAlarm == null) {
+          // Deleted since the state changed
+          continue;
+        }
+        subAlarm.setState(entry.getValue());
+        subAlarm.setUpdatedAt(now);
+        session.update(subAlarm);
+      }
+
+      tx.commit();
+      tx = null;
+
+    } finally {
+      this.rollbackIfNotNull(tx);
+      if (session != null) {
+        session.close();
+      }
+    }
+  }
+
   @Override
   public void deleteByDefinitionId(final String alarmDefinitionId) {
     Transaction tx = null;
@@ -322,24 +560,7 @@ public class AlarmSqlImpl
 
     try {
       session = sessionFactory.openStatelessSession();
-      final Criteria criteria = lookupHelper.apply(session
-              .createCriteria(AlarmDb.class, "a")
-              .createAlias("a.subAlarms", "sa")
-              .createAlias("a.alarmDefinition", "ad")
-              .add(Restrictions.isNull("ad.deletedAt"))
-              .addOrder(Order.asc("a.id"))
-              .setProjection(
-                  Projections.projectionList()
-                      .add(Projections.property("a.id"))
-                      .add(Projections.property("a.alarmDefinition.id"))
-                      .add(Projections.property("a.state"))
-                      .add(Projections.alias(Projections.property("sa.id"), "sub_alarm_id"))
-                      .add(Projections.property("sa.expression"))
-                      .add(Projections.property("sa.subExpression.id"))
-                      .add(Projections.property("ad.tenantId"))
-              )
-              .setReadOnly(true)
-      );
+      final Criteria criteria = this.createAlarmCriteria(session, lookupHelper);
       assert criteria != null;
       return this.createAlarms(session, (List<Object[]>) criteria.list(), lookupHelper);
     } finally {
@@ -349,6 +570,28 @@ public class AlarmSqlImpl
     }
   }
 
+  private Criteria createAlarmCriteria(final StatelessSession session,
+                                       final LookupHelper lookupHelper) {
+    return lookupHelper.apply(session
+        .createCriteria(AlarmDb.class, "a")
+        .createAlias("a.subAlarms", "sa")
+        .createAlias("a.alarmDefinition", "ad")
+        .add(Restrictions.isNull("ad.deletedAt"))
+        .addOrder(Order.asc("a.id"))
+        .setProjection(
+            Projections.projectionList()
+                .add(Projections.property("a.id"))
+                .add(Projections.property("a.alarmDefinition.id"))
+                .add(Projections.property("a.state"))
+                .add(Projections.alias(Projections.property("sa.id"), "sub_alarm_id"))
+                .add(Projections.property("sa.expression"))
+                .add(Projections.property("sa.subExpression.id"))
+                .add(Projections.property("ad.tenantId"))
+        )
+        .setReadOnly(true)
+    );
+  }
+
   private Map<String, List<MetricDefinition>> getAlarmedMetrics(List<Object[]> alarmList) {
 
     Map<String, List<MetricDefinition>> result = Maps.newHashMap();
@@ -0,0 +1,442 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.serialization;
+
+import monasca.common.model.alarm.AggregateFunction;
+import monasca.common.model.alarm.AlarmOperator;
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.event.AlarmDefinitionCreatedEvent;
+import monasca.common.model.event.AlarmDefinitionDeletedEvent;
+import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
+import monasca.common.model.event.AlarmDeletedEvent;
+import monasca.common.model.event.AlarmUpdatedEvent;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubExpression;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import org.apache.storm.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Kryo serializers for the objects sent between the Bolts. Without them the classes that are not
+ * registered are sent with Java serialization, which writes the class descriptors with every
+ * tuple.
+ * <p/>
+ * Strings are written with Kryo's variable length encoding, which uses one byte per ASCII
+ * character. Maps and lists are written as a variable length count plus one, so 0 is null,
+ * followed by their entries. Enums are written as their ordinal, so every worker must use the
+ * same version of monasca-common.
+ */
+public final class KryoSerializers {
+  private KryoSerializers() {
+  }
+
+  /**
+   * Registers all of the serializers with the topology configuration
+   */
+  public static void register(Config config) {
+    config.registerSerialization(TenantIdAndMetricName.class, TenantIdAndMetricNameSerializer.class);
+    config.registerSerialization(MetricDefinition.class, MetricDefinitionSerializer.class);
+    config.registerSerialization(MetricDefinitionAndTenantId.class,
+        MetricDefinitionAndTenantIdSerializer.class);
+    config.registerSerialization(Metric.class, MetricSerializer.class);
+    config.registerSerialization(AlarmSubExpression.class, AlarmSubExpressionSerializer.class);
+    config.registerSerialization(SubExpression.class, SubExpressionSerializer.class);
+    // SubAlarm keeps its state in fields that change over time, so use the field serializer
+    config.registerSerialization(SubAlarm.class);
+    config.registerSerialization(AlarmDefinitionCreatedEvent.class,
+        AlarmDefinitionCreatedEventSerializer.class);
+    config.registerSerialization(AlarmDefinitionUpdatedEvent.class,
+        AlarmDefinitionUpdatedEventSerializer.class);
+    config.registerSerialization(AlarmDefinitionDeletedEvent.class,
+        AlarmDefinitionDeletedEventSerializer.class);
+    config.registerSerialization(AlarmUpdatedEvent.class, AlarmUpdatedEventSerializer.class);
+    config.registerSerialization(AlarmDeletedEvent.class, AlarmDeletedEventSerializer.class);
+  }
+
+  public static class TenantIdAndMetricNameSerializer extends Serializer<TenantIdAndMetricName> {
+    public TenantIdAndMetricNameSerializer() {
+      setImmutable(true);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, TenantIdAndMetricName object) {
+      output.writeString(object.getTenantId());
+      output.writeString(object.getMetricName());
+    }
+
+    @Override
+    public TenantIdAndMetricName read(Kryo kryo, Input input, Class<TenantIdAndMetricName> type) {
+      return new TenantIdAndMetricName(input.readString(), input.readString());
+    }
+  }
+
+  public static class MetricDefinitionSerializer extends Serializer<MetricDefinition> {
+    @Override
+    public void write(Kryo kryo, Output output, MetricDefinition object) {
+      writeMetricDefinition(output, object);
+    }
+
+    @Override
+    public MetricDefinition read(Kryo kryo, Input input, Class<MetricDefinition> type) {
+      return readMetricDefinition(input);
+    }
+  }
+
+  public static class MetricDefinitionAndTenantIdSerializer extends
+      Serializer<MetricDefinitionAndTenantId> {
+    @Override
+    public void write(Kryo kryo, Output output, MetricDefinitionAndTenantId object) {
+      output.writeString(object.tenantId);
+      writeMetricDefinition(output, object.metricDefinition);
+    }
+
+    @Override
+    public MetricDefinitionAndTenantId read(Kryo kryo, Input input,
+        Class<MetricDefinitionAndTenantId> type) {
+      final String tenantId = input.readString();
+      return new MetricDefinitionAndTenantId(readMetricDefinition(input), tenantId);
+    }
+  }
+
+  public static class MetricSerializer extends Serializer<Metric> {
+    @Override
+    public void write(Kryo kryo, Output output, Metric object) {
+      output.writeString(object.name);
+      writeStringMap(output, object.dimensions);
+      output.writeLong(object.timestamp, true);
+      output.writeDouble(object.value);
+      writeStringMap(output, object.valueMeta);
+    }
+
+    @Override
+    public Metric read(Kryo kryo, Input input, Class<Metric> type) {
+      final String name = input.readString();
+      final Map<String, String> dimensions = readStringMap(input);
+      final long timestamp = input.readLong(true);
+      final double value = input.readDouble();
+      return new Metric(name, dimensions, timestamp, value, readStringMap(input));
+    }
+  }
+
+  public static class AlarmSubExpressionSerializer extends Serializer<AlarmSubExpression> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmSubExpression object) {
+      writeAlarmSubExpression(output, object);
+    }
+
+    @Override
+    public AlarmSubExpression read(Kryo kryo, Input input, Class<AlarmSubExpression> type) {
+      return readAlarmSubExpression(input);
+    }
+  }
+
+  public static class SubExpressionSerializer extends Serializer<SubExpression> {
+    @Override
+    public void write(Kryo kryo, Output output, SubExpression object) {
+      output.writeString(object.getId());
+      writeAlarmSubExpression(output, object.getAlarmSubExpression());
+    }
+
+    @Override
+    public SubExpression read(Kryo kryo, Input input, Class<SubExpression> type) {
+      final String id = input.readString();
+      return new SubExpression(id, readAlarmSubExpression(input));
+    }
+  }
+
+  public static class AlarmDefinitionCreatedEventSerializer extends
+      Serializer<AlarmDefinitionCreatedEvent> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmDefinitionCreatedEvent object) {
+      output.writeString(object.tenantId);
+      output.writeString(object.alarmDefinitionId);
+      output.writeString(object.alarmName);
+      output.writeString(object.alarmDescription);
+      output.writeString(object.alarmExpression);
+      writeSubExpressionMap(output, object.alarmSubExpressions);
+      writeStringList(output, object.matchBy);
+    }
+
+    @Override
+    public AlarmDefinitionCreatedEvent read(Kryo kryo, Input input,
+        Class<AlarmDefinitionCreatedEvent> type) {
+      return new AlarmDefinitionCreatedEvent(input.readString(), input.readString(),
+          input.readString(), input.readString(), input.readString(),
+          readSubExpressionMap(input), readStringList(input));
+    }
+  }
+
+  public static class AlarmDefinitionUpdatedEventSerializer extends
+      Serializer<AlarmDefinitionUpdatedEvent> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmDefinitionUpdatedEvent object) {
+      output.writeString(object.tenantId);
+      output.writeString(object.alarmDefinitionId);
+      output.writeString(object.alarmName);
+      output.writeString(object.alarmDescription);
+      output.writeString(object.alarmExpression);
+      writeStringList(output, object.matchBy);
+      output.writeBoolean(object.alarmActionsEnabled);
+      output.writeString(object.severity);
+      writeSubExpressionMap(output, object.oldAlarmSubExpressions);
+      writeSubExpressionMap(output, object.changedSubExpressions);
+      writeSubExpressionMap(output, object.unchangedSubExpressions);
+      writeSubExpressionMap(output, object.newAlarmSubExpressions);
+    }
+
+    @Override
+    public AlarmDefinitionUpdatedEvent read(Kryo kryo, Input input,
+        Class<AlarmDefinitionUpdatedEvent> type) {
+      return new AlarmDefinitionUpdatedEvent(input.readString(), input.readString(),
+          input.readString(), input.readString(), input.readString(), readStringList(input),
+          input.readBoolean(), input.readString(), readSubExpressionMap(input),
+          readSubExpressionMap(input), readSubExpressionMap(input), readSubExpressionMap(input));
+    }
+  }
+
+  public static class AlarmDefinitionDeletedEventSerializer extends
+      Serializer<AlarmDefinitionDeletedEvent> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmDefinitionDeletedEvent object) {
+      output.writeString(object.alarmDefinitionId);
+      writeMetricDefinitionMap(output, object.subAlarmMetricDefinitions);
+    }
+
+    @Override
+    public AlarmDefinitionDeletedEvent read(Kryo kryo, Input input,
+        Class<AlarmDefinitionDeletedEvent> type) {
+      return new AlarmDefinitionDeletedEvent(input.readString(), readMetricDefinitionMap(input));
+    }
+  }
+
+  public static class AlarmUpdatedEventSerializer extends Serializer<AlarmUpdatedEvent> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmUpdatedEvent object) {
+      output.writeString(object.alarmId);
+      output.writeString(object.alarmDefinitionId);
+      output.writeString(object.tenantId);
+      writeMetricDefinitionList(output, object.alarmMetrics);
+      writeSubExpressionMap(output, object.subAlarms);
+      writeEnum(output, object.alarmState);
+      writeEnum(output, object.oldAlarmState);
+      output.writeString(object.link);
+      output.writeString(object.lifecycleState);
+    }
+
+    @Override
+    public AlarmUpdatedEvent read(Kryo kryo, Input input, Class<AlarmUpdatedEvent> type) {
+      return new AlarmUpdatedEvent(input.readString(), input.readString(), input.readString(),
+          readMetricDefinitionList(input), readSubExpressionMap(input),
+          readEnum(input, AlarmState.values()), readEnum(input, AlarmState.values()),
+          input.readString(), input.readString());
+    }
+  }
+
+  public static class AlarmDeletedEventSerializer extends Serializer<AlarmDeletedEvent> {
+    @Override
+    public void write(Kryo kryo, Output output, AlarmDeletedEvent object) {
+      output.writeString(object.tenantId);
+      output.writeString(object.alarmId);
+      writeMetricDefinitionList(output, object.alarmMetrics);
+      output.writeString(object.alarmDefinitionId);
+      writeSubExpressionMap(output, object.subAlarms);
+    }
+
+    @Override
+    public AlarmDeletedEvent read(Kryo kryo, Input input, Class<AlarmDeletedEvent> type) {
+      return new AlarmDeletedEvent(input.readString(), input.readString(),
+          readMetricDefinitionList(input), input.readString(), readSubExpressionMap(input));
+    }
+  }
+
+  static void writeMetricDefinition(Output output, MetricDefinition metricDefinition) {
+    output.writeString(metricDefinition.name);
+    writeStringMap(output, metricDefinition.dimensions);
+  }
+
+  static MetricDefinition readMetricDefinition(Input input) {
+    final String name = input.readString();
+    return new MetricDefinition(name, readStringMap(input));
+  }
+
+  static void writeAlarmSubExpression(Output output, AlarmSubExpression expression) {
+    writeEnum(output, expression.getFunction());
+    writeMetricDefinition(output, expression.getMetricDefinition());
+    writeEnum(output, expression.getOperator());
+    output.writeDouble(expression.getThreshold());
+    output.writeInt(expression.getPeriod(), true);
+    output.writeInt(expression.getPeriods(), true);
+    output.writeBoolean(expression.isDeterministic());
+  }
+
+  static AlarmSubExpression readAlarmSubExpression(Input input) {
+    final AggregateFunction function = readEnum(input, AggregateFunction.values());
+    final MetricDefinition metricDefinition = readMetricDefinition(input);
+    final AlarmOperator operator = readEnum(input, AlarmOperator.values());
+    final double threshold = input.readDouble();
+    final int period = input.readInt(true);
+    final int periods = input.readInt(true);
+    return new AlarmSubExpression(function, metricDefinition, operator, threshold, period,
+        periods, input.readBoolean());
+  }
+
+  static void writeEnum(Output output, Enum<?> value) {
+    output.writeInt(value == null ? 0 : value.ordinal() + 1, true);
+  }
+
+  static <T extends Enum<T>> T readEnum(Input input, T[] values) {
+    final int ordinal = input.readInt(true);
+    return ordinal == 0 ? null : values[ordinal - 1];
+  }
+
+  static void writeStringMap(Output output, Map<String, String> map) {
+    if (map == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(map.size() + 1, true);
+    for (final Map.Entry<String, String> entry : map.entrySet()) {
+      output.writeString(entry.getKey());
+      output.writeString(entry.getValue());
+    }
+  }
+
+  static Map<String, String> readStringMap(Input input) {
+    final int size = input.readInt(true) - 1;
+    if (size < 0) {
+      return null;
+    }
+    final Map<String, String> map = new HashMap<>(capacity(size));
+    for (int i = 0; i < size; i++) {
+      map.put(input.readString(), input.readString());
+    }
+    return map;
+  }
+
+  static void writeStringList(Output output, List<String> list) {
+    if (list == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(list.size() + 1, true);
+    for (final String value : list) {
+      output.writeString(value);
+    }
+  }
+
+  static List<String> readStringList(Input input) {
+    final int size = input.readInt(true) - 1;
+    if (size < 0) {
+      return null;
+    }
+    final List<String> list = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      list.add(input.readString());
+    }
+    return list;
+  }
+
+  static void writeMetricDefinitionList(Output output, List<MetricDefinition> list) {
+    if (list == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(list.size() + 1, true);
+    for (final MetricDefinition metricDefinition : list) {
+      writeMetricDefinition(output, metricDefinition);
+    }
+  }
+
+  static List<MetricDefinition> readMetricDefinitionList(Input input) {
+    final int size = input.readInt(true) - 1;
+    if (size < 0) {
+      return null;
+    }
+    final List<MetricDefinition> list = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      list.add(readMetricDefinition(input));
+    }
+    return list;
+  }
+
+  static void writeMetricDefinitionMap(Output output, Map<String, MetricDefinition> map) {
+    if (map == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(map.size() + 1, true);
+    for (final Map.Entry<String, MetricDefinition> entry : map.entrySet()) {
+      output.writeString(entry.getKey());
+      writeMetricDefinition(output, entry.getValue());
+    }
+  }
+
+  static Map<String, MetricDefinition> readMetricDefinitionMap(Input input) {
+    final int size = input.readInt(true) - 1;
+    if (size < 0) {
+      return null;
+    }
+    final Map<String, MetricDefinition> map = new HashMap<>(capacity(size));
+    for (int i = 0; i < size; i++) {
+      map.put(input.readString(), readMetricDefinition(input));
+    }
+    return map;
+  }
+
+  static void writeSubExpressionMap(Output output, Map<String, AlarmSubExpression> map) {
+    if (map == null) {
+      output.writeInt(0, true);
+      return;
+    }
+    output.writeInt(map.size() + 1, true);
+    for (final Map.Entry<String, AlarmSubExpression> entry : map.entrySet()) {
+      output.writeString(entry.getKey());
+      writeAlarmSubExpression(output, entry.getValue());
+    }
+  }
+
+  static Map<String, AlarmSubExpression> readSubExpressionMap(Input input) {
+    final int size = input.readInt(true) - 1;
+    if (size < 0) {
+      return null;
+    }
+    final Map<String, AlarmSubExpression> map = new HashMap<>(capacity(size));
+    for (int i = 0; i < size; i++) {
+      map.put(input.readString(), readAlarmSubExpression(input));
+    }
+    return map;
+  }
+
+  private static int capacity(int size) {
+    return size < 3 ? size + 1 : (int) (size / 0.75f) + 1;
+  }
+}
@@ -26,15 +26,23 @@ import monasca.common.model.metric.MetricDefinition;
 import monasca.common.util.Injector;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.infrastructure.persistence.JdbiConnectionPool;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
+import monasca.thresh.utils.LatencyHistograms;
 import monasca.thresh.utils.Logging;
+import monasca.thresh.utils.StateSizes;
+import monasca.thresh.utils.Tuples;
 
+import com.google.common.collect.Lists;
+
+import org.apache.storm.Config;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -48,12 +56,18 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * Handles creation of Alarms and Alarmed Metrics.
+ * <p/>
+ * The database reads and writes run with AsyncCalls keyed by Alarm Definition id. If it is
+ * enabled, the tuples for an Alarm Definition wait while its calls are running and are acked once
+ * they complete, while the tuples for the other Alarm Definitions are processed.
  */
 public class AlarmCreationBolt extends BaseRichBolt {
   private static final long serialVersionUID = 1096706128973976599L;
@@ -67,11 +81,19 @@ public class AlarmCreationBolt extends BaseRichBolt {
   private transient AlarmDefinitionDAO alarmDefDAO;
   private transient AlarmDAO alarmDAO;
   private OutputCollector collector;
+  private transient AsyncCalls asyncCalls;
+  private transient LatencyHistograms executeLatency;
   private final Map<String, List<Alarm>> waitingAlarms = new HashMap<>();
   private final Map<String, List<Alarm>> alarmCache = new HashMap<>();
   private final Map<String, AlarmDefinition> alarmDefinitionCache = new HashMap<>();
   private static final List<Alarm> EMPTY_LIST = Collections.<Alarm>emptyList();
 
+  public static final String BULK_TRANSACTION_SIZE_KEY = "monasca.thresh.creation.bulkTransactionSize";
+  public static final int BULK_TRANSACTION_SIZE_DEFAULT = 500;
+  private static final int BULK_TRANSACTION_SIZE = PropertyFinder.getIntProperty(
+      BULK_TRANSACTION_SIZE_KEY, BULK_TRANSACTION_SIZE_DEFAULT, 1, Integer.MAX_VALUE);
+  private static final long CLOSE_TIMEOUT_MS = 10000;
+
   public AlarmCreationBolt(DataSourceFactory dbConfig) {
     this.dbConfig = dbConfig;
   }
@@ -87,14 +109,53 @@ public class AlarmCreationBolt extends BaseRichBolt {
     declarer.declareStream(ALARM_CREATION_STREAM, new Fields(ALARM_CREATION_FIELDS));
   }
 
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    if (AsyncCalls.THREADS == 0) {
+      return null;
+    }
+    // Runs the completed calls when no other tuples arrive
+    final Map<String, Object> conf = new HashMap<>();
+    conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+    return conf;
+  }
+
   @Override
   public void execute(Tuple tuple) {
     logger.debug("tuple: {}", tuple);
+    final long start = System.nanoTime();
+    try {
+      asyncCalls.runCompleted();
+      if (Tuples.isTickTuple(tuple)) {
+        collector.ack(tuple);
+        return;
+      }
+      final String alarmDefinitionId = alarmDefinitionIdOf(tuple);
+      if (asyncCalls.defer(alarmDefinitionId, tuple)) {
+        return;
+      }
+      if (isNewMetricStream(tuple.getSourceStreamId()) && prefetch(alarmDefinitionId)
+          && asyncCalls.defer(alarmDefinitionId, tuple)) {
+        return;
+      }
+      process(tuple, alarmDefinitionId);
+    } finally {
+      executeLatency.recordSince(tuple, start);
+    }
+  }
+
+  private void process(Tuple tuple, String alarmDefinitionId) {
     try {
       if (MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM.equals(tuple.getSourceStreamId())) {
         final MetricDefinitionAndTenantId metricDefinitionAndTenantId =
             (MetricDefinitionAndTenantId) tuple.getValue(0);
         handleNewMetricDefinition(metricDefinitionAndTenantId, tuple.getString(1));
+      } else if (MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM.equals(tuple
+          .getSourceStreamId())) {
+        @SuppressWarnings("unchecked")
+        final List<MetricDefinitionAndTenantId> metricDefinitionAndTenantIds =
+            (List<MetricDefinitionAndTenantId>) tuple.getValue(0);
+        handleNewMetricDefinitions(metricDefinitionAndTenantIds, tuple.getString(1));
       } else if (EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID.equals(tuple
           .getSourceStreamId())) {
         final String eventType = tuple.getString(0);
@@ -129,8 +190,91 @@ public class AlarmCreationBolt extends BaseRichBolt {
     } catch (Exception e) {
       logger.error("Error processing tuple {}", tuple, e);
     } finally {
-      collector.ack(tuple);
+      asyncCalls.ack(alarmDefinitionId, tuple);
+    }
+  }
+
+  private static boolean isNewMetricStream(String streamId) {
+    return MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM.equals(streamId)
+        || MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM.equals(streamId);
+  }
+
+  /**
+   * Returns the id of the Alarm Definition the tuple changes the state for, or null if it does
+   * not change any
+   */
+  private static String alarmDefinitionIdOf(Tuple tuple) {
+    final String streamId = tuple.getSourceStreamId();
+    if (isNewMetricStream(streamId)) {
+      return tuple.getString(1);
+    }
+    if (EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID.equals(streamId)) {
+      return tuple.getString(2);
+    }
+    if (EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID.equals(streamId)) {
+      final Object event = tuple.getValue(1);
+      if (event instanceof AlarmDefinitionDeletedEvent) {
+        return ((AlarmDefinitionDeletedEvent) event).alarmDefinitionId;
+      }
+      if (event instanceof AlarmDefinitionUpdatedEvent) {
+        return ((AlarmDefinitionUpdatedEvent) event).alarmDefinitionId;
+      }
+    } else if (EventProcessingBolt.ALARM_EVENT_STREAM_ID.equals(streamId)) {
+      final Object event = tuple.getValue(2);
+      if (event instanceof AlarmDeletedEvent) {
+        return ((AlarmDeletedEvent) event).alarmDefinitionId;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Starts reading the AlarmDefinition and its Alarms if they are not cached and AsyncCalls is
+   * enabled. Returns true if a read was started.
+   */
+  private boolean prefetch(final String alarmDefinitionId) {
+    if (!asyncCalls.isAsync()) {
+      return false;
     }
+    final boolean readDefinition = !alarmDefinitionCache.containsKey(alarmDefinitionId);
+    final boolean readAlarms = !alarmCache.containsKey(alarmDefinitionId);
+    if (!readDefinition && !readAlarms) {
+      return false;
+    }
+    asyncCalls.submit(alarmDefinitionId, new Callable<Prefetched>() {
+      @Override
+      public Prefetched call() {
+        final Prefetched prefetched = new Prefetched();
+        if (readDefinition) {
+          prefetched.alarmDefinition = alarmDefDAO.findById(alarmDefinitionId);
+          if (prefetched.alarmDefinition == null) {
+            return prefetched;
+          }
+        }
+        if (readAlarms) {
+          prefetched.alarms = alarmDAO.findForAlarmDefinitionId(alarmDefinitionId);
+        }
+        return prefetched;
+      }
+    }, new AsyncCalls.Callback<Prefetched>() {
+      @Override
+      public void completed(Prefetched prefetched) {
+        if (prefetched.alarmDefinition != null
+            && !alarmDefinitionCache.containsKey(alarmDefinitionId)) {
+          alarmDefinitionCache.put(alarmDefinitionId, prefetched.alarmDefinition);
+        }
+        if (prefetched.alarms != null && !alarmCache.containsKey(alarmDefinitionId)) {
+          alarmCache.put(alarmDefinitionId, prefetched.alarms);
+        }
+      }
+
+      @Override
+      public void failed(Exception e) {
+        logger.warn("Unable to read AlarmDefinition {} and its Alarms, they will be read when used",
+            alarmDefinitionId, e);
+      }
+    });
+    return true;
   }
 
   private void removeAlarm(AlarmDeletedEvent event) {
@@ -197,7 +341,7 @@ public class AlarmCreationBolt extends BaseRichBolt {
     }
   }
 
-  private void deleteAlarmDefinition(String alarmDefinitionId) {
+  private void deleteAlarmDefinition(final String alarmDefinitionId) {
     logger.debug("Deleting AlarmDefinition {}", alarmDefinitionId);
     final List<Alarm> waiting = waitingAlarms.remove(alarmDefinitionId);
     if (waiting != null && !waiting.isEmpty()) {
@@ -206,7 +350,21 @@ public class AlarmCreationBolt extends BaseRichBolt {
     }
     alarmCache.remove(alarmDefinitionId);
     alarmDefinitionCache.remove(alarmDefinitionId);
-    alarmDAO.deleteByDefinitionId(alarmDefinitionId);
+    asyncCalls.submit(alarmDefinitionId, new Callable<Void>() {
+      @Override
+      public Void call() {
+        alarmDAO.deleteByDefinitionId(alarmDefinitionId);
+        return null;
+      }
+    }, new AsyncCalls.Callback<Void>() {
+      @Override
+      public void completed(Void result) {}
+
+      @Override
+      public void failed(Exception e) {
+        logger.error("Error deleting Alarms for AlarmDefinition {}", alarmDefinitionId, e);
+      }
+    });
   }
 
   protected void handleNewMetricDefinition(
@@ -217,11 +375,45 @@ public class AlarmCreationBolt extends BaseRichBolt {
       return;
     }
 
-    if (!validMetricDefinition(alarmDefinition, metricDefinitionAndTenantId)) {
+    final List<Alarm> existingAlarms = getExistingAlarms(alarmDefinitionId);
+    final AlarmChanges changes = new AlarmChanges();
+    addNewMetricDefinition(metricDefinitionAndTenantId, alarmDefinition, existingAlarms, changes);
+    saveChanges(alarmDefinition, changes, false);
+    logger.debug("Total processing took {} milliseconds", System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Handles all of the known metrics that match a newly created Alarm Definition at once. The
+   * resulting Alarms and Alarmed Metrics are written using the batch DAO methods instead of one
+   * transaction per metric.
+   */
+  protected void handleNewMetricDefinitions(
+      final List<MetricDefinitionAndTenantId> metricDefinitionAndTenantIds,
+      final String alarmDefinitionId) {
+    final long start = System.currentTimeMillis();
+    final AlarmDefinition alarmDefinition = lookUpAlarmDefinition(alarmDefinitionId);
+    if (alarmDefinition == null) {
       return;
     }
 
     final List<Alarm> existingAlarms = getExistingAlarms(alarmDefinitionId);
+    final AlarmChanges changes = new AlarmChanges();
+    for (final MetricDefinitionAndTenantId metricDefinitionAndTenantId : metricDefinitionAndTenantIds) {
+      addNewMetricDefinition(metricDefinitionAndTenantId, alarmDefinition, existingAlarms, changes);
+    }
+    saveChanges(alarmDefinition, changes, true);
+    logger.info("Processing {} metrics for AlarmDefinition {} created {} Alarms and took {} milliseconds",
+        metricDefinitionAndTenantIds.size(), alarmDefinitionId, changes.newAlarms.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  private void addNewMetricDefinition(final MetricDefinitionAndTenantId metricDefinitionAndTenantId,
+      final AlarmDefinition alarmDefinition, final List<Alarm> existingAlarms,
+      final AlarmChanges changes) {
+    if (!validMetricDefinition(alarmDefinition, metricDefinitionAndTenantId)) {
+      return;
+    }
+
     if (alreadyCreated(existingAlarms, metricDefinitionAndTenantId)) {
       logger.warn("MetricDefinition {} is already in existing Alarm", metricDefinitionAndTenantId);
       return;
@@ -240,8 +432,7 @@ public class AlarmCreationBolt extends BaseRichBolt {
       for (final Alarm matchingAlarm : matchingAlarms) {
         logger.info("Metric {} fits into existing alarm {}", metricDefinitionAndTenantId,
             matchingAlarm.getId());
-        addToExistingAlarm(matchingAlarm, metricDefinitionAndTenantId);
-        sendNewMetricDefinition(matchingAlarm, metricDefinitionAndTenantId);
+        addToExistingAlarm(matchingAlarm, metricDefinitionAndTenantId, changes);
       }
     } else {
       final List<Alarm> newAlarms =
@@ -249,12 +440,95 @@ public class AlarmCreationBolt extends BaseRichBolt {
       for (final Alarm newAlarm : newAlarms) {
         logger.info("Metric {} finishes waiting alarm {}", metricDefinitionAndTenantId, newAlarm);
         existingAlarms.add(newAlarm);
-        for (final MetricDefinitionAndTenantId md : newAlarm.getAlarmedMetrics()) {
-          sendNewMetricDefinition(newAlarm, md);
+        changes.newAlarms.put(newAlarm.getId(), newAlarm);
+      }
+    }
+  }
+
+  /**
+   * Persists the new Alarms and Alarmed Metrics and then emits their SubAlarms. Emitting is done
+   * for the transactions that succeeded so nothing is sent for an Alarm that was not saved.
+   */
+  private void saveChanges(final AlarmDefinition alarmDefinition, final AlarmChanges changes,
+      final boolean bulk) {
+    if (changes.newAlarms.isEmpty() && changes.alarmedMetrics.isEmpty()) {
+      return;
+    }
+    final AlarmChanges saved = new AlarmChanges();
+    asyncCalls.submit(alarmDefinition.getId(), new Callable<AlarmChanges>() {
+      @Override
+      public AlarmChanges call() {
+        writeChanges(changes, bulk, saved);
+        return saved;
+      }
+    }, new AsyncCalls.Callback<AlarmChanges>() {
+      @Override
+      public void completed(AlarmChanges result) {
+        sendNewAlarms(new ArrayList<>(result.newAlarms.values()));
+        sendNewAlarmedMetrics(result.alarmedMetrics);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        completed(saved);
+        // The cache may now hold Alarms that were never saved so reload it from the database
+        alarmCache.remove(alarmDefinition.getId());
+        logger.error("Error saving Alarms for AlarmDefinition {}", alarmDefinition.getId(), e);
+      }
+    });
+  }
+
+  /**
+   * Writes the changes, adding each one to saved once its transaction commits. Does not use the
+   * state of the Bolt so it can run on another thread.
+   */
+  private void writeChanges(final AlarmChanges changes, final boolean bulk,
+      final AlarmChanges saved) {
+    final long start = System.currentTimeMillis();
+    if (bulk) {
+      for (final List<Alarm> newAlarms : Lists.partition(
+          new ArrayList<Alarm>(changes.newAlarms.values()), BULK_TRANSACTION_SIZE)) {
+        alarmDAO.createAlarms(newAlarms);
+        for (final Alarm newAlarm : newAlarms) {
+          saved.newAlarms.put(newAlarm.getId(), newAlarm);
         }
       }
+      for (final List<AlarmedMetric> alarmedMetrics : Lists.partition(changes.alarmedMetrics,
+          BULK_TRANSACTION_SIZE)) {
+        alarmDAO.addAlarmedMetrics(alarmedMetrics);
+        saved.alarmedMetrics.addAll(alarmedMetrics);
+      }
+      logger.debug("Saving {} Alarms and {} Alarmed Metrics took {} milliseconds",
+          changes.newAlarms.size(), changes.alarmedMetrics.size(),
+          System.currentTimeMillis() - start);
+    } else {
+      for (final Alarm newAlarm : changes.newAlarms.values()) {
+        saveAlarm(newAlarm);
+        saved.newAlarms.put(newAlarm.getId(), newAlarm);
+      }
+      for (final AlarmedMetric alarmedMetric : changes.alarmedMetrics) {
+        final long addStart = System.currentTimeMillis();
+        alarmDAO.addAlarmedMetric(alarmedMetric.getAlarm().getId(),
+            alarmedMetric.getMetricDefinitionAndTenantId());
+        logger.debug("Add Alarm Metric took {} milliseconds", System.currentTimeMillis() - addStart);
+        saved.alarmedMetrics.add(alarmedMetric);
+      }
+    }
+  }
+
+  private void sendNewAlarms(final List<Alarm> newAlarms) {
+    for (final Alarm newAlarm : newAlarms) {
+      for (final MetricDefinitionAndTenantId md : newAlarm.getAlarmedMetrics()) {
+        sendNewMetricDefinition(newAlarm, md);
+      }
+    }
+  }
+
+  private void sendNewAlarmedMetrics(final List<AlarmedMetric> alarmedMetrics) {
+    for (final AlarmedMetric alarmedMetric : alarmedMetrics) {
+      sendNewMetricDefinition(alarmedMetric.getAlarm(),
+          alarmedMetric.getMetricDefinitionAndTenantId());
     }
-    logger.debug("Total processing took {} milliseconds", System.currentTimeMillis() - start);
   }
 
   private List<Alarm> getExistingAlarms(final String alarmDefinitionId) {
@@ -288,11 +562,12 @@ public class AlarmCreationBolt extends BaseRichBolt {
   }
 
   private void addToExistingAlarm(Alarm existingAlarm,
-      MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
+      MetricDefinitionAndTenantId metricDefinitionAndTenantId, AlarmChanges changes) {
     existingAlarm.addAlarmedMetric(metricDefinitionAndTenantId);
-    final long start = System.currentTimeMillis();
-    alarmDAO.addAlarmedMetric(existingAlarm.getId(), metricDefinitionAndTenantId);
-    logger.debug("Add Alarm Metric took {} milliseconds", System.currentTimeMillis() - start);
+    // An Alarm that has not been saved yet will be saved with all of its metrics
+    if (!changes.newAlarms.containsKey(existingAlarm.getId())) {
+      changes.alarmedMetrics.add(new AlarmedMetric(metricDefinitionAndTenantId, existingAlarm));
+    }
   }
 
   private void sendNewMetricDefinition(Alarm existingAlarm,
@@ -363,7 +638,6 @@ public class AlarmCreationBolt extends BaseRichBolt {
       reuseExistingMetric(newAlarm, alarmDefinition, existingAlarms);
       if (alarmIsComplete(newAlarm)) {
         logger.debug("New alarm is complete. Saving");
-        saveAlarm(newAlarm);
         result.add(newAlarm);
       } else {
         logger.debug("Adding new alarm to the waiting list");
@@ -374,7 +648,6 @@ public class AlarmCreationBolt extends BaseRichBolt {
         waiting.addAlarmedMetric(metricDefinitionAndTenantId);
         if (alarmIsComplete(waiting)) {
           removeFromWaitingAlarms(waiting, alarmDefinition);
-          saveAlarm(waiting);
           result.add(waiting);
         }
       }
@@ -534,7 +807,61 @@ public class AlarmCreationBolt extends BaseRichBolt {
     if (alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
+      if (!dbConfig.isHibernateSupport()) {
+        Injector.getInstance(JdbiConnectionPool.class).registerMetric(context);
+      }
     }
+    final LatencyHistograms dbLatency = new LatencyHistograms();
+    alarmDefDAO = dbLatency.timed(AlarmDefinitionDAO.class, alarmDefDAO);
+    alarmDAO = dbLatency.timed(AlarmDAO.class, alarmDAO);
+    context.registerMetric(LatencyHistograms.DB_LATENCY, dbLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    executeLatency = new LatencyHistograms();
+    context.registerMetric(LatencyHistograms.EXECUTE_LATENCY, executeLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    // The caches of Alarms are counted by Alarm, each with its SubAlarms and alarmed metrics
+    final StateSizes stateSizes = new StateSizes()
+        .add("alarm-definition-cache",
+            StateSizes.ALARM_DEFINITION_BYTES + StateSizes.HASH_MAP_ENTRY_BYTES,
+            alarmDefinitionCache)
+        .add("alarm-cache", StateSizes.ALARM_BYTES + StateSizes.ARRAY_LIST_ENTRY_BYTES,
+            StateSizes.totalSize(alarmCache))
+        .add("waiting-alarms", StateSizes.ALARM_BYTES + StateSizes.ARRAY_LIST_ENTRY_BYTES,
+            StateSizes.totalSize(waitingAlarms));
+    context.registerMetric(StateSizes.STATE_SIZE, stateSizes,
+        StateSizes.METRICS_TIME_BUCKET_SECONDS);
+
+    asyncCalls =
+        new AsyncCalls(Logging.categoryFor(getClass(), context), AsyncCalls.THREADS,
+            AsyncCalls.MAX_PENDING, collector, new AsyncCalls.TupleHandler() {
+              @Override
+              public void handle(Tuple tuple) {
+                process(tuple, alarmDefinitionIdOf(tuple));
+              }
+            });
+  }
+
+  @Override
+  public void cleanup() {
+    if (asyncCalls != null) {
+      asyncCalls.close(CLOSE_TIMEOUT_MS);
+    }
+  }
+
+  /**
+   * An AlarmDefinition and its Alarms read by prefetch()
+   */
+  private static class Prefetched {
+    private AlarmDefinition alarmDefinition;
+    private List<Alarm> alarms;
+  }
+
+  /**
+   * Alarms and Alarmed Metrics created while handling new metrics that still need to be saved.
+   */
+  private static class AlarmChanges {
+    private final Map<String, Alarm> newAlarms = new LinkedHashMap<>();
+    private final List<AlarmedMetric> alarmedMetrics = new ArrayList<>();
   }
 
   /**
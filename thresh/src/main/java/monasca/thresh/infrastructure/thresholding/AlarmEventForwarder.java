@@ -19,7 +19,11 @@ package monasca.thresh.infrastructure.thresholding;
 
 public interface AlarmEventForwarder {
 
-  void send(String json);
+  /**
+   * Sends the event. The alarmId is the message key, so all the events for an Alarm are kept
+   * in order on the same partition.
+   */
+  void send(String alarmId, String json);
 
   void close();
 }
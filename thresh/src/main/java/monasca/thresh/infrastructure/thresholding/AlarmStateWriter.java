@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.thresh.domain.model.AlarmStateUpdate;
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.apache.storm.metric.api.IMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes Alarm and SubAlarm state changes to the database behind the Bolt. Only the latest state
+ * for each id is kept, so an Alarm that flaps between flushes is written once. The waiting states
+ * are written in batches every FLUSH_INTERVAL_MS_KEY milliseconds by a separate thread.
+ * <p/>
+ * A flush interval of 0 writes each state change immediately on the calling thread.
+ */
+public class AlarmStateWriter {
+  private static final Logger logger = LoggerFactory.getLogger(AlarmStateWriter.class);
+
+  public static final String FLUSH_INTERVAL_MS_KEY = "monasca.thresh.stateWriter.flushIntervalMs";
+  public static final int FLUSH_INTERVAL_MS_DEFAULT = 1000;
+  public static final int FLUSH_INTERVAL_MS = PropertyFinder.getIntProperty(
+      FLUSH_INTERVAL_MS_KEY, FLUSH_INTERVAL_MS_DEFAULT, 0, Integer.MAX_VALUE);
+
+  public static final int METRICS_TIME_BUCKET_SECONDS = 60;
+
+  private final AlarmDAO alarmDAO;
+  private final ConcurrentMap<String, AlarmStateUpdate> alarmStates = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, AlarmState> subAlarmStates = new ConcurrentHashMap<>();
+  private final ScheduledExecutorService executor;
+
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong flushedStates = new AtomicLong();
+  private final AtomicLong failedFlushes = new AtomicLong();
+  private final AtomicLong lastFlushLatencyMs = new AtomicLong();
+  private final AtomicLong maxFlushLatencyMs = new AtomicLong();
+
+  public AlarmStateWriter(final AlarmDAO alarmDAO, final int flushIntervalMs, final String name) {
+    this.alarmDAO = alarmDAO;
+    if (flushIntervalMs > 0) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, name + "-state-writer");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      executor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            flush();
+          } catch (Throwable t) {
+            // Anything thrown here would stop all future flushes
+            logger.error("Unexpected error flushing states", t);
+          }
+        }
+      }, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    } else {
+      executor = null;
+    }
+  }
+
+  public void updateState(final String alarmId, final AlarmState state, final long msTimestamp) {
+    if (executor == null) {
+      alarmDAO.updateState(alarmId, state, msTimestamp);
+    } else {
+      alarmStates.put(alarmId, new AlarmStateUpdate(alarmId, state, msTimestamp));
+    }
+  }
+
+  public void updateSubAlarmState(final String subAlarmId, final AlarmState state) {
+    if (executor == null) {
+      alarmDAO.updateSubAlarmState(subAlarmId, state);
+    } else {
+      subAlarmStates.put(subAlarmId, state);
+    }
+  }
+
+  /**
+   * Number of states waiting to be written
+   */
+  public int queueDepth() {
+    return alarmStates.size() + subAlarmStates.size();
+  }
+
+  /**
+   * Writes all waiting states. Called by the flush thread, but can be called directly
+   */
+  public synchronized void flush() {
+    final List<AlarmStateUpdate> alarmUpdates = new ArrayList<>(alarmStates.size());
+    for (final String alarmId : alarmStates.keySet()) {
+      final AlarmStateUpdate update = alarmStates.remove(alarmId);
+      if (update != null) {
+        alarmUpdates.add(update);
+      }
+    }
+    final Map<String, AlarmState> subAlarmUpdates = new HashMap<>(subAlarmStates.size());
+    for (final String subAlarmId : subAlarmStates.keySet()) {
+      final AlarmState state = subAlarmStates.remove(subAlarmId);
+      if (state != null) {
+        subAlarmUpdates.put(subAlarmId, state);
+      }
+    }
+    if (alarmUpdates.isEmpty() && subAlarmUpdates.isEmpty()) {
+      return;
+    }
+
+    final long start = System.currentTimeMillis();
+    try {
+      if (!alarmUpdates.isEmpty()) {
+        alarmDAO.updateStates(alarmUpdates);
+      }
+      if (!subAlarmUpdates.isEmpty()) {
+        alarmDAO.updateSubAlarmStates(subAlarmUpdates);
+      }
+      flushedStates.addAndGet(alarmUpdates.size() + subAlarmUpdates.size());
+    } catch (RuntimeException e) {
+      logger.error("Failed to write {} Alarm and {} SubAlarm states, will retry",
+          alarmUpdates.size(), subAlarmUpdates.size(), e);
+      failedFlushes.incrementAndGet();
+      // Put the states back unless a newer one arrived in the meantime
+      for (final AlarmStateUpdate update : alarmUpdates) {
+        alarmStates.putIfAbsent(update.getAlarmId(), update);
+      }
+      for (final Map.Entry<String, AlarmState> entry : subAlarmUpdates.entrySet()) {
+        subAlarmStates.putIfAbsent(entry.getKey(), entry.getValue());
+      }
+    } finally {
+      final long latency = System.currentTimeMillis() - start;
+      flushes.incrementAndGet();
+      lastFlushLatencyMs.set(latency);
+      long max = maxFlushLatencyMs.get();
+      while (latency > max && !maxFlushLatencyMs.compareAndSet(max, latency)) {
+        max = maxFlushLatencyMs.get();
+      }
+    }
+  }
+
+  /**
+   * Stops the flush thread after writing any waiting states
+   */
+  public void close() {
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      flush();
+    }
+  }
+
+  /**
+   * Storm metric reporting the queue depth and the flushes since it was last read
+   */
+  public IMetric metric() {
+    return new IMetric() {
+      @Override
+      public Object getValueAndReset() {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("queue-depth", queueDepth());
+        values.put("flushes", flushes.getAndSet(0));
+        values.put("flushed-states", flushedStates.getAndSet(0));
+        values.put("failed-flushes", failedFlushes.getAndSet(0));
+        values.put("last-flush-latency-ms", lastFlushLatencyMs.get());
+        values.put("max-flush-latency-ms", maxFlushLatencyMs.getAndSet(0));
+        return values;
+      }
+    };
+  }
+}
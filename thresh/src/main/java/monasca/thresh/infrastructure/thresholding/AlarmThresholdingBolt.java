@@ -18,25 +18,30 @@
 package monasca.thresh.infrastructure.thresholding;
 
 import monasca.common.configuration.KafkaProducerConfiguration;
+import monasca.common.model.event.AlarmDefinitionDeletedEvent;
 import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
-import monasca.common.model.event.AlarmStateTransitionedEvent;
 import monasca.common.model.event.AlarmUpdatedEvent;
 import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.alarm.AlarmSubExpression;
-import monasca.common.model.metric.MetricDefinition;
 import monasca.common.util.Injector;
-import monasca.common.util.Serialization;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
-import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.infrastructure.persistence.JdbiConnectionPool;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
+import monasca.thresh.utils.FieldsGroupingTasks;
+import monasca.thresh.utils.LatencyHistograms;
 import monasca.thresh.utils.Logging;
+import monasca.thresh.utils.StateSizes;
 import monasca.thresh.utils.Streams;
+import monasca.thresh.utils.Tuples;
 
+import com.google.common.collect.Lists;
+
+import org.apache.storm.Config;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -46,9 +51,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Determines whether an alarm threshold has been exceeded.
@@ -57,9 +70,23 @@ import java.util.Map;
  * Receives alarm state changes and events.
  * <p/>
  * <ul>
- * <li>Input: String alarmId, SubAlarm subAlarm
+ * <li>Input: String alarmId, SubAlarm subAlarm, Long apiTimeStamp
  * <li>Input alarm-events: String eventType, String alarmId
  * </ul>
+ * <p/>
+ * When a SubAlarm state change with an apiTimeStamp transitions the Alarm, the time from the API
+ * receiving the Metric to the transition being sent is recorded in the metric-to-alarm-latency-us
+ * histogram by the function and period of the SubAlarm. The apiTimeStamp is the creation time of
+ * the MetricEnvelope in seconds, so the latency is only accurate to the second.
+ * <p/>
+ * On startup the Alarms routed to this task by the fields grouping on alarmId are preloaded in
+ * batches. SubAlarm state changes for Alarms that are not yet loaded are held until
+ * MISS_BATCH_SIZE of them are waiting, or until the next tick tuple, and then looked up together.
+ * The lookup runs with AsyncCalls, so if it is enabled the Bolt keeps evaluating loaded Alarms
+ * while the database is read.
+ * <p/>
+ * An AlarmDefinition is only kept while some of its Alarms are loaded, because its updates are
+ * only routed to the tasks that hold its Alarms.
  */
 public class AlarmThresholdingBolt extends BaseRichBolt {
   private static final long serialVersionUID = -4126465124017857754L;
@@ -69,10 +96,41 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
   private KafkaProducerConfiguration producerConfiguration;
   final Map<String, Alarm> alarms = new HashMap<>();
   final Map<String, AlarmDefinition> alarmDefinitions = new HashMap<>();
+  /** Ids of the loaded Alarms for each AlarmDefinition */
+  final Map<String, Set<String>> alarmIdsByDefinition = new HashMap<>();
   private transient AlarmDAO alarmDAO;
   private transient AlarmDefinitionDAO alarmDefinitionDAO;
   private transient AlarmEventForwarder alarmEventForwarder;
+  private transient AlarmStateWriter stateWriter;
+  private transient AlarmTransitionJsonWriter transitionJsonWriter;
   private OutputCollector collector;
+  final Map<String, List<Tuple>> pendingTuples = new LinkedHashMap<>();
+  /** Tuples for the Alarms being looked up */
+  final Map<String, List<Tuple>> loadingTuples = new HashMap<>();
+  /** AlarmDefinitions left without Alarms while Alarms were being looked up */
+  private final Set<String> unusedDefinitionIds = new HashSet<>();
+  /** AlarmDefinitions deleted while Alarms were being looked up */
+  private final Set<String> deletedDefinitionIds = new HashSet<>();
+  /** Number of lookups whose Callbacks have not run yet */
+  private int runningLoads;
+  private transient AsyncCalls asyncCalls;
+  private transient LatencyHistograms executeLatency;
+  private transient LatencyHistograms metricToAlarmLatency;
+  /** Number of Alarms with waiting tuples that triggers a lookup, MISS_BATCH_SIZE by default */
+  int missBatchSize = MISS_BATCH_SIZE;
+
+  public static final String PRELOAD_BATCH_SIZE_KEY = "monasca.thresh.thresholding.preloadBatchSize";
+  public static final int PRELOAD_BATCH_SIZE_DEFAULT = 1000;
+  private static final int PRELOAD_BATCH_SIZE = PropertyFinder.getIntProperty(
+      PRELOAD_BATCH_SIZE_KEY, PRELOAD_BATCH_SIZE_DEFAULT, 0, Integer.MAX_VALUE);
+
+  public static final String MISS_BATCH_SIZE_KEY = "monasca.thresh.thresholding.missBatchSize";
+  public static final int MISS_BATCH_SIZE_DEFAULT = 1;
+  private static final int MISS_BATCH_SIZE = PropertyFinder.getIntProperty(MISS_BATCH_SIZE_KEY,
+      MISS_BATCH_SIZE_DEFAULT, 1, Integer.MAX_VALUE);
+
+  public static final String TICK_TUPLE_SECONDS_KEY = "monasca.thresh.thresholding.tick.seconds";
+  private static final long CLOSE_TIMEOUT_MS = 10000;
 
   public AlarmThresholdingBolt(DataSourceFactory dbConfig, KafkaProducerConfiguration producerConfig) {
     this.dbConfig = dbConfig;
@@ -89,20 +147,47 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {}
 
+  /**
+   * Tick tuples are only needed to flush the waiting tuples when misses are batched and to run
+   * the Callbacks of lookups that completed while no tuples arrived
+   */
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    if (missBatchSize <= 1 && AsyncCalls.THREADS == 0) {
+      return null;
+    }
+    Map<String, Object> conf = new HashMap<String, Object>();
+    conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS,
+        Integer.valueOf(System.getProperty(TICK_TUPLE_SECONDS_KEY, "1")).intValue());
+    return conf;
+  }
+
   @Override
   public void execute(Tuple tuple) {
 
     logger.debug("tuple: {}", tuple);
+    final long start = System.nanoTime();
+    boolean pending = false;
     try {
-      if (Streams.DEFAULT_STREAM_ID.equals(tuple.getSourceStreamId())) {
+      asyncCalls.runCompleted();
+      if (Tuples.isTickTuple(tuple)) {
+        loadPendingAlarms();
+      } else if (Streams.DEFAULT_STREAM_ID.equals(tuple.getSourceStreamId())) {
         String alarmId = tuple.getString(0);
-        Alarm alarm = getOrCreateAlarm(alarmId);
+        Alarm alarm = alarms.get(alarmId);
         if (alarm == null) {
+          // Acked once the Alarm has been looked up
+          pending = true;
+          final List<Tuple> loading = loadingTuples.get(alarmId);
+          if (loading != null) {
+            loading.add(tuple);
+          } else {
+            addPendingTuple(alarmId, tuple);
+          }
           return;
         }
 
-        SubAlarm subAlarm = (SubAlarm) tuple.getValue(1);
-        evaluateThreshold(alarm, subAlarm);
+        evaluateThreshold(alarm, tuple);
       } else if (EventProcessingBolt.ALARM_EVENT_STREAM_ID.equals(tuple.getSourceStreamId())) {
         String eventType = tuple.getString(0);
         String alarmId = tuple.getString(1);
@@ -117,6 +202,9 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
         String eventType = tuple.getString(0);
         if (EventProcessingBolt.UPDATED.equals(eventType)) {
           handle((AlarmDefinitionUpdatedEvent) tuple.getValue(1));
+        } else if (EventProcessingBolt.DELETED.equals(eventType)) {
+          handleAlarmDefinitionDeleted(
+              ((AlarmDefinitionDeletedEvent) tuple.getValue(1)).alarmDefinitionId);
         }
       } else if (EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID.equals(tuple
           .getSourceStreamId())) {
@@ -128,25 +216,260 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     } catch (Exception e) {
       logger.error("Error processing tuple {}", tuple, e);
     } finally {
-      collector.ack(tuple);
+      if (!pending) {
+        collector.ack(tuple);
+      }
+      executeLatency.recordSince(tuple, start);
+    }
+  }
+
+  private void addPendingTuple(String alarmId, Tuple tuple) {
+    List<Tuple> tuples = pendingTuples.get(alarmId);
+    if (tuples == null) {
+      tuples = new ArrayList<>();
+      pendingTuples.put(alarmId, tuples);
+    }
+    tuples.add(tuple);
+    if (pendingTuples.size() >= missBatchSize) {
+      loadPendingAlarms();
+    }
+  }
+
+  /**
+   * Looks up all the Alarms that have SubAlarm state changes waiting and then processes the
+   * waiting tuples in the order they were received
+   */
+  private void loadPendingAlarms() {
+    if (pendingTuples.isEmpty()) {
+      return;
+    }
+    final List<String> alarmIds = new ArrayList<>(pendingTuples.keySet());
+    loadingTuples.putAll(pendingTuples);
+    pendingTuples.clear();
+    final Set<String> knownDefinitionIds = new HashSet<>(alarmDefinitions.keySet());
+    runningLoads++;
+    asyncCalls.submit(null, new Callable<LoadedAlarms>() {
+      @Override
+      public LoadedAlarms call() {
+        return readAlarms(alarmIds, knownDefinitionIds);
+      }
+    }, new AsyncCalls.Callback<LoadedAlarms>() {
+      @Override
+      public void completed(LoadedAlarms loaded) {
+        // Skip the Alarms deleted while they were read
+        final Iterator<Alarm> it = loaded.alarms.iterator();
+        while (it.hasNext()) {
+          if (!loadingTuples.containsKey(it.next().getId())) {
+            it.remove();
+          }
+        }
+        addLoadedAlarms(loaded);
+        processLoadedAlarms(alarmIds);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        logger.error("Error loading {} Alarms", alarmIds.size(), e);
+        processLoadedAlarms(alarmIds);
+      }
+    });
+  }
+
+  private void processLoadedAlarms(final List<String> alarmIds) {
+    runningLoads--;
+    for (final String alarmId : alarmIds) {
+      final List<Tuple> tuples = loadingTuples.remove(alarmId);
+      if (tuples == null) {
+        // Deleted while it was being looked up
+        continue;
+      }
+      final Alarm alarm = alarms.get(alarmId);
+      if (alarm == null) {
+        logger.error("Failed to locate alarm for id {}", alarmId);
+      }
+      for (final Tuple tuple : tuples) {
+        try {
+          if (alarm != null) {
+            evaluateThreshold(alarm, tuple);
+          }
+        } catch (Exception e) {
+          logger.error("Error processing tuple {}", tuple, e);
+        } finally {
+          collector.ack(tuple);
+        }
+      }
+    }
+    if (runningLoads == 0) {
+      deletedDefinitionIds.clear();
+      final List<String> unused = new ArrayList<>(unusedDefinitionIds);
+      unusedDefinitionIds.clear();
+      for (final String alarmDefinitionId : unused) {
+        removeDefinitionIfUnused(alarmDefinitionId);
+      }
+    }
+  }
+
+  /**
+   * Loads the Alarms routed to this task. Only the ids are read for every Alarm, the Alarms
+   * themselves are then read PRELOAD_BATCH_SIZE at a time
+   */
+  private void preloadAlarms(final FieldsGroupingTasks groupingTasks) {
+    final long start = System.currentTimeMillis();
+    final List<String> ownedIds = new ArrayList<>();
+    for (final String alarmId : alarmDAO.listAllIds()) {
+      if (groupingTasks.isOwned(alarmId)) {
+        ownedIds.add(alarmId);
+      }
+    }
+    for (final List<String> batch : Lists.partition(ownedIds, PRELOAD_BATCH_SIZE)) {
+      loadAlarms(batch);
+    }
+    logger.info("Preloaded {} of {} owned Alarms in {} ms", alarms.size(), ownedIds.size(),
+        System.currentTimeMillis() - start);
+  }
+
+  private void loadAlarms(final Collection<String> alarmIds) {
+    addLoadedAlarms(readAlarms(alarmIds, alarmDefinitions.keySet()));
+  }
+
+  /**
+   * Reads the Alarms and the Alarm Definitions that are not yet known. Does not change the state
+   * of the Bolt so it can run on another thread.
+   */
+  private LoadedAlarms readAlarms(final Collection<String> alarmIds,
+      final Set<String> knownDefinitionIds) {
+    final List<Alarm> found;
+    if (alarmIds.size() == 1) {
+      final Alarm alarm = alarmDAO.findById(alarmIds.iterator().next());
+      found = alarm == null ? Collections.<Alarm>emptyList() : Collections.singletonList(alarm);
+    } else {
+      found = alarmDAO.findByIds(alarmIds);
+    }
+    final LoadedAlarms loaded = new LoadedAlarms();
+    final Set<String> missingDefinitions = new HashSet<>();
+    for (final Alarm alarm : found) {
+      final String alarmDefinitionId = alarm.getAlarmDefinitionId();
+      if (missingDefinitions.contains(alarmDefinitionId)) {
+        continue;
+      }
+      if (!knownDefinitionIds.contains(alarmDefinitionId)
+          && !loaded.alarmDefinitions.containsKey(alarmDefinitionId)) {
+        final AlarmDefinition alarmDefinition = alarmDefinitionDAO.findById(alarmDefinitionId);
+        if (alarmDefinition == null) {
+          logger.error("Failed to locate alarm definition for id {}", alarmDefinitionId);
+          missingDefinitions.add(alarmDefinitionId);
+          continue;
+        }
+        loaded.alarmDefinitions.put(alarmDefinition.getId(), alarmDefinition);
+      }
+      loaded.alarms.add(alarm);
+    }
+    return loaded;
+  }
+
+  private void addLoadedAlarms(final LoadedAlarms loaded) {
+    for (final AlarmDefinition alarmDefinition : loaded.alarmDefinitions.values()) {
+      // Keep a definition that was updated while it was read, and drop one that was deleted
+      if (!alarmDefinitions.containsKey(alarmDefinition.getId())
+          && !deletedDefinitionIds.contains(alarmDefinition.getId())) {
+        alarmDefinitions.put(alarmDefinition.getId(), alarmDefinition);
+      }
+    }
+    for (final Alarm alarm : loaded.alarms) {
+      if (!alarmDefinitions.containsKey(alarm.getAlarmDefinitionId())) {
+        // The Alarm Definition was deleted while the Alarm was read
+        ackTuples(loadingTuples.remove(alarm.getId()));
+        continue;
+      }
+      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+        subAlarm.setNoState(true);
+      }
+      addAlarm(alarm);
+    }
+  }
+
+  private void addAlarm(final Alarm alarm) {
+    removeAlarm(alarm.getId());
+    alarms.put(alarm.getId(), alarm);
+    Set<String> alarmIds = alarmIdsByDefinition.get(alarm.getAlarmDefinitionId());
+    if (alarmIds == null) {
+      alarmIds = new HashSet<>();
+      alarmIdsByDefinition.put(alarm.getAlarmDefinitionId(), alarmIds);
+    }
+    alarmIds.add(alarm.getId());
+    transitionJsonWriter.invalidateAlarm(alarm.getId());
+  }
+
+  private Alarm removeAlarm(final String alarmId) {
+    final Alarm alarm = alarms.remove(alarmId);
+    if (alarm == null) {
+      return null;
+    }
+    final Set<String> alarmIds = alarmIdsByDefinition.get(alarm.getAlarmDefinitionId());
+    if (alarmIds != null) {
+      alarmIds.remove(alarmId);
+      if (alarmIds.isEmpty()) {
+        alarmIdsByDefinition.remove(alarm.getAlarmDefinitionId());
+      }
+    }
+    transitionJsonWriter.invalidateAlarm(alarmId);
+    return alarm;
+  }
+
+  /**
+   * Forgets the AlarmDefinition once none of its Alarms are loaded. AlarmDefinition updates are
+   * only routed to the tasks holding its Alarms, so a kept copy would go stale. While Alarms are
+   * being looked up it is kept until they have been added, because the lookup does not read the
+   * AlarmDefinitions that were known when it started.
+   */
+  private void removeDefinitionIfUnused(final String alarmDefinitionId) {
+    if (alarmIdsByDefinition.containsKey(alarmDefinitionId)) {
+      return;
     }
+    if (runningLoads > 0) {
+      unusedDefinitionIds.add(alarmDefinitionId);
+      return;
+    }
+    alarmDefinitions.remove(alarmDefinitionId);
+    transitionJsonWriter.invalidateAlarmDefinition(alarmDefinitionId);
   }
 
   private void handleAlarmSubExpressionUpdated(SubExpression value, String alarmDefinitionId) {
+    final Set<String> alarmIds = alarmIdsByDefinition.get(alarmDefinitionId);
+    if (alarmIds == null) {
+      logger.debug("Update of SubExpression {} skipped. No Alarms loaded for AlarmDefinition {}",
+          value.getId(), alarmDefinitionId);
+      return;
+    }
     int updated = 0;
-    for (final Alarm alarm : alarms.values()) {
-      if (alarm.getAlarmDefinitionId().equals(alarmDefinitionId)) {
-        for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
-          if (subAlarm.getAlarmSubExpressionId().equals(value.getId())) {
-            subAlarm.setExpression(value.getAlarmSubExpression());
-            updated++;
-          }
+    for (final String alarmId : alarmIds) {
+      for (final SubAlarm subAlarm : alarms.get(alarmId).getSubAlarms()) {
+        if (subAlarm.getAlarmSubExpressionId().equals(value.getId())) {
+          subAlarm.setExpression(value.getAlarmSubExpression());
+          updated++;
         }
       }
     }
     logger.debug("Updated {} SubAlarms", updated);
   }
 
+  void handleAlarmDefinitionDeleted(String alarmDefinitionId) {
+    logger.debug("Received AlarmDefinitionDeletedEvent for alarm definition id {}",
+        alarmDefinitionId);
+    final Set<String> alarmIds = alarmIdsByDefinition.get(alarmDefinitionId);
+    if (alarmIds != null) {
+      for (final String alarmId : new ArrayList<>(alarmIds)) {
+        removeAlarm(alarmId);
+      }
+    }
+    alarmDefinitions.remove(alarmDefinitionId);
+    transitionJsonWriter.invalidateAlarmDefinition(alarmDefinitionId);
+    if (runningLoads > 0) {
+      // A lookup may have read it before it was deleted
+      deletedDefinitionIds.add(alarmDefinitionId);
+    }
+  }
+
   private void handle(AlarmDefinitionUpdatedEvent event) {
     final AlarmDefinition alarmDefinition = alarmDefinitions.get(event.alarmDefinitionId);
     if (alarmDefinition == null) {
@@ -156,6 +479,7 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
       return;
     }
     logger.info("Updating AlarmDefinition {}", event.alarmDefinitionId);
+    transitionJsonWriter.invalidateAlarmDefinition(event.alarmDefinitionId);
     alarmDefinition.setName(event.alarmName);
     alarmDefinition.setDescription(event.alarmDescription);
     alarmDefinition.setSeverity(event.severity);
@@ -179,6 +503,9 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     if (alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
+      if (!dbConfig.isHibernateSupport()) {
+        Injector.getInstance(JdbiConnectionPool.class).registerMetric(context);
+      }
     }
 
     if (alarmDefinitionDAO == null) {
@@ -190,9 +517,67 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
           this.producerConfiguration));
       alarmEventForwarder = Injector.getInstance(AlarmEventForwarder.class);
     }
+    final LatencyHistograms dbLatency = new LatencyHistograms();
+    alarmDAO = dbLatency.timed(AlarmDAO.class, alarmDAO);
+    alarmDefinitionDAO = dbLatency.timed(AlarmDefinitionDAO.class, alarmDefinitionDAO);
+    context.registerMetric(LatencyHistograms.DB_LATENCY, dbLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    // With the BatchingKafkaAlarmEventForwarder this is the time to queue the event
+    final LatencyHistograms sendLatency = new LatencyHistograms();
+    alarmEventForwarder = sendLatency.timed(AlarmEventForwarder.class, alarmEventForwarder);
+    context.registerMetric(LatencyHistograms.KAFKA_SEND_LATENCY, sendLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    executeLatency = new LatencyHistograms();
+    context.registerMetric(LatencyHistograms.EXECUTE_LATENCY, executeLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    // An Alarm is in alarms and in the Set of its AlarmDefinition in alarmIdsByDefinition, and an
+    // AlarmDefinition is in alarmDefinitions and alarmIdsByDefinition with its Set
+    final StateSizes stateSizes = new StateSizes()
+        .add("alarms", StateSizes.ALARM_BYTES + 2 * StateSizes.HASH_MAP_ENTRY_BYTES, alarms)
+        .add("alarm-definitions", StateSizes.ALARM_DEFINITION_BYTES + 2
+            * StateSizes.HASH_MAP_ENTRY_BYTES + StateSizes.HASH_SET_BYTES, alarmDefinitions);
+    context.registerMetric(StateSizes.STATE_SIZE, stateSizes,
+        StateSizes.METRICS_TIME_BUCKET_SECONDS);
+    metricToAlarmLatency = new LatencyHistograms();
+    context.registerMetric(LatencyHistograms.METRIC_TO_ALARM_LATENCY, metricToAlarmLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+
+    stateWriter = createStateWriter(alarmDAO, Logging.categoryFor(getClass(), context));
+    asyncCalls =
+        new AsyncCalls(Logging.categoryFor(getClass(), context), AsyncCalls.THREADS,
+            AsyncCalls.MAX_PENDING, collector, null);
+    transitionJsonWriter = new AlarmTransitionJsonWriter();
+    context.registerMetric("state-writer", stateWriter.metric(),
+        AlarmStateWriter.METRICS_TIME_BUCKET_SECONDS);
+
+    if (PRELOAD_BATCH_SIZE > 0) {
+      try {
+        preloadAlarms(FieldsGroupingTasks.forThisTask(context));
+      } catch (Exception e) {
+        logger.error("Preloading Alarms failed, they will be loaded as they are seen", e);
+      }
+    }
   }
 
-  private void evaluateThreshold(Alarm alarm, SubAlarm subAlarm) {
+  protected AlarmStateWriter createStateWriter(AlarmDAO alarmDAO, String name) {
+    return new AlarmStateWriter(alarmDAO, AlarmStateWriter.FLUSH_INTERVAL_MS, name);
+  }
+
+  @Override
+  public void cleanup() {
+    if (asyncCalls != null) {
+      asyncCalls.close(CLOSE_TIMEOUT_MS);
+    }
+    if (stateWriter != null) {
+      stateWriter.close();
+    }
+    if (alarmEventForwarder != null) {
+      alarmEventForwarder.close();
+    }
+  }
+
+  private void evaluateThreshold(Alarm alarm, Tuple tuple) {
+    final SubAlarm subAlarm = (SubAlarm) tuple.getValue(1);
     logger.debug("Received state change for {}", subAlarm);
     subAlarm.setNoState(false);
     alarm.updateSubAlarm(subAlarm);
@@ -200,8 +585,9 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     AlarmState initialState = alarm.getState();
     // Wait for all sub alarms to have a state before evaluating to prevent flapping on startup
     if (allSubAlarmsHaveState(alarm)
-        && alarm.evaluate(alarmDefinitions.get(alarm.getAlarmDefinitionId()).getAlarmExpression())) {
-      changeAlarmState(alarm, initialState, alarm.getStateChangeReason());
+        && alarm.evaluate(alarmDefinitions.get(alarm.getAlarmDefinitionId()))) {
+      changeAlarmState(alarm, initialState, alarm.getStateChangeReason(), subAlarm,
+          (Long) tuple.getValue(2));
     }
   }
 
@@ -214,7 +600,8 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
     return true;
   }
 
-  private void changeAlarmState(Alarm alarm, AlarmState initialState, String stateChangeReason) {
+  private void changeAlarmState(Alarm alarm, AlarmState initialState, String stateChangeReason,
+      SubAlarm subAlarm, Long apiTimeStamp) {
     final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarm.getAlarmDefinitionId());
     // If the Alarm Definition id does not exist, ignore updating this alarm
     if (alarmDefinition == null) {
@@ -225,33 +612,50 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
       return;
     }
     long timestamp = getTimestamp();
-    alarmDAO.updateState(alarm.getId(), alarm.getState(), timestamp);
-    final List<MetricDefinition> alarmedMetrics = new ArrayList<>(alarm.getAlarmedMetrics().size());
-    for (final MetricDefinitionAndTenantId mdtid : alarm.getAlarmedMetrics()) {
-      alarmedMetrics.add(mdtid.metricDefinition);
-    }
+    stateWriter.updateState(alarm.getId(), alarm.getState(), timestamp);
     logger.debug("Alarm {} transitioned from {} to {}", alarm, initialState, alarm.getState());
-    AlarmStateTransitionedEvent event =
-        new AlarmStateTransitionedEvent(alarmDefinition.getTenantId(), alarm.getId(),
-            alarmDefinition.getId(), alarmedMetrics, alarmDefinition.getName(),
-            alarmDefinition.getDescription(), initialState, alarm.getState(),
-            alarmDefinition.getSeverity(), alarm.getLink(), alarm.getLifecycleState(),
-            alarmDefinition.isActionsEnabled(), stateChangeReason,
-            alarm.getTransitionSubAlarms(), timestamp);
     try {
-      alarmEventForwarder.send(Serialization.toJson(event));
+      alarmEventForwarder.send(alarm.getId(), transitionJsonWriter.toJson(alarm, alarmDefinition,
+          initialState, stateChangeReason, timestamp));
+      if (apiTimeStamp != null) {
+        final AlarmSubExpression expression = subAlarm.getExpression();
+        metricToAlarmLatency.record(
+            expression.getFunction().name().toLowerCase() + "-" + expression.getPeriod(),
+            TimeUnit.MILLISECONDS.toNanos(timestamp - TimeUnit.SECONDS.toMillis(apiTimeStamp)));
+      }
     } catch (Exception ignore) {
       logger.error("Failure sending alarm", ignore);
     }
   }
 
+  /**
+   * Alarms and Alarm Definitions read from the database
+   */
+  private static class LoadedAlarms {
+    private final List<Alarm> alarms = new ArrayList<>();
+    private final Map<String, AlarmDefinition> alarmDefinitions = new HashMap<>();
+  }
+
   protected long getTimestamp() {
     return System.currentTimeMillis();
   }
 
   void handleAlarmDeleted(String alarmId) {
     logger.debug("Received AlarmDeletedEvent for alarm id {}", alarmId);
-    alarms.remove(alarmId);
+    final Alarm alarm = removeAlarm(alarmId);
+    ackTuples(loadingTuples.remove(alarmId));
+    ackTuples(pendingTuples.remove(alarmId));
+    if (alarm != null) {
+      removeDefinitionIfUnused(alarm.getAlarmDefinitionId());
+    }
+  }
+
+  private void ackTuples(final List<Tuple> tuples) {
+    if (tuples != null) {
+      for (final Tuple tuple : tuples) {
+        collector.ack(tuple);
+      }
+    }
   }
 
   void handleAlarmUpdated(String alarmId, AlarmUpdatedEvent alarmUpdatedEvent) {
@@ -261,35 +665,10 @@ public class AlarmThresholdingBolt extends BaseRichBolt {
       return;
     }
 
+    transitionJsonWriter.invalidateAlarm(alarmId);
     oldAlarm.setState(alarmUpdatedEvent.alarmState);
     oldAlarm.setLink(alarmUpdatedEvent.link);
     oldAlarm.setLifecycleState(alarmUpdatedEvent.lifecycleState);
 
   }
-
-  private Alarm getOrCreateAlarm(String alarmId) {
-    Alarm alarm = alarms.get(alarmId);
-    if (alarm == null) {
-      alarm = alarmDAO.findById(alarmId);
-      if (alarm == null) {
-        logger.error("Failed to locate alarm for id {}", alarmId);
-        return null;
-      } else {
-        if (alarmDefinitions.get(alarm.getAlarmDefinitionId()) == null) {
-          final AlarmDefinition alarmDefinition = alarmDefinitionDAO.findById(alarm.getAlarmDefinitionId());
-          if (alarmDefinition == null) {
-            logger.error("Failed to locate alarm definition for id {}", alarm.getAlarmDefinitionId());
-            return null;
-          }
-          alarmDefinitions.put(alarmDefinition.getId(), alarmDefinition);
-        }
-        for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
-          subAlarm.setNoState(true);
-        }
-        alarms.put(alarmId, alarm);
-      }
-    }
-
-    return alarm;
-  }
 }
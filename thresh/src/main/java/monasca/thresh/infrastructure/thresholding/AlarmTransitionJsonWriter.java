@@ -0,0 +1,221 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmTransitionSubAlarm;
+import monasca.common.util.Serialization;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the JSON of an AlarmStateTransitionedEvent without building the event. The output is the
+ * same as Serialization.toJson() of the event.
+ * <p/>
+ * The alarmed metrics of each Alarm and the strings from each AlarmDefinition are serialized once
+ * and reused, so invalidateAlarm() and invalidateAlarmDefinition() must be called when those
+ * change. Not thread safe, each Bolt uses its own instance.
+ */
+public class AlarmTransitionJsonWriter {
+  private static final SerializedString ROOT = new SerializedString("alarm-transitioned");
+  private static final SerializedString TENANT_ID = new SerializedString("tenantId");
+  private static final SerializedString ALARM_ID = new SerializedString("alarmId");
+  private static final SerializedString ALARM_DEFINITION_ID =
+      new SerializedString("alarmDefinitionId");
+  private static final SerializedString METRICS = new SerializedString("metrics");
+  private static final SerializedString ALARM_NAME = new SerializedString("alarmName");
+  private static final SerializedString ALARM_DESCRIPTION =
+      new SerializedString("alarmDescription");
+  private static final SerializedString OLD_STATE = new SerializedString("oldState");
+  private static final SerializedString NEW_STATE = new SerializedString("newState");
+  private static final SerializedString ACTIONS_ENABLED = new SerializedString("actionsEnabled");
+  private static final SerializedString STATE_CHANGE_REASON =
+      new SerializedString("stateChangeReason");
+  private static final SerializedString SEVERITY = new SerializedString("severity");
+  private static final SerializedString LINK = new SerializedString("link");
+  private static final SerializedString LIFECYCLE_STATE = new SerializedString("lifecycleState");
+  private static final SerializedString SUB_ALARMS = new SerializedString("subAlarms");
+  private static final SerializedString TIMESTAMP = new SerializedString("timestamp");
+
+  private final JsonFactory jsonFactory = new JsonFactory();
+  private final StringWriter buffer = new StringWriter(4096);
+  private final Map<String, String> metricsByAlarmId = new HashMap<>();
+  private final Map<String, DefinitionFragments> definitionsById = new HashMap<>();
+
+  public String toJson(final Alarm alarm, final AlarmDefinition alarmDefinition,
+      final AlarmState oldState, final String stateChangeReason, final long timestamp) {
+    final DefinitionFragments definition = getDefinitionFragments(alarmDefinition);
+    buffer.getBuffer().setLength(0);
+    try {
+      final JsonGenerator generator = jsonFactory.createGenerator(buffer);
+      generator.writeStartObject();
+      generator.writeFieldName(ROOT);
+      generator.writeStartObject();
+      generator.writeFieldName(TENANT_ID);
+      writeString(generator, definition.tenantId);
+      generator.writeFieldName(ALARM_ID);
+      writeString(generator, alarm.getId());
+      generator.writeFieldName(ALARM_DEFINITION_ID);
+      writeString(generator, definition.id);
+      generator.writeFieldName(METRICS);
+      generator.writeRawValue(getMetricsJson(alarm));
+      generator.writeFieldName(ALARM_NAME);
+      writeString(generator, definition.name);
+      generator.writeFieldName(ALARM_DESCRIPTION);
+      writeString(generator, definition.description);
+      generator.writeFieldName(OLD_STATE);
+      writeString(generator, oldState == null ? null : oldState.name());
+      generator.writeFieldName(NEW_STATE);
+      writeString(generator, alarm.getState() == null ? null : alarm.getState().name());
+      generator.writeFieldName(ACTIONS_ENABLED);
+      generator.writeBoolean(definition.actionsEnabled);
+      generator.writeFieldName(STATE_CHANGE_REASON);
+      writeString(generator, stateChangeReason);
+      generator.writeFieldName(SEVERITY);
+      writeString(generator, definition.severity);
+      generator.writeFieldName(LINK);
+      writeString(generator, alarm.getLink());
+      generator.writeFieldName(LIFECYCLE_STATE);
+      writeString(generator, alarm.getLifecycleState());
+      generator.writeFieldName(SUB_ALARMS);
+      writeSubAlarms(generator, alarm.getTransitionSubAlarms());
+      generator.writeFieldName(TIMESTAMP);
+      generator.writeNumber(timestamp);
+      generator.writeEndObject();
+      generator.writeEndObject();
+      generator.close();
+    } catch (IOException e) {
+      // Can't happen when writing to a StringWriter
+      throw new IllegalStateException(e);
+    }
+    return buffer.toString();
+  }
+
+  /**
+   * Must be called when an Alarm's alarmed metrics change or it is deleted
+   */
+  public void invalidateAlarm(final String alarmId) {
+    metricsByAlarmId.remove(alarmId);
+  }
+
+  /**
+   * Must be called when an AlarmDefinition is updated or deleted
+   */
+  public void invalidateAlarmDefinition(final String alarmDefinitionId) {
+    definitionsById.remove(alarmDefinitionId);
+  }
+
+  private String getMetricsJson(final Alarm alarm) {
+    String metricsJson = metricsByAlarmId.get(alarm.getId());
+    if (metricsJson == null) {
+      final StringBuilder builder = new StringBuilder().append('[');
+      for (final MetricDefinitionAndTenantId mdtid : alarm.getAlarmedMetrics()) {
+        if (builder.length() > 1) {
+          builder.append(',');
+        }
+        builder.append(unwrapRoot(Serialization.toJson(mdtid.metricDefinition)));
+      }
+      metricsJson = builder.append(']').toString();
+      metricsByAlarmId.put(alarm.getId(), metricsJson);
+    }
+    return metricsJson;
+  }
+
+  private DefinitionFragments getDefinitionFragments(final AlarmDefinition alarmDefinition) {
+    DefinitionFragments fragments = definitionsById.get(alarmDefinition.getId());
+    if (fragments == null) {
+      fragments = new DefinitionFragments(alarmDefinition);
+      definitionsById.put(alarmDefinition.getId(), fragments);
+    }
+    return fragments;
+  }
+
+  private static void writeSubAlarms(final JsonGenerator generator,
+      final List<AlarmTransitionSubAlarm> subAlarms) throws IOException {
+    if (subAlarms == null) {
+      generator.writeNull();
+      return;
+    }
+    generator.writeStartArray();
+    for (final AlarmTransitionSubAlarm subAlarm : subAlarms) {
+      generator.writeRawValue(unwrapRoot(Serialization.toJson(subAlarm)));
+    }
+    generator.writeEndArray();
+  }
+
+  private static void writeString(final JsonGenerator generator, final SerializableString value)
+      throws IOException {
+    if (value == null) {
+      generator.writeNull();
+    } else {
+      generator.writeString(value);
+    }
+  }
+
+  private static void writeString(final JsonGenerator generator, final String value)
+      throws IOException {
+    if (value == null) {
+      generator.writeNull();
+    } else {
+      generator.writeString(value);
+    }
+  }
+
+  /**
+   * Serialization wraps a value in an object named for its type, {"MetricDefinition":{...}}.
+   * Returns just the value.
+   */
+  static String unwrapRoot(final String json) {
+    final int start = json.indexOf("\":") + 2;
+    return json.substring(start, json.length() - 1);
+  }
+
+  private static SerializedString serialized(final String value) {
+    return value == null ? null : new SerializedString(value);
+  }
+
+  private static class DefinitionFragments {
+    final SerializedString id;
+    final SerializedString tenantId;
+    final SerializedString name;
+    final SerializedString description;
+    final SerializedString severity;
+    final boolean actionsEnabled;
+
+    DefinitionFragments(final AlarmDefinition alarmDefinition) {
+      this.id = serialized(alarmDefinition.getId());
+      this.tenantId = serialized(alarmDefinition.getTenantId());
+      this.name = serialized(alarmDefinition.getName());
+      this.description = serialized(alarmDefinition.getDescription());
+      this.severity = serialized(alarmDefinition.getSeverity());
+      this.actionsEnabled = alarmDefinition.isActionsEnabled();
+    }
+  }
+}
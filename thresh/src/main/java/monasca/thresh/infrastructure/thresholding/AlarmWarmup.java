@@ -0,0 +1,196 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads all of the existing Alarms when a worker starts. The alarm table is split into ranges of
+ * Alarm ids that are read in parallel by a pool of threads. The Alarms are handed to the calling
+ * thread through a bounded queue as they are read, so the caller can index and emit them while the
+ * rest are still loading. Alarm ids are UUIDs, so ranges on their first two hex digits split the
+ * table evenly.
+ * <p/>
+ * Progress is logged every PROGRESS_INTERVAL_MS.
+ */
+public class AlarmWarmup {
+  /**
+   * Each thread holds two database Handles while it reads its partition, one streaming the Alarms
+   * and one reading their AlarmedMetrics, so THREADS x 2 connections must fit in the maxSize of
+   * the database pool, 10 by default, along with the connections of the other Bolts in the worker.
+   * Otherwise the threads wait on the pool until they time out.
+   */
+  public static final String THREADS_KEY = "monasca.thresh.filtering.warmup.threads";
+  public static final int THREADS_DEFAULT = 4;
+  public static final int THREADS = PropertyFinder.getIntProperty(THREADS_KEY, THREADS_DEFAULT,
+      1, 64);
+  public static final String PARTITIONS_KEY = "monasca.thresh.filtering.warmup.partitions";
+  public static final int PARTITIONS_DEFAULT = 16;
+  public static final int PARTITIONS = PropertyFinder.getIntProperty(PARTITIONS_KEY,
+      PARTITIONS_DEFAULT, 1, 256);
+
+  static final int QUEUE_SIZE = 10000;
+  static final long PROGRESS_INTERVAL_MS = 10000;
+  private static final long POLL_MS = 100;
+
+  private final AlarmDAO alarmDAO;
+  private final int threads;
+  private final int partitions;
+  private final Logger logger;
+
+  private final AtomicLong loaded = new AtomicLong();
+  private final AtomicInteger completedPartitions = new AtomicInteger();
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+  public AlarmWarmup(AlarmDAO alarmDAO, int threads, int partitions, Logger logger) {
+    this.alarmDAO = alarmDAO;
+    this.threads = threads;
+    this.partitions = partitions;
+    this.logger = logger;
+  }
+
+  /**
+   * Reads all of the Alarms and passes them to the {@code consumer} on the calling thread.
+   */
+  public void run(final AlarmDAO.AlarmCallback consumer) throws InterruptedException {
+    final long start = System.currentTimeMillis();
+    final List<String> bounds = partitionBounds(partitions);
+    final BlockingQueue<Alarm> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    final ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(threads, partitions), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          @Override
+          public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "alarm-warmup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try {
+      for (int i = 0; i < partitions; i++) {
+        executor.execute(new PartitionLoader(bounds.get(i), bounds.get(i + 1), queue));
+      }
+      executor.shutdown();
+
+      long consumed = 0;
+      long lastProgress = start;
+      while (true) {
+        final Alarm alarm = queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+        if (alarm != null) {
+          consumer.onAlarm(alarm);
+          consumed++;
+        } else if (failure.get() != null) {
+          throw failure.get();
+        } else if (completedPartitions.get() == partitions && queue.isEmpty()) {
+          break;
+        }
+        final long now = System.currentTimeMillis();
+        if ((now - lastProgress) >= PROGRESS_INTERVAL_MS) {
+          logger.info("Loading Alarms: {} loaded, {} processed, {} of {} partitions done",
+              loaded.get(), consumed, completedPartitions.get(), partitions);
+          lastProgress = now;
+        }
+      }
+      logger.info("Loaded {} Alarms from {} partitions in {} ms", consumed, partitions,
+          System.currentTimeMillis() - start);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public long loaded() {
+    return loaded.get();
+  }
+
+  public int completedPartitions() {
+    return completedPartitions.get();
+  }
+
+  /**
+   * Returns partitions + 1 bounds where partition i is the ids from bounds[i] inclusive to
+   * bounds[i + 1] exclusive. The first and last bounds are null so every id is in exactly one
+   * partition.
+   */
+  public static List<String> partitionBounds(int partitions) {
+    final List<String> bounds = new ArrayList<>(partitions + 1);
+    bounds.add(null);
+    for (int i = 1; i < partitions; i++) {
+      bounds.add(String.format("%02x", i * 256 / partitions));
+    }
+    bounds.add(null);
+    return bounds;
+  }
+
+  /**
+   * Returns true if {@code fromId <= id < toId}. A null bound is unbounded.
+   */
+  static boolean inRange(String id, String fromId, String toId) {
+    return (fromId == null || id.compareTo(fromId) >= 0)
+        && (toId == null || id.compareTo(toId) < 0);
+  }
+
+  private class PartitionLoader implements Runnable {
+    private final String fromId;
+    private final String toId;
+    private final BlockingQueue<Alarm> queue;
+
+    PartitionLoader(String fromId, String toId, BlockingQueue<Alarm> queue) {
+      this.fromId = fromId;
+      this.toId = toId;
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      try {
+        alarmDAO.listAll(fromId, toId, new AlarmDAO.AlarmCallback() {
+          @Override
+          public void onAlarm(Alarm alarm) {
+            try {
+              queue.put(alarm);
+              loaded.incrementAndGet();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+              throw new IllegalStateException("Interrupted while loading Alarms", e);
+            }
+          }
+        });
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, e);
+      } finally {
+        completedPartitions.incrementAndGet();
+      }
+    }
+  }
+}
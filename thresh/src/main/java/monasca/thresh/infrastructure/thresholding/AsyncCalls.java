@@ -0,0 +1,331 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs blocking database calls for a Bolt on a bounded pool of THREADS_KEY threads so one slow
+ * query does not stall every tuple queued behind it.
+ * <p/>
+ * Calls with the same key run one at a time in the order they were submitted. A call's Callback
+ * runs on the Bolt's executor thread, in the same order, the next time the Bolt calls
+ * runCompleted(), so the Callbacks can use the Bolt's state without locking. Storm only calls
+ * execute when there is a tuple, so a Bolt using this should also get tick tuples.
+ * <p/>
+ * A Bolt that has to process the tuples for a key in order can defer a tuple while calls for its
+ * key are running. Deferred tuples are handed back to the TupleHandler once the calls complete,
+ * and tuples passed to ack() are acked then.
+ * <p/>
+ * At most MAX_PENDING_KEY calls are queued or running, submit() blocks until one finishes after
+ * that. With THREADS_KEY of 0, the default, each call and its Callback run immediately on the
+ * calling thread.
+ */
+public class AsyncCalls {
+  private static final Logger logger = LoggerFactory.getLogger(AsyncCalls.class);
+
+  public static final String THREADS_KEY = "monasca.thresh.async.threads";
+  public static final int THREADS_DEFAULT = 0;
+  public static final int THREADS = PropertyFinder.getIntProperty(THREADS_KEY, THREADS_DEFAULT, 0,
+      Integer.MAX_VALUE);
+
+  public static final String MAX_PENDING_KEY = "monasca.thresh.async.maxPending";
+  public static final int MAX_PENDING_DEFAULT = 1000;
+  public static final int MAX_PENDING = PropertyFinder.getIntProperty(MAX_PENDING_KEY,
+      MAX_PENDING_DEFAULT, 1, Integer.MAX_VALUE);
+
+  public interface Callback<T> {
+    void completed(T result);
+
+    void failed(Exception e);
+  }
+
+  /**
+   * Handles a tuple that was deferred. It must call ack() for the tuple when done.
+   */
+  public interface TupleHandler {
+    void handle(Tuple tuple);
+  }
+
+  private final String name;
+  private final OutputCollector collector;
+  private final TupleHandler handler;
+  private final ExecutorService executor;
+  private final Semaphore permits;
+  private final Queue<Call<?>> completed = new ConcurrentLinkedQueue<>();
+  /** Calls waiting for an earlier call with the same key to finish. Used by the pool threads */
+  private final Map<String, Queue<Call<?>>> waitingCalls = new HashMap<>();
+  private final AtomicInteger running = new AtomicInteger();
+
+  // Only used on the Bolt's executor thread
+  /** Number of calls for each key whose Callback has not run yet */
+  private final Map<String, Integer> busyKeys = new HashMap<>();
+  private final Map<String, Queue<Tuple>> deferredTuples = new HashMap<>();
+  private final Map<String, List<Tuple>> unackedTuples = new HashMap<>();
+
+  /**
+   * @param handler handles deferred tuples, may be null if defer() is not used
+   */
+  public AsyncCalls(final String name, final int threads, final int maxPending,
+      final OutputCollector collector, final TupleHandler handler) {
+    this.name = name;
+    this.collector = collector;
+    this.handler = handler;
+    if (threads > 0) {
+      executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+          final Thread thread = new Thread(runnable, name + "-async-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      permits = new Semaphore(maxPending);
+    } else {
+      executor = null;
+      permits = null;
+    }
+  }
+
+  public boolean isAsync() {
+    return executor != null;
+  }
+
+  /**
+   * Returns true if there are calls for the key whose Callbacks have not run yet
+   */
+  public boolean isBusy(final String key) {
+    return key != null && busyKeys.containsKey(key);
+  }
+
+  /**
+   * Runs the call on the pool
+   *
+   * @param key calls with the same key run in order, may be null if the call does not need to be
+   *        ordered with any other
+   */
+  public <T> void submit(final String key, final Callable<T> callable, final Callback<T> callback) {
+    final Call<T> call = new Call<>(key, callable, callback);
+    if (executor == null) {
+      call.run();
+      call.complete();
+      return;
+    }
+    permits.acquireUninterruptibly();
+    running.incrementAndGet();
+    if (key != null) {
+      final Integer busy = busyKeys.get(key);
+      busyKeys.put(key, busy == null ? 1 : busy + 1);
+      synchronized (waitingCalls) {
+        final Queue<Call<?>> waiting = waitingCalls.get(key);
+        if (waiting != null) {
+          waiting.add(call);
+          return;
+        }
+        waitingCalls.put(key, new LinkedList<Call<?>>());
+      }
+    }
+    executor.execute(call);
+  }
+
+  /**
+   * Defers the tuple if calls for its key are running or earlier tuples for the key are deferred.
+   * Returns false if the tuple can be processed now.
+   */
+  public boolean defer(final String key, final Tuple tuple) {
+    if (key == null || (!busyKeys.containsKey(key) && !deferredTuples.containsKey(key))) {
+      return false;
+    }
+    Queue<Tuple> deferred = deferredTuples.get(key);
+    if (deferred == null) {
+      deferred = new LinkedList<>();
+      deferredTuples.put(key, deferred);
+    }
+    deferred.add(tuple);
+    return true;
+  }
+
+  /**
+   * Acks the tuple once the calls for its key have completed
+   */
+  public void ack(final String key, final Tuple tuple) {
+    if (!isBusy(key)) {
+      collector.ack(tuple);
+      return;
+    }
+    List<Tuple> unacked = unackedTuples.get(key);
+    if (unacked == null) {
+      unacked = new ArrayList<>();
+      unackedTuples.put(key, unacked);
+    }
+    unacked.add(tuple);
+  }
+
+  /**
+   * Runs the Callbacks of the calls that have finished. Must be called from the Bolt's executor
+   * thread. Returns the number of Callbacks run.
+   */
+  public int runCompleted() {
+    int count = 0;
+    Call<?> call;
+    while ((call = completed.poll()) != null) {
+      count++;
+      call.complete();
+      running.decrementAndGet();
+      if (call.key != null) {
+        keyCompleted(call.key);
+      }
+    }
+    return count;
+  }
+
+  private void keyCompleted(final String key) {
+    final int busy = busyKeys.get(key) - 1;
+    if (busy > 0) {
+      busyKeys.put(key, busy);
+      return;
+    }
+    busyKeys.remove(key);
+    final List<Tuple> unacked = unackedTuples.remove(key);
+    if (unacked != null) {
+      for (final Tuple tuple : unacked) {
+        collector.ack(tuple);
+      }
+    }
+    final Queue<Tuple> deferred = deferredTuples.get(key);
+    while (deferred != null && !deferred.isEmpty() && !busyKeys.containsKey(key)) {
+      handler.handle(deferred.poll());
+    }
+    if (deferred != null && deferred.isEmpty()) {
+      deferredTuples.remove(key);
+    }
+  }
+
+  /**
+   * Number of calls whose Callback has not run yet
+   */
+  public int pending() {
+    return running.get();
+  }
+
+  /**
+   * Waits up to timeoutMs for the running calls to finish and runs their Callbacks, then stops
+   * the pool
+   */
+  public void close(final long timeoutMs) {
+    if (executor == null) {
+      return;
+    }
+    final long end = System.currentTimeMillis() + timeoutMs;
+    while (running.get() > 0 && System.currentTimeMillis() < end) {
+      if (runCompleted() == 0) {
+        try {
+          Thread.sleep(1);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    if (running.get() > 0) {
+      logger.warn("{}: {} calls did not finish before closing", name, running.get());
+    }
+    executor.shutdownNow();
+  }
+
+  private void finished(final Call<?> call) {
+    completed.add(call);
+    permits.release();
+    if (call.key == null) {
+      return;
+    }
+    final Call<?> next;
+    synchronized (waitingCalls) {
+      final Queue<Call<?>> waiting = waitingCalls.get(call.key);
+      next = waiting.poll();
+      if (next == null) {
+        waitingCalls.remove(call.key);
+      }
+    }
+    if (next != null) {
+      executor.execute(next);
+    }
+  }
+
+  private class Call<T> implements Runnable {
+    final String key;
+    private final Callable<T> callable;
+    private final Callback<T> callback;
+    private T result;
+    private Exception exception;
+
+    Call(String key, Callable<T> callable, Callback<T> callback) {
+      this.key = key;
+      this.callable = callable;
+      this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+      try {
+        result = callable.call();
+      } catch (Exception e) {
+        exception = e;
+      } catch (Throwable t) {
+        // Anything else would leave the later calls for the key waiting forever
+        exception = new RuntimeException(t);
+      } finally {
+        if (executor != null) {
+          finished(this);
+        }
+      }
+    }
+
+    void complete() {
+      try {
+        if (exception == null) {
+          callback.completed(result);
+        } else {
+          callback.failed(exception);
+        }
+      } catch (RuntimeException e) {
+        logger.error("{}: Callback for {} failed", name, key, e);
+      }
+    }
+  }
+}
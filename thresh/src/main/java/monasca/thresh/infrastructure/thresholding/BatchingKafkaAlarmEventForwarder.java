@@ -0,0 +1,139 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.common.configuration.KafkaProducerConfiguration;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends alarm events with the asynchronous Kafka producer. Events are keyed by alarm id, batched
+ * for up to LINGER_MS_KEY milliseconds or BATCH_SIZE_KEY bytes per partition and compressed.
+ * <p/>
+ * send() only blocks when the producer's buffer is full. Only MAX_IN_FLIGHT_KEY requests per
+ * broker are outstanding; the default of 1 keeps the events for an alarm in order if a request
+ * has to be retried.
+ */
+public class BatchingKafkaAlarmEventForwarder implements AlarmEventForwarder {
+
+  private static final Logger logger =
+      LoggerFactory.getLogger(BatchingKafkaAlarmEventForwarder.class);
+
+  public static final String LINGER_MS_KEY = "monasca.thresh.alarmForwarder.lingerMs";
+  public static final int LINGER_MS_DEFAULT = 5;
+  public static final String BATCH_SIZE_KEY = "monasca.thresh.alarmForwarder.batchSize";
+  public static final int BATCH_SIZE_DEFAULT = 64 * 1024;
+  public static final String BUFFER_MEMORY_KEY = "monasca.thresh.alarmForwarder.bufferMemory";
+  public static final int BUFFER_MEMORY_DEFAULT = 32 * 1024 * 1024;
+  public static final String MAX_IN_FLIGHT_KEY = "monasca.thresh.alarmForwarder.maxInFlight";
+  public static final int MAX_IN_FLIGHT_DEFAULT = 1;
+  public static final String COMPRESSION_TYPE_KEY = "monasca.thresh.alarmForwarder.compressionType";
+  public static final String COMPRESSION_TYPE_DEFAULT = "snappy";
+
+  private final Producer<String, String> producer;
+  private final String topic;
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+
+  private final Callback deliveryCallback = new Callback() {
+    @Override
+    public void onCompletion(RecordMetadata metadata, Exception exception) {
+      if (exception == null) {
+        sent.incrementAndGet();
+      } else {
+        failed.incrementAndGet();
+        logger.error("Failed to send alarm event to topic {}", topic, exception);
+      }
+    }
+  };
+
+  public BatchingKafkaAlarmEventForwarder(KafkaProducerConfiguration kafkaConfig) {
+    this(new KafkaProducer<String, String>(createProperties(kafkaConfig)), kafkaConfig.getTopic());
+  }
+
+  BatchingKafkaAlarmEventForwarder(Producer<String, String> producer, String topic) {
+    this.producer = producer;
+    this.topic = topic;
+  }
+
+  static Properties createProperties(KafkaProducerConfiguration kafkaConfig) {
+    final Properties properties = new Properties();
+    properties.put(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG, kafkaConfig.getMetadataBrokerList());
+    properties.put(ProducerConfig.CLIENT_ID_CONFIG, String.valueOf(kafkaConfig.getClientId()));
+    properties.put(ProducerConfig.ACKS_CONFIG, String.valueOf(kafkaConfig.getRequestRequiredAcks()));
+    properties.put(ProducerConfig.TIMEOUT_CONFIG, String.valueOf(kafkaConfig.getRequestTimeoutMs()));
+    properties.put(ProducerConfig.RETRIES_CONFIG,
+        String.valueOf(kafkaConfig.getMessageSendMaxRetries()));
+    properties.put(ProducerConfig.RETRY_BACKOFF_MS_CONFIG,
+        String.valueOf(kafkaConfig.getRetryBackoffMs()));
+    properties.put(ProducerConfig.LINGER_MS_CONFIG, String.valueOf(PropertyFinder.getIntProperty(
+        LINGER_MS_KEY, LINGER_MS_DEFAULT, 0, Integer.MAX_VALUE)));
+    properties.put(ProducerConfig.BATCH_SIZE_CONFIG, String.valueOf(PropertyFinder.getIntProperty(
+        BATCH_SIZE_KEY, BATCH_SIZE_DEFAULT, 1, Integer.MAX_VALUE)));
+    properties.put(ProducerConfig.BUFFER_MEMORY_CONFIG, String.valueOf(PropertyFinder
+        .getIntProperty(BUFFER_MEMORY_KEY, BUFFER_MEMORY_DEFAULT, 1, Integer.MAX_VALUE)));
+    properties.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, String
+        .valueOf(PropertyFinder.getIntProperty(MAX_IN_FLIGHT_KEY, MAX_IN_FLIGHT_DEFAULT, 1,
+            Integer.MAX_VALUE)));
+    // Block rather than drop events when the brokers can't keep up
+    properties.put(ProducerConfig.BLOCK_ON_BUFFER_FULL_CONFIG, "true");
+    properties.put(ProducerConfig.COMPRESSION_TYPE_CONFIG,
+        System.getProperty(COMPRESSION_TYPE_KEY, COMPRESSION_TYPE_DEFAULT));
+    properties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+    properties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+    return properties;
+  }
+
+  @Override
+  public void send(String alarmId, String json) {
+    logger.debug("sending topic: {}, json: {}", topic, json);
+    producer.send(new ProducerRecord<String, String>(topic, alarmId, json), deliveryCallback);
+  }
+
+  /**
+   * Number of events the brokers have acknowledged
+   */
+  public long getSentCount() {
+    return sent.get();
+  }
+
+  /**
+   * Number of events that could not be delivered
+   */
+  public long getFailedCount() {
+    return failed.get();
+  }
+
+  @Override
+  public void close() {
+    // Waits for the events already sent to be delivered
+    producer.close();
+    logger.info("Closed after sending {} alarm events, {} failed", sent.get(), failed.get());
+  }
+}
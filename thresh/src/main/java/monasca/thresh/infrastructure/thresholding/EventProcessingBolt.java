@@ -30,6 +30,7 @@ import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
+import monasca.thresh.utils.LatencyHistograms;
 import monasca.thresh.utils.Logging;
 
 import org.apache.storm.task.OutputCollector;
@@ -44,6 +45,7 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Processes events by emitting tuples related to the event.
@@ -56,6 +58,8 @@ import java.util.Map;
  * <li>Output metric-sub-alarm-events: String eventType, MetricDefinition metricDefinition, SubAlarm
  * subAlarm
  * </ul>
+ * If an EventRouter is given, the events on its streams are sent with emitDirect to only the
+ * tasks that hold state for them instead of to every subscribed task.
  */
 public class EventProcessingBolt extends BaseRichBolt {
   private static final long serialVersionUID = 897171858708109378L;
@@ -86,28 +90,51 @@ public class EventProcessingBolt extends BaseRichBolt {
   private OutputCollector collector;
   private AlarmDAO alarmDAO;
   private DataSourceFactory dbConfig;
+  private EventRouter eventRouter;
+  private transient LatencyHistograms executeLatency;
 
   public EventProcessingBolt(DataSourceFactory dbConfig) {
     this.dbConfig = dbConfig;
   }
 
+  /**
+   * @param eventRouter sends the events on its streams to only the tasks that need them. The
+   *        streams are declared direct
+   */
+  public EventProcessingBolt(DataSourceFactory dbConfig, EventRouter eventRouter) {
+    this.dbConfig = dbConfig;
+    this.eventRouter = eventRouter;
+  }
+
   public EventProcessingBolt(AlarmDAO alarmDAO) {
     this.alarmDAO = alarmDAO;
   }
 
+  public EventProcessingBolt(AlarmDAO alarmDAO, EventRouter eventRouter) {
+    this.alarmDAO = alarmDAO;
+    this.eventRouter = eventRouter;
+  }
+
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {
-    declarer.declareStream(ALARM_EVENT_STREAM_ID, new Fields(ALARM_EVENT_STREAM_FIELDS));
-    declarer.declareStream(METRIC_ALARM_EVENT_STREAM_ID, new Fields(
-        METRIC_ALARM_EVENT_STREAM_FIELDS));
-    declarer.declareStream(METRIC_SUB_ALARM_EVENT_STREAM_ID, new Fields(
-        METRIC_SUB_ALARM_EVENT_STREAM_FIELDS));
-    declarer.declareStream(ALARM_DEFINITION_EVENT_STREAM_ID, new Fields(
-        ALARM_DEFINITION_EVENT_FIELDS));
+    declarer.declareStream(ALARM_EVENT_STREAM_ID, isDirect(ALARM_EVENT_STREAM_ID),
+        new Fields(ALARM_EVENT_STREAM_FIELDS));
+    declarer.declareStream(METRIC_ALARM_EVENT_STREAM_ID, isDirect(METRIC_ALARM_EVENT_STREAM_ID),
+        new Fields(METRIC_ALARM_EVENT_STREAM_FIELDS));
+    declarer.declareStream(METRIC_SUB_ALARM_EVENT_STREAM_ID,
+        isDirect(METRIC_SUB_ALARM_EVENT_STREAM_ID), new Fields(
+            METRIC_SUB_ALARM_EVENT_STREAM_FIELDS));
+    declarer.declareStream(ALARM_DEFINITION_EVENT_STREAM_ID,
+        isDirect(ALARM_DEFINITION_EVENT_STREAM_ID), new Fields(ALARM_DEFINITION_EVENT_FIELDS));
+  }
+
+  private boolean isDirect(String streamId) {
+    return eventRouter != null && eventRouter.isDirect(streamId);
   }
 
   @Override
   public void execute(Tuple tuple) {
+    final long start = System.nanoTime();
     try {
       Object event = tuple.getValue(0);
       logger.trace("Received event for processing {}", event);
@@ -126,6 +153,7 @@ public class EventProcessingBolt extends BaseRichBolt {
       logger.error("Error processing tuple {}", tuple, e);
     } finally {
       collector.ack(tuple);
+      executeLatency.recordSince(tuple, start);
     }
   }
 
@@ -139,14 +167,47 @@ public class EventProcessingBolt extends BaseRichBolt {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(dbConfig));
       alarmDAO = Injector.getInstance(AlarmDAO.class);
     }
+    final LatencyHistograms dbLatency = new LatencyHistograms();
+    alarmDAO = dbLatency.timed(AlarmDAO.class, alarmDAO);
+    context.registerMetric(LatencyHistograms.DB_LATENCY, dbLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    executeLatency = new LatencyHistograms();
+    context.registerMetric(LatencyHistograms.EXECUTE_LATENCY, executeLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    if (eventRouter != null) {
+      eventRouter.prepare(context, alarmDAO, logger);
+    }
+  }
+
+  /**
+   * Emits the event to every subscribed task, or with emitDirect to only the tasks that need it
+   * if the stream is routed
+   *
+   * @param alarmId the Alarm the event is for, null if it is for all Alarms of the definition
+   */
+  private void emitEvent(String streamId, Values values, String eventType,
+      String alarmDefinitionId, String alarmId) {
+    if (!isDirect(streamId)) {
+      collector.emit(streamId, values);
+      return;
+    }
+    final Set<Integer> targets =
+        eventRouter.targets(streamId, eventType, alarmDefinitionId, alarmId);
+    logger.debug("Sending {} {} event for {} to tasks {}", streamId, eventType,
+        alarmId == null ? alarmDefinitionId : alarmId, targets);
+    for (final Integer task : targets) {
+      collector.emitDirect(task, streamId, values);
+    }
   }
 
   void handle(AlarmDefinitionCreatedEvent event) {
-    collector.emit(ALARM_DEFINITION_EVENT_STREAM_ID, new Values(CREATED, event));
+    emitEvent(ALARM_DEFINITION_EVENT_STREAM_ID, new Values(CREATED, event), CREATED,
+        event.alarmDefinitionId, null);
   }
 
   void handle(AlarmDefinitionDeletedEvent event) {
-    collector.emit(ALARM_DEFINITION_EVENT_STREAM_ID, new Values(DELETED, event));
+    emitEvent(ALARM_DEFINITION_EVENT_STREAM_ID, new Values(DELETED, event), DELETED,
+        event.alarmDefinitionId, null);
   }
 
   void handle(AlarmDeletedEvent event) {
@@ -154,7 +215,8 @@ public class EventProcessingBolt extends BaseRichBolt {
     processSubAlarms(DELETED, event.tenantId, event.alarmDefinitionId, event.alarmMetrics,
         event.subAlarms);
 
-    collector.emit(ALARM_EVENT_STREAM_ID, new Values(DELETED, event.alarmId, event));
+    emitEvent(ALARM_EVENT_STREAM_ID, new Values(DELETED, event.alarmId, event), DELETED,
+        event.alarmDefinitionId, event.alarmId);
   }
 
   private void processSubAlarms(String command, final String tenantId,
@@ -200,9 +262,9 @@ public class EventProcessingBolt extends BaseRichBolt {
       final int updated = alarmDAO.updateSubAlarmExpressions(entry.getKey(), entry.getValue());
       logger.info("Updated {} SubAlarms with new AlarmSubExpression {} {}", updated, entry.getKey(),
           entry.getValue());
-      collector.emit(METRIC_SUB_ALARM_EVENT_STREAM_ID,
+      emitEvent(METRIC_SUB_ALARM_EVENT_STREAM_ID,
           new Values(UPDATED, new SubExpression(entry.getKey(), entry.getValue()),
-              event.alarmDefinitionId));
+              event.alarmDefinitionId), UPDATED, event.alarmDefinitionId, null);
     }
     /* Not sure what this should do
     for (Map.Entry<String, AlarmSubExpression> entry : event.oldAlarmSubExpressions.entrySet()) {
@@ -214,7 +276,8 @@ public class EventProcessingBolt extends BaseRichBolt {
       sendAddSubAlarm(event.alarmId, entry.getKey(), event.tenantId, entry.getValue());
     }
     */
-    collector.emit(ALARM_DEFINITION_EVENT_STREAM_ID, new Values(UPDATED, event));
+    emitEvent(ALARM_DEFINITION_EVENT_STREAM_ID, new Values(UPDATED, event), UPDATED,
+        event.alarmDefinitionId, null);
   }
 
   void handle(AlarmUpdatedEvent event) {
@@ -224,6 +287,7 @@ public class EventProcessingBolt extends BaseRichBolt {
     logger.info("Received AlarmUpdatedEvent {}", event);
     processSubAlarms(RESEND, event.tenantId, event.alarmDefinitionId, event.alarmMetrics,
         event.subAlarms);
-    collector.emit(ALARM_EVENT_STREAM_ID, new Values(UPDATED, event.alarmId, event));
+    emitEvent(ALARM_EVENT_STREAM_ID, new Values(UPDATED, event.alarmId, event), UPDATED,
+        event.alarmDefinitionId, event.alarmId);
   }
 }
@@ -0,0 +1,236 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.domain.service.AlarmDAO;
+import monasca.thresh.utils.FieldsGroupingTasks;
+
+import org.apache.storm.task.TopologyContext;
+import org.slf4j.Logger;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes which tasks of the Bolts subscribed to an event stream hold state for an event, so the
+ * EventProcessingBolt can send the event to only those tasks with emitDirect instead of
+ * broadcasting it to every task.
+ * <p/>
+ * Each component subscribed to a routed stream has a Route:
+ * <ul>
+ * <li>ALL - every task, for Bolts that hold state for every Alarm Definition
+ * <li>ALARM_DEFINITION - the task the Alarm Definition id is grouped to
+ * <li>ALARM - the tasks the ids of the Alarms for the event are grouped to
+ * <li>METRIC - the tasks the MetricGrouping sends the alarmed metrics of the Alarms for the event
+ * to
+ * </ul>
+ * The Alarms for an Alarm Definition event are read from the database. If they cannot be read,
+ * or the event deletes the Alarm Definition so its Alarms may already be gone, the event is sent
+ * to every task.
+ */
+public class EventRouter implements Serializable {
+  private static final long serialVersionUID = 3419538728350924106L;
+
+  public enum Route {
+    ALL, ALARM_DEFINITION, ALARM, METRIC
+  }
+
+  private final Map<String, Map<String, Route>> routes = new HashMap<>();
+  private final MetricGrouping metricGrouping;
+
+  private transient Map<String, List<Integer>> componentTasks;
+  private transient AlarmDAO alarmDAO;
+  private transient Logger logger;
+
+  /**
+   * @param metricGrouping the grouping used for the streams to the component with the METRIC
+   *        Route
+   */
+  public EventRouter(MetricGrouping metricGrouping) {
+    this.metricGrouping = metricGrouping;
+  }
+
+  /**
+   * Routes the {@code streamId} to the {@code componentId} by {@code route}. The component must
+   * subscribe to the stream with a directGrouping.
+   */
+  public EventRouter route(String streamId, String componentId, Route route) {
+    Map<String, Route> components = routes.get(streamId);
+    if (components == null) {
+      components = new HashMap<>();
+      routes.put(streamId, components);
+    }
+    components.put(componentId, route);
+    return this;
+  }
+
+  /** Returns true if the stream is sent with emitDirect */
+  public boolean isDirect(String streamId) {
+    return routes.containsKey(streamId);
+  }
+
+  public void prepare(TopologyContext context, AlarmDAO alarmDAO, Logger logger) {
+    this.alarmDAO = alarmDAO;
+    this.logger = logger;
+    componentTasks = new HashMap<>();
+    for (final Map<String, Route> components : routes.values()) {
+      for (final String componentId : components.keySet()) {
+        final List<Integer> tasks = context.getComponentTasks(componentId);
+        final List<Integer> sorted =
+            tasks == null ? new ArrayList<Integer>() : new ArrayList<>(tasks);
+        // Storm indexes into the sorted list of target tasks
+        Collections.sort(sorted);
+        componentTasks.put(componentId, sorted);
+      }
+    }
+  }
+
+  /**
+   * Returns the tasks to send an event on {@code streamId} to
+   *
+   * @param alarmId the Alarm the event is for, or null if the event is for every Alarm of the
+   *        Alarm Definition
+   */
+  public Set<Integer> targets(String streamId, String eventType, String alarmDefinitionId,
+      String alarmId) {
+    final Map<String, Route> components = routes.get(streamId);
+    if (components == null) {
+      return Collections.emptySet();
+    }
+    final Event event = new Event(eventType, alarmDefinitionId, alarmId);
+    final Set<Integer> targets = new HashSet<>();
+    for (final Map.Entry<String, Route> entry : components.entrySet()) {
+      final List<Integer> tasks = componentTasks.get(entry.getKey());
+      if (tasks == null || tasks.isEmpty()) {
+        continue;
+      }
+      if (!addTargets(entry.getValue(), event, tasks, targets)) {
+        targets.addAll(tasks);
+      }
+    }
+    return targets;
+  }
+
+  /**
+   * Adds the tasks that hold state for the event. Returns false if they are not known and the
+   * event has to go to every task.
+   */
+  private boolean addTargets(Route route, Event event, List<Integer> tasks, Set<Integer> targets) {
+    switch (route) {
+      case ALARM_DEFINITION:
+        if (event.alarmDefinitionId == null) {
+          return false;
+        }
+        targets.add(taskFor(event.alarmDefinitionId, tasks));
+        return true;
+
+      case ALARM:
+        if (event.alarmId != null) {
+          targets.add(taskFor(event.alarmId, tasks));
+          return true;
+        }
+        if (!event.hasAlarms()) {
+          return true;
+        }
+        final List<Alarm> alarms = event.alarms();
+        if (alarms == null) {
+          return false;
+        }
+        for (final Alarm alarm : alarms) {
+          targets.add(taskFor(alarm.getId(), tasks));
+        }
+        return true;
+
+      case METRIC:
+        if (!event.hasAlarms()) {
+          return true;
+        }
+        final List<Alarm> metricAlarms = event.alarms();
+        if (metricAlarms == null) {
+          return false;
+        }
+        for (final Alarm alarm : metricAlarms) {
+          for (final MetricDefinitionAndTenantId metricDefinitionAndTenantId : alarm
+              .getAlarmedMetrics()) {
+            targets.add(tasks.get(metricGrouping.taskIndex(
+                new TenantIdAndMetricName(metricDefinitionAndTenantId),
+                metricDefinitionAndTenantId, tasks.size())));
+          }
+        }
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  private static Integer taskFor(String key, List<Integer> tasks) {
+    return tasks.get(FieldsGroupingTasks.taskIndex(key, tasks.size()));
+  }
+
+  /**
+   * An event being routed. The Alarms of its Alarm Definition are only read if a Route needs them,
+   * and then only once for all of the components.
+   */
+  private class Event {
+    final String eventType;
+    final String alarmDefinitionId;
+    final String alarmId;
+    private List<Alarm> alarms;
+    private boolean read;
+
+    Event(String eventType, String alarmDefinitionId, String alarmId) {
+      this.eventType = eventType;
+      this.alarmDefinitionId = alarmDefinitionId;
+      this.alarmId = alarmId;
+    }
+
+    /** A new Alarm Definition does not have any Alarms yet */
+    boolean hasAlarms() {
+      return !EventProcessingBolt.CREATED.equals(eventType);
+    }
+
+    /**
+     * Returns the Alarms of the Alarm Definition, or null if they are not known
+     */
+    List<Alarm> alarms() {
+      if (!read) {
+        read = true;
+        if (alarmDefinitionId == null || EventProcessingBolt.DELETED.equals(eventType)) {
+          return null;
+        }
+        try {
+          alarms = alarmDAO.findForAlarmDefinitionId(alarmDefinitionId);
+        } catch (RuntimeException e) {
+          logger.warn("Unable to read the Alarms for Alarm Definition {}, sending {} event to all"
+              + " tasks", alarmDefinitionId, eventType, e);
+        }
+      }
+      return alarms;
+    }
+  }
+}
@@ -37,8 +37,6 @@ public class KafkaAlarmEventForwarder implements AlarmEventForwarder {
 
   private final String topic;
 
-  private long messageCount = 0;
-
   public KafkaAlarmEventForwarder(KafkaProducerConfiguration kafkaConfig) {
     this.topic = kafkaConfig.getTopic();
     Properties kafkaProperties = KafkaProducerProperties.createKafkaProperties(kafkaConfig);
@@ -47,11 +45,10 @@ public class KafkaAlarmEventForwarder implements AlarmEventForwarder {
   }
 
   @Override
-  public void send(String json) {
+  public void send(String alarmId, String json) {
     logger.debug("sending topic: {}, json: {}", topic, json);
-    final String routingKey = String.valueOf(messageCount++);
     final KeyedMessage<String, String> message =
-        new KeyedMessage<String, String>(topic, routingKey, json);
+        new KeyedMessage<String, String>(topic, alarmId, json);
     producer.send(message);
   }
 
@@ -136,6 +136,7 @@ public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
       logger.debug("streams iterator has next");
       processMessage(message, collector);
     }
+    flush(collector);
   }
 
   private void checkReaderRunning() {
@@ -180,4 +181,11 @@ public abstract class KafkaSpout extends BaseRichSpout implements Runnable {
   }
 
   protected abstract void processMessage(byte[] message, SpoutOutputCollector collector2);
+
+  /**
+   * Called at the end of every nextTuple, whether or not there was a message, so a spout that
+   * holds messages back can send them
+   */
+  protected void flush(SpoutOutputCollector collector) {
+  }
 }
@@ -28,8 +28,11 @@ import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.SubAlarmStatsRepository;
+import monasca.thresh.infrastructure.persistence.JdbiConnectionPool;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
+import monasca.thresh.utils.LatencyHistograms;
 import monasca.thresh.utils.Logging;
+import monasca.thresh.utils.StateSizes;
 import monasca.thresh.utils.Streams;
 import monasca.thresh.utils.Tuples;
 
@@ -60,18 +63,24 @@ import java.util.Set;
  * This ensures that the window slides in time with the expected metrics.
  *
  * <ul>
- * <li>Input: MetricDefinition metricDefinition, Metric metric
+ * <li>Input: MetricDefinition metricDefinition, Metric metric, Long apiTimeStamp
+ * <li>Input metric-batches: TenantIdAndMetricName tenantIdAndMetricName, List&lt;Metric&gt;
+ * metrics, Long apiTimeStamp
  * <li>Input metric-alarm-events: String eventType, MetricDefinition metricDefinition, String
  * subAlarmId
  * <li>Input metric-sub-alarm-events: String eventType, MetricDefinition metricDefinition, SubAlarm
  * subAlarm
- * <li>Output: String alarmId, SubAlarm subAlarm
+ * <li>Output: String alarmId, SubAlarm subAlarm, Long apiTimeStamp
  * </ul>
+ *
+ * The apiTimeStamp sent with a SubAlarm state change is the one of the newest Metric aggregated
+ * for the SubAlarm since it was last evaluated, or null if there was none, so a state change
+ * caused by missing Metrics has none.
  */
 public class MetricAggregationBolt extends BaseRichBolt {
   private static final long serialVersionUID = 5624314196838090726L;
   public static final String TICK_TUPLE_SECONDS_KEY = "monasca.thresh.aggregation.tick.seconds";
-  public static final String[] FIELDS = new String[] {"alarmId", "subAlarm"};
+  public static final String[] FIELDS = new String[] {"alarmId", "subAlarm", "apiTimeStamp"};
   public static final String METRIC_AGGREGATION_CONTROL_STREAM = "MetricAggregationControl";
   public static final String[] METRIC_AGGREGATION_CONTROL_FIELDS = new String[] {"directive"};
   public static final String METRICS_BEHIND = "MetricsBehind";
@@ -79,11 +88,15 @@ public class MetricAggregationBolt extends BaseRichBolt {
   private final ThresholdingConfiguration config;
   private DataSourceFactory dbConfig;
   private transient AlarmDAO alarmDAO;
+  private transient AlarmStateWriter stateWriter;
+  private transient LatencyHistograms executeLatency;
 
   final Map<MetricDefinitionAndTenantId, SubAlarmStatsRepository> metricDefToSubAlarmStatsRepos =
       new HashMap<>();
   private final Set<SubAlarmStats> subAlarmStatsSet = new HashSet<>();
   private final Map<String, SubAlarmStats> subAlarmToSubAlarmStats = new HashMap<>();
+  /** The apiTimeStamp of the newest Metric aggregated since the last evaluation by SubAlarm id */
+  private final Map<String, Long> apiTimeStamps = new HashMap<>();
 
   private transient Logger logger;
   private OutputCollector collector;
@@ -108,6 +121,7 @@ public class MetricAggregationBolt extends BaseRichBolt {
   @Override
   public void execute(Tuple tuple) {
     logger.debug("tuple: {}", tuple);
+    final long start = System.nanoTime();
     try {
       if (Tuples.isTickTuple(tuple)) {
         evaluateAlarmsAndSlideWindows();
@@ -117,7 +131,16 @@ public class MetricAggregationBolt extends BaseRichBolt {
           Metric metric = (Metric) tuple.getValueByField("metric");
           MetricDefinitionAndTenantId metricDefinitionAndTenantId =
               new MetricDefinitionAndTenantId(metric.definition(), timn.getTenantId());
-          aggregateValues(metricDefinitionAndTenantId, metric);
+          aggregateValues(metricDefinitionAndTenantId, metric, (Long) tuple.getValue(2));
+        } else if (MetricFilteringBolt.METRIC_BATCH_STREAM.equals(tuple.getSourceStreamId())) {
+          final TenantIdAndMetricName timn = (TenantIdAndMetricName) tuple.getValue(0);
+          @SuppressWarnings("unchecked")
+          final List<Metric> metrics = (List<Metric>) tuple.getValue(1);
+          final Long apiTimeStamp = (Long) tuple.getValue(2);
+          for (final Metric metric : metrics) {
+            aggregateValues(new MetricDefinitionAndTenantId(metric.definition(),
+                timn.getTenantId()), metric, apiTimeStamp);
+          }
         } else if (METRIC_AGGREGATION_CONTROL_STREAM.equals(tuple.getSourceStreamId())) {
           processControl(tuple.getString(0));
         } else {
@@ -153,6 +176,7 @@ public class MetricAggregationBolt extends BaseRichBolt {
       logger.error("Error processing tuple {}", tuple, e);
     } finally {
       collector.ack(tuple);
+      executeLatency.recordSince(tuple, start);
     }
   }
 
@@ -183,6 +207,45 @@ public class MetricAggregationBolt extends BaseRichBolt {
     if (this.alarmDAO == null) {
       Injector.registerIfNotBound(AlarmDAO.class, new PersistenceModule(this.dbConfig));
       this.alarmDAO = Injector.getInstance(AlarmDAO.class);
+      if (!this.dbConfig.isHibernateSupport()) {
+        Injector.getInstance(JdbiConnectionPool.class).registerMetric(context);
+      }
+    }
+    final LatencyHistograms dbLatency = new LatencyHistograms();
+    alarmDAO = dbLatency.timed(AlarmDAO.class, alarmDAO);
+    context.registerMetric(LatencyHistograms.DB_LATENCY, dbLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    executeLatency = new LatencyHistograms();
+    context.registerMetric(LatencyHistograms.EXECUTE_LATENCY, executeLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    // A SubAlarmStats is in subAlarmStatsSet, subAlarmToSubAlarmStats and the repository of its
+    // metric. The api time stamps are keyed by the SubAlarm's id so only the Long is counted
+    final StateSizes stateSizes = new StateSizes()
+        .add("sub-alarm-stats", StateSizes.SUB_ALARM_STATS_BYTES + 3
+            * StateSizes.HASH_MAP_ENTRY_BYTES, subAlarmStatsSet)
+        .add("metric-definitions", StateSizes.METRIC_DEFINITION_AND_TENANT_ID_BYTES
+            + StateSizes.SUB_ALARM_STATS_REPOSITORY_BYTES + StateSizes.HASH_MAP_ENTRY_BYTES,
+            metricDefToSubAlarmStatsRepos)
+        .add("saved-metrics", StateSizes.METRIC_DEFINITION_AND_TENANT_ID_BYTES
+            + StateSizes.METRIC_BYTES + StateSizes.HASH_MAP_ENTRY_BYTES, savedMetrics)
+        .add("api-time-stamps", StateSizes.BOXED_BYTES + StateSizes.HASH_MAP_ENTRY_BYTES,
+            apiTimeStamps);
+    context.registerMetric(StateSizes.STATE_SIZE, stateSizes,
+        StateSizes.METRICS_TIME_BUCKET_SECONDS);
+
+    stateWriter = createStateWriter(alarmDAO, Logging.categoryFor(getClass(), context));
+    context.registerMetric("state-writer", stateWriter.metric(),
+        AlarmStateWriter.METRICS_TIME_BUCKET_SECONDS);
+  }
+
+  protected AlarmStateWriter createStateWriter(AlarmDAO alarmDAO, String name) {
+    return new AlarmStateWriter(alarmDAO, AlarmStateWriter.FLUSH_INTERVAL_MS, name);
+  }
+
+  @Override
+  public void cleanup() {
+    if (stateWriter != null) {
+      stateWriter.close();
     }
   }
 
@@ -190,6 +253,15 @@ public class MetricAggregationBolt extends BaseRichBolt {
    * Aggregates values for the {@code metric} that are within the periods defined for the alarm.
    */
   void aggregateValues(MetricDefinitionAndTenantId metricDefinitionAndTenantId, Metric metric) {
+    aggregateValues(metricDefinitionAndTenantId, metric, null);
+  }
+
+  /**
+   * Aggregates values for the {@code metric} and remembers the time the API received it, null if
+   * not known.
+   */
+  void aggregateValues(MetricDefinitionAndTenantId metricDefinitionAndTenantId, Metric metric,
+      Long apiTimeStamp) {
     SubAlarmStatsRepository subAlarmStatsRepo =
         getOrCreateSubAlarmStatsRepo(metricDefinitionAndTenantId);
     if (subAlarmStatsRepo == null) {
@@ -202,10 +274,13 @@ public class MetricAggregationBolt extends BaseRichBolt {
     for (SubAlarmStats stats : subAlarmStatsRepo.get()) {
       final long timestamp_secs = metricTimestampInSeconds(metric);
       if (stats.addValue(metric.value, timestamp_secs)) {
+        if (apiTimeStamp != null) {
+          apiTimeStamps.put(stats.getSubAlarm().getId(), apiTimeStamp);
+        }
         logger.trace("Aggregated value {} at {} for {}. Updated {}", metric.value,
             metric.timestamp, metricDefinitionAndTenantId, stats.getStats());
         if (stats.evaluateAndSlideWindow(timestamp_secs, config.alarmDelay)) {
-          sendSubAlarmStateChange(stats);
+          sendSubAlarmStateChange(stats, apiTimeStamps.remove(stats.getSubAlarm().getId()));
         }
       } else {
         logger.warn("Metric is too old, age {} seconds: timestamp {} for {}, {}",
@@ -233,10 +308,12 @@ public class MetricAggregationBolt extends BaseRichBolt {
     logger.debug("evaluateAlarmsAndSlideWindows called");
     long newWindowTimestamp = currentTimeSeconds();
     for (SubAlarmStats subAlarmStats : subAlarmStatsSet) {
+      final Long apiTimeStamp = apiTimeStamps.isEmpty() ? null
+          : apiTimeStamps.remove(subAlarmStats.getSubAlarm().getId());
       if (upToDate) {
         logger.debug("Evaluating {}", subAlarmStats);
         if (subAlarmStats.evaluateAndSlideWindow(newWindowTimestamp, config.alarmDelay)) {
-          sendSubAlarmStateChange(subAlarmStats);
+          sendSubAlarmStateChange(subAlarmStats, apiTimeStamp);
         }
       } else {
         subAlarmStats.slideWindow(newWindowTimestamp, config.alarmDelay);
@@ -248,14 +325,14 @@ public class MetricAggregationBolt extends BaseRichBolt {
     }
   }
 
-  private void sendSubAlarmStateChange(SubAlarmStats subAlarmStats) {
+  private void sendSubAlarmStateChange(SubAlarmStats subAlarmStats, Long apiTimeStamp) {
     logger.debug("Alarm state changed for {}", subAlarmStats);
     if (subAlarmStats.getSubAlarm().onlyImmediateEvaluation()) {
-      alarmDAO.updateSubAlarmState(subAlarmStats.getSubAlarm().getId(),
-                                   subAlarmStats.getSubAlarm().getState());
+      stateWriter.updateSubAlarmState(subAlarmStats.getSubAlarm().getId(),
+                                      subAlarmStats.getSubAlarm().getState());
     }
     collector.emit(new Values(subAlarmStats.getSubAlarm().getAlarmId(), duplicate(subAlarmStats
-        .getSubAlarm())));
+        .getSubAlarm()), apiTimeStamp));
   }
 
   /**
@@ -435,5 +512,6 @@ public class MetricAggregationBolt extends BaseRichBolt {
     if (subAlarmStats != null) {
       subAlarmStatsSet.remove(subAlarmStats);
     }
+    apiTimeStamps.remove(subAlarmId);
   }
 }
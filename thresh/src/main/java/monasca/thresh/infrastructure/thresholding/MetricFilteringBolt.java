@@ -33,7 +33,10 @@ import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
 import monasca.thresh.infrastructure.persistence.PersistenceModule;
+import monasca.thresh.utils.FieldsGroupingTasks;
+import monasca.thresh.utils.LatencyHistograms;
 import monasca.thresh.utils.Logging;
+import monasca.thresh.utils.StateSizes;
 import monasca.thresh.utils.Streams;
 
 import org.apache.storm.task.OutputCollector;
@@ -47,7 +50,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -66,6 +71,10 @@ import java.util.concurrent.ConcurrentHashMap;
  * The current topology uses fieldGrouping for the incoming Metrics and allGrouping for the
  * events. So, a Bolt will always get the same Metrics it just can't be predicted which ones.
  *
+ * In sharded mode each worker only loads the MetricDefinitionAndTenantIds that the fieldsGrouping
+ * routes to its own tasks, and the metric alarm events are grouped on the same field as the
+ * Metrics. The memory used per worker then shrinks as workers are added.
+ *
  * The alreadyFound contains a Set of AlarmDefinition IDs that reference the same
  * MetricDefinitionAndTenantId so if a AlarmDefinition is deleted, the MetricDefinitionAndTenantId will
  * only be deleted from it and the matcher if no more AlarmDefinitions reference it. Adding and
@@ -79,7 +88,30 @@ import java.util.concurrent.ConcurrentHashMap;
  * metricDefinitionAndTenantId, String alarmId
  * <li>Input metric-sub-alarm-events: String eventType, MetricDefinitionAndTenantId
  * metricDefinitionAndTenantId, SubAlarm subAlarm
- * <li>Output: MetricDefinitionAndTenantId metricDefinitionAndTenantId, Metric metric
+ * <li>Output: MetricDefinitionAndTenantId metricDefinitionAndTenantId, Metric metric, Long
+ * apiTimeStamp
+ * </ul>
+ *
+ * The apiTimeStamp from the MetricSpout is passed on so the AlarmThresholdingBolt can measure the
+ * time from a Metric being received by the API to the alarm transition being sent.
+ *
+ * When an Alarm Definition is created, each Bolt scans the already known MetricDefinitionAndTenantIds
+ * that the fieldsGrouping routes to it and sends all of the ones matching the new Alarm
+ * Definition as lists on the NEW_METRICS_FOR_ALARM_DEFINITION_STREAM so the Alarms can be created
+ * in bulk instead of waiting for each Metric to arrive.
+ *
+ * Batches of Metrics from the MetricSpout are filtered the same way and the Metrics that pass are
+ * sent on as batches on the METRIC_BATCH_STREAM. If the MetricGrouping spreads the Metrics of a
+ * TenantIdAndMetricName over several MetricAggregationBolt tasks, each of those batches only
+ * holds Metrics with the same MetricDefinition. Alarm Definitions that the MetricGrouping cannot
+ * aggregate correctly are refused, their Metrics are not matched and no Alarms are created for
+ * them.
+ *
+ * <ul>
+ * <li>Input metric-batches: TenantIdAndMetricName tenantIdAndMetricName, Long apiTimeStamp,
+ * List&lt;Metric&gt; metrics
+ * <li>Output metric-batches: TenantIdAndMetricName tenantIdAndMetricName, List&lt;Metric&gt;
+ * metrics, Long apiTimeStamp
  * </ul>
  */
 public class MetricFilteringBolt extends BaseRichBolt {
@@ -88,13 +120,22 @@ public class MetricFilteringBolt extends BaseRichBolt {
   public static final String NEW_METRIC_FOR_ALARM_DEFINITION_STREAM = "newMetricForAlarmDefinitionStream";
   public static final String[] NEW_METRIC_FOR_ALARM_DEFINITION_FIELDS =
       new String[] {"metricDefinitionAndTenantId", "alarmDefinitionId"};
+  public static final String NEW_METRICS_FOR_ALARM_DEFINITION_STREAM = "newMetricsForAlarmDefinitionStream";
+  public static final String[] NEW_METRICS_FOR_ALARM_DEFINITION_FIELDS =
+      new String[] {"metricDefinitionAndTenantIds", "alarmDefinitionId"};
+  public static final String BULK_BATCH_SIZE_KEY = "monasca.thresh.filtering.bulkBatchSize";
+  public static final int BULK_BATCH_SIZE_DEFAULT = 1000;
   public static final String MIN_LAG_VALUE_KEY = "monasca.thresh.filtering.minLagValue";
   public static final int MIN_LAG_VALUE_DEFAULT = 10;
   public static final String MAX_LAG_MESSAGES_KEY = "monasca.thresh.filtering.maxLagMessages";
   public static final int MAX_LAG_MESSAGES_DEFAULT = 10;
   public static final String LAG_MESSAGE_PERIOD_KEY = "monasca.thresh.filtering.lagMessagePeriod";
   public static final int LAG_MESSAGE_PERIOD_DEFAULT = 30;
-  public static final String[] FIELDS = new String[] {"tenantIdAndMetricName", "metric"};
+  public static final String[] FIELDS =
+      new String[] {"tenantIdAndMetricName", "metric", "apiTimeStamp"};
+  public static final String METRIC_BATCH_STREAM = "metric-batches";
+  public static final String[] METRIC_BATCH_FIELDS =
+      new String[] {"tenantIdAndMetricName", "metrics", "apiTimeStamp"};
 
   private static final int MIN_LAG_VALUE = PropertyFinder.getIntProperty(MIN_LAG_VALUE_KEY,
       MIN_LAG_VALUE_DEFAULT, 0, Integer.MAX_VALUE);
@@ -102,35 +143,74 @@ public class MetricFilteringBolt extends BaseRichBolt {
       MAX_LAG_MESSAGES_DEFAULT, 0, Integer.MAX_VALUE);
   private static final int LAG_MESSAGE_PERIOD = PropertyFinder.getIntProperty(
       LAG_MESSAGE_PERIOD_KEY, LAG_MESSAGE_PERIOD_DEFAULT, 1, 600);
+  private static final int BULK_BATCH_SIZE = PropertyFinder.getIntProperty(BULK_BATCH_SIZE_KEY,
+      BULK_BATCH_SIZE_DEFAULT, 1, Integer.MAX_VALUE);
   private static final MetricDefinitionAndTenantIdMatcher matcher =
       new MetricDefinitionAndTenantIdMatcher();
   private static final ExistingHolder alreadyFound = new ExistingHolder();
   private static final Object SENTINAL = new Object();
   private static final Map<String, AlarmDefinition> alarmDefinitions = new ConcurrentHashMap<>();
+  /** Alarm Definitions refused because the MetricGrouping cannot aggregate them */
+  private static final Set<String> refusedDefinitionIds =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
   private transient Logger logger;
   private DataSourceFactory dbConfig;
   private transient AlarmDAO alarmDAO;
   private transient AlarmDefinitionDAO alarmDefDAO;
   private OutputCollector collector;
+  private transient FieldsGroupingTasks groupingTasks;
+  private transient LatencyHistograms executeLatency;
+  private final boolean sharded;
+  private final MetricGrouping metricGrouping;
   private long minLag = Long.MAX_VALUE;
   private long lastMinLagMessageSent = 0;
   private long minLagMessageSent = 0;
   private boolean lagging = true;
 
   public MetricFilteringBolt(DataSourceFactory dbConfig) {
+    this(dbConfig, false);
+  }
+
+  public MetricFilteringBolt(DataSourceFactory dbConfig, boolean sharded) {
+    this(dbConfig, sharded, null);
+  }
+
+  /**
+   * @param metricGrouping the grouping of the streams to the MetricAggregationBolt, used to split
+   *        the batches and to refuse the Alarm Definitions it cannot aggregate. May be null if
+   *        the metrics are always grouped by TenantIdAndMetricName
+   */
+  public MetricFilteringBolt(DataSourceFactory dbConfig, boolean sharded,
+      MetricGrouping metricGrouping) {
     this.dbConfig = dbConfig;
+    this.sharded = sharded;
+    this.metricGrouping = metricGrouping;
   }
 
   public MetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO) {
+    this(alarmDefDAO, alarmDAO, false);
+  }
+
+  public MetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO, boolean sharded) {
+    this(alarmDefDAO, alarmDAO, sharded, null);
+  }
+
+  public MetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO, boolean sharded,
+      MetricGrouping metricGrouping) {
     this.alarmDefDAO = alarmDefDAO;
     this.alarmDAO = alarmDAO;
+    this.sharded = sharded;
+    this.metricGrouping = metricGrouping;
   }
 
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {
     declarer.declare(new Fields(FIELDS));
+    declarer.declareStream(METRIC_BATCH_STREAM, new Fields(METRIC_BATCH_FIELDS));
     declarer.declareStream(NEW_METRIC_FOR_ALARM_DEFINITION_STREAM, new Fields(
         NEW_METRIC_FOR_ALARM_DEFINITION_FIELDS));
+    declarer.declareStream(NEW_METRICS_FOR_ALARM_DEFINITION_STREAM, new Fields(
+        NEW_METRICS_FOR_ALARM_DEFINITION_FIELDS));
     declarer.declareStream(MetricAggregationBolt.METRIC_AGGREGATION_CONTROL_STREAM, new Fields(
         MetricAggregationBolt.METRIC_AGGREGATION_CONTROL_FIELDS));
     declarer.declareStream(AlarmCreationBolt.ALARM_CREATION_STREAM, new Fields(
@@ -140,6 +220,7 @@ public class MetricFilteringBolt extends BaseRichBolt {
   @Override
   public void execute(Tuple tuple) {
     logger.debug("tuple: {}", tuple);
+    final long start = System.nanoTime();
     try {
       if (Streams.DEFAULT_STREAM_ID.equals(tuple.getSourceStreamId())) {
         final TenantIdAndMetricName timn = (TenantIdAndMetricName)tuple.getValue(0);
@@ -151,8 +232,12 @@ public class MetricFilteringBolt extends BaseRichBolt {
 
         logger.debug("metric definition and tenant id: {}", metricDefinitionAndTenantId);
         if (checkForMatch(metricDefinitionAndTenantId)) {
-          collector.emit(new Values(timn, metric));
+          collector.emit(new Values(timn, metric, timestamp));
         }
+      } else if (MetricSpout.METRIC_BATCH_STREAM.equals(tuple.getSourceStreamId())) {
+        @SuppressWarnings("unchecked")
+        final List<Metric> metrics = (List<Metric>) tuple.getValue(2);
+        filterBatch((TenantIdAndMetricName) tuple.getValue(0), (Long) tuple.getValue(1), metrics);
       } else {
         String eventType = tuple.getString(0);
 
@@ -172,7 +257,9 @@ public class MetricFilteringBolt extends BaseRichBolt {
                   new AlarmDefinition(event.alarmDefinitionId, event.tenantId, event.alarmName,
                       event.alarmDescription, new AlarmExpression(event.alarmExpression), "LOW",
                       true, createSubExpressions(event.alarmSubExpressions), event.matchBy);
-              newAlarmDefinition(alarmDefinition);
+              if (newAlarmDefinition(alarmDefinition)) {
+                sendKnownMetrics(alarmDefinition);
+              }
             }
           }
           else if (EventProcessingBolt.DELETED.equals(eventType)) {
@@ -185,6 +272,31 @@ public class MetricFilteringBolt extends BaseRichBolt {
       logger.error("Error processing tuple {}", tuple, e);
     } finally {
       collector.ack(tuple);
+      executeLatency.recordSince(tuple, start);
+    }
+  }
+
+  private void filterBatch(final TenantIdAndMetricName timn, final Long timestamp,
+      final List<Metric> metrics) {
+    checkLag(timestamp);
+    final boolean split =
+        metricGrouping != null && metricGrouping.splitsByMetricDefinition(timn);
+    final Map<Object, List<Metric>> passed = new LinkedHashMap<>();
+    for (final Metric metric : metrics) {
+      final MetricDefinitionAndTenantId metricDefinitionAndTenantId =
+          new MetricDefinitionAndTenantId(metric.definition(), timn.getTenantId());
+      if (checkForMatch(metricDefinitionAndTenantId)) {
+        final Object key = split ? metricDefinitionAndTenantId : timn;
+        List<Metric> batch = passed.get(key);
+        if (batch == null) {
+          batch = new ArrayList<>(metrics.size());
+          passed.put(key, batch);
+        }
+        batch.add(metric);
+      }
+    }
+    for (final List<Metric> batch : passed.values()) {
+      collector.emit(METRIC_BATCH_STREAM, new Values(timn, batch, timestamp));
     }
   }
 
@@ -200,6 +312,7 @@ public class MetricFilteringBolt extends BaseRichBolt {
   private void deleteAlarmDefinition(final String alarmDefinitionId) {
     synchronized (SENTINAL) {
       final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarmDefinitionId);
+      refusedDefinitionIds.remove(alarmDefinitionId);
       if (alarmDefinition != null) {
         logger.info("Deleting Alarm Definition {}", alarmDefinitionId);
         alarmDefinitions.remove(alarmDefinitionId);
@@ -225,11 +338,64 @@ public class MetricFilteringBolt extends BaseRichBolt {
     return result;
   }
 
-  private void newAlarmDefinition(final AlarmDefinition alarmDefinition) {
+  /**
+   * Returns false if the Alarm Definition was refused
+   */
+  private boolean newAlarmDefinition(final AlarmDefinition alarmDefinition) {
+    if (metricGrouping != null && !metricGrouping.canAggregate(alarmDefinition)) {
+      logger.error("Refusing Alarm Definition {}, it has no match_by and its metrics are spread"
+          + " over the aggregation bolt tasks by hotMetricNames or"
+          + " aggregationBoltGroupByMetricDefinition", alarmDefinition.getId());
+      refusedDefinitionIds.add(alarmDefinition.getId());
+      return false;
+    }
     alarmDefinitions.put(alarmDefinition.getId(), alarmDefinition);
     for (final MetricDefinitionAndTenantId mtid : getAllMetricDefinitions(alarmDefinition)) {
       matcher.add(mtid, alarmDefinition.getId());
     }
+    return true;
+  }
+
+  /**
+   * Finds the known metrics owned by this Bolt that match the new Alarm Definition and sends them
+   * in batches. Must be called while holding SENTINAL.
+   */
+  private void sendKnownMetrics(final AlarmDefinition alarmDefinition) {
+    final long start = System.currentTimeMillis();
+    final MetricDefinitionAndTenantIdMatcher definitionMatcher =
+        new MetricDefinitionAndTenantIdMatcher();
+    for (final MetricDefinitionAndTenantId mtid : getAllMetricDefinitions(alarmDefinition)) {
+      definitionMatcher.add(mtid, alarmDefinition.getId());
+    }
+    int count = 0;
+    List<MetricDefinitionAndTenantId> batch = new ArrayList<>();
+    for (final MetricDefinitionAndTenantId mtid : alreadyFound.metricDefinitions()) {
+      if (!mtid.tenantId.equals(alarmDefinition.getTenantId())
+          || !groupingTasks.isOwned(new TenantIdAndMetricName(mtid))
+          || definitionMatcher.match(mtid).isEmpty()) {
+        continue;
+      }
+      final Set<String> existing = alreadyFound.matches(mtid);
+      if ((existing != null) && existing.contains(alarmDefinition.getId())) {
+        continue;
+      }
+      alreadyFound.add(mtid, alarmDefinition.getId());
+      batch.add(mtid);
+      count++;
+      if (batch.size() >= BULK_BATCH_SIZE) {
+        collector.emit(NEW_METRICS_FOR_ALARM_DEFINITION_STREAM,
+            new Values(batch, alarmDefinition.getId()));
+        batch = new ArrayList<>();
+      }
+    }
+    if (!batch.isEmpty()) {
+      collector.emit(NEW_METRICS_FOR_ALARM_DEFINITION_STREAM,
+          new Values(batch, alarmDefinition.getId()));
+    }
+    if (count > 0) {
+      logger.info("Sent {} known metrics for Alarm Definition {} in {} milliseconds", count,
+          alarmDefinition.getId(), System.currentTimeMillis() - start);
+    }
   }
 
   private boolean checkForMatch(MetricDefinitionAndTenantId metricDefinitionAndTenantId) {
@@ -305,6 +471,7 @@ public class MetricFilteringBolt extends BaseRichBolt {
     logger = LoggerFactory.getLogger(Logging.categoryFor(getClass(), context));
     logger.info("Preparing");
     this.collector = collector;
+    this.groupingTasks = FieldsGroupingTasks.forThisTask(context);
 
     if (alarmDefDAO == null) {
       Injector.registerIfNotBound(AlarmDefinitionDAO.class, new PersistenceModule(dbConfig));
@@ -316,6 +483,35 @@ public class MetricFilteringBolt extends BaseRichBolt {
       alarmDAO = Injector.getInstance(AlarmDAO.class);
     }
 
+    final LatencyHistograms dbLatency = new LatencyHistograms();
+    alarmDefDAO = dbLatency.timed(AlarmDefinitionDAO.class, alarmDefDAO);
+    alarmDAO = dbLatency.timed(AlarmDAO.class, alarmDAO);
+    context.registerMetric(LatencyHistograms.DB_LATENCY, dbLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    executeLatency = new LatencyHistograms();
+    context.registerMetric(LatencyHistograms.EXECUTE_LATENCY, executeLatency,
+        LatencyHistograms.METRICS_TIME_BUCKET_SECONDS);
+    // Both are shared by the Bolts in the worker so each of them reports the same sizes. A found
+    // metric has a Set with usually one AlarmDefinition id, and is also in the usedMetrics List
+    final StateSizes stateSizes = new StateSizes()
+        .add("already-found", StateSizes.METRIC_DEFINITION_AND_TENANT_ID_BYTES
+            + 2 * StateSizes.HASH_MAP_ENTRY_BYTES + StateSizes.HASH_SET_BYTES
+            + StateSizes.LINKED_LIST_ENTRY_BYTES, new StateSizes.Size() {
+          @Override
+          public long size() {
+            return alreadyFound.size();
+          }
+        })
+        .add("matcher", StateSizes.MATCHER_ENTRY_BYTES, new StateSizes.Size() {
+          @Override
+          public long size() {
+            // The dimensions are the same Maps as in the alreadyFound
+            return matcher.size();
+          }
+        });
+    context.registerMetric(StateSizes.STATE_SIZE, stateSizes,
+        StateSizes.METRICS_TIME_BUCKET_SECONDS);
+
     // DCL
     if (alreadyFound.isEmpty()) {
       synchronized (SENTINAL) {
@@ -324,29 +520,25 @@ public class MetricFilteringBolt extends BaseRichBolt {
             newAlarmDefinition(alarmcDef);
           }
 
-          // Load the existing Alarms
-          for (Alarm alarm : alarmDAO.listAll()) {
-            final AlarmDefinition alarmDefinition =
-                alarmDefinitions.get(alarm.getAlarmDefinitionId());
-            if (alarmDefinition == null) {
-              logger.error("AlarmDefinition {} does not exist for Alarm {}, ignoring",
-                  alarm.getAlarmDefinitionId(), alarm.getId());
-              continue;
-            }
-            for (final MetricDefinitionAndTenantId mtid : alarm.getAlarmedMetrics()) {
-              alreadyFound.add(mtid, alarm.getAlarmDefinitionId());
-              for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
-                if (AlarmCreationBolt.metricFitsInAlarmSubExpr(subAlarm.getExpression(),
-                    mtid.metricDefinition)) {
-                  final TenantIdAndMetricName timn = new TenantIdAndMetricName(mtid);
-                  final Values values =
-                      new Values(EventProcessingBolt.CREATED, timn, mtid,
-                          alarm.getAlarmDefinitionId(), subAlarm);
-                  logger.debug("Emitting new SubAlarm {}", values);
-                  collector.emit(AlarmCreationBolt.ALARM_CREATION_STREAM, values);
-                }
+          // When sharded, only keep the metrics routed to the tasks in this worker
+          final FieldsGroupingTasks workerTasks =
+              sharded ? FieldsGroupingTasks.forThisWorker(context) : null;
+          if (workerTasks != null) {
+            logger.info("Loading only the Alarmed Metrics for this worker's tasks");
+          }
+          // Load the existing Alarms in parallel, indexing and emitting them as they arrive
+          final AlarmWarmup warmup = new AlarmWarmup(alarmDAO, AlarmWarmup.THREADS,
+              AlarmWarmup.PARTITIONS, logger);
+          try {
+            warmup.run(new AlarmDAO.AlarmCallback() {
+              @Override
+              public void onAlarm(Alarm alarm) {
+                addExistingAlarm(alarm, workerTasks);
               }
-            }
+            });
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading Alarms", e);
           }
 
           logger.info("Found {} Alarmed Metrics", alreadyFound.size());
@@ -360,6 +552,39 @@ public class MetricFilteringBolt extends BaseRichBolt {
     lastMinLagMessageSent = 0;
   }
 
+  /**
+   * Indexes the metrics of an existing Alarm and sends its SubAlarms to the aggregation bolts. If
+   * ownedTasks is not null, metrics routed to other workers are skipped.
+   */
+  private void addExistingAlarm(Alarm alarm, FieldsGroupingTasks ownedTasks) {
+    final AlarmDefinition alarmDefinition = alarmDefinitions.get(alarm.getAlarmDefinitionId());
+    if (alarmDefinition == null) {
+      if (refusedDefinitionIds.contains(alarm.getAlarmDefinitionId())) {
+        return;
+      }
+      logger.error("AlarmDefinition {} does not exist for Alarm {}, ignoring",
+          alarm.getAlarmDefinitionId(), alarm.getId());
+      return;
+    }
+    for (final MetricDefinitionAndTenantId mtid : alarm.getAlarmedMetrics()) {
+      final TenantIdAndMetricName timn = new TenantIdAndMetricName(mtid);
+      if ((ownedTasks != null) && !ownedTasks.isOwned(timn)) {
+        continue;
+      }
+      alreadyFound.add(mtid, alarm.getAlarmDefinitionId());
+      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+        if (AlarmCreationBolt.metricFitsInAlarmSubExpr(subAlarm.getExpression(),
+            mtid.metricDefinition)) {
+          final Values values =
+              new Values(EventProcessingBolt.CREATED, timn, mtid,
+                  alarm.getAlarmDefinitionId(), subAlarm);
+          logger.debug("Emitting new SubAlarm {}", values);
+          collector.emit(AlarmCreationBolt.ALARM_CREATION_STREAM, values);
+        }
+      }
+    }
+  }
+
   /**
    * Allow override of current time for testing.
    */
@@ -374,6 +599,7 @@ public class MetricFilteringBolt extends BaseRichBolt {
     alreadyFound.clear();
     matcher.clear();
     alarmDefinitions.clear();
+    refusedDefinitionIds.clear();
   }
 
   /**
@@ -443,6 +669,10 @@ public class MetricFilteringBolt extends BaseRichBolt {
       }
     }
 
+    public List<MetricDefinitionAndTenantId> metricDefinitions() {
+      return new ArrayList<>(metricDefs.keySet());
+    }
+
     public Set<String> matches(MetricDefinitionAndTenantId mtid) {
       return metricDefs.get(mtid);
     }
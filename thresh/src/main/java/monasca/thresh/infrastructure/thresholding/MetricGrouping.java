@@ -0,0 +1,193 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.utils.FieldsGroupingTasks;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.grouping.CustomStreamGrouping;
+import org.apache.storm.task.WorkerTopologyContext;
+import org.apache.storm.tuple.Fields;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Groups the streams to the MetricAggregationBolt on the TenantIdAndMetricName the same way as a
+ * fieldsGrouping would.
+ * <p/>
+ * A metric name that has many more metric definitions than the others, for example one reported
+ * by every VM of a large tenant, would put all of its load on one task. The metrics for a name in
+ * hotMetricNames are instead spread over hotMetricSplit tasks using the hash of the
+ * MetricDefinition. If groupByMetricDefinition is set, the metrics of every name are spread over
+ * all of the tasks using the hash of the tenant id and the full MetricDefinition, name and
+ * dimensions. The sub alarm creation and metric alarm event tuples for a MetricDefinition go to
+ * the same task as its metrics because their hash is computed the same way.
+ * <p/>
+ * The MetricAggregationBolt aggregates all of the metrics of a SubAlarm in one SubAlarmStats, so
+ * routing by MetricDefinition is only correct for metrics whose alarms each have a single metric,
+ * for example alarm definitions with a match_by on the dimensions that tell the metrics apart.
+ * The MetricFilteringBolt refuses the alarm definitions without a match_by on a name that is
+ * spread by MetricDefinition, see canAggregate.
+ */
+public class MetricGrouping implements CustomStreamGrouping {
+  private static final long serialVersionUID = -4412868310536325617L;
+  private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+  public static final String KEY_FIELD = "tenantIdAndMetricName";
+  /** Fields that identify the MetricDefinition, the first one in the stream is used */
+  private static final String[] SPLIT_FIELDS = {"metricDefinitionAndTenantId", "metric",
+      "metrics"};
+
+  private final Set<String> hotMetricNames;
+  private final int hotMetricSplit;
+  private final boolean groupByMetricDefinition;
+
+  private int keyIndex;
+  private int splitIndex;
+  private List<List<Integer>> choices;
+
+  public MetricGrouping() {
+    this(Collections.<String>emptySet(), 1, false);
+  }
+
+  public MetricGrouping(Set<String> hotMetricNames, int hotMetricSplit,
+      boolean groupByMetricDefinition) {
+    this.hotMetricNames = new HashSet<>(hotMetricNames);
+    this.hotMetricSplit = Math.max(hotMetricSplit, 1);
+    this.groupByMetricDefinition = groupByMetricDefinition;
+  }
+
+  @Override
+  public void prepare(WorkerTopologyContext context, GlobalStreamId stream,
+      List<Integer> targetTasks) {
+    final Fields fields = context.getComponentOutputFields(stream);
+    keyIndex = fields.fieldIndex(KEY_FIELD);
+    splitIndex = -1;
+    for (final String field : SPLIT_FIELDS) {
+      if (fields.contains(field)) {
+        splitIndex = fields.fieldIndex(field);
+        break;
+      }
+    }
+    final List<Integer> tasks = new ArrayList<>(targetTasks);
+    // Storm indexes into the sorted list of target tasks
+    Collections.sort(tasks);
+    choices = new ArrayList<>(tasks.size());
+    for (final Integer task : tasks) {
+      choices.add(Collections.singletonList(task));
+    }
+  }
+
+  @Override
+  public List<Integer> chooseTasks(int taskId, List<Object> values) {
+    final TenantIdAndMetricName key = (TenantIdAndMetricName) values.get(keyIndex);
+    return choices.get(taskIndex(key, splitIndex >= 0 ? values.get(splitIndex) : null,
+        choices.size()));
+  }
+
+  /**
+   * Returns the index into the sorted target tasks for the key
+   *
+   * @param splitValue the Metric, batch of Metrics, MetricDefinition or
+   *        MetricDefinitionAndTenantId of the tuple. May be null if the tuple does not have one
+   */
+  int taskIndex(TenantIdAndMetricName key, Object splitValue, int numTasks) {
+    final int index = FieldsGroupingTasks.taskIndex(key, numTasks);
+    if (!splitsByMetricDefinition(key)) {
+      return index;
+    }
+    final MetricDefinition metricDefinition = metricDefinition(splitValue);
+    if (metricDefinition == null) {
+      return index;
+    }
+    final int hash = HASH_FUNCTION.newHasher()
+        .putInt(key.hashCode())
+        .putInt(metricDefinition.hashCode())
+        .hash().asInt();
+    if (groupByMetricDefinition) {
+      return positiveMod(hash, numTasks);
+    }
+    return (index + positiveMod(hash, Math.min(hotMetricSplit, numTasks))) % numTasks;
+  }
+
+  /**
+   * Returns true if the tuples for the key are spread over the tasks by MetricDefinition, so a
+   * batch of Metrics for the key must only hold Metrics with the same MetricDefinition
+   */
+  public boolean splitsByMetricDefinition(TenantIdAndMetricName key) {
+    return splitsByMetricDefinition(key.getMetricName());
+  }
+
+  private boolean splitsByMetricDefinition(String metricName) {
+    return groupByMetricDefinition
+        || (hotMetricSplit > 1 && hotMetricNames.contains(metricName));
+  }
+
+  /**
+   * Returns false if the Alarms of the AlarmDefinition can have several metrics that this grouping
+   * sends to different tasks, which would each aggregate part of the metrics of a SubAlarm. Only
+   * an AlarmDefinition with a match_by is taken to have Alarms with a single metric.
+   */
+  public boolean canAggregate(AlarmDefinition alarmDefinition) {
+    if (!alarmDefinition.getMatchBy().isEmpty()) {
+      return true;
+    }
+    for (final AlarmSubExpression subExpression : alarmDefinition.getAlarmExpression()
+        .getSubExpressions()) {
+      if (splitsByMetricDefinition(subExpression.getMetricDefinition().name)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int positiveMod(int hash, int divisor) {
+    final int result = hash % divisor;
+    return result < 0 ? result + divisor : result;
+  }
+
+  private static MetricDefinition metricDefinition(Object value) {
+    if (value instanceof Metric) {
+      return ((Metric) value).definition();
+    }
+    if (value instanceof MetricDefinitionAndTenantId) {
+      return ((MetricDefinitionAndTenantId) value).metricDefinition;
+    }
+    if (value instanceof MetricDefinition) {
+      return (MetricDefinition) value;
+    }
+    if (value instanceof List && !((List<?>) value).isEmpty()) {
+      // A batch of Metrics, they all have the same MetricDefinition when it matters
+      return metricDefinition(((List<?>) value).get(0));
+    }
+    return null;
+  }
+}
@@ -22,6 +22,7 @@ import monasca.common.model.metric.MetricEnvelope;
 import monasca.common.model.metric.MetricEnvelopes;
 import monasca.thresh.MetricSpoutConfig;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.utils.Streams;
 
 import org.apache.storm.spout.SpoutOutputCollector;
 import org.apache.storm.topology.OutputFieldsDeclarer;
@@ -31,11 +32,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.Thread;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Reads Metrics from Kafka and emits each one as a tuple. If the batchSize in the
+ * MetricSpoutConfig is greater than 1, the Metrics are instead collected into batches with the
+ * same TenantIdAndMetricName, the field the MetricFilteringBolt is grouped on, and sent on the
+ * METRIC_BATCH_STREAM once batchSize Metrics are collected or the oldest one has waited
+ * batchMaxLatencyMs.
+ *
+ * The tuples are emitted with a message id unless reliable in the MetricSpoutConfig is false.
+ *
+ * <ul>
+ * <li>Output: TenantIdAndMetricName tenantIdAndMetricName, Long apiTimeStamp, Metric metric
+ * <li>Output metric-batches: TenantIdAndMetricName tenantIdAndMetricName, Long apiTimeStamp,
+ * List&lt;Metric&gt; metrics
+ * </ul>
+ */
 public class MetricSpout extends KafkaSpout {
   @SuppressWarnings("unchecked")
   private static final Map<String, String> EMPTY_DIMENSIONS = (Map<String, String>) Collections.EMPTY_MAP;
@@ -46,10 +66,27 @@ public class MetricSpout extends KafkaSpout {
 
   public static final String[] FIELDS = new String[] {"tenantIdAndMetricName",
       "apiTimeStamp", "metric"};
+  public static final String METRIC_BATCH_STREAM = "metric-batches";
+  /**
+   * The apiTimeStamp of a batch is the oldest one of its Metrics, so the latency measured from it
+   * includes the time the Metrics waited in the batch
+   */
+  public static final String[] METRIC_BATCH_FIELDS = new String[] {"tenantIdAndMetricName",
+      "apiTimeStamp", "metrics"};
   public static final String DEFAULT_TENANT_ID = "TENANT_ID_NOT_SET";
 
+  private final int batchSize;
+  private final long batchMaxLatencyMs;
+  private final boolean reliable;
+  /** Batches that are not full yet, oldest first */
+  private final Map<TenantIdAndMetricName, Batch> batches = new LinkedHashMap<>();
+
   public MetricSpout(MetricSpoutConfig metricSpoutConfig) {
     super(metricSpoutConfig);
+    this.batchSize = metricSpoutConfig.batchSize == null ? 1 : metricSpoutConfig.batchSize;
+    this.batchMaxLatencyMs =
+        metricSpoutConfig.batchMaxLatencyMs == null ? 0 : metricSpoutConfig.batchMaxLatencyMs;
+    this.reliable = metricSpoutConfig.reliable == null || metricSpoutConfig.reliable;
     logger.info("Created");
   }
 
@@ -73,16 +110,90 @@ public class MetricSpout extends KafkaSpout {
     if (metric.dimensions == null) {
       metric.dimensions = EMPTY_DIMENSIONS;
     }
+    emitMetric(new TenantIdAndMetricName(tenantId, metricEnvelope.metric.definition().name),
+        metricEnvelope.creationTime, metric, collector);
+  }
+
+  void emitMetric(final TenantIdAndMetricName timn, final long apiTimeStamp, final Metric metric,
+      final SpoutOutputCollector collector) {
+    if (batchSize <= 1) {
+      emit(collector, Streams.DEFAULT_STREAM_ID, new Values(timn, apiTimeStamp, metric));
+      return;
+    }
+    Batch batch = batches.get(timn);
+    if (batch == null) {
+      batch = new Batch(getCurrentTime(), batchSize);
+      batches.put(timn, batch);
+    }
+    batch.add(apiTimeStamp, metric);
+    if (batch.metrics.size() >= batchSize) {
+      batches.remove(timn);
+      emitBatch(timn, batch, collector);
+    }
+  }
+
+  @Override
+  protected void flush(SpoutOutputCollector collector) {
+    if (batches.isEmpty()) {
+      return;
+    }
+    final long oldest = getCurrentTime() - batchMaxLatencyMs;
+    for (final Iterator<Map.Entry<TenantIdAndMetricName, Batch>> it =
+        batches.entrySet().iterator(); it.hasNext();) {
+      final Map.Entry<TenantIdAndMetricName, Batch> entry = it.next();
+      if (entry.getValue().created > oldest) {
+        // The rest were started later
+        break;
+      }
+      it.remove();
+      emitBatch(entry.getKey(), entry.getValue(), collector);
+    }
+  }
+
+  private void emitBatch(final TenantIdAndMetricName timn, final Batch batch,
+      final SpoutOutputCollector collector) {
+    logger.debug("Sending batch of {} metrics for {}", batch.metrics.size(), timn);
+    emit(collector, METRIC_BATCH_STREAM, new Values(timn, batch.apiTimeStamp, batch.metrics));
+  }
+
+  private void emit(final SpoutOutputCollector collector, final String streamId,
+      final Values values) {
+    if (!reliable) {
+      collector.emit(streamId, values);
+      return;
+    }
     // get unique identifier, required for storm
     final String uId = Long.toString(Thread.currentThread().getId())
-                       + Long.toString(ThreadLocalRandom.current().nextInt());
+        + Long.toString(ThreadLocalRandom.current().nextInt());
+    collector.emit(streamId, values, uId);
+  }
 
-    collector.emit(new Values(new TenantIdAndMetricName(tenantId, metricEnvelope.metric
-        .definition().name), metricEnvelope.creationTime, metric), uId);
+  protected long getCurrentTime() {
+    return System.currentTimeMillis();
   }
 
   @Override
   public void declareOutputFields(OutputFieldsDeclarer declarer) {
     declarer.declare(new Fields(FIELDS));
+    declarer.declareStream(METRIC_BATCH_STREAM, new Fields(METRIC_BATCH_FIELDS));
+  }
+
+  private static class Batch {
+    final long created;
+    final List<Metric> metrics;
+    long apiTimeStamp;
+
+    Batch(long created, int batchSize) {
+      this.created = created;
+      this.metrics = new ArrayList<>(batchSize);
+    }
+
+    void add(long apiTimeStamp, Metric metric) {
+      metrics.add(metric);
+      // 0 is an unknown apiTimeStamp
+      if (apiTimeStamp != 0 && (this.apiTimeStamp == 0 || apiTimeStamp < this.apiTimeStamp)) {
+        this.apiTimeStamp = apiTimeStamp;
+      }
+    }
   }
 }
@@ -23,6 +23,9 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 
 public class ProducerModule extends AbstractModule {
+  /** Set to true to send alarm events with the old synchronous Kafka producer */
+  public static final String LEGACY_PRODUCER_KEY = "monasca.thresh.alarmForwarder.legacyProducer";
+
   private KafkaProducerConfiguration config;
   private AlarmEventForwarder alarmEventForwarder;
 
@@ -39,6 +42,12 @@ public class ProducerModule extends AbstractModule {
 
   @Provides
   AlarmEventForwarder alarmEventForwarder() {
-    return alarmEventForwarder == null ? new KafkaAlarmEventForwarder(config) : alarmEventForwarder;
+    if (alarmEventForwarder != null) {
+      return alarmEventForwarder;
+    }
+    if (Boolean.getBoolean(LEGACY_PRODUCER_KEY)) {
+      return new KafkaAlarmEventForwarder(config);
+    }
+    return new BatchingKafkaAlarmEventForwarder(config);
   }
 }
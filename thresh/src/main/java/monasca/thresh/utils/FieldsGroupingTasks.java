@@ -0,0 +1,111 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.utils;
+
+import org.apache.storm.task.TopologyContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Computes which task of a Bolt is sent a value by a fieldsGrouping on a single field. This
+ * mirrors what Storm does so a Bolt can tell which keys it owns without seeing them first.
+ */
+public final class FieldsGroupingTasks {
+  private final List<Integer> tasks;
+  private final boolean[] ownedIndexes;
+  private final boolean ownsAny;
+
+  /**
+   * @param tasks the task ids of the Bolt receiving the grouped stream
+   * @param thisTaskId the task to check ownership for
+   */
+  public FieldsGroupingTasks(List<Integer> tasks, int thisTaskId) {
+    this(tasks, Collections.singletonList(thisTaskId));
+  }
+
+  /**
+   * @param tasks the task ids of the Bolt receiving the grouped stream
+   * @param ownedTaskIds the tasks to check ownership for, a key is owned if it is routed to any
+   *        of them
+   */
+  public FieldsGroupingTasks(List<Integer> tasks, Collection<Integer> ownedTaskIds) {
+    this.tasks = new ArrayList<>(tasks);
+    // Storm indexes into the sorted list of target tasks
+    Collections.sort(this.tasks);
+    this.ownedIndexes = new boolean[this.tasks.size()];
+    boolean found = false;
+    for (final Integer taskId : ownedTaskIds) {
+      final int index = this.tasks.indexOf(taskId);
+      if (index >= 0) {
+        ownedIndexes[index] = true;
+        found = true;
+      }
+    }
+    this.ownsAny = found;
+  }
+
+  /**
+   * Ownership for the task running the given context, for a stream grouped to its own component
+   */
+  public static FieldsGroupingTasks forThisTask(TopologyContext context) {
+    final List<Integer> tasks = context.getComponentTasks(context.getThisComponentId());
+    return new FieldsGroupingTasks(tasks == null ? Collections.<Integer>emptyList() : tasks,
+        context.getThisTaskId());
+  }
+
+  /**
+   * Ownership for all of the tasks of the Bolt running the given context that are in this worker
+   * process, for a stream grouped to its own component
+   */
+  public static FieldsGroupingTasks forThisWorker(TopologyContext context) {
+    final List<Integer> tasks = context.getComponentTasks(context.getThisComponentId());
+    final List<Integer> workerTasks = context.getThisWorkerTasks();
+    return new FieldsGroupingTasks(tasks == null ? Collections.<Integer>emptyList() : tasks,
+        workerTasks == null ? Collections.singletonList(context.getThisTaskId()) : workerTasks);
+  }
+
+  public static int taskIndex(final Object key, final int numTasks) {
+    // Same as TupleUtils.listHashCode() for a one field list
+    final int hash = Arrays.deepHashCode(new Object[] {key});
+    final int index = hash % numTasks;
+    return index < 0 ? index + numTasks : index;
+  }
+
+  public int taskFor(final Object key) {
+    return tasks.get(taskIndex(key, tasks.size()));
+  }
+
+  /**
+   * Returns true if the key is routed to this task. If the task list is not known, for example
+   * when running in a test, every key is considered owned.
+   */
+  public boolean isOwned(final Object key) {
+    if (!ownsAny) {
+      return true;
+    }
+    return ownedIndexes[taskIndex(key, tasks.size())];
+  }
+
+  public int numTasks() {
+    return tasks.size();
+  }
+}
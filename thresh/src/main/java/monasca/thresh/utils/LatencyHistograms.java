@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package monasca.thresh.utils;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.storm.metric.api.IMetric;
+import org.apache.storm.tuple.Tuple;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storm metric holding a latency histogram for each name, for example each stream of a Bolt or
+ * each method of a DAO. Latencies can be recorded from any thread.
+ * <p/>
+ * Each time the metric is read it reports, for each name with latencies recorded since the last
+ * read, the count and the p50, p99, p999 and max latency in microseconds as a Map. The
+ * StatsdMetricConsumer sends the percentiles as gauges.
+ */
+public class LatencyHistograms implements IMetric {
+  public static final int METRICS_TIME_BUCKET_SECONDS = 60;
+  /** Names the Bolts register their metrics under */
+  public static final String EXECUTE_LATENCY = "execute-latency-us";
+  public static final String DB_LATENCY = "db-latency-us";
+  public static final String KAFKA_SEND_LATENCY = "kafka-send-latency-us";
+  public static final String METRIC_TO_ALARM_LATENCY = "metric-to-alarm-latency-us";
+  public static final String COUNT = "count";
+  public static final String P50 = "p50";
+  public static final String P99 = "p99";
+  public static final String P999 = "p999";
+  public static final String MAX = "max";
+
+  private static final int SIGNIFICANT_DIGITS = 2;
+
+  private final ConcurrentMap<String, Recorder> recorders = new ConcurrentHashMap<>();
+  // Only used by the thread reading the metric
+  private final Map<String, Histogram> intervalHistograms = new HashMap<>();
+
+  /**
+   * Records a latency measured with System.nanoTime()
+   */
+  public void record(String name, long latencyNanos) {
+    Recorder recorder = recorders.get(name);
+    if (recorder == null) {
+      recorders.putIfAbsent(name, new Recorder(SIGNIFICANT_DIGITS));
+      recorder = recorders.get(name);
+    }
+    recorder.recordValue(Math.max(TimeUnit.NANOSECONDS.toMicros(latencyNanos), 0));
+  }
+
+  /**
+   * Records the time since startNanos under the tuple's source component and stream, the same
+   * name Storm uses for the execute-count metric
+   */
+  public void recordSince(Tuple tuple, long startNanos) {
+    record(tuple.getSourceComponent() + ":" + tuple.getSourceStreamId(),
+        System.nanoTime() - startNanos);
+  }
+
+  /**
+   * Returns a proxy for the target that records the latency of each call under the name
+   * Type.method
+   */
+  public <T> T timed(final Class<T> type, final T target) {
+    final String prefix = type.getSimpleName() + ".";
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+              return invokeTarget(method, target, args);
+            }
+            final long start = System.nanoTime();
+            try {
+              return invokeTarget(method, target, args);
+            } finally {
+              record(prefix + method.getName(), System.nanoTime() - start);
+            }
+          }
+        }));
+  }
+
+  private static Object invokeTarget(Method method, Object target, Object[] args)
+      throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Override
+  public Object getValueAndReset() {
+    final Map<String, Object> values = new HashMap<>();
+    for (final Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+      final Histogram histogram = entry.getValue().getIntervalHistogram(
+          intervalHistograms.get(entry.getKey()));
+      intervalHistograms.put(entry.getKey(), histogram);
+      if (histogram.getTotalCount() == 0) {
+        continue;
+      }
+      final Map<String, Long> percentiles = new HashMap<>();
+      percentiles.put(COUNT, histogram.getTotalCount());
+      percentiles.put(P50, histogram.getValueAtPercentile(50.0));
+      percentiles.put(P99, histogram.getValueAtPercentile(99.0));
+      percentiles.put(P999, histogram.getValueAtPercentile(99.9));
+      percentiles.put(MAX, histogram.getMaxValue());
+      values.put(entry.getKey(), percentiles);
+    }
+    return values;
+  }
+}
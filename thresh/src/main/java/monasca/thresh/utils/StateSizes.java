@@ -0,0 +1,245 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package monasca.thresh.utils;
+
+import org.apache.storm.metric.api.IMetric;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Storm metric reporting the number of entries in the state a Bolt keeps and an estimate of the
+ * heap they retain, so the growth of the state can be seen before it ends in an
+ * OutOfMemoryError.
+ * <p/>
+ * The estimate is the number of entries times the bytes a typical entry takes on a 64 bit JVM
+ * with compressed oops. The objects are not walked, so entries with many or long dimensions take
+ * more. Storm reads the metric on the executor thread, so the sizes may come from collections
+ * that are only used by that thread.
+ * <p/>
+ * The bytes per entry are derived from the layout of the objects with 12 byte headers, 4 byte
+ * references and sizes rounded up to 8 bytes. A String of n chars is 24 bytes plus a char[] of
+ * 16 + 2n, so a 36 char UUID is 112 bytes. The estimates for the domain objects assume typical
+ * shapes: a 32 char tenant id, a 20 char metric name, 4 dimensions and one sub expression per
+ * Alarm Definition.
+ */
+public class StateSizes implements IMetric {
+  public static final int METRICS_TIME_BUCKET_SECONDS = 60;
+  /** Name the Bolts register the metric under */
+  public static final String STATE_SIZE = "state-size";
+  public static final String SIZE = "size";
+  public static final String ESTIMATED_BYTES = "estimated-bytes";
+
+  /**
+   * An entry of a HashMap, HashSet or ConcurrentHashMap: a Node of 32 with the hash, key, value
+   * and next, and 1.33 to 2.67 slots of 4 in the table at the default load factor
+   */
+  public static final int HASH_MAP_ENTRY_BYTES = 40;
+  /** A HashMap of 48 and its default table of 16 slots, 80, without its entries */
+  public static final int HASH_MAP_BYTES = 128;
+  /** A HashSet of 16 and its HashMap, without its entries */
+  public static final int HASH_SET_BYTES = 16 + HASH_MAP_BYTES;
+  /** A LinkedList Node with the item, next and prev */
+  public static final int LINKED_LIST_ENTRY_BYTES = 24;
+  /** A slot of 4 in an ArrayList's array, which grows by half so it is a fifth empty on average */
+  public static final int ARRAY_LIST_ENTRY_BYTES = 5;
+  /** A Long or Double */
+  public static final int BOXED_BYTES = 16;
+
+  /** A 36 char UUID, the id of an Alarm, Alarm Definition, SubAlarm or sub expression */
+  public static final int UUID_BYTES = 112;
+
+  /**
+   * A MetricDefinitionAndTenantId with a 32 char tenant id, a 20 char metric name and 4
+   * dimensions with 10 char names and 16 char values:
+   * <pre>
+   *   MetricDefinitionAndTenantId                   24
+   *   tenantId                                     104
+   *   MetricDefinition                              24
+   *   name                                          80
+   *   dimensions HashMap and table                 128
+   *   4 HashMap Nodes of 32                        128
+   *   4 dimension names of 64 and values of 72     544
+   * </pre>
+   */
+  public static final int METRIC_DEFINITION_AND_TENANT_ID_BYTES =
+      24 + 104 + 24 + 80 + 128 + 128 + 544;
+
+  /**
+   * A saved Metric with its timestamp and value. Its name and dimensions are the ones of the
+   * MetricDefinition it is saved under so they are not counted
+   */
+  public static final int METRIC_BYTES = 40;
+
+  /**
+   * An AlarmSubExpression with a 20 char metric name and one dimension like service=nova:
+   * <pre>
+   *   AlarmSubExpression                            48
+   *   MetricDefinition                              24
+   *   name                                          80
+   *   dimensions HashMap and table                 128
+   *   HashMap Node                                  32
+   *   "service" and "nova"                         104
+   * </pre>
+   */
+  public static final int ALARM_SUB_EXPRESSION_BYTES = 48 + 24 + 80 + 128 + 32 + 104;
+
+  /** A SubExpression of 24 with its id and AlarmSubExpression */
+  public static final int SUB_EXPRESSION_BYTES = 24 + UUID_BYTES + ALARM_SUB_EXPRESSION_BYTES;
+
+  /**
+   * A SubAlarm, which has its own copy of the AlarmSubExpression:
+   * <pre>
+   *   SubAlarm                                      40
+   *   id, alarmId and alarmSubExpressionId         336
+   *   AlarmSubExpression                           416
+   *   currentValues ArrayList, array and a Double   64
+   * </pre>
+   */
+  public static final int SUB_ALARM_BYTES = 40 + 3 * UUID_BYTES + ALARM_SUB_EXPRESSION_BYTES + 64;
+
+  /**
+   * A SubAlarmStats of a SubAlarm with a period of 60 and 3 periods:
+   * <pre>
+   *   SubAlarmStats                                 32
+   *   SlidingWindowStats                            48
+   *   array of 3 + FUTURE_SLOTS slots               40
+   *   5 Slots of 24 with a Statistic of 32         280
+   *   SubAlarm                                     856
+   * </pre>
+   */
+  public static final int SUB_ALARM_STATS_BYTES = 32 + 48 + 40 + 280 + SUB_ALARM_BYTES;
+
+  /** A SubAlarmStatsRepository of 16 and its HashMap, without its SubAlarmStats */
+  public static final int SUB_ALARM_STATS_REPOSITORY_BYTES = 16 + HASH_MAP_BYTES;
+
+  /**
+   * An Alarm with one SubAlarm and one alarmed metric:
+   * <pre>
+   *   Alarm                                         48
+   *   id and alarmDefinitionId                     224
+   *   subAlarms HashMap, table and Node            160
+   *   SubAlarm                                     856
+   *   alarmedMetrics HashSet, table and Node       176
+   *   MetricDefinitionAndTenantId                 1032
+   *   empty transitionSubAlarms ArrayList           24
+   * </pre>
+   * The state, link and reasons are shared or null in the Bolts so they are not counted.
+   */
+  public static final int ALARM_BYTES = 48 + 2 * UUID_BYTES + 160 + SUB_ALARM_BYTES + 176
+      + METRIC_DEFINITION_AND_TENANT_ID_BYTES + 24;
+
+  /**
+   * An AlarmDefinition with one sub expression, matched by hostname, with a 30 char name and a 60
+   * char description:
+   * <pre>
+   *   AlarmDefinition                               56
+   *   id, tenantId, name, description, severity    528
+   *   AlarmExpression, elements and expression     488
+   *   matchBy ArrayList, array and "hostname"      104
+   *   subExpressions ArrayList and array            48
+   *   SubExpression                                552
+   * </pre>
+   * The compiled expression is built on first use and is not counted.
+   */
+  public static final int ALARM_DEFINITION_BYTES = 56 + UUID_BYTES + 104 + 104 + 160 + 48 + 24
+      + 48 + ALARM_SUB_EXPRESSION_BYTES + 104 + 48 + SUB_EXPRESSION_BYTES;
+
+  /**
+   * A metric added to the MetricDefinitionAndTenantIdMatcher: a LinkedList Node and an
+   * AlarmDefinitionDimensions of 24. The dimensions and Alarm Definition id are shared with the
+   * metric and the Alarm Definition so they are not counted.
+   */
+  public static final int MATCHER_ENTRY_BYTES = LINKED_LIST_ENTRY_BYTES + 24;
+
+  public interface Size {
+    long size();
+  }
+
+  private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+
+  /**
+   * Adds a gauge for the state with the given name
+   *
+   * @param bytesPerEntry estimated bytes retained by each entry, including the collection's own
+   *        overhead for it
+   */
+  public StateSizes add(String name, long bytesPerEntry, Size size) {
+    gauges.put(name, new Gauge(bytesPerEntry, size));
+    return this;
+  }
+
+  public StateSizes add(String name, long bytesPerEntry, final Map<?, ?> map) {
+    return add(name, bytesPerEntry, new Size() {
+      @Override
+      public long size() {
+        return map.size();
+      }
+    });
+  }
+
+  public StateSizes add(String name, long bytesPerEntry, final Collection<?> collection) {
+    return add(name, bytesPerEntry, new Size() {
+      @Override
+      public long size() {
+        return collection.size();
+      }
+    });
+  }
+
+  /**
+   * Returns the total size of the Collections held by the map, for maps like the caches of
+   * Alarms by AlarmDefinition id where the number of values is what matters
+   */
+  public static Size totalSize(final Map<?, ? extends Collection<?>> map) {
+    return new Size() {
+      @Override
+      public long size() {
+        long total = 0;
+        for (final Collection<?> values : map.values()) {
+          total += values.size();
+        }
+        return total;
+      }
+    };
+  }
+
+  @Override
+  public Object getValueAndReset() {
+    final Map<String, Object> values = new HashMap<>();
+    for (final Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      final long size = entry.getValue().size.size();
+      final Map<String, Long> gauge = new HashMap<>();
+      gauge.put(SIZE, size);
+      gauge.put(ESTIMATED_BYTES, size * entry.getValue().bytesPerEntry);
+      values.put(entry.getKey(), gauge);
+    }
+    return values;
+  }
+
+  private static class Gauge {
+    private final long bytesPerEntry;
+    private final Size size;
+
+    private Gauge(long bytesPerEntry, Size size) {
+      this.bytesPerEntry = bytesPerEntry;
+      this.size = size;
+    }
+  }
+}
@@ -36,6 +36,8 @@ public class StatsdConfig implements Serializable {
   private Boolean debugmetrics;
   private Map<String, String> metricmap;
   private Map<String, String> dimensions;
+  private Integer maxpacketbytes;
+  private Integer aggregationwindow;
 
   public Map<String, String> getDimensions() {
     return dimensions;
@@ -85,6 +87,22 @@ public class StatsdConfig implements Serializable {
     this.prefix = prefix;
   }
 
+  public Integer getMaxpacketbytes() {
+    return maxpacketbytes;
+  }
+
+  public void setMaxpacketbytes(Integer maxpacketbytes) {
+    this.maxpacketbytes = maxpacketbytes;
+  }
+
+  public Integer getAggregationwindow() {
+    return aggregationwindow;
+  }
+
+  public void setAggregationwindow(Integer aggregationwindow) {
+    this.aggregationwindow = aggregationwindow;
+  }
+
   public Integer getPort() {
     return port;
   }
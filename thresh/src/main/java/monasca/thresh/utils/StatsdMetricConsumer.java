@@ -25,9 +25,11 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,6 +55,10 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
   public static final String STATSD_WHITELIST = "metrics.statsd.whitelist";
   public static final String STATSD_DIMENSIONS = "metrics.statsd.dimensions";
   public static final String STATSD_DEBUGMETRICS = "metrics.statsd.debugmetrics";
+  public static final String STATSD_MAX_PACKET_BYTES = "metrics.statsd.maxpacketbytes";
+  public static final String STATSD_AGGREGATION_WINDOW = "metrics.statsd.aggregationwindow";
+  /* Fits in one Ethernet frame with room for IP options */
+  public static final int DEFAULT_MAX_PACKET_BYTES = 1432;
 
   private String topologyName;
   private String statsdHost = "localhost";
@@ -61,6 +67,8 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
   private List<String> whiteList = new ArrayList<String>();
   private Map<String, String> metricMap = new HashMap<String, String>();
   private Boolean debugMetrics = false;
+  private int maxPacketBytes = DEFAULT_MAX_PACKET_BYTES;
+  private long aggregationWindowMs = 0;
 
 
   String defaultDimensions = new StringBuilder().append(monascaStatsdDimPrefix)
@@ -93,6 +101,23 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
    * json struct describing the dimensions.
    */
 
+  /*
+   * Metrics are sent together in packets of up to maxPacketBytes, set it to 0
+   * to send each one in its own packet. If aggregationWindow is set to a
+   * number of seconds, the data points of all the tasks are combined over that
+   * window before they are sent. Counters are summed as the StatsD server would
+   * sum them. The gauges of a component are published under one name for all
+   * of its tasks, so the last value of each task is kept and they are combined
+   * by kind: sizes are summed and percentiles take the maximum. Without the
+   * window the StatsD server keeps only the gauge of the last task to report.
+   */
+  private final Map<NameKey, MetricName> metricNames = new HashMap<>();
+  private final StringBuilder packet = new StringBuilder();
+  private final Map<String, Aggregate> aggregates = new LinkedHashMap<>();
+  private long windowStart;
+  private String counterSuffix;
+  private String gaugeSuffix;
+
   transient NonBlockingUdpSender udpclient;
   private transient StatsDClientErrorHandler handler;
   private transient Logger logger;
@@ -111,6 +136,10 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
       parseConfig((Map<?, ?>) registrationArgument);
     }
 
+    counterSuffix = "|c" + statsdDimensions;
+    gaugeSuffix = "|g" + statsdDimensions;
+    windowStart = getCurrentTime();
+
     initClient();
 
     logger.info(
@@ -182,6 +211,15 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
     if (conf.containsKey(STATSD_DEBUGMETRICS)) {
       debugMetrics = (Boolean) conf.get(STATSD_DEBUGMETRICS);
     }
+
+    if (conf.containsKey(STATSD_MAX_PACKET_BYTES)) {
+      maxPacketBytes = ((Number) conf.get(STATSD_MAX_PACKET_BYTES)).intValue();
+    }
+
+    if (conf.containsKey(STATSD_AGGREGATION_WINDOW)) {
+      aggregationWindowMs =
+          ((Number) conf.get(STATSD_AGGREGATION_WINDOW)).longValue() * 1000;
+    }
   }
 
   private String mapToJsonStr(Map<String, String> inputMap) {
@@ -234,17 +272,38 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
   public void handleDataPoints(TaskInfo taskInfo,
       Collection<DataPoint> dataPoints) {
     for (Metric metric : dataPointsToMetrics(taskInfo, dataPoints)) {
-      reportUOM(metric.name, metric.value);
+      reportUOM(metric, taskInfo.srcTaskId);
+    }
+    if (aggregationWindowMs > 0
+        && getCurrentTime() - windowStart >= aggregationWindowMs) {
+      flushAggregates();
     }
+    flushPacket();
   }
 
   public static class Metric {
     String name;
     Double value;
+    boolean gauge;
+    /* A gauge whose values from the tasks are summed instead of the maximum */
+    boolean summed;
+    String mappedName;
+    String publishedName;
 
     public Metric(String name, Double value) {
+      this(name, value, false);
+    }
+
+    public Metric(String name, Double value, boolean gauge) {
       this.name = name;
       this.value = value;
+      this.gauge = gauge;
+    }
+
+    Metric(MetricName metricName, Double value, boolean gauge) {
+      this(metricName.name, value, gauge);
+      this.mappedName = metricName.mappedName;
+      this.publishedName = metricName.publishedName;
     }
 
     @Override
@@ -264,49 +323,125 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
         return false;
       if (value != other.value)
         return false;
+      if (gauge != other.gauge)
+        return false;
       return true;
     }
 
     @Override
     public String toString() {
-      return "Metric [name=" + name + ", value=" + value + "]";
+      return "Metric [name=" + name + ", value=" + value + ", gauge=" + gauge + "]";
+    }
+  }
+
+  /*
+   * The cleaned name of a data point, the name from the metricmap and the name
+   * it is published under, null if it is not in the whitelist. Looked up once
+   * for each data point name so the cleaning, whitelist and metricmap are not
+   * repeated every time the metrics are reported
+   */
+  static class MetricName {
+    final String name;
+    final String mappedName;
+    final String publishedName;
+
+    MetricName(String name, String mappedName, String publishedName) {
+      this.name = name;
+      this.mappedName = mappedName;
+      this.publishedName = publishedName;
+    }
+  }
+
+  /*
+   * The parts Storm gives for a data point: the component, the metric name and
+   * the keys of the nested maps if the value is a map
+   */
+  private static class NameKey {
+    final String component;
+    final String name;
+    final Object subName;
+    final Object key;
+
+    NameKey(String component, String name, Object subName, Object key) {
+      this.component = component;
+      this.name = name;
+      this.subName = subName;
+      this.key = key;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(component, name, subName, key);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof NameKey)) {
+        return false;
+      }
+      final NameKey other = (NameKey) obj;
+      return Objects.equals(component, other.component)
+          && Objects.equals(name, other.name)
+          && Objects.equals(subName, other.subName)
+          && Objects.equals(key, other.key);
     }
   }
 
+  private MetricName metricName(String component, String name, Object subName,
+      Object key) {
+    final NameKey nameKey = new NameKey(component, name, subName, key);
+    MetricName metricName = metricNames.get(nameKey);
+    if (metricName == null) {
+      final StringBuilder sb = new StringBuilder().append(clean(component))
+          .append(".").append(clean(name));
+      if (subName != null) {
+        sb.append(".").append(clean(subName.toString()));
+      }
+      if (key != null) {
+        sb.append(".").append(clean(key.toString()));
+      }
+      final String s = sb.toString();
+      String mappedName = s;
+      if (!metricMap.isEmpty() && metricMap.containsKey(s)) {
+        mappedName = metricMap.get(s);
+      }
+      /* Make sure we don't send metric names that may be null or empty */
+      final boolean published = whiteList.contains(s) && mappedName != null
+          && !mappedName.isEmpty();
+      metricName = new MetricName(s, mappedName, published ? mappedName : null);
+      metricNames.put(nameKey, metricName);
+    }
+    return metricName;
+  }
+
   private List<Metric> dataPointsToMetrics(TaskInfo taskInfo,
       Collection<DataPoint> dataPoints) {
     List<Metric> res = new LinkedList<>();
 
-    StringBuilder sb = new StringBuilder().append(
-        clean(taskInfo.srcComponentId)).append(".");
-
-    int hdrLength = sb.length();
-
     for (DataPoint p : dataPoints) {
 
-      sb.delete(hdrLength, sb.length());
-      sb.append(clean(p.name));
-
       logger.debug("Storm StatsD metric p.name ({}) p.value ({})",
           new Object[] { p.name, p.value });
 
       if (p.value instanceof Number) {
-        res.add(new Metric(sb.toString(), ((Number) p.value).doubleValue()));
+        res.add(new Metric(metricName(taskInfo.srcComponentId, p.name, null,
+            null), ((Number) p.value).doubleValue(), false));
       }
       // There is a map of data points and it's not empty
       else if (p.value instanceof Map &&
           !(((Map<?, ?>) (p.value)).isEmpty())) {
-        int hdrAndNameLength = sb.length();
         @SuppressWarnings("rawtypes")
         Map map = (Map) p.value;
         for (Object subName : map.keySet()) {
           Object subValue = map.get(subName);
           if (subValue instanceof Number) {
-            sb.delete(hdrAndNameLength, sb.length());
-            sb.append(".").append(clean(subName.toString()));
-
-            res.add(new Metric(sb.toString(),
-                ((Number) subValue).doubleValue()));
+            res.add(new Metric(metricName(taskInfo.srcComponentId, p.name,
+                subName, null), ((Number) subValue).doubleValue(), false));
+          }
+          // A map of percentiles from LatencyHistograms or sizes from StateSizes
+          else if (subValue instanceof Map) {
+            addGauges(res, taskInfo.srcComponentId, p.name, subName,
+                (Map<?, ?>) subValue);
           }
         }
       }
@@ -314,6 +449,24 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
     return res;
   }
 
+  /*
+   * The percentiles and sizes are a snapshot at the time of the report so
+   * they are sent as gauges, only the count of latencies is a counter
+   */
+  private void addGauges(List<Metric> res, String component, String name,
+      Object subName, Map<?, ?> values) {
+    for (Map.Entry<?, ?> entry : values.entrySet()) {
+      if (entry.getValue() instanceof Number) {
+        final Metric metric = new Metric(metricName(component, name, subName,
+            entry.getKey()), ((Number) entry.getValue()).doubleValue(),
+            !LatencyHistograms.COUNT.equals(entry.getKey()));
+        metric.summed = StateSizes.SIZE.equals(entry.getKey())
+            || StateSizes.ESTIMATED_BYTES.equals(entry.getKey());
+        res.add(metric);
+      }
+    }
+  }
+
   /*
    * Since the Java client doesn't support the Monasca metric type we need to
    * build it with a raw UDP request
@@ -329,27 +482,7 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
     }
   }
 
-  private void reportUOM(String s, Double number) {
-    String metricName = null;
-    StringBuilder results = new StringBuilder();
-    Boolean published = false;
-
-    if (whiteList.contains(s)) {
-
-      if (!metricMap.isEmpty() && metricMap.containsKey(s)) {
-        metricName = metricMap.get(s);
-      }
-      /* Send the unmapped uom as the same name storm calls it */
-      else {
-        metricName = s;
-      }
-
-      /* Make sure we don't send metric names that may be null or empty */
-      if (metricName != null && !metricName.isEmpty()) {
-        published = true;
-      }
-    }
-
+  private void reportUOM(Metric metric, int taskId) {
     /*
      * To enable debug message, you also need to add an entry like this:
      *
@@ -364,32 +497,107 @@ public class StatsdMetricConsumer implements IMetricsConsumer {
     */
 
     if (debugMetrics) {
-      String mappedName = new String();
-
-      if (!metricMap.isEmpty() && metricMap.containsKey(s)) {
-        mappedName = metricMap.get(s);
-      }
-      else {
-        mappedName = s;
-      }
-
       logger.info(", RawMetricName, {}, MappedMetricName, {}, "
           + "val, {}, {}", new Object[]
-          { s, mappedName, number,
-              published == true ? "PUBLISHED" : "UNPUBLISHED"});
+          { metric.name, metric.mappedName, metric.value,
+              metric.publishedName != null ? "PUBLISHED" : "UNPUBLISHED"});
+    }
+
+    if (metric.publishedName == null) {
+      return;
+    }
+    if (aggregationWindowMs > 0) {
+      aggregate(metric, taskId);
+    }
+    else {
+      append(metric.publishedName, metric.value, metric.gauge);
+    }
+  }
+
+  /*
+   * Keeps the sum of the counters and the last value of the gauges from each
+   * task
+   */
+  private void aggregate(Metric metric, int taskId) {
+    Aggregate aggregate = aggregates.get(metric.publishedName);
+    if (aggregate == null) {
+      aggregate = new Aggregate(metric.gauge, metric.summed);
+      aggregates.put(metric.publishedName, aggregate);
+    }
+    if (metric.gauge) {
+      aggregate.taskValues.put(taskId, metric.value);
     }
+    else {
+      aggregate.value += metric.value;
+    }
+  }
 
-    if (published) {
-      results = results.append(metricName).append(":")
-          .append(String.valueOf(number)).append("|c")
-          .append(statsdDimensions);
+  private void flushAggregates() {
+    for (Map.Entry<String, Aggregate> entry : aggregates.entrySet()) {
+      append(entry.getKey(), entry.getValue().value(), entry.getValue().gauge);
+    }
+    aggregates.clear();
+    windowStart = getCurrentTime();
+  }
 
-      report(results.toString());
+  /*
+   * Adds the metric to the packet being built. The metrics are separated by
+   * newlines, which the Monasca StatsD server splits the packets on
+   */
+  private void append(String name, double value, boolean gauge) {
+    final String suffix = gauge ? gaugeSuffix : counterSuffix;
+    final int length = name.length() + 1 + String.valueOf(value).length()
+        + suffix.length();
+    if (packet.length() > 0
+        && packet.length() + 1 + length > maxPacketBytes) {
+      flushPacket();
     }
+    if (packet.length() > 0) {
+      packet.append('\n');
+    }
+    packet.append(name).append(':').append(value).append(suffix);
+  }
+
+  private void flushPacket() {
+    if (packet.length() > 0) {
+      report(packet.toString());
+      packet.setLength(0);
+    }
+  }
+
+  private static class Aggregate {
+    final boolean gauge;
+    final boolean summed;
+    double value;
+    final Map<Integer, Double> taskValues = new HashMap<>();
+
+    Aggregate(boolean gauge, boolean summed) {
+      this.gauge = gauge;
+      this.summed = summed;
+    }
+
+    double value() {
+      if (!gauge) {
+        return value;
+      }
+      double result = summed ? 0 : Double.NEGATIVE_INFINITY;
+      for (Double taskValue : taskValues.values()) {
+        result = summed ? result + taskValue : Math.max(result, taskValue);
+      }
+      return result;
+    }
+  }
+
+  protected long getCurrentTime() {
+    return System.currentTimeMillis();
   }
 
   @Override
   public void cleanup() {
-    udpclient.stop();
+    flushAggregates();
+    flushPacket();
+    if (udpclient != null) {
+      udpclient.stop();
+    }
   }
 }
@@ -42,6 +42,8 @@ import monasca.common.util.Injector;
 import monasca.common.util.Serialization;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.AlarmStateUpdate;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
@@ -49,6 +51,7 @@ import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
 import monasca.thresh.infrastructure.thresholding.AlarmEventForwarder;
+import monasca.thresh.infrastructure.thresholding.AlarmWarmup;
 import monasca.thresh.infrastructure.thresholding.EventProcessingBoltTest;
 import monasca.thresh.infrastructure.thresholding.MetricAggregationBolt;
 import monasca.thresh.infrastructure.thresholding.MetricFilteringBoltTest;
@@ -69,6 +72,7 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -168,7 +172,7 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
         final Object[] args = invocation.getArguments();
-        AlarmStateTransitionedEvent event = Serialization.fromJson((String) args[0]);
+        AlarmStateTransitionedEvent event = Serialization.fromJson((String) args[1]);
         System.out.printf("Alarm transitioned from %s to %s%n", event.oldState, event.newState);
         assertEquals(event.alarmName, expectedAlarmName);
         assertEquals(event.alarmDefinitionId, expectedAlarmDefinitionId);
@@ -182,7 +186,7 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
         alarmsSent++;
         return null;
       }
-    }).when(alarmEventForwarder).send(anyString());
+    }).when(alarmEventForwarder).send(anyString(), anyString());
     final AlarmExpression initialExpression = new AlarmExpression(
         "max(hpcs.compute.cpu{id=5}) >= 556 or max(hpcs.compute.mem{id=5}) >= 557");
 
@@ -388,6 +392,17 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
       return null;
     }
 
+    @Override
+    public List<Alarm> findByIds(Collection<String> ids) {
+      final List<Alarm> result = new LinkedList<>();
+      for (final Alarm alarm : alarms) {
+        if (ids.contains(alarm.getId())) {
+          result.add(alarm);
+        }
+      }
+      return result;
+    }
+
     @Override
     public List<Alarm> findForAlarmDefinitionId(String alarmDefinitionId) {
       final List<Alarm> result = new LinkedList<>();
@@ -404,21 +419,69 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
       return alarms;
     }
 
+    @Override
+    public void listAll(AlarmCallback callback) {
+      listAll(null, null, callback);
+    }
+
+    @Override
+    public void listAll(String fromId, String toId, AlarmCallback callback) {
+      for (final Alarm alarm : alarms) {
+        if (AlarmWarmup.inRange(alarm.getId(), fromId, toId)) {
+          callback.onAlarm(alarm);
+        }
+      }
+    }
+
+    @Override
+    public List<String> listAllIds() {
+      final List<String> result = new LinkedList<>();
+      for (final Alarm alarm : alarms) {
+        result.add(alarm.getId());
+      }
+      return result;
+    }
+
     @Override
     public void updateState(String id, AlarmState state, long msTimeStamp) {
       findById(id).setState(state);
     }
 
+    @Override
+    public void updateStates(Collection<AlarmStateUpdate> updates) {
+      // Written after the fact, so the Alarm may already have been deleted
+      for (final AlarmStateUpdate update : updates) {
+        for (final Alarm alarm : alarms) {
+          if (alarm.getId().equals(update.getAlarmId())) {
+            alarm.setState(update.getState());
+          }
+        }
+      }
+    }
+
     @Override
     public void addAlarmedMetric(String id, MetricDefinitionAndTenantId metricDefinition) {
       findById(id).addAlarmedMetric(metricDefinition);
     }
 
+    @Override
+    public void addAlarmedMetrics(Collection<AlarmedMetric> alarmedMetrics) {
+      for (final AlarmedMetric alarmedMetric : alarmedMetrics) {
+        addAlarmedMetric(alarmedMetric.getAlarm().getId(),
+            alarmedMetric.getMetricDefinitionAndTenantId());
+      }
+    }
+
     @Override
     public void createAlarm(Alarm newAlarm) {
       alarms.add(newAlarm);
     }
 
+    @Override
+    public void createAlarms(Collection<Alarm> newAlarms) {
+      alarms.addAll(newAlarms);
+    }
+
     @Override
     public int updateSubAlarmExpressions(String alarmSubExpressionId,
         AlarmSubExpression alarmSubExpression) {
@@ -445,6 +508,13 @@ public class ThresholdingEngineAlarmTest extends TopologyTestCase {
       }
     }
 
+    @Override
+    public void updateSubAlarmStates(Map<String, AlarmState> subAlarmStates) {
+      for (final Map.Entry<String, AlarmState> entry : subAlarmStates.entrySet()) {
+        updateSubAlarmState(entry.getKey(), entry.getValue());
+      }
+    }
+
     public boolean deleteAlarm(final Alarm toDelete) {
       for (final Alarm alarm : alarms) {
         if (alarm.getId().equals(toDelete.getId())) {
@@ -43,6 +43,7 @@ import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
 import monasca.thresh.infrastructure.thresholding.AlarmEventForwarder;
+import monasca.thresh.infrastructure.thresholding.AlarmWarmup;
 import monasca.thresh.infrastructure.thresholding.MetricFilteringBolt;
 import monasca.thresh.infrastructure.thresholding.MetricSpout;
 import monasca.thresh.infrastructure.thresholding.ProducerModule;
@@ -331,6 +332,20 @@ public class ThresholdingEngineTest extends TopologyTestCase {
     when(alarmDefinitionDAO.listAll()).thenReturn(Arrays.asList(alarmDefinition));
 
     when(alarmDAO.listAll()).thenReturn(Arrays.asList(alarm));
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        final String fromId = (String) invocation.getArguments()[0];
+        final String toId = (String) invocation.getArguments()[1];
+        final AlarmDAO.AlarmCallback callback =
+            (AlarmDAO.AlarmCallback) invocation.getArguments()[2];
+        if (AlarmWarmup.inRange(alarm.getId(), fromId, toId)) {
+          callback.onAlarm(alarm);
+        }
+        return null;
+      }
+    }).when(alarmDAO).listAll(any(String.class), any(String.class),
+        any(AlarmDAO.AlarmCallback.class));
     when(alarmDAO.findById(alarm.getId())).thenReturn(alarm);
     when(alarmDAO.findForAlarmDefinitionId(alarmDefinition.getId())).thenReturn(Arrays.asList(alarm));
     shouldThreshold(thresholdSpec);
@@ -359,7 +374,7 @@ public class ThresholdingEngineTest extends TopologyTestCase {
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
         final Object[] args = invocation.getArguments();
-        AlarmStateTransitionedEvent event = Serialization.fromJson((String) args[0]);
+        AlarmStateTransitionedEvent event = Serialization.fromJson((String) args[1]);
         alarmsSent++;
         System.out.printf("Alarm transitioned from %s to %s%n", event.oldState, event.newState);
         assertEquals(event.alarmDefinitionId, thresholdSpec.alarmDefinitionId);
@@ -396,7 +411,7 @@ public class ThresholdingEngineTest extends TopologyTestCase {
         previousState = event.newState;
         return null;
       }
-    }).when(alarmEventForwarder).send(anyString());
+    }).when(alarmEventForwarder).send(anyString(), anyString());
 
     doAnswer(new Answer<Object>() {
       public Object answer(InvocationOnMock invocation) {
@@ -20,6 +20,9 @@ package monasca.thresh.domain.model;
 
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
 import static org.testng.Assert.assertTrue;
 
 import monasca.common.model.alarm.AggregateFunction;
@@ -273,4 +276,83 @@ public class AlarmTest {
     );
   }
 
+  public void shouldEvaluateCompiledExpressionSameAsExpression() {
+    final AlarmExpression expr =
+        new AlarmExpression(
+            "(avg(cpu{hostname=a}) > 90 or max(mem{hostname=a}) > 80) and avg(load{hostname=a}) > 5 or max(disk{hostname=a}) > 95");
+    final AlarmDefinition alarmDefinition =
+        new AlarmDefinition("42", "Test Def", "", expr, "LOW", true, new ArrayList<String>(0));
+    assertNotNull(alarmDefinition.getCompiledExpression());
+
+    final Alarm compiledAlarm = new Alarm(alarmDefinition);
+    final Alarm alarm = new Alarm(alarmDefinition);
+    final Map<String, SubAlarm> compiledSubAlarms = new HashMap<>();
+    for (final SubAlarm subAlarm : compiledAlarm.getSubAlarms()) {
+      compiledSubAlarms.put(subAlarm.getAlarmSubExpressionId(), subAlarm);
+    }
+
+    final AlarmState[] states = AlarmState.values();
+    final int numSubAlarms = expr.getSubExpressions().size();
+    int combinations = 1;
+    for (int i = 0; i < numSubAlarms; i++) {
+      combinations *= states.length;
+    }
+    for (int combination = 0; combination < combinations; combination++) {
+      int remaining = combination;
+      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+        final AlarmState state = states[remaining % states.length];
+        remaining /= states.length;
+        subAlarm.setState(state);
+        compiledSubAlarms.get(subAlarm.getAlarmSubExpressionId()).setState(state);
+      }
+      assertEquals(compiledAlarm.evaluate(alarmDefinition), alarm.evaluate(expr));
+      assertEquals(compiledAlarm.getState(), alarm.getState());
+    }
+  }
+
+  public void shouldOnlyBuildTransitionSubAlarmsOnStateChange() {
+    final AlarmExpression expr =
+        new AlarmExpression("avg(cpu{hostname=a}) > 90 and max(mem{hostname=a}) > 80");
+    final AlarmDefinition alarmDefinition =
+        new AlarmDefinition("42", "Test Def", "", expr, "LOW", true, new ArrayList<String>(0));
+    final Alarm alarm = new Alarm(alarmDefinition);
+    for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+      subAlarm.setState(AlarmState.OK);
+    }
+
+    assertTrue(alarm.evaluate(alarmDefinition));
+    final List<AlarmTransitionSubAlarm> transitionSubAlarms = alarm.getTransitionSubAlarms();
+    assertEquals(transitionSubAlarms.size(), 2);
+
+    assertFalse(alarm.evaluate(alarmDefinition));
+    assertSame(alarm.getTransitionSubAlarms(), transitionSubAlarms);
+
+    for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+      subAlarm.setState(AlarmState.ALARM);
+    }
+    assertTrue(alarm.evaluate(alarmDefinition));
+    assertEquals(alarm.getState(), AlarmState.ALARM);
+    assertNotSame(alarm.getTransitionSubAlarms(), transitionSubAlarms);
+  }
+
+  public void shouldRecompileWhenExpressionChanges() {
+    final AlarmExpression expr =
+        new AlarmExpression("avg(cpu{hostname=a}) > 90 and max(mem{hostname=a}) > 80");
+    final AlarmDefinition alarmDefinition =
+        new AlarmDefinition("42", "Test Def", "", expr, "LOW", true, new ArrayList<String>(0));
+    final Alarm alarm = new Alarm(alarmDefinition);
+    final Iterator<SubAlarm> iter = alarm.getSubAlarms().iterator();
+    iter.next().setState(AlarmState.ALARM);
+    iter.next().setState(AlarmState.OK);
+
+    final CompiledAlarmExpression compiled = alarmDefinition.getCompiledExpression();
+    assertSame(alarmDefinition.getCompiledExpression(), compiled);
+    assertTrue(alarm.evaluate(alarmDefinition));
+    assertEquals(alarm.getState(), AlarmState.OK);
+
+    alarmDefinition.setExpression("avg(cpu{hostname=a}) > 90 or max(mem{hostname=a}) > 80");
+    assertNotSame(alarmDefinition.getCompiledExpression(), compiled);
+    assertTrue(alarm.evaluate(alarmDefinition));
+    assertEquals(alarm.getState(), AlarmState.ALARM);
+  }
 }
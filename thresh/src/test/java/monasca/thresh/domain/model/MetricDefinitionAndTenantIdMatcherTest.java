@@ -19,6 +19,7 @@ package monasca.thresh.domain.model;
 
 import static org.testng.Assert.assertEqualsNoOrder;
 import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
 
 import monasca.common.model.metric.MetricDefinition;
@@ -135,6 +136,7 @@ public class MetricDefinitionAndTenantIdMatcherTest {
 
     // Add it twice just to make sure that doesn't cause problems
     matcher.add(groupMatch, groupMatchId);
+    assertEquals(matcher.size(), 4);
 
     verifyMatch(toMatch, noMatchId, hostMatchId, groupMatchId);
 
@@ -159,6 +161,7 @@ public class MetricDefinitionAndTenantIdMatcherTest {
             dimensions)), tenantId);
     final String loadMetricId = getNextId();
     matcher.add(loadMetric, loadMetricId);
+    assertEquals(matcher.size(), 3);
 
     matcher.remove(hostMatch, hostMatchId);
     verifyNoMatch(toMatch);
@@ -170,6 +173,7 @@ public class MetricDefinitionAndTenantIdMatcherTest {
     matcher.remove(loadMetric, loadMetricId);
     matcher.remove(nullMatch, nullMatchId);
     assertTrue(matcher.isEmpty());
+    assertEquals(matcher.size(), 0);
     verifyNoMatch(toMatch);
   }
 
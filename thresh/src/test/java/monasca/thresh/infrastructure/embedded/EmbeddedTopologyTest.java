@@ -0,0 +1,203 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.embedded;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import monasca.thresh.utils.Tuples;
+
+import org.apache.storm.Config;
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.task.TopologyContext;
+import org.apache.storm.topology.OutputFieldsDeclarer;
+import org.apache.storm.topology.TopologyBuilder;
+import org.apache.storm.topology.base.BaseRichBolt;
+import org.apache.storm.topology.base.BaseRichSpout;
+import org.apache.storm.tuple.Fields;
+import org.apache.storm.tuple.Tuple;
+import org.apache.storm.tuple.Values;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@Test
+public class EmbeddedTopologyTest {
+  private static final int COUNT = 10000;
+  private static final int NUM_KEYS = 50;
+  private static final String DIRECT_STREAM = "direct";
+
+  /** key -> tasks that received it */
+  private static final ConcurrentMap<String, Set<Integer>> keyTasks = new ConcurrentHashMap<>();
+  private static final AtomicInteger counted = new AtomicInteger();
+  private static final AtomicInteger direct = new AtomicInteger();
+  private static final AtomicInteger ticks = new AtomicInteger();
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    keyTasks.clear();
+    counted.set(0);
+    direct.set(0);
+    ticks.set(0);
+  }
+
+  public void shouldDeliverAllTuples() throws Exception {
+    final TopologyBuilder builder = new TopologyBuilder();
+    builder.setSpout("spout", new CountingSpout(), 2);
+    builder.setBolt("counting", new CountingBolt(), 4).fieldsGrouping("spout", new Fields("key"));
+    builder.setBolt("direct", new DirectBolt(), 3).directGrouping("counting", DIRECT_STREAM);
+
+    final EmbeddedTopology topology =
+        new EmbeddedTopology("test", new HashMap<String, Object>(), builder.createTopology(), 2);
+    topology.start();
+    try {
+      waitFor(direct, 2 * COUNT);
+    } finally {
+      topology.close();
+    }
+
+    assertEquals(counted.get(), 2 * COUNT);
+    assertEquals(direct.get(), 2 * COUNT);
+    assertEquals(keyTasks.size(), NUM_KEYS);
+    for (final Map.Entry<String, Set<Integer>> entry : keyTasks.entrySet()) {
+      assertEquals(entry.getValue().size(), 1, "Key " + entry.getKey() + " on several tasks");
+    }
+  }
+
+  public void shouldSendTickTuples() throws Exception {
+    final TopologyBuilder builder = new TopologyBuilder();
+    builder.setSpout("spout", new CountingSpout(), 1);
+    builder.setBolt("counting", new CountingBolt(), 1).shuffleGrouping("spout")
+        .addConfiguration(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, 1);
+
+    final EmbeddedTopology topology =
+        new EmbeddedTopology("test", new HashMap<String, Object>(), builder.createTopology(), 1);
+    topology.start();
+    try {
+      waitFor(ticks, 1);
+    } finally {
+      topology.close();
+    }
+    assertTrue(ticks.get() >= 1);
+  }
+
+  private static void waitFor(AtomicInteger counter, int expected) throws InterruptedException {
+    final long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+    while (counter.get() < expected && System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static class CountingSpout extends BaseRichSpout {
+    private static final long serialVersionUID = 1L;
+    private SpoutOutputCollector collector;
+    private int emitted;
+
+    @Override
+    public void open(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+        SpoutOutputCollector collector) {
+      this.collector = collector;
+    }
+
+    @Override
+    public void nextTuple() {
+      if (emitted < COUNT) {
+        collector.emit(new Values("key-" + (emitted % NUM_KEYS), emitted));
+        emitted++;
+      }
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+      declarer.declare(new Fields("key", "value"));
+    }
+  }
+
+  private static class CountingBolt extends BaseRichBolt {
+    private static final long serialVersionUID = 1L;
+    private OutputCollector collector;
+    private int taskId;
+    private List<Integer> directTasks;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+        OutputCollector collector) {
+      this.collector = collector;
+      this.taskId = context.getThisTaskId();
+      this.directTasks = context.getComponentTasks("direct");
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+      if (Tuples.isTickTuple(tuple)) {
+        ticks.incrementAndGet();
+        collector.ack(tuple);
+        return;
+      }
+      final String key = tuple.getString(0);
+      Set<Integer> tasks = keyTasks.get(key);
+      if (tasks == null) {
+        keyTasks.putIfAbsent(key, new CopyOnWriteArraySet<Integer>());
+        tasks = keyTasks.get(key);
+      }
+      tasks.add(taskId);
+      counted.incrementAndGet();
+      if (!directTasks.isEmpty()) {
+        final int target = directTasks.get(tuple.getInteger(1) % directTasks.size());
+        collector.emitDirect(target, DIRECT_STREAM, tuple, new Values(key));
+      }
+      collector.ack(tuple);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+      declarer.declareStream(DIRECT_STREAM, true, new Fields("key"));
+    }
+  }
+
+  private static class DirectBolt extends BaseRichBolt {
+    private static final long serialVersionUID = 1L;
+    private OutputCollector collector;
+
+    @Override
+    public void prepare(@SuppressWarnings("rawtypes") Map conf, TopologyContext context,
+        OutputCollector collector) {
+      this.collector = collector;
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+      direct.incrementAndGet();
+      collector.ack(tuple);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    }
+  }
+}
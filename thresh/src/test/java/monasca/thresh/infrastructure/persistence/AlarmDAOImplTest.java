@@ -27,10 +27,12 @@ import monasca.common.model.alarm.AlarmState;
 import monasca.common.model.metric.MetricDefinition;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.service.AlarmDAO;
+import monasca.thresh.infrastructure.thresholding.AlarmWarmup;
 
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Handle;
@@ -150,6 +152,31 @@ public class AlarmDAOImplTest {
     verifyAlarmList(dao.findForAlarmDefinitionId(secondAlarmDef.getId()), thirdAlarm);
 
     verifyAlarmList(dao.listAll(), firstAlarm, secondAlarm, thirdAlarm);
+
+    verifyAlarmList(streamAll(), firstAlarm, secondAlarm, thirdAlarm);
+
+    final List<Alarm> partitioned = new ArrayList<>();
+    final List<String> bounds = AlarmWarmup.partitionBounds(2);
+    for (int i = 0; i < 2; i++) {
+      dao.listAll(bounds.get(i), bounds.get(i + 1), new AlarmDAO.AlarmCallback() {
+        @Override
+        public void onAlarm(Alarm alarm) {
+          partitioned.add(alarm);
+        }
+      });
+    }
+    verifyAlarmList(partitioned, firstAlarm, secondAlarm, thirdAlarm);
+  }
+
+  private List<Alarm> streamAll() {
+    final List<Alarm> alarms = new ArrayList<>();
+    dao.listAll(new AlarmDAO.AlarmCallback() {
+      @Override
+      public void onAlarm(Alarm alarm) {
+        alarms.add(alarm);
+      }
+    });
+    return alarms;
   }
 
   private void verifyAlarmList(final List<Alarm> found, Alarm... expected) {
@@ -182,6 +209,51 @@ public class AlarmDAOImplTest {
     assertEquals(dao.findById(newAlarm.getId()), newAlarm);
   }
 
+  public void shouldCreateAlarmsInBulk() {
+    final Alarm firstAlarm = new Alarm(alarmDef, AlarmState.OK);
+    firstAlarm.addAlarmedMetric(newMetric);
+
+    // Shares the metric with the first alarm and has one without dimensions
+    final Alarm secondAlarm = new Alarm(alarmDef, AlarmState.OK);
+    secondAlarm.addAlarmedMetric(newMetric);
+    secondAlarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition("cpu",
+        new HashMap<String, String>()), TENANT_ID));
+
+    dao.createAlarms(Arrays.asList(firstAlarm, secondAlarm));
+
+    verifyAlarmList(dao.findForAlarmDefinitionId(alarmDef.getId()), firstAlarm, secondAlarm);
+
+    final Map<String, String> dimensions = new HashMap<String, String>();
+    dimensions.put("first", "first_value");
+    dimensions.put("third", "third_value");
+    final MetricDefinitionAndTenantId anotherMetric =
+        new MetricDefinitionAndTenantId(new MetricDefinition("load", dimensions), TENANT_ID);
+    dao.addAlarmedMetrics(Arrays.asList(new AlarmedMetric(anotherMetric, firstAlarm),
+        new AlarmedMetric(anotherMetric, secondAlarm)));
+    firstAlarm.addAlarmedMetric(anotherMetric);
+    secondAlarm.addAlarmedMetric(anotherMetric);
+
+    assertEquals(dao.findById(firstAlarm.getId()), firstAlarm);
+    assertEquals(dao.findById(secondAlarm.getId()), secondAlarm);
+  }
+
+  public void shouldFindByIds() {
+    final Alarm firstAlarm = new Alarm(alarmDef, AlarmState.OK);
+    firstAlarm.addAlarmedMetric(newMetric);
+    final Alarm secondAlarm = new Alarm(alarmDef, AlarmState.ALARM);
+    final Alarm thirdAlarm = new Alarm(alarmDef, AlarmState.OK);
+    thirdAlarm.addAlarmedMetric(newMetric);
+    dao.createAlarms(Arrays.asList(firstAlarm, secondAlarm, thirdAlarm));
+
+    verifyAlarmList(dao.findByIds(Arrays.asList(firstAlarm.getId(), thirdAlarm.getId(),
+        "not-an-alarm")), firstAlarm, thirdAlarm);
+
+    final List<String> ids = dao.listAllIds();
+    assertEquals(ids.size(), 3);
+    assertTrue(ids.containsAll(Arrays.asList(firstAlarm.getId(), secondAlarm.getId(),
+        thirdAlarm.getId())));
+  }
+
   public void checkComplexMetrics() {
     final Alarm newAlarm = new Alarm(alarmDef, AlarmState.ALARM);
 
@@ -134,6 +134,31 @@ public class AlarmDefinitionDAOImplTest {
     verifyListAllMatches(alarmDefinition, alarmDefinition2, alarmDefinition3);
   }
 
+  public void testListAllAssemblesSubExpressionsPerDefinition() {
+    final AlarmExpression expression = new AlarmExpression(
+        "max(cpu{service=nova,hostname=h1}) > 90 or avg(mem{service=nova}) > 80");
+    final AlarmDefinition alarmDefinition =
+        new AlarmDefinition(TENANT_ID, ALARM_NAME, ALARM_DESCR, expression, "LOW",
+            false, Arrays.asList("hostname"));
+    insertAlarmDefinition(handle, alarmDefinition);
+
+    final AlarmExpression expression2 = new AlarmExpression(
+        "min(disk{device=sda,mount=/,service=swift}) < 10 and count(errors) > 5");
+    final AlarmDefinition alarmDefinition2 =
+        new AlarmDefinition(TENANT_ID, ALARM_NAME, ALARM_DESCR, expression2, "HIGH",
+            true, Arrays.<String>asList());
+    insertAlarmDefinition(handle, alarmDefinition2);
+
+    final AlarmDefinition deletedAlarmDefinition =
+        new AlarmDefinition(TENANT_ID, ALARM_NAME, ALARM_DESCR,
+            new AlarmExpression("max(cpu) > 10"), "LOW", false, Arrays.<String>asList());
+    insertAlarmDefinition(handle, deletedAlarmDefinition);
+    handle.execute("update alarm_definition set deleted_at=NOW() where id=?",
+        deletedAlarmDefinition.getId());
+
+    verifyListAllMatches(alarmDefinition, alarmDefinition2);
+  }
+
   private void insertAndCheck(final AlarmDefinition alarmDefinition) {
     insertAlarmDefinition(handle, alarmDefinition);
 
@@ -0,0 +1,90 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.persistence;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import monasca.thresh.infrastructure.thresholding.DataSourceFactory;
+
+import com.zaxxer.hikari.HikariConfig;
+
+import org.testng.annotations.Test;
+
+import java.util.Properties;
+
+@Test
+public class JdbiConnectionPoolTest {
+
+  private DataSourceFactory createConfig(String driverClass) {
+    final DataSourceFactory dbConfig = new DataSourceFactory();
+    dbConfig.setDriverClass(driverClass);
+    dbConfig.setUrl("jdbc:mysql://localhost:3306/mon");
+    dbConfig.setUser("thresh");
+    dbConfig.setPassword("password");
+    dbConfig.setMinSize("8");
+    dbConfig.setMaxSize("41");
+    dbConfig.setMaxWaitForConnection("1s");
+    return dbConfig;
+  }
+
+  public void shouldSizePoolFromConfig() {
+    final HikariConfig config =
+        JdbiConnectionPool.createConfig(createConfig("com.mysql.jdbc.Driver"));
+    assertEquals(config.getMinimumIdle(), 8);
+    assertEquals(config.getMaximumPoolSize(), 41);
+    assertEquals(config.getConnectionTimeout(), 1000);
+    assertEquals(config.getJdbcUrl(), "jdbc:mysql://localhost:3306/mon");
+    assertEquals(config.getUsername(), "thresh");
+  }
+
+  public void shouldCacheMySQLPreparedStatements() {
+    final DataSourceFactory dbConfig = createConfig("com.mysql.jdbc.Driver");
+    final Properties properties = new Properties();
+    properties.setProperty("prepStmtCacheSize", "500");
+    dbConfig.setProperties(properties);
+    final HikariConfig config = JdbiConnectionPool.createConfig(dbConfig);
+    assertEquals(config.getDataSourceProperties().getProperty("cachePrepStmts"), "true");
+    assertEquals(config.getDataSourceProperties().getProperty("prepStmtCacheSize"), "500");
+  }
+
+  public void shouldNotAddMySQLPropertiesForOtherDrivers() {
+    final HikariConfig config =
+        JdbiConnectionPool.createConfig(createConfig("org.postgresql.Driver"));
+    assertNull(config.getDataSourceProperties().getProperty("cachePrepStmts"));
+  }
+
+  public void shouldDefaultMissingOrInvalidSizes() {
+    final DataSourceFactory dbConfig = createConfig("com.mysql.jdbc.Driver");
+    dbConfig.setMinSize(null);
+    dbConfig.setMaxSize("many");
+    final HikariConfig config = JdbiConnectionPool.createConfig(dbConfig);
+    assertEquals(config.getMinimumIdle(), JdbiConnectionPool.MIN_SIZE_DEFAULT);
+    assertEquals(config.getMaximumPoolSize(), JdbiConnectionPool.MAX_SIZE_DEFAULT);
+  }
+
+  public void shouldParseDurations() {
+    assertEquals(JdbiConnectionPool.parseDurationMs("1s", 5), 1000);
+    assertEquals(JdbiConnectionPool.parseDurationMs("250ms", 5), 250);
+    assertEquals(JdbiConnectionPool.parseDurationMs("2 seconds", 5), 2000);
+    assertEquals(JdbiConnectionPool.parseDurationMs("1m", 5), 60000);
+    assertEquals(JdbiConnectionPool.parseDurationMs("300", 5), 300);
+    assertEquals(JdbiConnectionPool.parseDurationMs("soon", 5), 5);
+    assertEquals(JdbiConnectionPool.parseDurationMs(null, 5), 5);
+  }
+}
@@ -19,6 +19,7 @@ import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 import static org.testng.AssertJUnit.assertNull;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -139,6 +140,8 @@ public class AlarmSqlImplTest {
     verifyAlarmList(dao.findForAlarmDefinitionId(secondAlarmDef.getId()), thirdAlarm);
 
     verifyAlarmList(dao.listAll(), firstAlarm, secondAlarm, thirdAlarm);
+
+    verifyAlarmList(streamAll(), firstAlarm, secondAlarm, thirdAlarm);
   }
 
   @Test(groups = "orm")
@@ -150,6 +153,17 @@ public class AlarmSqlImplTest {
     assertEquals(dao.findById(newAlarm.getId()).getState(), AlarmState.ALARM);
   }
 
+  private List<Alarm> streamAll() {
+    final List<Alarm> alarms = new ArrayList<>();
+    dao.listAll(new AlarmDAO.AlarmCallback() {
+      @Override
+      public void onAlarm(Alarm alarm) {
+        alarms.add(alarm);
+      }
+    });
+    return alarms;
+  }
+
   private void verifyAlarmList(final List<Alarm> found, Alarm... expected) {
     assertEquals(found.size(), expected.length);
     for (final Alarm alarm : expected) {
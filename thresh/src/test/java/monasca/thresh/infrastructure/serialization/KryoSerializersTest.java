@@ -0,0 +1,206 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.serialization;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.alarm.AlarmSubExpression;
+import monasca.common.model.event.AlarmDefinitionDeletedEvent;
+import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
+import monasca.common.model.event.AlarmDeletedEvent;
+import monasca.common.model.event.AlarmUpdatedEvent;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.SubAlarm;
+import monasca.thresh.domain.model.SubExpression;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.infrastructure.thresholding.EventProcessingBolt;
+
+import org.apache.storm.Config;
+import org.apache.storm.serialization.KryoValuesDeserializer;
+import org.apache.storm.serialization.KryoValuesSerializer;
+import org.apache.storm.tuple.Values;
+import org.apache.storm.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Test
+public class KryoSerializersTest {
+  private static final Logger logger = LoggerFactory.getLogger(KryoSerializersTest.class);
+  private static final String TENANT_ID = "7d1e4c2a8b3f4e6d9a0b1c2d3e4f5a6b";
+
+  private MetricDefinition metricDefinition;
+  private MetricDefinitionAndTenantId metricDefinitionAndTenantId;
+  private SubExpression subExpression;
+  private KryoValuesSerializer serializer;
+  private KryoValuesDeserializer deserializer;
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", "compute-host-0042.example.com");
+    dimensions.put("service", "compute");
+    dimensions.put("component", "vm");
+    dimensions.put("resource_id", "0b7bd1a4-5b2f-4a4c-8e54-0e3f6fb1a0d5");
+    metricDefinition = new MetricDefinition("cpu.utilization_perc", dimensions);
+    metricDefinitionAndTenantId = new MetricDefinitionAndTenantId(metricDefinition, TENANT_ID);
+    subExpression = new SubExpression("444",
+        AlarmSubExpression.of("avg(cpu.utilization_perc{hostname=compute-host-0042.example.com},"
+            + " 60) >= 90 times 3"));
+
+    final Map<String, Object> conf = topologyConf(true);
+    serializer = new KryoValuesSerializer(conf);
+    deserializer = new KryoValuesDeserializer(conf);
+  }
+
+  /**
+   * Returns the configuration the workers would use, with the serializers from KryoSerializers or
+   * with only the classes that were registered before
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<String, Object> topologyConf(boolean registerSerializers) {
+    final Config config = new Config();
+    if (registerSerializers) {
+      KryoSerializers.register(config);
+    } else {
+      config.registerSerialization(SubAlarm.class);
+      config.registerSerialization(SubExpression.class);
+    }
+    final Map<String, Object> conf = Utils.readDefaultConfig();
+    conf.putAll(config);
+    return conf;
+  }
+
+  private Object roundTrip(Object value) {
+    return deserializer.deserialize(serializer.serialize(new Values(value))).get(0);
+  }
+
+  public void shouldRoundTripMetricTypes() {
+    final TenantIdAndMetricName key = new TenantIdAndMetricName(metricDefinitionAndTenantId);
+    final TenantIdAndMetricName keyCopy = (TenantIdAndMetricName) roundTrip(key);
+    assertEquals(keyCopy, key);
+    assertEquals(keyCopy.hashCode(), key.hashCode());
+
+    assertEquals(roundTrip(metricDefinition), metricDefinition);
+    assertEquals(roundTrip(metricDefinitionAndTenantId), metricDefinitionAndTenantId);
+
+    final Metric metric = new Metric(metricDefinition.name, metricDefinition.dimensions,
+        1461349830000L, 42.5, Collections.singletonMap("status", "ok"));
+    final Metric metricCopy = (Metric) roundTrip(metric);
+    assertEquals(metricCopy.definition(), metric.definition());
+    assertEquals(metricCopy.timestamp, metric.timestamp);
+    assertEquals(metricCopy.value, metric.value);
+    assertEquals(metricCopy.valueMeta, metric.valueMeta);
+
+    final Metric noMeta = (Metric) roundTrip(new Metric(metricDefinition.name,
+        metricDefinition.dimensions, 1461349830000L, 1.0, null));
+    assertNull(noMeta.valueMeta);
+  }
+
+  public void shouldRoundTripExpressions() {
+    assertEquals(roundTrip(subExpression.getAlarmSubExpression()),
+        subExpression.getAlarmSubExpression());
+    final SubExpression copy = (SubExpression) roundTrip(subExpression);
+    assertEquals(copy, subExpression);
+    assertEquals(copy.getAlarmSubExpression(), subExpression.getAlarmSubExpression());
+
+    final SubAlarm subAlarm = new SubAlarm("111", "222", subExpression);
+    final SubAlarm subAlarmCopy = (SubAlarm) roundTrip(subAlarm);
+    assertEquals(subAlarmCopy, subAlarm);
+    assertEquals(subAlarmCopy.getExpression(), subAlarm.getExpression());
+  }
+
+  public void shouldRoundTripEvents() {
+    final Map<String, AlarmSubExpression> subAlarms =
+        Collections.singletonMap("111", subExpression.getAlarmSubExpression());
+
+    final AlarmDeletedEvent deleted = (AlarmDeletedEvent) roundTrip(new AlarmDeletedEvent(
+        TENANT_ID, "222", Arrays.asList(metricDefinition), "333", subAlarms));
+    assertEquals(deleted.tenantId, TENANT_ID);
+    assertEquals(deleted.alarmId, "222");
+    assertEquals(deleted.alarmMetrics, Arrays.asList(metricDefinition));
+    assertEquals(deleted.alarmDefinitionId, "333");
+    assertEquals(deleted.subAlarms, subAlarms);
+
+    final AlarmUpdatedEvent updated = (AlarmUpdatedEvent) roundTrip(new AlarmUpdatedEvent("222",
+        "333", TENANT_ID, Arrays.asList(metricDefinition), subAlarms, AlarmState.ALARM,
+        AlarmState.OK, "http://example.com", null));
+    assertEquals(updated.alarmState, AlarmState.ALARM);
+    assertEquals(updated.oldAlarmState, AlarmState.OK);
+    assertEquals(updated.link, "http://example.com");
+    assertNull(updated.lifecycleState);
+    assertEquals(updated.subAlarms, subAlarms);
+
+    final AlarmDefinitionUpdatedEvent definitionUpdated =
+        (AlarmDefinitionUpdatedEvent) roundTrip(new AlarmDefinitionUpdatedEvent(TENANT_ID, "333",
+            "name", "description", "expression", Arrays.asList("hostname"), true, "HIGH",
+            subAlarms, Collections.<String, AlarmSubExpression>emptyMap(), subAlarms,
+            Collections.<String, AlarmSubExpression>emptyMap()));
+    assertEquals(definitionUpdated.alarmDefinitionId, "333");
+    assertEquals(definitionUpdated.matchBy, Arrays.asList("hostname"));
+    assertTrue(definitionUpdated.alarmActionsEnabled);
+    assertEquals(definitionUpdated.severity, "HIGH");
+    assertEquals(definitionUpdated.oldAlarmSubExpressions, subAlarms);
+    assertTrue(definitionUpdated.changedSubExpressions.isEmpty());
+
+    final AlarmDefinitionDeletedEvent definitionDeleted =
+        (AlarmDefinitionDeletedEvent) roundTrip(new AlarmDefinitionDeletedEvent("333",
+            Collections.singletonMap("111", metricDefinition)));
+    assertEquals(definitionDeleted.alarmDefinitionId, "333");
+    assertEquals(definitionDeleted.subAlarmMetricDefinitions,
+        Collections.singletonMap("111", metricDefinition));
+  }
+
+  /**
+   * The serializers must not write more bytes than the default serialization for the tuples on
+   * the busiest streams. The time is measured by KryoSerializersBenchmark in thresh-benchmarks.
+   */
+  public void shouldNotWriteMoreBytes() {
+    final TenantIdAndMetricName key = new TenantIdAndMetricName(metricDefinitionAndTenantId);
+    final Metric metric = new Metric(metricDefinition.name, metricDefinition.dimensions,
+        1461349830000L, 42.5, null);
+    final SubAlarm subAlarm = new SubAlarm("111", "222", subExpression);
+    final Map<String, List<Object>> tuples = new HashMap<>();
+    tuples.put("metric", new Values(key, metric));
+    tuples.put("sub alarm", new Values("222", subAlarm));
+    tuples.put("alarm creation", new Values(EventProcessingBolt.CREATED, key,
+        metricDefinitionAndTenantId, "333", subAlarm));
+
+    final KryoValuesSerializer baseline = new KryoValuesSerializer(topologyConf(false));
+    for (final Map.Entry<String, List<Object>> entry : tuples.entrySet()) {
+      final List<Object> values = entry.getValue();
+      final int baselineBytes = baseline.serialize(values).length;
+      final int bytes = serializer.serialize(values).length;
+      logger.info("{} tuple: {} bytes with the serializers, {} bytes without", entry.getKey(),
+          bytes, baselineBytes);
+      assertTrue(bytes <= baselineBytes, entry.getKey());
+    }
+  }
+}
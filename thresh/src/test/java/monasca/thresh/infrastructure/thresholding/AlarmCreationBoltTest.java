@@ -19,8 +19,10 @@
 package monasca.thresh.infrastructure.thresholding;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -38,6 +40,7 @@ import monasca.common.model.event.AlarmDeletedEvent;
 import monasca.common.model.metric.MetricDefinition;
 import monasca.thresh.domain.model.Alarm;
 import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.AlarmedMetric;
 import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
 import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
@@ -58,6 +61,7 @@ import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -492,6 +496,81 @@ public class AlarmCreationBoltTest {
         new MetricDefinitionAndTenantId(metric2, TENANT_ID));
   }
 
+  public void testCreateAlarmsInBulk() {
+    final List<Alarm> bulkCreated = new LinkedList<>();
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        final Collection<Alarm> newAlarms = (Collection<Alarm>) invocation.getArguments()[0];
+        bulkCreated.addAll(newAlarms);
+        return null;
+      }
+    }).when(alarmDAO).createAlarms(anyCollectionOf(Alarm.class));
+    final List<AlarmedMetric> bulkAdded = new LinkedList<>();
+    doAnswer(new Answer<Object>() {
+      public Object answer(InvocationOnMock invocation) {
+        @SuppressWarnings("unchecked")
+        final Collection<AlarmedMetric> alarmedMetrics =
+            (Collection<AlarmedMetric>) invocation.getArguments()[0];
+        bulkAdded.addAll(alarmedMetrics);
+        return null;
+      }
+    }).when(alarmDAO).addAlarmedMetrics(anyCollectionOf(AlarmedMetric.class));
+
+    final AlarmDefinition alarmDefinition =
+        createAlarmDefinition("max(cpu{service=2}) > 90", "hostname");
+
+    final MetricDefinitionAndTenantId eleanore =
+        new MetricDefinitionAndTenantId(build("cpu", "hostname", "eleanore", "service", "2"),
+            TENANT_ID);
+    final MetricDefinitionAndTenantId vivi =
+        new MetricDefinitionAndTenantId(build("cpu", "hostname", "vivi", "service", "2"),
+            TENANT_ID);
+    final MetricDefinitionAndTenantId eleanore2 =
+        new MetricDefinitionAndTenantId(build("cpu", "hostname", "eleanore", "service", "2",
+            "other", "maddyie"), TENANT_ID);
+    final MetricDefinitionAndTenantId wrongService =
+        new MetricDefinitionAndTenantId(build("cpu", "hostname", "eleanore", "service", "3"),
+            TENANT_ID);
+
+    sendNewMetrics(Arrays.asList(eleanore, vivi, eleanore2, wrongService), alarmDefinition.getId());
+
+    verify(alarmDAO, times(1)).createAlarms(anyCollectionOf(Alarm.class));
+    verify(alarmDAO, never()).addAlarmedMetrics(anyCollectionOf(AlarmedMetric.class));
+    assertTrue(this.createdAlarms.isEmpty(), "Alarms were created one at a time");
+    assertEquals(bulkCreated.size(), 2);
+    verifyCreatedAlarm(bulkCreated.get(0), alarmDefinition, false, collector, eleanore, eleanore2);
+    verify(collector, times(1)).emit(AlarmCreationBolt.ALARM_CREATION_STREAM,
+        new Values(EventProcessingBolt.CREATED, new TenantIdAndMetricName(eleanore2), eleanore2,
+            alarmDefinition.getId(), bulkCreated.get(0).getSubAlarms().iterator().next()));
+    verifyCreatedAlarm(bulkCreated.get(1), alarmDefinition, false, collector, vivi);
+
+    // Metrics for already saved Alarms are added in bulk too
+    final MetricDefinitionAndTenantId vivi2 =
+        new MetricDefinitionAndTenantId(build("cpu", "hostname", "vivi", "service", "2",
+            "other", "maddyie"), TENANT_ID);
+    sendNewMetrics(Arrays.asList(vivi2, eleanore), alarmDefinition.getId());
+
+    verify(alarmDAO, times(1)).createAlarms(anyCollectionOf(Alarm.class));
+    verify(alarmDAO, times(1)).addAlarmedMetrics(anyCollectionOf(AlarmedMetric.class));
+    assertEquals(bulkAdded.size(), 1);
+    assertEquals(bulkAdded.get(0).getAlarm(), bulkCreated.get(1));
+    assertEquals(bulkAdded.get(0).getMetricDefinitionAndTenantId(), vivi2);
+    verifyCreatedAlarm(bulkCreated.get(1), alarmDefinition, false, collector, vivi, vivi2);
+  }
+
+  private void sendNewMetrics(List<MetricDefinitionAndTenantId> metricDefinitionAndTenantIds,
+                              String alarmDefinitionId) {
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setFields(MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_FIELDS);
+    tupleParam.setStream(MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM);
+    final Tuple tuple =
+        Testing.testTuple(Arrays.asList(new ArrayList<>(metricDefinitionAndTenantIds),
+            alarmDefinitionId), tupleParam);
+
+    bolt.execute(tuple);
+  }
+
   public void testDeletedAlarm() {
     final AlarmDefinition alarmDefinition = runCreateSimpleAlarm(false);
     assertEquals(this.createdAlarms.size(), 1);
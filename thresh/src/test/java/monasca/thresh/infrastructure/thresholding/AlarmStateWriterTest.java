@@ -0,0 +1,131 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+import monasca.common.model.alarm.AlarmState;
+import monasca.thresh.domain.model.AlarmStateUpdate;
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+@Test
+public class AlarmStateWriterTest {
+  private AlarmDAO alarmDAO;
+  private AlarmStateWriter writer;
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    alarmDAO = mock(AlarmDAO.class);
+    // Long enough that the flush thread never runs during a test
+    writer = new AlarmStateWriter(alarmDAO, 3600000, "test");
+  }
+
+  @AfterMethod
+  protected void afterMethod() {
+    writer.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void shouldWriteOnlyLatestStates() {
+    writer.updateState("alarm1", AlarmState.ALARM, 1000);
+    writer.updateState("alarm1", AlarmState.OK, 2000);
+    writer.updateState("alarm2", AlarmState.UNDETERMINED, 3000);
+    writer.updateSubAlarmState("subAlarm1", AlarmState.ALARM);
+    writer.updateSubAlarmState("subAlarm1", AlarmState.OK);
+    assertEquals(writer.queueDepth(), 3);
+    verify(alarmDAO, never()).updateState(anyString(), (AlarmState) any(),
+        anyLong());
+
+    writer.flush();
+    assertEquals(writer.queueDepth(), 0);
+
+    final ArgumentCaptor<Collection> alarmUpdates = ArgumentCaptor.forClass(Collection.class);
+    verify(alarmDAO, times(1)).updateStates(alarmUpdates.capture());
+    final Map<String, AlarmStateUpdate> written = new HashMap<>();
+    for (final Object update : alarmUpdates.getValue()) {
+      written.put(((AlarmStateUpdate) update).getAlarmId(), (AlarmStateUpdate) update);
+    }
+    assertEquals(written.size(), 2);
+    assertEquals(written.get("alarm1").getState(), AlarmState.OK);
+    assertEquals(written.get("alarm1").getMsTimestamp(), 2000);
+    assertEquals(written.get("alarm2").getState(), AlarmState.UNDETERMINED);
+
+    final Map<String, AlarmState> expectedSubAlarmStates = new HashMap<>();
+    expectedSubAlarmStates.put("subAlarm1", AlarmState.OK);
+    verify(alarmDAO, times(1)).updateSubAlarmStates(expectedSubAlarmStates);
+
+    // Nothing left to write
+    writer.flush();
+    verify(alarmDAO, times(1)).updateStates(anyCollectionOf(AlarmStateUpdate.class));
+  }
+
+  public void shouldRetryFailedFlush() {
+    doThrow(new RuntimeException("Database down")).doNothing().when(alarmDAO)
+        .updateStates(anyCollectionOf(AlarmStateUpdate.class));
+
+    writer.updateState("alarm1", AlarmState.ALARM, 1000);
+    writer.flush();
+    assertEquals(writer.queueDepth(), 1);
+
+    writer.flush();
+    assertEquals(writer.queueDepth(), 0);
+    verify(alarmDAO, times(2)).updateStates(anyCollectionOf(AlarmStateUpdate.class));
+  }
+
+  public void shouldWriteThroughWithoutFlushInterval() {
+    writer.close();
+    writer = new AlarmStateWriter(alarmDAO, 0, "test");
+    writer.updateState("alarm1", AlarmState.ALARM, 1000);
+    writer.updateSubAlarmState("subAlarm1", AlarmState.OK);
+
+    assertEquals(writer.queueDepth(), 0);
+    verify(alarmDAO, times(1)).updateState("alarm1", AlarmState.ALARM, 1000);
+    verify(alarmDAO, times(1)).updateSubAlarmState("subAlarm1", AlarmState.OK);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void shouldReportMetrics() {
+    writer.updateState("alarm1", AlarmState.ALARM, 1000);
+    Map<String, Object> values = (Map<String, Object>) writer.metric().getValueAndReset();
+    assertEquals(values.get("queue-depth"), 1);
+
+    writer.flush();
+    values = (Map<String, Object>) writer.metric().getValueAndReset();
+    assertEquals(values.get("queue-depth"), 0);
+    assertEquals(values.get("flushes"), 1L);
+    assertEquals(values.get("flushed-states"), 1L);
+  }
+}
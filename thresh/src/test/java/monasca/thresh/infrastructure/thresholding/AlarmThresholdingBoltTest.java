@@ -17,15 +17,20 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
 import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertNotEquals;
 import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 import monasca.common.model.event.AlarmDefinitionUpdatedEvent;
 import monasca.common.model.event.AlarmUpdatedEvent;
 import monasca.common.model.alarm.AggregateFunction;
@@ -39,20 +44,28 @@ import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.utils.FieldsGroupingTasks;
+import monasca.thresh.utils.LatencyHistograms;
 import monasca.thresh.utils.Streams;
 
+import org.apache.storm.Constants;
 import org.apache.storm.Testing;
 import org.apache.storm.task.OutputCollector;
 import org.apache.storm.task.TopologyContext;
 import org.apache.storm.testing.MkTupleParam;
 import org.apache.storm.tuple.Tuple;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -71,6 +84,7 @@ public class AlarmThresholdingBoltTest {
   private AlarmDefinitionDAO alarmDefinitionDAO;
   private AlarmThresholdingBolt bolt;
   private OutputCollector collector;
+  private TopologyContext context;
   private final String[] subExpressions = {"avg(cpu{instance_id=123,device=42}) > 5",
       "max(load{instance_id=123,device=42}) > 8",
       "last(diskio{instance_id=123,device=42}) > 5000"};
@@ -98,7 +112,7 @@ public class AlarmThresholdingBoltTest {
     bolt = new MockAlarmThreshholdBolt(alarmDAO, alarmDefinitionDAO, alarmEventForwarder);
     collector = mock(OutputCollector.class);
     final Map<String, String> config = new HashMap<>();
-    final TopologyContext context = mock(TopologyContext.class);
+    context = mock(TopologyContext.class);
     bolt.prepare(config, context, collector);
 
     for (SubAlarm subAlarm : subAlarms) {
@@ -138,7 +152,7 @@ public class AlarmThresholdingBoltTest {
             + "\"subAlarms\":[" + buildSubAlarmJson(alarm.getSubAlarms()) + "],"
             + "\"timestamp\":1395587091003}}";
 
-    verify(alarmEventForwarder, times(1)).send(alarmJson);
+    verify(alarmEventForwarder, times(1)).send(alarmId, alarmJson);
     verify(alarmDAO, times(1)).updateState(eq(alarmId), eq(AlarmState.ALARM), anyLong());
 
     // Now clear the alarm and ensure another notification gets sent out
@@ -163,7 +177,7 @@ public class AlarmThresholdingBoltTest {
             + "\"link\":null," + "\"lifecycleState\":null,"
             + "\"subAlarms\":[" + buildSubAlarmJson(alarm.getSubAlarms()) + "],"
             + "\"timestamp\":1395587091003}}";
-    verify(alarmEventForwarder, times(1)).send(okJson);
+    verify(alarmEventForwarder, times(1)).send(alarmId, okJson);
     verify(alarmDAO, times(1)).updateState(eq(alarmId), eq(AlarmState.OK), anyLong());
   }
 
@@ -209,7 +223,7 @@ public class AlarmThresholdingBoltTest {
             + "\"subAlarms\":[" + buildSubAlarmJson(alarm.getSubAlarms()) + "],"
             + "\"timestamp\":1395587091003}}";
 
-    verify(alarmEventForwarder, times(1)).send(alarmJson);
+    verify(alarmEventForwarder, times(1)).send(alarmId, alarmJson);
     verify(alarmDAO, times(1)).updateState(eq(alarmId), eq(AlarmState.ALARM), anyLong());  }
   public void simpleAlarmUpdate() {
     // Now send an AlarmUpdatedEvent
@@ -304,6 +318,224 @@ public class AlarmThresholdingBoltTest {
     }
   }
 
+  public void shouldPreloadOnlyOwnedAlarms() {
+    final List<Integer> tasks = Arrays.asList(3, 4);
+    final int thisTaskId = 4;
+    final List<String> allIds = new ArrayList<>();
+    final Map<String, Alarm> ownedAlarms = new LinkedHashMap<>();
+    int notOwned = 0;
+    while (ownedAlarms.size() < 3 || notOwned < 3) {
+      final Alarm newAlarm = new Alarm(alarmDefinition, AlarmState.OK);
+      allIds.add(newAlarm.getId());
+      if (FieldsGroupingTasks.taskIndex(newAlarm.getId(), tasks.size()) == 1) {
+        ownedAlarms.put(newAlarm.getId(), newAlarm);
+      } else {
+        notOwned++;
+      }
+    }
+    when(alarmDAO.listAllIds()).thenReturn(allIds);
+    when(alarmDAO.findByIds(new ArrayList<String>(ownedAlarms.keySet()))).thenReturn(
+        new ArrayList<Alarm>(ownedAlarms.values()));
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+
+    bolt = new MockAlarmThreshholdBolt(alarmDAO, alarmDefinitionDAO, alarmEventForwarder);
+    final TopologyContext context = mock(TopologyContext.class);
+    when(context.getThisComponentId()).thenReturn("thresholding-bolt");
+    when(context.getComponentTasks("thresholding-bolt")).thenReturn(tasks);
+    when(context.getThisTaskId()).thenReturn(thisTaskId);
+    bolt.prepare(new HashMap<String, String>(), context, collector);
+
+    assertEquals(bolt.alarms.keySet(), ownedAlarms.keySet());
+    assertEquals(bolt.alarmDefinitions.get(alarmDefinition.getId()), alarmDefinition);
+    verify(alarmDefinitionDAO, times(1)).findById(alarmDefinition.getId());
+    for (final Alarm preloaded : bolt.alarms.values()) {
+      for (final SubAlarm subAlarm : preloaded.getSubAlarms()) {
+        assertTrue(subAlarm.isNoState());
+      }
+    }
+
+    // State changes for a preloaded Alarm must not cause another lookup
+    final Alarm preloaded = ownedAlarms.values().iterator().next();
+    emitSubAlarmStateChange(preloaded.getId(), preloaded.getSubAlarms().iterator().next(),
+        AlarmState.ALARM);
+    verify(alarmDAO, never()).findById(preloaded.getId());
+  }
+
+  public void shouldRemoveAlarmsWhenDefinitionDeleted() {
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+    setUpInitialAlarm();
+
+    final AlarmDefinition otherDefinition =
+        new AlarmDefinition(tenantId, "Other Alarm", null,
+            new AlarmExpression("avg(mem{instance_id=123}) > 5"), "LOW", true,
+            new ArrayList<String>());
+    final Alarm otherAlarm = new Alarm(otherDefinition, AlarmState.OK);
+    when(alarmDAO.findById(otherAlarm.getId())).thenReturn(otherAlarm);
+    when(alarmDefinitionDAO.findById(otherDefinition.getId())).thenReturn(otherDefinition);
+    emitSubAlarmStateChange(otherAlarm.getId(), otherAlarm.getSubAlarms().iterator().next(),
+        AlarmState.OK);
+    assertEquals(bolt.alarms.size(), 2);
+    assertEquals(bolt.alarmIdsByDefinition.get(alarmDefinition.getId()).size(), 1);
+
+    bolt.handleAlarmDefinitionDeleted(alarmDefinition.getId());
+    assertEquals(bolt.alarms.keySet(), Collections.singleton(otherAlarm.getId()));
+    assertEquals(bolt.alarmIdsByDefinition.keySet(),
+        Collections.singleton(otherDefinition.getId()));
+    assertEquals(bolt.alarmDefinitions.keySet(), Collections.singleton(otherDefinition.getId()));
+
+    bolt.handleAlarmDeleted(otherAlarm.getId());
+    assertTrue(bolt.alarms.isEmpty());
+    assertTrue(bolt.alarmIdsByDefinition.isEmpty());
+    assertTrue(bolt.alarmDefinitions.isEmpty());
+  }
+
+  public void shouldReadDefinitionAgainAfterLastAlarmDeleted() {
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+    setUpInitialAlarm();
+    assertEquals(bolt.alarmDefinitions.get(alarmDefinition.getId()), alarmDefinition);
+
+    bolt.handleAlarmDeleted(alarm.getId());
+    assertTrue(bolt.alarmDefinitions.isEmpty());
+
+    // Not routed to this task because none of its Alarms are loaded here
+    final AlarmDefinition updatedDefinition =
+        new AlarmDefinition(alarmDefinition.getId(), tenantId, "Updated CPU Alarm",
+            "Description of Alarm", alarmExpression, "HIGH", true,
+            alarmDefinition.getSubExpressions(), alarmDefinition.getMatchBy());
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(updatedDefinition);
+
+    final Alarm newAlarm = new Alarm(updatedDefinition, AlarmState.OK);
+    when(alarmDAO.findById(newAlarm.getId())).thenReturn(newAlarm);
+    emitSubAlarmStateChange(newAlarm.getId(), newAlarm.getSubAlarms().iterator().next(),
+        AlarmState.ALARM);
+    verify(alarmDefinitionDAO, times(2)).findById(alarmDefinition.getId());
+    assertEquals(bolt.alarmDefinitions.get(alarmDefinition.getId()).getName(),
+        "Updated CPU Alarm");
+
+    final ArgumentCaptor<String> json = ArgumentCaptor.forClass(String.class);
+    verify(alarmEventForwarder, times(1)).send(eq(newAlarm.getId()), json.capture());
+    assertTrue(json.getValue().contains("\"alarmName\":\"Updated CPU Alarm\""),
+        json.getValue());
+    assertTrue(json.getValue().contains("\"severity\":\"HIGH\""), json.getValue());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void shouldRecordMetricToAlarmLatency() {
+    final ArgumentCaptor<LatencyHistograms> captor =
+        ArgumentCaptor.forClass(LatencyHistograms.class);
+    verify(context).registerMetric(eq(LatencyHistograms.METRIC_TO_ALARM_LATENCY),
+        captor.capture(), anyInt());
+    final LatencyHistograms histograms = captor.getValue();
+
+    final SubAlarm subAlarm = subAlarms.get(0);
+    final String alarmId = alarm.getId();
+    when(alarmDAO.findById(alarmId)).thenReturn(alarm);
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+    emitSubAlarmStateChange(alarmId, subAlarm, AlarmState.ALARM);
+    for (int i = 1; i < subAlarms.size(); i++) {
+      emitSubAlarmStateChange(alarmId, subAlarms.get(i), AlarmState.OK);
+    }
+    // None of the state changes had an apiTimeStamp
+    assertTrue(((Map<String, Object>) histograms.getValueAndReset()).isEmpty());
+
+    // The Metric was received by the API in the second starting 3.003 seconds before the
+    // transition, the apiTimeStamp is in seconds
+    subAlarm.setState(AlarmState.OK);
+    bolt.execute(createSubAlarmStateChangeTuple(alarmId, subAlarm, 1395587088l));
+    verify(alarmDAO, times(1)).updateState(eq(alarmId), eq(AlarmState.OK), anyLong());
+    final Map<String, Map<String, Long>> values =
+        (Map<String, Map<String, Long>>) histograms.getValueAndReset();
+    final String name = subAlarm.getExpression().getFunction().name().toLowerCase() + "-"
+        + subAlarm.getExpression().getPeriod();
+    assertEquals(values.keySet(), Collections.singleton(name));
+    assertEquals(values.get(name).get(LatencyHistograms.COUNT).longValue(), 1);
+    assertTrue(Math.abs(values.get(name).get(LatencyHistograms.MAX) - 3003000) <= 30000);
+  }
+
+  public void shouldCloseForwarderOnCleanup() {
+    bolt.cleanup();
+    verify(alarmEventForwarder, times(1)).close();
+  }
+
+  public void shouldNotRegisterTickTupleWithoutBatching() {
+    assertNull(bolt.getComponentConfiguration());
+  }
+
+  @SuppressWarnings("unchecked")
+  public void shouldHoldMissesUntilTickTuple() {
+    bolt.missBatchSize = 3;
+    assertNotNull(bolt.getComponentConfiguration());
+    final Alarm otherAlarm = new Alarm(alarmDefinition, AlarmState.OK);
+    when(alarmDAO.findByIds(Arrays.asList(alarm.getId(), otherAlarm.getId()))).thenReturn(
+        Arrays.asList(alarm, otherAlarm));
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenReturn(alarmDefinition);
+
+    final Tuple first = createSubAlarmStateChangeTuple(alarm.getId(), subAlarms.get(0));
+    bolt.execute(first);
+    final Tuple second = createSubAlarmStateChangeTuple(otherAlarm.getId(),
+        otherAlarm.getSubAlarms().iterator().next());
+    bolt.execute(second);
+    // Fewer than missBatchSize Alarms are waiting so nothing is looked up yet
+    assertEquals(bolt.pendingTuples.size(), 2);
+    verify(alarmDAO, never()).findById(any(String.class));
+    verify(alarmDAO, never()).findByIds(any(Collection.class));
+    verify(collector, never()).ack(first);
+    verify(collector, never()).ack(second);
+
+    final Tuple tickTuple = createTickTuple();
+    bolt.execute(tickTuple);
+    verify(collector, times(1)).ack(tickTuple);
+    verify(alarmDAO, times(1)).findByIds(Arrays.asList(alarm.getId(), otherAlarm.getId()));
+    assertTrue(bolt.pendingTuples.isEmpty());
+    assertTrue(bolt.loadingTuples.isEmpty());
+    assertEquals(bolt.alarms.size(), 2);
+    verify(collector, times(1)).ack(first);
+    verify(collector, times(1)).ack(second);
+  }
+
+  public void shouldNotRestoreDefinitionDeletedWhileAlarmsLoaded() {
+    when(alarmDAO.findById(alarm.getId())).thenReturn(alarm);
+    // The AlarmDefinitionDeletedEvent arrives while the lookup reads the AlarmDefinition
+    when(alarmDefinitionDAO.findById(alarmDefinition.getId())).thenAnswer(
+        new Answer<AlarmDefinition>() {
+          @Override
+          public AlarmDefinition answer(InvocationOnMock invocation) {
+            bolt.handleAlarmDefinitionDeleted(alarmDefinition.getId());
+            return alarmDefinition;
+          }
+        });
+
+    final Tuple tuple = createSubAlarmStateChangeTuple(alarm.getId(), subAlarms.get(0));
+    bolt.execute(tuple);
+    verify(collector, times(1)).ack(tuple);
+    assertTrue(bolt.alarms.isEmpty());
+    assertTrue(bolt.alarmIdsByDefinition.isEmpty());
+    assertTrue(bolt.alarmDefinitions.isEmpty());
+    assertTrue(bolt.loadingTuples.isEmpty());
+    verify(alarmEventForwarder, never()).send(any(String.class), any(String.class));
+  }
+
+  public void shouldAckPendingTuplesOfDeletedAlarm() {
+    bolt.missBatchSize = 3;
+    final Tuple tuple = createSubAlarmStateChangeTuple(alarm.getId(), subAlarms.get(0));
+    bolt.execute(tuple);
+    verify(collector, never()).ack(tuple);
+
+    bolt.handleAlarmDeleted(alarm.getId());
+    verify(collector, times(1)).ack(tuple);
+    assertTrue(bolt.pendingTuples.isEmpty());
+
+    bolt.execute(createTickTuple());
+    verify(alarmDAO, never()).findById(alarm.getId());
+  }
+
+  private Tuple createTickTuple() {
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setComponent(Constants.SYSTEM_COMPONENT_ID);
+    tupleParam.setStream(Constants.SYSTEM_TICK_STREAM_ID);
+    return Testing.testTuple(Arrays.asList(), tupleParam);
+  }
+
   private Tuple createSubExpressionUpdated(final SubExpression newExpr,
                                            final String alarmDefinitionId) {
     final MkTupleParam tupleParam = new MkTupleParam();
@@ -365,10 +597,16 @@ public class AlarmThresholdingBoltTest {
   }
 
   private Tuple createSubAlarmStateChangeTuple(String alarmId, final SubAlarm subAlarm) {
+    return createSubAlarmStateChangeTuple(alarmId, subAlarm, null);
+  }
+
+  private Tuple createSubAlarmStateChangeTuple(String alarmId, final SubAlarm subAlarm,
+      final Long apiTimeStamp) {
     final MkTupleParam tupleParam = new MkTupleParam();
-    tupleParam.setFields("alarmId", "subAlarm");
+    tupleParam.setFields(MetricAggregationBolt.FIELDS);
     tupleParam.setStream(Streams.DEFAULT_STREAM_ID);
-    final Tuple tuple = Testing.testTuple(Arrays.asList(alarmId, subAlarm), tupleParam);
+    final Tuple tuple =
+        Testing.testTuple(Arrays.<Object>asList(alarmId, subAlarm, apiTimeStamp), tupleParam);
     return tuple;
   }
 
@@ -380,6 +618,12 @@ public class AlarmThresholdingBoltTest {
       super(alarmDAO, alarmDefinitionDAO, alarmEventForwarder);
     }
 
+    @Override
+    protected AlarmStateWriter createStateWriter(AlarmDAO alarmDAO, String name) {
+      // Write through so the updates can be verified as soon as they happen
+      return new AlarmStateWriter(alarmDAO, 0, name);
+    }
+
     @Override
     protected long getTimestamp() {
       // Have to keep the time stamp constant so JSON comparison works
@@ -0,0 +1,126 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.testng.Assert.assertEquals;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.alarm.AlarmState;
+import monasca.common.model.event.AlarmStateTransitionedEvent;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.common.util.Serialization;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.SubAlarm;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Test
+public class AlarmTransitionJsonWriterTest {
+  private static final String TENANT_ID = "AAAAABBBBBBCCCCC";
+  private static final long TIMESTAMP = 1395587091003l;
+
+  private AlarmDefinition alarmDefinition;
+  private Alarm alarm;
+  private AlarmTransitionJsonWriter writer;
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    alarmDefinition =
+        new AlarmDefinition(TENANT_ID, "Test \"CPU\" Alarm \u00e9", null, new AlarmExpression(
+            "avg(cpu{instance_id=123}) > 5 or max(load{instance_id=123}) > 8"), "LOW", true,
+            new ArrayList<String>());
+    alarm = new Alarm(alarmDefinition, AlarmState.OK);
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("instance_id", "123");
+    dimensions.put("device", "/dev/sda\t1");
+    alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition("cpu",
+        dimensions), TENANT_ID));
+    alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition("load",
+        new HashMap<String, String>()), TENANT_ID));
+    writer = new AlarmTransitionJsonWriter();
+  }
+
+  public void shouldWriteSameJsonAsSerialization() {
+    for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+      subAlarm.setState(AlarmState.ALARM);
+    }
+    assertEquals(alarm.evaluate(alarmDefinition), true);
+    alarm.setLink("http://somesite.com/alarm");
+
+    assertEquals(writer.toJson(alarm, alarmDefinition, AlarmState.OK,
+        alarm.getStateChangeReason(), TIMESTAMP), expectedJson(AlarmState.OK));
+
+    // Written again from the cached fragments
+    for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+      subAlarm.setState(AlarmState.OK);
+    }
+    assertEquals(alarm.evaluate(alarmDefinition), true);
+    assertEquals(writer.toJson(alarm, alarmDefinition, AlarmState.ALARM,
+        alarm.getStateChangeReason(), TIMESTAMP), expectedJson(AlarmState.ALARM));
+  }
+
+  public void shouldUseNewValuesOnlyAfterInvalidation() {
+    writer.toJson(alarm, alarmDefinition, AlarmState.UNDETERMINED, "reason", TIMESTAMP);
+
+    alarmDefinition.setName("New Name");
+    alarmDefinition.setDescription("New Description");
+    alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition("disk",
+        new HashMap<String, String>()), TENANT_ID));
+    final String cached =
+        writer.toJson(alarm, alarmDefinition, AlarmState.UNDETERMINED, "reason", TIMESTAMP);
+    assertEquals(cached.contains("New Name"), false);
+    assertEquals(cached.contains("disk"), false);
+
+    writer.invalidateAlarmDefinition(alarmDefinition.getId());
+    writer.invalidateAlarm(alarm.getId());
+    assertEquals(writer.toJson(alarm, alarmDefinition, AlarmState.UNDETERMINED, "reason",
+        TIMESTAMP), Serialization.toJson(createEvent(AlarmState.UNDETERMINED, "reason")));
+  }
+
+  public void shouldUnwrapRoot() {
+    assertEquals(AlarmTransitionJsonWriter.unwrapRoot("{\"MetricDefinition\":{\"name\":\"cpu\"}}"),
+        "{\"name\":\"cpu\"}");
+    assertEquals(AlarmTransitionJsonWriter.unwrapRoot("{\"ArrayList\":[1,2]}"), "[1,2]");
+  }
+
+  private String expectedJson(final AlarmState oldState) {
+    return Serialization.toJson(createEvent(oldState, alarm.getStateChangeReason()));
+  }
+
+  private AlarmStateTransitionedEvent createEvent(final AlarmState oldState,
+      final String stateChangeReason) {
+    final List<MetricDefinition> alarmedMetrics = new ArrayList<>();
+    for (final MetricDefinitionAndTenantId mdtid : alarm.getAlarmedMetrics()) {
+      alarmedMetrics.add(mdtid.metricDefinition);
+    }
+    return new AlarmStateTransitionedEvent(alarmDefinition.getTenantId(), alarm.getId(),
+        alarmDefinition.getId(), alarmedMetrics, alarmDefinition.getName(),
+        alarmDefinition.getDescription(), oldState, alarm.getState(),
+        alarmDefinition.getSeverity(), alarm.getLink(), alarm.getLifecycleState(),
+        alarmDefinition.isActionsEnabled(), stateChangeReason, alarm.getTransitionSubAlarms(),
+        TIMESTAMP);
+  }
+}
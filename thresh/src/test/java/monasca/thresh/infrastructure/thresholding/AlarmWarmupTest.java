@@ -0,0 +1,134 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+@Test
+public class AlarmWarmupTest {
+
+  public void shouldSplitIdsIntoPartitions() {
+    final List<String> bounds = AlarmWarmup.partitionBounds(4);
+    assertEquals(bounds.size(), 5);
+    assertNull(bounds.get(0));
+    assertEquals(bounds.get(1), "40");
+    assertEquals(bounds.get(2), "80");
+    assertEquals(bounds.get(3), "c0");
+    assertNull(bounds.get(4));
+
+    for (int i = 0; i < 100; i++) {
+      final String id = UUID.randomUUID().toString();
+      int found = 0;
+      for (int p = 0; p < 4; p++) {
+        if (AlarmWarmup.inRange(id, bounds.get(p), bounds.get(p + 1))) {
+          found++;
+        }
+      }
+      assertEquals(found, 1, id);
+    }
+  }
+
+  public void shouldDeliverEveryAlarmOnce() throws Exception {
+    final List<Alarm> alarms = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      final Alarm alarm = new Alarm();
+      alarm.setId(UUID.randomUUID().toString());
+      alarms.add(alarm);
+    }
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        final String fromId = (String) invocation.getArguments()[0];
+        final String toId = (String) invocation.getArguments()[1];
+        final AlarmDAO.AlarmCallback callback =
+            (AlarmDAO.AlarmCallback) invocation.getArguments()[2];
+        for (final Alarm alarm : alarms) {
+          if (AlarmWarmup.inRange(alarm.getId(), fromId, toId)) {
+            callback.onAlarm(alarm);
+          }
+        }
+        return null;
+      }
+    }).when(alarmDAO).listAll(any(String.class), any(String.class),
+        any(AlarmDAO.AlarmCallback.class));
+
+    final AlarmWarmup warmup =
+        new AlarmWarmup(alarmDAO, 4, 16, LoggerFactory.getLogger(AlarmWarmupTest.class));
+    final Set<String> found = new HashSet<>();
+    final Thread caller = Thread.currentThread();
+    warmup.run(new AlarmDAO.AlarmCallback() {
+      @Override
+      public void onAlarm(Alarm alarm) {
+        assertTrue(found.add(alarm.getId()), "Alarm delivered twice");
+        // The Alarms must be consumed on the calling thread
+        assertEquals(Thread.currentThread(), caller);
+      }
+    });
+    assertEquals(found.size(), alarms.size());
+    assertEquals(warmup.loaded(), alarms.size());
+    assertEquals(warmup.completedPartitions(), 16);
+  }
+
+  public void shouldFailIfAPartitionFails() throws Exception {
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        throw new IllegalStateException("Database down");
+      }
+    }).when(alarmDAO).listAll(any(String.class), any(String.class),
+        any(AlarmDAO.AlarmCallback.class));
+
+    final AlarmWarmup warmup =
+        new AlarmWarmup(alarmDAO, 2, 4, LoggerFactory.getLogger(AlarmWarmupTest.class));
+    final List<Alarm> consumed = new ArrayList<>();
+    try {
+      warmup.run(new AlarmDAO.AlarmCallback() {
+        @Override
+        public void onAlarm(Alarm alarm) {
+          consumed.add(alarm);
+        }
+      });
+      fail("Expected the partition failure to be thrown");
+    } catch (IllegalStateException e) {
+      assertEquals(e.getMessage(), "Database down");
+    }
+    assertTrue(consumed.isEmpty());
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.storm.task.OutputCollector;
+import org.apache.storm.tuple.Tuple;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class AsyncCallsTest {
+  private OutputCollector collector;
+  private List<Tuple> handled;
+  private List<String> results;
+  private AsyncCalls asyncCalls;
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    collector = mock(OutputCollector.class);
+    handled = new ArrayList<>();
+    results = new ArrayList<>();
+    asyncCalls = new AsyncCalls("test", 4, 100, collector, new AsyncCalls.TupleHandler() {
+      @Override
+      public void handle(Tuple tuple) {
+        handled.add(tuple);
+        asyncCalls.ack("key", tuple);
+      }
+    });
+  }
+
+  @AfterMethod
+  protected void afterMethod() {
+    asyncCalls.close(1000);
+  }
+
+  private AsyncCalls.Callback<String> recordResult() {
+    return new AsyncCalls.Callback<String>() {
+      @Override
+      public void completed(String result) {
+        results.add(result);
+      }
+
+      @Override
+      public void failed(Exception e) {
+        results.add("failed: " + e.getMessage());
+      }
+    };
+  }
+
+  private static Callable<String> returning(final String result, final CountDownLatch latch) {
+    return new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        if (latch != null) {
+          latch.await(5, TimeUnit.SECONDS);
+        }
+        return result;
+      }
+    };
+  }
+
+  private void runUntilDone() throws InterruptedException {
+    final long end = System.currentTimeMillis() + 5000;
+    while (asyncCalls.pending() > 0 && System.currentTimeMillis() < end) {
+      if (asyncCalls.runCompleted() == 0) {
+        Thread.sleep(1);
+      }
+    }
+    assertEquals(asyncCalls.pending(), 0);
+  }
+
+  public void shouldRunCallbacksInOrderPerKey() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    asyncCalls.submit("key", returning("first", latch), recordResult());
+    asyncCalls.submit("key", returning("second", null), recordResult());
+    asyncCalls.submit("key", new Callable<String>() {
+      @Override
+      public String call() {
+        throw new IllegalStateException("third");
+      }
+    }, recordResult());
+    asyncCalls.submit("key", returning("fourth", null), recordResult());
+    assertTrue(asyncCalls.isBusy("key"));
+
+    // Nothing after the first call can run until it finishes
+    Thread.sleep(50);
+    assertEquals(asyncCalls.runCompleted(), 0);
+
+    latch.countDown();
+    runUntilDone();
+    assertEquals(results, Arrays.asList("first", "second", "failed: third", "fourth"));
+    assertFalse(asyncCalls.isBusy("key"));
+  }
+
+  public void shouldNotBlockOtherKeys() throws InterruptedException {
+    final CountDownLatch latch = new CountDownLatch(1);
+    asyncCalls.submit("slow", returning("slow", latch), recordResult());
+    asyncCalls.submit("fast", returning("fast", null), recordResult());
+
+    final long end = System.currentTimeMillis() + 5000;
+    while (results.isEmpty() && System.currentTimeMillis() < end) {
+      asyncCalls.runCompleted();
+    }
+    assertEquals(results, Arrays.asList("fast"));
+
+    latch.countDown();
+    runUntilDone();
+    assertEquals(results, Arrays.asList("fast", "slow"));
+  }
+
+  public void shouldDeferAndAckTuplesUntilCallsComplete() throws InterruptedException {
+    final Tuple first = mock(Tuple.class);
+    final Tuple second = mock(Tuple.class);
+    final Tuple other = mock(Tuple.class);
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    assertFalse(asyncCalls.defer("key", first));
+    asyncCalls.submit("key", returning("write", latch), recordResult());
+    asyncCalls.ack("key", first);
+    assertTrue(asyncCalls.defer("key", second));
+    assertFalse(asyncCalls.defer("other", other));
+    asyncCalls.ack("other", other);
+
+    verify(collector).ack(other);
+    verify(collector, never()).ack(first);
+    assertTrue(handled.isEmpty());
+
+    latch.countDown();
+    runUntilDone();
+    verify(collector).ack(first);
+    verify(collector).ack(second);
+    assertEquals(handled, Arrays.asList(second));
+  }
+
+  public void shouldRunOnCallingThreadWithoutThreads() {
+    final AsyncCalls sync = new AsyncCalls("sync", 0, 1, collector, null);
+    final Tuple tuple = mock(Tuple.class);
+    sync.submit("key", returning("now", null), recordResult());
+    assertEquals(results, Arrays.asList("now"));
+    assertFalse(sync.isAsync());
+    assertFalse(sync.defer("key", tuple));
+    sync.ack("key", tuple);
+    verify(collector).ack(tuple);
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+@Test
+public class BatchingKafkaAlarmEventForwarderTest {
+  private static final String TOPIC = "alarm-state-transitions";
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void shouldKeyByAlarmIdAndCountDeliveries() {
+    final Producer<String, String> producer = mock(Producer.class);
+    final BatchingKafkaAlarmEventForwarder forwarder =
+        new BatchingKafkaAlarmEventForwarder(producer, TOPIC);
+
+    forwarder.send("alarm1", "{\"first\":1}");
+    forwarder.send("alarm2", "{\"second\":2}");
+    forwarder.send("alarm1", "{\"third\":3}");
+
+    final ArgumentCaptor<ProducerRecord> records = ArgumentCaptor.forClass(ProducerRecord.class);
+    final ArgumentCaptor<Callback> callbacks = ArgumentCaptor.forClass(Callback.class);
+    verify(producer, times(3)).send(records.capture(), callbacks.capture());
+
+    final List<ProducerRecord> sent = records.getAllValues();
+    assertEquals(sent.get(0).topic(), TOPIC);
+    assertEquals(sent.get(0).key(), "alarm1");
+    assertEquals(sent.get(0).value(), "{\"first\":1}");
+    assertEquals(sent.get(1).key(), "alarm2");
+    assertEquals(sent.get(2).key(), "alarm1");
+
+    final RecordMetadata metadata = new RecordMetadata(new TopicPartition(TOPIC, 0), 0, 0);
+    callbacks.getAllValues().get(0).onCompletion(metadata, null);
+    callbacks.getAllValues().get(1).onCompletion(metadata, null);
+    callbacks.getAllValues().get(2).onCompletion(null, new RuntimeException("Broker down"));
+    assertEquals(forwarder.getSentCount(), 2);
+    assertEquals(forwarder.getFailedCount(), 1);
+
+    forwarder.close();
+    verify(producer, times(1)).close();
+  }
+}
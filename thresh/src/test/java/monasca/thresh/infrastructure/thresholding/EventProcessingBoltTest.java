@@ -21,6 +21,7 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.testng.Assert.assertNotEquals;
 import monasca.common.model.event.AlarmDefinitionCreatedEvent;
 import monasca.common.model.event.AlarmDefinitionDeletedEvent;
@@ -38,6 +39,7 @@ import monasca.thresh.domain.model.SubAlarm;
 import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
+import monasca.thresh.utils.FieldsGroupingTasks;
 import monasca.thresh.utils.Streams;
 
 import com.google.common.collect.BiMap;
@@ -169,6 +171,26 @@ public class EventProcessingBoltTest {
     verify(collector, times(1)).ack(tuple);
   }
 
+  public void testAlarmDeletedEventSentDirect() {
+    final TopologyContext context = mock(TopologyContext.class);
+    when(context.getComponentTasks("thresholding-bolt")).thenReturn(Arrays.asList(7, 8, 9));
+    final EventRouter router = new EventRouter(new MetricGrouping())
+        .route(EventProcessingBolt.ALARM_EVENT_STREAM_ID, "thresholding-bolt",
+            EventRouter.Route.ALARM);
+    bolt = new EventProcessingBolt(alarmDao, router);
+    bolt.prepare(new HashMap<String, String>(), context, collector);
+
+    final AlarmDeletedEvent event = createAlarmDeletedEvent(alarm, alarmDefinition);
+    final Tuple tuple = createTuple(event);
+    bolt.execute(tuple);
+    final int task = new FieldsGroupingTasks(Arrays.asList(7, 8, 9), 7).taskFor(event.alarmId);
+    verify(collector, times(1)).emitDirect(task, EventProcessingBolt.ALARM_EVENT_STREAM_ID,
+        new Values(EventProcessingBolt.DELETED, event.alarmId, event));
+    verify(collector, never()).emit(EventProcessingBolt.ALARM_EVENT_STREAM_ID,
+        new Values(EventProcessingBolt.DELETED, event.alarmId, event));
+    verify(collector, times(1)).ack(tuple);
+  }
+
   public static AlarmDeletedEvent createAlarmDeletedEvent(final Alarm alarm, final AlarmDefinition alarmDefinition) {
     final Map<String, MetricDefinition> subAlarmMetricDefs = new HashMap<>();
     for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.Alarm;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.domain.service.AlarmDAO;
+import monasca.thresh.infrastructure.thresholding.EventRouter.Route;
+import monasca.thresh.utils.FieldsGroupingTasks;
+
+import org.apache.storm.task.TopologyContext;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+@Test
+public class EventRouterTest {
+  private static final String TENANT_ID = "42";
+  private static final String ALARM_DEFINITION_ID = "alarm-definition-1";
+  private static final List<Integer> FILTERING_TASKS = Arrays.asList(1, 2, 3);
+  private static final List<Integer> CREATION_TASKS = Arrays.asList(4, 5);
+  private static final List<Integer> AGGREGATION_TASKS = Arrays.asList(6, 7, 8, 9, 10, 11);
+  private static final List<Integer> THRESHOLDING_TASKS = Arrays.asList(12, 13, 14, 15);
+
+  private AlarmDAO alarmDAO;
+  private EventRouter router;
+  private Alarm alarm;
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    alarmDAO = mock(AlarmDAO.class);
+    final TopologyContext context = mock(TopologyContext.class);
+    when(context.getComponentTasks("filtering-bolt")).thenReturn(FILTERING_TASKS);
+    when(context.getComponentTasks("alarm-creation-bolt")).thenReturn(CREATION_TASKS);
+    when(context.getComponentTasks("aggregation-bolt")).thenReturn(AGGREGATION_TASKS);
+    when(context.getComponentTasks("thresholding-bolt")).thenReturn(THRESHOLDING_TASKS);
+
+    router = new EventRouter(new MetricGrouping())
+        .route(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID, "filtering-bolt", Route.ALL)
+        .route(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID, "alarm-creation-bolt",
+            Route.ALARM_DEFINITION)
+        .route(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID, "thresholding-bolt",
+            Route.ALARM)
+        .route(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID, "aggregation-bolt",
+            Route.METRIC)
+        .route(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID, "thresholding-bolt",
+            Route.ALARM)
+        .route(EventProcessingBolt.ALARM_EVENT_STREAM_ID, "alarm-creation-bolt",
+            Route.ALARM_DEFINITION)
+        .route(EventProcessingBolt.ALARM_EVENT_STREAM_ID, "thresholding-bolt", Route.ALARM);
+    router.prepare(context, alarmDAO, LoggerFactory.getLogger(EventRouterTest.class));
+
+    alarm = new Alarm();
+    alarm.setId("alarm-1");
+    alarm.setAlarmDefinitionId(ALARM_DEFINITION_ID);
+    alarm.addAlarmedMetric(new MetricDefinitionAndTenantId(new MetricDefinition("cpu",
+        Collections.singletonMap("hostname", "host-1")), TENANT_ID));
+  }
+
+  private static int taskFor(Object key, List<Integer> tasks) {
+    return new FieldsGroupingTasks(tasks, tasks.get(0)).taskFor(key);
+  }
+
+  public void shouldOnlyRouteConfiguredStreams() {
+    assertTrue(router.isDirect(EventProcessingBolt.ALARM_EVENT_STREAM_ID));
+    assertFalse(router.isDirect(EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_ID));
+  }
+
+  public void shouldRouteAlarmEventsByAlarm() {
+    final Set<Integer> targets =
+        router.targets(EventProcessingBolt.ALARM_EVENT_STREAM_ID, EventProcessingBolt.DELETED,
+            ALARM_DEFINITION_ID, alarm.getId());
+    assertEquals(targets, new HashSet<>(Arrays.asList(
+        taskFor(ALARM_DEFINITION_ID, CREATION_TASKS),
+        taskFor(alarm.getId(), THRESHOLDING_TASKS))));
+    verify(alarmDAO, never()).findForAlarmDefinitionId(ALARM_DEFINITION_ID);
+  }
+
+  public void shouldRouteSubExpressionUpdatesToAlarmsOfDefinition() {
+    when(alarmDAO.findForAlarmDefinitionId(ALARM_DEFINITION_ID)).thenReturn(
+        Arrays.asList(alarm));
+    final MetricDefinitionAndTenantId metric = alarm.getAlarmedMetrics().iterator().next();
+
+    final Set<Integer> targets =
+        router.targets(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID,
+            EventProcessingBolt.UPDATED, ALARM_DEFINITION_ID, null);
+    assertEquals(targets, new HashSet<>(Arrays.asList(
+        taskFor(new TenantIdAndMetricName(metric), AGGREGATION_TASKS),
+        taskFor(alarm.getId(), THRESHOLDING_TASKS))));
+    // Read once for both components
+    verify(alarmDAO, times(1)).findForAlarmDefinitionId(ALARM_DEFINITION_ID);
+  }
+
+  public void shouldNotLookUpAlarmsForNewDefinition() {
+    final Set<Integer> targets =
+        router.targets(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID,
+            EventProcessingBolt.CREATED, ALARM_DEFINITION_ID, null);
+    final Set<Integer> expected = new HashSet<>(FILTERING_TASKS);
+    expected.add(taskFor(ALARM_DEFINITION_ID, CREATION_TASKS));
+    assertEquals(targets, expected);
+    verify(alarmDAO, never()).findForAlarmDefinitionId(ALARM_DEFINITION_ID);
+  }
+
+  public void shouldBroadcastDeletedDefinitionToAlarmTasks() {
+    final Set<Integer> targets =
+        router.targets(EventProcessingBolt.ALARM_DEFINITION_EVENT_STREAM_ID,
+            EventProcessingBolt.DELETED, ALARM_DEFINITION_ID, null);
+    assertTrue(targets.containsAll(THRESHOLDING_TASKS));
+    assertTrue(targets.containsAll(FILTERING_TASKS));
+    verify(alarmDAO, never()).findForAlarmDefinitionId(ALARM_DEFINITION_ID);
+  }
+
+  public void shouldBroadcastIfAlarmsCannotBeRead() {
+    when(alarmDAO.findForAlarmDefinitionId(ALARM_DEFINITION_ID)).thenThrow(
+        new IllegalStateException("Database down"));
+    final Set<Integer> targets =
+        router.targets(EventProcessingBolt.METRIC_SUB_ALARM_EVENT_STREAM_ID,
+            EventProcessingBolt.UPDATED, ALARM_DEFINITION_ID, null);
+    final Set<Integer> expected = new HashSet<>(AGGREGATION_TASKS);
+    expected.addAll(THRESHOLDING_TASKS);
+    assertEquals(targets, expected);
+  }
+}
@@ -18,6 +18,7 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import static org.mockito.Matchers.argThat;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.mock;
@@ -53,6 +54,7 @@ import org.apache.storm.task.TopologyContext;
 import org.apache.storm.testing.MkTupleParam;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.mockito.ArgumentMatcher;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -166,6 +168,21 @@ public class MetricAggregationBoltTest {
     assertEquals(alarmData.getStats().getValue(t1/1000), 2.0);
   }
 
+  public void shouldAggregateBatches() {
+    sendSubAlarmCreated(metricDef1, subAlarm1);
+
+    long t1 = System.currentTimeMillis();
+    final Tuple tuple = createMetricBatchTuple(metricDef1.name, Arrays.asList(
+        new Metric(metricDef1, t1, 100, null), new Metric(metricDef1, t1, 80, null)));
+    bolt.execute(tuple);
+    verify(collector, times(1)).ack(tuple);
+
+    final SubAlarmStats alarmData =
+        bolt.getOrCreateSubAlarmStatsRepo(new MetricDefinitionAndTenantId(metricDef1, TENANT_ID))
+            .get(subAlarm1.getId());
+    assertEquals(alarmData.getStats().getValue(t1/1000), 90.0);
+  }
+
   public void shouldEvaluateAlarms() {
     // Ensure subAlarm2 and subAlarm3 map to the same Metric Definition
     assertEquals(metricDef3, metricDef2);
@@ -191,10 +208,10 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm3.getState(), AlarmState.UNDETERMINED);
     assertEquals(subAlarm4.getState(), AlarmState.OK); // deterministic
 
-    verify(collector, times(1)).emit(new Values(subAlarm1.getAlarmId(), subAlarm1));
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, never()).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm1));
+    verify(collector, never()).emit(stateChange(subAlarm2));
+    verify(collector, never()).emit(stateChange(subAlarm3));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
     // Have to reset the mock so it can tell the difference when subAlarm2 and subAlarm3 are emitted
     reset(collector);
 
@@ -211,10 +228,45 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm2.getState(), AlarmState.ALARM);
     assertEquals(subAlarm3.getState(), AlarmState.OK);
     assertEquals(subAlarm4.getState(), AlarmState.OK);
-    verify(collector, times(1)).emit(new Values(subAlarm1.getAlarmId(), subAlarm1));
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, times(1)).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, never()).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm1));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm3));
+    verify(collector, never()).emit(stateChange(subAlarm4));
+  }
+
+  public void shouldSendApiTimeStampOfNewestMetric() {
+    long t1 = 170000;
+    bolt.setCurrentTime(t1);
+    sendSubAlarmCreated(metricDef1, subAlarm1);
+    sendSubAlarmCreated(metricDef4, subAlarm4);
+
+    // The apiTimeStamps are the seconds the API received the Metrics
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1 - 120000, 88, null),
+        t1 / 1000 - 2));
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1 - 60000, 95, null),
+        t1 / 1000 - 1));
+    bolt.execute(createMetricTuple(metricDef1, new Metric(metricDef1, t1, 100000, null),
+        t1 / 1000));
+
+    t1 += 25000;
+    bolt.setCurrentTime(t1);
+    sendTickTuple();
+
+    assertEquals(subAlarm1.getState(), AlarmState.OK);
+    assertEquals(subAlarm4.getState(), AlarmState.OK);
+    verify(collector, times(1)).emit(new Values(subAlarm1.getAlarmId(), subAlarm1, 170L));
+    // No Metrics were received for subAlarm4
+    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4, null));
+
+    // Without more Metrics subAlarm1 becomes UNDETERMINED and the apiTimeStamp already sent must
+    // not be sent again with it
+    for (int i = 0; i < 20 && subAlarm1.getState() != AlarmState.UNDETERMINED; i++) {
+      t1 += 60000;
+      bolt.setCurrentTime(t1);
+      sendTickTuple();
+    }
+    assertEquals(subAlarm1.getState(), AlarmState.UNDETERMINED);
+    verify(collector, times(1)).emit(new Values(subAlarm1.getAlarmId(), subAlarm1, null));
   }
 
   public void shouldImmediatelyEvaluateSubAlarm() {
@@ -239,9 +291,9 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm3.getState(), AlarmState.ALARM);
     assertEquals(subAlarm4.getState(), AlarmState.ALARM);
 
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, times(1)).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, never()).emit(stateChange(subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm3));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
 
     // Have to reset the mock so it can tell the difference when subAlarm2 and subAlarm3 are emitted
     // again.
@@ -255,9 +307,9 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm3.getState(), AlarmState.ALARM);
     assertEquals(subAlarm4.getState(), AlarmState.ALARM);
 
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, never()).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, never()).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
+    verify(collector, never()).emit(stateChange(subAlarm3));
+    verify(collector, never()).emit(stateChange(subAlarm4));
 
     // Have to reset the mock so it can tell the difference when subAlarm2 and subAlarm3 are emitted
     // again.
@@ -279,9 +331,9 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm3.getState(), AlarmState.OK);
     // subAlarm4 goes to OK because of missing metrics
     assertEquals(subAlarm4.getState(), AlarmState.OK);
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, times(1)).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm3));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
 
     // Have to reset the mock so it can tell the difference when subAlarm2 and subAlarm3 are emitted
     // again.
@@ -296,8 +348,8 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm2.getState(), AlarmState.OK);
     assertEquals(subAlarm3.getState(), AlarmState.ALARM);
 
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, times(1)).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
+    verify(collector, never()).emit(stateChange(subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm3));
 
     // Have to reset the mock so it can tell the difference when subAlarm2 and subAlarm3 are emitted
     // again.
@@ -314,9 +366,9 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm2.getState(), AlarmState.OK);
     assertEquals(subAlarm3.getState(), AlarmState.ALARM);
     assertEquals(subAlarm4.getState(), AlarmState.OK);
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, never()).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, never()).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, never()).emit(stateChange(subAlarm2));
+    verify(collector, never()).emit(stateChange(subAlarm3));
+    verify(collector, never()).emit(stateChange(subAlarm4));
   }
 
   public void shouldImmediatelyGoToAlarmUsingSavedMetric() {
@@ -342,9 +394,9 @@ public class MetricAggregationBoltTest {
     assertEquals(subAlarm3.getState(), AlarmState.ALARM);
     assertEquals(subAlarm4.getState(), AlarmState.ALARM);
 
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
-    verify(collector, times(1)).emit(new Values(subAlarm3.getAlarmId(), subAlarm3));
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, never()).emit(stateChange(subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm3));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
   }
 
   private void sendTickTuple() {
@@ -366,7 +418,7 @@ public class MetricAggregationBoltTest {
     t1 += 60000;
     bolt.setCurrentTime(t1);
     sendTickTuple();
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
     assertEquals(subAlarm2.getState(), AlarmState.ALARM);
 
     sendSubAlarmResend(metricDef2, subAlarm2);
@@ -379,7 +431,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1);
     sendTickTuple();
     assertEquals(subAlarm2.getState(), AlarmState.ALARM);
-    verify(collector, times(2)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, times(2)).emit(stateChange(subAlarm2));
   }
 
   private void sendSubAlarmCreated(MetricDefinition metricDef, SubAlarm subAlarm) {
@@ -425,7 +477,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm2.getState(), AlarmState.OK);
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
 
     // Have to reset the mock so it can tell the difference when subAlarm2 is emitted again.
     reset(collector);
@@ -433,7 +485,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm2.getState(), AlarmState.UNDETERMINED);
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
   }
 
   public void shouldSendAlarmIfMetricBeforeSubAlarm() {
@@ -453,7 +505,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm4.getState(), AlarmState.ALARM);
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
   }
 
   public void shouldSendOkAfterAlarmIfNoMetrics() {
@@ -469,7 +521,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm4.getState(), AlarmState.OK);
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
   }
 
   public void shouldTransitionLastImmediatelyForNewAlarm() {
@@ -480,7 +532,7 @@ public class MetricAggregationBoltTest {
     t1 += 1000;
     bolt.execute(createMetricTuple(metricDef5, new Metric(metricDef5, t1, 1.0, null)));
     assertEquals(subAlarm5.getState(), AlarmState.ALARM);
-    verify(collector, times(1)).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, times(1)).emit(stateChange(subAlarm5));
     verify(alarmDao, times(1)).updateSubAlarmState(subAlarm5.getId(), AlarmState.ALARM);
 
     t1 += 1000;
@@ -493,29 +545,29 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.ALARM);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
 
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.ALARM);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
 
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.ALARM);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
 
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.ALARM);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
 
     bolt.execute(createMetricTuple(metricDef5, new Metric(metricDef5, t1, 0.0, null)));
     assertEquals(subAlarm5.getState(), AlarmState.OK);
-    verify(collector, times(1)).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, times(1)).emit(stateChange(subAlarm5));
     verify(alarmDao, times(1)).updateSubAlarmState(subAlarm5.getId(), AlarmState.OK);
 
     // Have to reset the mock so it can tell the difference when subAlarm5 is emitted again.
@@ -526,25 +578,25 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.OK);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
 
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.OK);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
 
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.OK);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
 
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm5.getState(), AlarmState.OK);
-    verify(collector, never()).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, never()).emit(stateChange(subAlarm5));
     verify(alarmDao, never()).updateSubAlarmState(eq(subAlarm5.getId()), (AlarmState) any());
   }
 
@@ -566,7 +618,7 @@ public class MetricAggregationBoltTest {
     t1 += 1000;
     bolt.execute(createMetricTuple(metricDef5, new Metric(metricDef5, t1, value, null)));
     assertEquals(subAlarm5.getState(), expectedState);
-    verify(collector, times(1)).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, times(1)).emit(stateChange(subAlarm5));
     verify(alarmDao, times(1)).updateSubAlarmState(subAlarm5.getId(), expectedState);
   }
 
@@ -587,7 +639,7 @@ public class MetricAggregationBoltTest {
     // Send another OK measurement. SubAlarm needs to be sent again
     bolt.execute(createMetricTuple(metricDef5, new Metric(metricDef5, t1, 0, null)));
     assertEquals(subAlarm5.getState(), expectedState);
-    verify(collector, times(1)).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, times(1)).emit(stateChange(subAlarm5));
     verify(alarmDao, times(1)).updateSubAlarmState(subAlarm5.getId(), expectedState);
 
     // Simulate another Alarm Update message from the API that would toggle the Alarm to ALARM
@@ -601,7 +653,7 @@ public class MetricAggregationBoltTest {
     // Send another OK measurement. SubAlarm needs to be sent again
     bolt.execute(createMetricTuple(metricDef5, new Metric(metricDef5, t1, 0, null)));
     assertEquals(subAlarm5.getState(), expectedState);
-    verify(collector, times(1)).emit(new Values(subAlarm5.getAlarmId(), subAlarm5));
+    verify(collector, times(1)).emit(stateChange(subAlarm5));
     verify(alarmDao, times(1)).updateSubAlarmState(subAlarm5.getId(), expectedState);
   }
 
@@ -637,7 +689,7 @@ public class MetricAggregationBoltTest {
     bolt.execute(createMetricTuple(metricDef, new Metric(metricDef, 1000, value, null)));
     assertEquals(subAlarm.getState(), expectedState);
     if (initialState != expectedState) {
-      verify(collector, times(1)).emit(new Values(subAlarm.getAlarmId(), subAlarm));
+      verify(collector, times(1)).emit(stateChange(subAlarm));
       verify(alarmDao, times(1)).updateSubAlarmState(subAlarm.getId(), expectedState);
     }
   }
@@ -657,7 +709,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm4.getState(), AlarmState.OK);
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
 
     // Have to reset the mock so it can tell the difference when subAlarm4 is emitted again.
     reset(collector);
@@ -665,7 +717,7 @@ public class MetricAggregationBoltTest {
     bolt.setCurrentTime(t1 += 60000);
     sendTickTuple();
     assertEquals(subAlarm4.getState(), AlarmState.OK);
-    verify(collector, never()).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, never()).emit(stateChange(subAlarm4));
   }
 
   public void shouldSendUndeterminedOnStartup() {
@@ -683,19 +735,19 @@ public class MetricAggregationBoltTest {
     t1 += 60000;
     bolt.setCurrentTime(t1);
     sendTickTuple();
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, never()).emit(stateChange(subAlarm2));
 
     t1 += 60000;
     bolt.setCurrentTime(t1);
     sendTickTuple();
-    verify(collector, never()).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, never()).emit(stateChange(subAlarm2));
 
     t1 += 60000;
     bolt.setCurrentTime(t1);
     sendTickTuple();
     assertEquals(subAlarm2.getState(), AlarmState.UNDETERMINED);
 
-    verify(collector, times(1)).emit(new Values(subAlarm2.getAlarmId(), subAlarm2));
+    verify(collector, times(1)).emit(stateChange(subAlarm2));
   }
 
   public void shouldSendOKOnStartupForDeterministic() {
@@ -714,14 +766,14 @@ public class MetricAggregationBoltTest {
     t1 += 60000;
     bolt.setCurrentTime(t1);
     sendTickTuple();
-    verify(collector, never()).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, never()).emit(stateChange(subAlarm4));
 
     t1 += 60000;
     bolt.setCurrentTime(t1);
     sendTickTuple();
     assertEquals(subAlarm4.getState(), AlarmState.OK);
 
-    verify(collector, times(1)).emit(new Values(subAlarm4.getAlarmId(), subAlarm4));
+    verify(collector, times(1)).emit(stateChange(subAlarm4));
   }
 
   private Tuple createTickTuple() {
@@ -842,11 +894,39 @@ public class MetricAggregationBoltTest {
   }
 
   private Tuple createMetricTuple(final MetricDefinition metricDef, final Metric metric) {
+    return createMetricTuple(metricDef, metric, metric.timestamp);
+  }
+
+  private Tuple createMetricTuple(final MetricDefinition metricDef, final Metric metric,
+      final long apiTimeStamp) {
     final MkTupleParam tupleParam = new MkTupleParam();
     tupleParam.setFields(MetricFilteringBolt.FIELDS);
     tupleParam.setStream(Streams.DEFAULT_STREAM_ID);
+    return Testing.testTuple(Arrays.<Object>asList(new TenantIdAndMetricName(TENANT_ID,
+        metric.name), metric, apiTimeStamp), tupleParam);
+  }
+
+  /**
+   * Matches the state change sent for the SubAlarm with any apiTimeStamp
+   */
+  private static List<Object> stateChange(final SubAlarm subAlarm) {
+    return argThat(new ArgumentMatcher<List<Object>>() {
+      @Override
+      public boolean matches(Object argument) {
+        final List<?> values = (List<?>) argument;
+        return values.size() == MetricAggregationBolt.FIELDS.length
+            && subAlarm.getAlarmId().equals(values.get(0)) && subAlarm.equals(values.get(1));
+      }
+    });
+  }
+
+  private Tuple createMetricBatchTuple(final String metricName, final List<Metric> metrics) {
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setFields(MetricFilteringBolt.METRIC_BATCH_FIELDS);
+    tupleParam.setStream(MetricFilteringBolt.METRIC_BATCH_STREAM);
     return Testing.testTuple(
-        Arrays.asList(new TenantIdAndMetricName(TENANT_ID, metric.name), metric), tupleParam);
+        Arrays.<Object>asList(new TenantIdAndMetricName(TENANT_ID, metricName), metrics,
+            System.currentTimeMillis()), tupleParam);
   }
 
   private static class MockMetricAggregationBolt extends MetricAggregationBolt {
@@ -858,6 +938,12 @@ public class MetricAggregationBoltTest {
       super(config, alarmDao);
     }
 
+    @Override
+    protected AlarmStateWriter createStateWriter(AlarmDAO alarmDAO, String name) {
+      // Write through so the updates can be verified as soon as they happen
+      return new AlarmStateWriter(alarmDAO, 0, name);
+    }
+
     @Override
     protected long currentTimeSeconds() {
       if (currentTime != 0) {
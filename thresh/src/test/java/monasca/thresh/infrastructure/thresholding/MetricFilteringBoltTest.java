@@ -17,6 +17,10 @@
 
 package monasca.thresh.infrastructure.thresholding;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -39,6 +43,7 @@ import monasca.thresh.domain.model.SubExpression;
 import monasca.thresh.domain.model.TenantIdAndMetricName;
 import monasca.thresh.domain.service.AlarmDAO;
 import monasca.thresh.domain.service.AlarmDefinitionDAO;
+import monasca.thresh.utils.FieldsGroupingTasks;
 import monasca.thresh.utils.Streams;
 
 import org.apache.storm.Testing;
@@ -47,16 +52,22 @@ import org.apache.storm.task.TopologyContext;
 import org.apache.storm.testing.MkTupleParam;
 import org.apache.storm.tuple.Tuple;
 import org.apache.storm.tuple.Values;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.mockito.verification.VerificationMode;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @Test
@@ -90,13 +101,39 @@ public class MetricFilteringBoltTest {
     return UUID.randomUUID().toString();
   }
 
-  private MockMetricFilteringBolt createBolt(List<AlarmDefinition> initialAlarmDefinitions,
-      final List<Alarm> initialAlarms, final OutputCollector collector, final boolean willEmit) {
+  private AlarmDefinitionDAO createAlarmDefinitionDao(
+      List<AlarmDefinition> initialAlarmDefinitions) {
     final AlarmDefinitionDAO alarmDefDao = mock(AlarmDefinitionDAO.class);
     when(alarmDefDao.listAll()).thenReturn(initialAlarmDefinitions);
+    return alarmDefDao;
+  }
+
+  private AlarmDAO createAlarmDao(final List<Alarm> initialAlarms) {
     final AlarmDAO alarmDao = mock(AlarmDAO.class);
-    when(alarmDao.listAll()).thenReturn(initialAlarms);
-    MockMetricFilteringBolt bolt = new MockMetricFilteringBolt(alarmDefDao, alarmDao);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) {
+        final String fromId = (String) invocation.getArguments()[0];
+        final String toId = (String) invocation.getArguments()[1];
+        final AlarmDAO.AlarmCallback callback =
+            (AlarmDAO.AlarmCallback) invocation.getArguments()[2];
+        for (final Alarm alarm : initialAlarms) {
+          if (AlarmWarmup.inRange(alarm.getId(), fromId, toId)) {
+            callback.onAlarm(alarm);
+          }
+        }
+        return null;
+      }
+    }).when(alarmDao).listAll(any(String.class), any(String.class),
+        any(AlarmDAO.AlarmCallback.class));
+    return alarmDao;
+  }
+
+  private MockMetricFilteringBolt createBolt(List<AlarmDefinition> initialAlarmDefinitions,
+      final List<Alarm> initialAlarms, final OutputCollector collector, final boolean willEmit) {
+    MockMetricFilteringBolt bolt =
+        new MockMetricFilteringBolt(createAlarmDefinitionDao(initialAlarmDefinitions),
+            createAlarmDao(initialAlarms));
 
     final Map<String, String> config = new HashMap<>();
     final TopologyContext context = mock(TopologyContext.class);
@@ -215,6 +252,16 @@ public class MetricFilteringBoltTest {
       super(alarmDefDAO, alarmDAO);
     }
 
+    public MockMetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO,
+        boolean sharded) {
+      super(alarmDefDAO, alarmDAO, sharded);
+    }
+
+    public MockMetricFilteringBolt(AlarmDefinitionDAO alarmDefDAO, AlarmDAO alarmDAO,
+        boolean sharded, MetricGrouping metricGrouping) {
+      super(alarmDefDAO, alarmDAO, sharded, metricGrouping);
+    }
+
     @Override
     protected long getCurrentTime() {
       return currentTimeMillis;
@@ -282,7 +329,8 @@ public class MetricFilteringBoltTest {
         bolt1.execute(exactTuple);
         verify(collector1, times(1)).ack(exactTuple);
         verify(collector1, howMany)
-            .emit(new Values(exactTuple.getValue(0), exactTuple.getValue(2)));
+            .emit(new Values(exactTuple.getValue(0), exactTuple.getValue(2),
+                exactTuple.getValue(1)));
       }
     }
   }
@@ -337,6 +385,184 @@ public class MetricFilteringBoltTest {
     testDeleteAlarms(initialAlarms, bolt1, collector1, bolt2, collector2, false);
   }
 
+  public void testKnownMetricsSentForNewAlarmDefinition() {
+    MetricFilteringBolt.clearMetricDefinitions();
+    final List<AlarmDefinition> initialAlarmDefinitions = Arrays.asList(alarmDef1);
+    final List<Alarm> initialAlarms = createMatchingAlarms(initialAlarmDefinitions);
+
+    final OutputCollector collector = mock(OutputCollector.class);
+
+    final MetricFilteringBolt bolt =
+        createBolt(initialAlarmDefinitions, initialAlarms, collector, true);
+
+    final Tuple tuple = createNewAlarmDefinitionTuple(dupMetricAlarmDef);
+    bolt.execute(tuple);
+    verify(collector, times(1)).ack(tuple);
+
+    // Only the known load metrics match the new Alarm Definition
+    final Set<MetricDefinitionAndTenantId> expected = new HashSet<>();
+    for (final MetricDefinitionAndTenantId mtid : initialAlarms.get(0).getAlarmedMetrics()) {
+      if (mtid.metricDefinition.name.equals("hpcs.compute.load")) {
+        expected.add(mtid);
+      }
+    }
+    assertEquals(expected.size(), 2);
+
+    @SuppressWarnings("unchecked")
+    final ArgumentCaptor<List<Object>> captor =
+        (ArgumentCaptor<List<Object>>) (ArgumentCaptor<?>) ArgumentCaptor.forClass(List.class);
+    verify(collector, times(1)).emit(eq(MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM),
+        captor.capture());
+    final List<Object> values = captor.getValue();
+    assertEquals(values.get(1), dupMetricAlarmDef.getId());
+    assertEquals(new HashSet<>((List<?>) values.get(0)), expected);
+
+    // The metrics were already sent so they must not be sent again when they arrive
+    verifyMetricPassed(initialAlarms, collector, bolt);
+    for (final MetricDefinitionAndTenantId mtid : expected) {
+      verify(collector, never()).emit(MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM,
+          new Values(mtid, dupMetricAlarmDef.getId()));
+    }
+
+    // A second created event for the same Alarm Definition must not resend them
+    final Tuple duplicate = createNewAlarmDefinitionTuple(dupMetricAlarmDef);
+    bolt.execute(duplicate);
+    verify(collector, times(1)).emit(eq(MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM),
+        anyListOf(Object.class));
+  }
+
+  public void testBatchedMetrics() {
+    MetricFilteringBolt.clearMetricDefinitions();
+    final List<AlarmDefinition> initialAlarmDefinitions = Arrays.asList(alarmDef1);
+    final String hotMetricName = "hpcs.compute.load";
+    final OutputCollector collector = mock(OutputCollector.class);
+    final MetricFilteringBolt bolt =
+        new MockMetricFilteringBolt(createAlarmDefinitionDao(initialAlarmDefinitions),
+            createAlarmDao(createMatchingAlarms(initialAlarmDefinitions)), false,
+            new MetricGrouping(Collections.singleton(hotMetricName), 2, false));
+    bolt.prepare(new HashMap<String, String>(), mock(TopologyContext.class), collector);
+
+    for (final AlarmSubExpression subExpr : alarmDef1.getAlarmExpression().getSubExpressions()) {
+      final MetricDefinition metricDefinition = subExpr.getMetricDefinition();
+      final Map<String, String> otherDimensions = new HashMap<>(metricDefinition.dimensions);
+      otherDimensions.put("instance_id", "999");
+      final Metric exact = new Metric(metricDefinition, metricTimestamp, 42.0, null);
+      final Metric inexact =
+          new Metric(addExtraDimension(metricDefinition), metricTimestamp, 42.0, null);
+      final Metric other = new Metric(new MetricDefinition(metricDefinition.name,
+          otherDimensions), metricTimestamp, 42.0, null);
+      final Tuple tuple = createMetricBatchTuple(metricDefinition.name, metricTimestamp,
+          Arrays.asList(exact, other, inexact));
+      bolt.execute(tuple);
+      verify(collector, times(1)).ack(tuple);
+
+      final TenantIdAndMetricName timn =
+          new TenantIdAndMetricName(TEST_TENANT_ID, metricDefinition.name);
+      if (hotMetricName.equals(metricDefinition.name)) {
+        // Spread over the tasks by MetricDefinition so each one must be in its own batch
+        verify(collector, times(1)).emit(MetricFilteringBolt.METRIC_BATCH_STREAM,
+            new Values(timn, Arrays.asList(exact), metricTimestamp));
+        verify(collector, times(1)).emit(MetricFilteringBolt.METRIC_BATCH_STREAM,
+            new Values(timn, Arrays.asList(inexact), metricTimestamp));
+      } else {
+        verify(collector, times(1)).emit(MetricFilteringBolt.METRIC_BATCH_STREAM,
+            new Values(timn, Arrays.asList(exact, inexact), metricTimestamp));
+      }
+    }
+    verify(collector, never()).emit(anyListOf(Object.class));
+  }
+
+  public void testRefusesAlarmDefinitionsTheGroupingCannotAggregate() {
+    MetricFilteringBolt.clearMetricDefinitions();
+    final String hotMetricName = "hpcs.compute.load";
+    // Without a match_by an Alarm gets every load metric of the instance
+    final AlarmDefinition existing = new AlarmDefinition(TEST_TENANT_ID, "Existing", null,
+        new AlarmExpression("max(hpcs.compute.load{instance_id=123}) > 8"), "LOW", true,
+        new ArrayList<String>());
+    final AlarmDefinition created = new AlarmDefinition(TEST_TENANT_ID, "Created", null,
+        new AlarmExpression("avg(hpcs.compute.load{instance_id=123}) > 5"), "LOW", true,
+        new ArrayList<String>());
+    final List<AlarmDefinition> initialAlarmDefinitions = Arrays.asList(alarmDef1, existing);
+    final OutputCollector collector = mock(OutputCollector.class);
+    final MetricFilteringBolt bolt =
+        new MockMetricFilteringBolt(createAlarmDefinitionDao(initialAlarmDefinitions),
+            createAlarmDao(createMatchingAlarms(Arrays.asList(alarmDef1))), false,
+            new MetricGrouping(Collections.singleton(hotMetricName), 2, false));
+    bolt.prepare(new HashMap<String, String>(), mock(TopologyContext.class), collector);
+
+    final Tuple createdTuple = createNewAlarmDefinitionTuple(created);
+    bolt.execute(createdTuple);
+    verify(collector, times(1)).ack(createdTuple);
+
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("instance_id", "123");
+    dimensions.put("device", "7");
+    final MetricDefinition metricDefinition = new MetricDefinition(hotMetricName, dimensions);
+    final Tuple tuple = createMetricTuple(metricDefinition, metricTimestamp,
+        new Metric(metricDefinition, metricTimestamp, 42.0, null));
+    bolt.execute(tuple);
+    verify(collector, times(1)).ack(tuple);
+    verify(collector, never()).emit(eq(MetricFilteringBolt.NEW_METRIC_FOR_ALARM_DEFINITION_STREAM),
+        anyListOf(Object.class));
+    verify(collector, never()).emit(eq(MetricFilteringBolt.NEW_METRICS_FOR_ALARM_DEFINITION_STREAM),
+        anyListOf(Object.class));
+    verify(collector, never()).emit(anyListOf(Object.class));
+
+    // The metrics of the Alarm Definition with a match_by still pass
+    verifyMetricPassed(createMatchingAlarms(Arrays.asList(alarmDef1)), collector, bolt);
+  }
+
+  public void testShardedLoadsOnlyWorkerMetrics() {
+    MetricFilteringBolt.clearMetricDefinitions();
+    // Find a metric name routed to each of the two tasks
+    String ownedName = null;
+    String otherName = null;
+    for (int i = 0; (ownedName == null) || (otherName == null); i++) {
+      final String name = "sharded.metric" + i;
+      if (FieldsGroupingTasks.taskIndex(new TenantIdAndMetricName(TEST_TENANT_ID, name), 2) == 0) {
+        if (ownedName == null) {
+          ownedName = name;
+        }
+      } else if (otherName == null) {
+        otherName = name;
+      }
+    }
+    final AlarmDefinition alarmDef = createAlarmDefinition(String.format(
+        "max(%s{instance_id=123}) > 5 and max(%s{instance_id=123}) > 5", ownedName, otherName),
+        "Sharded Alarm Def");
+    final List<AlarmDefinition> initialAlarmDefinitions = Arrays.asList(alarmDef);
+    final List<Alarm> initialAlarms = createMatchingAlarms(initialAlarmDefinitions);
+
+    // Task 1 is in this worker, task 2 is in another one
+    final TopologyContext context = mock(TopologyContext.class);
+    when(context.getThisComponentId()).thenReturn("filtering-bolt");
+    when(context.getComponentTasks("filtering-bolt")).thenReturn(Arrays.asList(1, 2));
+    when(context.getThisWorkerTasks()).thenReturn(Arrays.asList(1, 5));
+    when(context.getThisTaskId()).thenReturn(1);
+    final OutputCollector collector = mock(OutputCollector.class);
+    final MetricFilteringBolt bolt =
+        new MockMetricFilteringBolt(createAlarmDefinitionDao(initialAlarmDefinitions),
+            createAlarmDao(initialAlarms), true);
+    bolt.prepare(new HashMap<String, String>(), context, collector);
+
+    // The exact and the extra dimension metric definitions of the owned name
+    assertEquals(MetricFilteringBolt.sizeMetricDefinitions(), 2);
+    final Alarm alarm = initialAlarms.get(0);
+    for (final MetricDefinitionAndTenantId mtid : alarm.getAlarmedMetrics()) {
+      for (final SubAlarm subAlarm : alarm.getSubAlarms()) {
+        if (!mtid.metricDefinition.name.equals(
+            subAlarm.getExpression().getMetricDefinition().name)) {
+          continue;
+        }
+        final VerificationMode expected =
+            mtid.metricDefinition.name.equals(ownedName) ? times(1) : never();
+        verify(collector, expected).emit(AlarmCreationBolt.ALARM_CREATION_STREAM,
+            new Values(EventProcessingBolt.CREATED, new TenantIdAndMetricName(mtid), mtid,
+                alarmDef.getId(), subAlarm));
+      }
+    }
+  }
+
   private List<Alarm> createMatchingAlarms(List<AlarmDefinition> alarmDefinitions) {
     final List<Alarm> alarms = new LinkedList<>();
     for (final AlarmDefinition alarmDef : alarmDefinitions) {
@@ -481,6 +707,15 @@ public class MetricFilteringBoltTest {
     return tuple;
   }
 
+  private Tuple createMetricBatchTuple(final String metricName, final long timestamp,
+      final List<Metric> metrics) {
+    final MkTupleParam tupleParam = new MkTupleParam();
+    tupleParam.setFields(MetricSpout.METRIC_BATCH_FIELDS);
+    tupleParam.setStream(MetricSpout.METRIC_BATCH_STREAM);
+    return Testing.testTuple(Arrays.<Object>asList(new TenantIdAndMetricName(TEST_TENANT_ID,
+        metricName), timestamp, metrics), tupleParam);
+  }
+
   private Tuple createMetricTuple(final MetricDefinition metricDefinition, final long timestamp,
       final Metric metric) {
     final MkTupleParam tupleParam = new MkTupleParam();
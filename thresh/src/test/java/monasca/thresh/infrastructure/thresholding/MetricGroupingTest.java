@@ -0,0 +1,229 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import monasca.common.model.alarm.AlarmExpression;
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.domain.model.AlarmDefinition;
+import monasca.thresh.domain.model.MetricDefinitionAndTenantId;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.utils.FieldsGroupingTasks;
+
+import org.apache.storm.generated.GlobalStreamId;
+import org.apache.storm.task.WorkerTopologyContext;
+import org.apache.storm.tuple.Fields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Test
+public class MetricGroupingTest {
+  private static final Logger logger = LoggerFactory.getLogger(MetricGroupingTest.class);
+
+  private static final String TENANT_ID = "42";
+  private static final String HOT_METRIC = "cpu.idle_perc";
+  private static final List<Integer> TASKS = Arrays.asList(14, 12, 10, 13, 11, 15, 16, 17);
+
+  private MetricGrouping prepare(MetricGrouping grouping, String[] fields) {
+    final WorkerTopologyContext context = mock(WorkerTopologyContext.class);
+    when(context.getComponentOutputFields(any(GlobalStreamId.class))).thenReturn(
+        new Fields(fields));
+    grouping.prepare(context, new GlobalStreamId("filtering-bolt", "default"), TASKS);
+    return grouping;
+  }
+
+  private MetricDefinition createMetricDefinition(String name, int host) {
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", "host-" + host);
+    dimensions.put("service", "monitoring");
+    return new MetricDefinition(name, dimensions);
+  }
+
+  public void shouldRouteLikeFieldsGrouping() {
+    final MetricGrouping grouping = prepare(new MetricGrouping(), MetricFilteringBolt.FIELDS);
+    final FieldsGroupingTasks fieldsGrouping = new FieldsGroupingTasks(TASKS, 10);
+    for (int i = 0; i < 100; i++) {
+      final MetricDefinition metricDefinition = createMetricDefinition("metric-" + i, i);
+      final TenantIdAndMetricName key =
+          new TenantIdAndMetricName(TENANT_ID, metricDefinition.name);
+      final Metric metric =
+          new Metric(metricDefinition.name, metricDefinition.dimensions, 1000, 1, null);
+      assertEquals(grouping.chooseTasks(1, Arrays.<Object>asList(key, metric)),
+          Collections.singletonList(fieldsGrouping.taskFor(key)));
+    }
+  }
+
+  public void shouldSplitHotMetricsAndKeepDefinitionsTogether() {
+    final Set<Integer> used =
+        routeDefinitions(Collections.singleton(HOT_METRIC), 4, false, HOT_METRIC);
+    assertEquals(used.size(), 4);
+  }
+
+  /**
+   * The metric definitions of a name that is not hot may be aggregated together by one SubAlarm,
+   * so they must stay on one task
+   */
+  public void shouldNotSplitMetricsThatAreNotHot() {
+    assertEquals(routeDefinitions(Collections.singleton(HOT_METRIC), 4, false,
+        "disk.space_used_perc").size(), 1);
+    assertEquals(routeDefinitions(Collections.singleton(HOT_METRIC), 1, false, HOT_METRIC).size(),
+        1);
+  }
+
+  public void shouldGroupByMetricDefinition() {
+    final Set<Integer> used =
+        routeDefinitions(Collections.<String>emptySet(), 1, true, "container.cpu");
+    assertEquals(used.size(), TASKS.size());
+  }
+
+  public void shouldOnlyAggregateSplitNamesWithMatchBy() {
+    final MetricGrouping grouping =
+        new MetricGrouping(Collections.singleton(HOT_METRIC), 4, false);
+    final String hotExpression = "avg(" + HOT_METRIC + "{service=monitoring}) < 10";
+    assertTrue(grouping.canAggregate(createAlarmDefinition(hotExpression, "hostname")));
+    assertFalse(grouping.canAggregate(createAlarmDefinition(hotExpression)));
+    assertFalse(grouping.canAggregate(createAlarmDefinition(
+        "max(disk.space_used_perc) > 90 or " + hotExpression)));
+    assertTrue(grouping.canAggregate(createAlarmDefinition("max(disk.space_used_perc) > 90")));
+    assertTrue(new MetricGrouping().canAggregate(createAlarmDefinition(hotExpression)));
+    assertFalse(new MetricGrouping(Collections.<String>emptySet(), 1, true).canAggregate(
+        createAlarmDefinition("max(disk.space_used_perc) > 90")));
+  }
+
+  private AlarmDefinition createAlarmDefinition(String expression, String... matchBy) {
+    return new AlarmDefinition(TENANT_ID, "Test", null, new AlarmExpression(expression), "LOW",
+        true, Arrays.asList(matchBy));
+  }
+
+  /**
+   * Routes the metric, sub alarm creation and metric alarm event tuples of many metric
+   * definitions with the same name, checks each definition goes to one task and returns the
+   * tasks used
+   */
+  private Set<Integer> routeDefinitions(Set<String> hotMetricNames, int hotMetricSplit,
+      boolean groupByMetricDefinition, String metricName) {
+    final MetricGrouping metrics =
+        prepare(new MetricGrouping(hotMetricNames, hotMetricSplit, groupByMetricDefinition),
+            MetricFilteringBolt.FIELDS);
+    final MetricGrouping creations =
+        prepare(new MetricGrouping(hotMetricNames, hotMetricSplit, groupByMetricDefinition),
+            AlarmCreationBolt.ALARM_CREATION_FIELDS);
+    final MetricGrouping events =
+        prepare(new MetricGrouping(hotMetricNames, hotMetricSplit, groupByMetricDefinition),
+            EventProcessingBolt.METRIC_ALARM_EVENT_STREAM_FIELDS);
+
+    final TenantIdAndMetricName key = new TenantIdAndMetricName(TENANT_ID, metricName);
+    final Set<Integer> used = new HashSet<>();
+    for (int i = 0; i < 200; i++) {
+      final MetricDefinition metricDefinition = createMetricDefinition(metricName, i);
+      final MetricDefinitionAndTenantId metricDefinitionAndTenantId =
+          new MetricDefinitionAndTenantId(metricDefinition, TENANT_ID);
+      final Metric metric =
+          new Metric(metricDefinition.name, metricDefinition.dimensions, 1000, 1, null);
+
+      final List<Integer> task = metrics.chooseTasks(1, Arrays.<Object>asList(key, metric));
+      assertEquals(task.size(), 1);
+      used.add(task.get(0));
+      assertEquals(creations.chooseTasks(1,
+          Arrays.<Object>asList("", key, metricDefinitionAndTenantId, "alarm-def", null)), task);
+      assertEquals(events.chooseTasks(1,
+          Arrays.<Object>asList("deleted", key, metricDefinitionAndTenantId, "alarm-def",
+              "sub-alarm")), task);
+    }
+    return used;
+  }
+
+  /**
+   * Routes the keys of many tenants with similar metric names and reports how evenly they are
+   * spread over the tasks by the old additive hash and by the current hash.
+   */
+  public void reportSkew() {
+    final int numTasks = 30;
+    final List<TenantIdAndMetricName> keys = new ArrayList<>();
+    for (int tenant = 0; tenant < 200; tenant++) {
+      for (int name = 0; name < 50; name++) {
+        keys.add(new TenantIdAndMetricName(String.format("tenant-%04d", tenant),
+            String.format("metric.%03d", name)));
+      }
+    }
+    final int[] additive = new int[numTasks];
+    final int[] current = new int[numTasks];
+    final Set<Integer> additiveHashes = new HashSet<>();
+    final Set<Integer> currentHashes = new HashSet<>();
+    for (final TenantIdAndMetricName key : keys) {
+      final int additiveHash = key.getTenantId().hashCode() + key.getMetricName().hashCode();
+      additive[FieldsGroupingTasks.taskIndex(new AdditiveKey(additiveHash), numTasks)]++;
+      additiveHashes.add(additiveHash);
+      current[FieldsGroupingTasks.taskIndex(key, numTasks)]++;
+      currentHashes.add(key.hashCode());
+    }
+    final double average = (double) keys.size() / numTasks;
+    final double additiveSkew = max(additive) / average;
+    final double currentSkew = max(current) / average;
+    logger.info("Skew report for {} keys over {} tasks", keys.size(), numTasks);
+    logger.info("  additive hash: {} distinct hashes, max/avg load {}", additiveHashes.size(),
+        String.format("%.2f", additiveSkew));
+    logger.info("  murmur3 hash:  {} distinct hashes, max/avg load {}", currentHashes.size(),
+        String.format("%.2f", currentSkew));
+
+    assertTrue(currentHashes.size() > additiveHashes.size());
+    assertTrue(currentSkew < additiveSkew);
+    assertTrue(currentSkew < 1.3, "Max/avg load is " + currentSkew);
+  }
+
+  private static int max(int[] loads) {
+    int max = 0;
+    for (final int load : loads) {
+      max = Math.max(max, load);
+    }
+    return max;
+  }
+
+  /**
+   * Stands in for a key with the old hashCode
+   */
+  private static class AdditiveKey {
+    private final int hash;
+
+    AdditiveKey(int hash) {
+      this.hash = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.infrastructure.thresholding;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import monasca.common.model.metric.Metric;
+import monasca.common.model.metric.MetricDefinition;
+import monasca.thresh.MetricSpoutConfig;
+import monasca.thresh.domain.model.TenantIdAndMetricName;
+import monasca.thresh.utils.Streams;
+
+import org.apache.storm.spout.SpoutOutputCollector;
+import org.apache.storm.tuple.Values;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+@Test
+public class MetricSpoutTest {
+  private static final String TENANT_ID = "42";
+
+  private SpoutOutputCollector collector;
+  private MetricDefinition metricDefinition;
+  private TenantIdAndMetricName timn;
+
+  @BeforeMethod
+  protected void beforeMethod() {
+    collector = mock(SpoutOutputCollector.class);
+    final Map<String, String> dimensions = new HashMap<>();
+    dimensions.put("hostname", "host-1");
+    metricDefinition = new MetricDefinition("cpu.idle_perc", dimensions);
+    timn = new TenantIdAndMetricName(TENANT_ID, metricDefinition.name);
+  }
+
+  private MockMetricSpout createSpout(int batchSize) {
+    return createSpout(batchSize, true);
+  }
+
+  private MockMetricSpout createSpout(int batchSize, boolean reliable) {
+    final MetricSpoutConfig config = new MetricSpoutConfig();
+    config.batchSize = batchSize;
+    config.batchMaxLatencyMs = 100;
+    config.reliable = reliable;
+    return new MockMetricSpout(config);
+  }
+
+  public void shouldEmitEachMetricWhenNotBatched() {
+    final MockMetricSpout spout = createSpout(1);
+    final Metric metric = new Metric(metricDefinition, 1000, 1.0, null);
+    spout.emitMetric(timn, 2000, metric, collector);
+    verify(collector, times(1)).emit(eq(Streams.DEFAULT_STREAM_ID),
+        eq(new Values(timn, 2000L, metric)), any(String.class));
+  }
+
+  public void shouldEmitWithoutMessageIdWhenNotReliable() {
+    final MockMetricSpout spout = createSpout(1, false);
+    final Metric metric = new Metric(metricDefinition, 1000, 1.0, null);
+    spout.emitMetric(timn, 2000, metric, collector);
+    verify(collector, times(1)).emit(Streams.DEFAULT_STREAM_ID, new Values(timn, 2000L, metric));
+    verify(collector, never()).emit(any(String.class), anyListOf(Object.class), any());
+
+    final MockMetricSpout batchingSpout = createSpout(2, false);
+    batchingSpout.emitMetric(timn, 2000, metric, collector);
+    batchingSpout.emitMetric(timn, 2000, metric, collector);
+    verify(collector, times(1)).emit(MetricSpout.METRIC_BATCH_STREAM,
+        new Values(timn, 2000L, Arrays.asList(metric, metric)));
+    verify(collector, never()).emit(any(String.class), anyListOf(Object.class), any());
+  }
+
+  public void shouldEmitFullBatches() {
+    final MockMetricSpout spout = createSpout(3);
+    final Metric metric1 = new Metric(metricDefinition, 1000, 1.0, null);
+    final Metric metric2 = new Metric(metricDefinition, 2000, 2.0, null);
+    final Metric metric3 = new Metric(metricDefinition, 3000, 3.0, null);
+    final TenantIdAndMetricName other = new TenantIdAndMetricName(TENANT_ID, "mem.free_mb");
+    spout.emitMetric(timn, 5000, metric1, collector);
+    spout.emitMetric(timn, 7000, metric2, collector);
+    spout.emitMetric(other, 7000, metric2, collector);
+    spout.flush(collector);
+    verify(collector, never()).emit(eq(MetricSpout.METRIC_BATCH_STREAM),
+        anyListOf(Object.class), any(String.class));
+
+    spout.emitMetric(timn, 6000, metric3, collector);
+    verify(collector, times(1)).emit(eq(MetricSpout.METRIC_BATCH_STREAM),
+        eq(new Values(timn, 5000L, Arrays.asList(metric1, metric2, metric3))),
+        any(String.class));
+    verify(collector, never()).emit(eq(Streams.DEFAULT_STREAM_ID), anyListOf(Object.class),
+        any(String.class));
+  }
+
+  public void shouldEmitBatchesAfterMaxLatency() {
+    final MockMetricSpout spout = createSpout(100);
+    final Metric metric1 = new Metric(metricDefinition, 1000, 1.0, null);
+    final Metric metric2 = new Metric(metricDefinition, 2000, 2.0, null);
+    final TenantIdAndMetricName other = new TenantIdAndMetricName(TENANT_ID, "mem.free_mb");
+    spout.emitMetric(timn, 5000, metric1, collector);
+    spout.setCurrentTime(spout.currentTime + 50);
+    spout.emitMetric(other, 5000, metric2, collector);
+
+    spout.setCurrentTime(spout.currentTime + 50);
+    spout.flush(collector);
+    verify(collector, times(1)).emit(eq(MetricSpout.METRIC_BATCH_STREAM),
+        eq(new Values(timn, 5000L, Arrays.asList(metric1))), any(String.class));
+    verify(collector, never()).emit(eq(MetricSpout.METRIC_BATCH_STREAM),
+        eq(new Values(other, 5000L, Arrays.asList(metric2))), any(String.class));
+
+    spout.setCurrentTime(spout.currentTime + 50);
+    spout.flush(collector);
+    verify(collector, times(1)).emit(eq(MetricSpout.METRIC_BATCH_STREAM),
+        eq(new Values(other, 5000L, Arrays.asList(metric2))), any(String.class));
+  }
+
+  private static class MockMetricSpout extends MetricSpout {
+    private static final long serialVersionUID = 1L;
+    private long currentTime = 1000000;
+
+    public MockMetricSpout(MetricSpoutConfig metricSpoutConfig) {
+      super(metricSpoutConfig);
+    }
+
+    @Override
+    protected long getCurrentTime() {
+      return currentTime;
+    }
+
+    public void setCurrentTime(long currentTime) {
+      this.currentTime = currentTime;
+    }
+  }
+}
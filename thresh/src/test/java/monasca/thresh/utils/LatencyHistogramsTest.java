@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.utils;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import monasca.thresh.domain.service.AlarmDAO;
+
+import org.apache.storm.tuple.Tuple;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@Test
+public class LatencyHistogramsTest {
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Map<String, Long>> read(LatencyHistograms histograms) {
+    return (Map<String, Map<String, Long>>) histograms.getValueAndReset();
+  }
+
+  public void shouldReportPercentilesAndReset() {
+    final LatencyHistograms histograms = new LatencyHistograms();
+    for (int i = 1; i <= 1000; i++) {
+      histograms.record("stream", TimeUnit.MICROSECONDS.toNanos(i));
+    }
+    histograms.record("other", TimeUnit.MILLISECONDS.toNanos(5));
+
+    final Map<String, Map<String, Long>> values = read(histograms);
+    assertEquals(values.size(), 2);
+    final Map<String, Long> stream = values.get("stream");
+    assertEquals(stream.get(LatencyHistograms.COUNT).longValue(), 1000);
+    assertWithinPercent(stream.get(LatencyHistograms.P50), 500);
+    assertWithinPercent(stream.get(LatencyHistograms.P99), 990);
+    assertWithinPercent(stream.get(LatencyHistograms.P999), 999);
+    assertWithinPercent(stream.get(LatencyHistograms.MAX), 1000);
+    assertWithinPercent(values.get("other").get(LatencyHistograms.MAX), 5000);
+
+    // Nothing recorded since the last read
+    assertTrue(read(histograms).isEmpty());
+
+    histograms.record("other", TimeUnit.MICROSECONDS.toNanos(10));
+    final Map<String, Map<String, Long>> next = read(histograms);
+    assertEquals(next.keySet().size(), 1);
+    assertEquals(next.get("other").get(LatencyHistograms.COUNT).longValue(), 1);
+    assertWithinPercent(next.get("other").get(LatencyHistograms.MAX), 10);
+  }
+
+  public void shouldRecordByStream() {
+    final LatencyHistograms histograms = new LatencyHistograms();
+    final Tuple tuple = mock(Tuple.class);
+    when(tuple.getSourceComponent()).thenReturn("filtering-bolt");
+    when(tuple.getSourceStreamId()).thenReturn("default");
+    histograms.recordSince(tuple, System.nanoTime());
+    assertNotNull(read(histograms).get("filtering-bolt:default"));
+  }
+
+  public void shouldTimeEachMethod() {
+    final LatencyHistograms histograms = new LatencyHistograms();
+    final AlarmDAO alarmDAO = mock(AlarmDAO.class);
+    final IllegalStateException failure = new IllegalStateException("Database down");
+    when(alarmDAO.findById("42")).thenThrow(failure);
+    final AlarmDAO timed = histograms.timed(AlarmDAO.class, alarmDAO);
+
+    timed.deleteByDefinitionId("111");
+    verify(alarmDAO).deleteByDefinitionId("111");
+    try {
+      timed.findById("42");
+      fail("Expected the exception from the DAO");
+    } catch (IllegalStateException e) {
+      assertEquals(e, failure);
+    }
+    timed.toString();
+
+    final Map<String, Map<String, Long>> values = read(histograms);
+    assertEquals(values.size(), 2);
+    assertEquals(values.get("AlarmDAO.deleteByDefinitionId").get(LatencyHistograms.COUNT)
+        .longValue(), 1);
+    assertEquals(values.get("AlarmDAO.findById").get(LatencyHistograms.COUNT).longValue(), 1);
+  }
+
+  private static void assertWithinPercent(long actual, long expected) {
+    assertTrue(Math.abs(actual - expected) <= expected / 100 + 1,
+        actual + " is not close to " + expected);
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.utils;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+@Test
+public class StateSizesTest {
+
+  @SuppressWarnings("unchecked")
+  private static Map<String, Map<String, Long>> read(StateSizes stateSizes) {
+    return (Map<String, Map<String, Long>>) stateSizes.getValueAndReset();
+  }
+
+  public void shouldReportCurrentSizes() {
+    final Map<String, String> map = new HashMap<>();
+    final Set<String> set = new HashSet<>();
+    final Map<String, List<String>> lists = new HashMap<>();
+    final StateSizes stateSizes = new StateSizes()
+        .add("map", 100, map)
+        .add("set", 10, set)
+        .add("lists", 50, StateSizes.totalSize(lists));
+
+    Map<String, Map<String, Long>> values = read(stateSizes);
+    assertEquals(values.size(), 3);
+    assertEquals(values.get("map").get(StateSizes.SIZE).longValue(), 0);
+    assertEquals(values.get("map").get(StateSizes.ESTIMATED_BYTES).longValue(), 0);
+
+    map.put("a", "b");
+    map.put("c", "d");
+    set.add("e");
+    lists.put("f", Arrays.asList("g", "h", "i"));
+    lists.put("j", Arrays.asList("k"));
+    values = read(stateSizes);
+    assertEquals(values.get("map").get(StateSizes.SIZE).longValue(), 2);
+    assertEquals(values.get("map").get(StateSizes.ESTIMATED_BYTES).longValue(), 200);
+    assertEquals(values.get("set").get(StateSizes.SIZE).longValue(), 1);
+    assertEquals(values.get("set").get(StateSizes.ESTIMATED_BYTES).longValue(), 10);
+    assertEquals(values.get("lists").get(StateSizes.SIZE).longValue(), 4);
+    assertEquals(values.get("lists").get(StateSizes.ESTIMATED_BYTES).longValue(), 200);
+
+    // Gauges are not reset when read
+    assertEquals(read(stateSizes).get("map").get(StateSizes.SIZE).longValue(), 2);
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * (C) Copyright 2016 Hewlett Packard Enterprise Development LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package monasca.thresh.utils;
+
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+
+import org.apache.storm.metric.api.IMetricsConsumer.DataPoint;
+import org.apache.storm.metric.api.IMetricsConsumer.TaskInfo;
+import org.apache.storm.task.TopologyContext;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Test
+public class StatsdMetricConsumerTest {
+  private static final String EXECUTE_COUNT = "filtering-bolt.execute-count.metrics-spout_default";
+  private static final String LATENCY = "filtering-bolt.execute-latency-us.metrics-spout_default";
+  private static final String DB_LATENCY = "thresholding-bolt.db-latency-us.AlarmDAO_updateStates";
+  private static final String STATE_SIZE = "thresholding-bolt.state-size.alarms";
+
+  // Stands in for the StatsD server
+  private DatagramSocket server;
+  private MockStatsdMetricConsumer consumer;
+  private TaskInfo taskInfo;
+  private String dimensions;
+
+  @BeforeMethod
+  protected void beforeMethod() throws Exception {
+    server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+    server.setSoTimeout(5000);
+    consumer = new MockStatsdMetricConsumer();
+    taskInfo = new TaskInfo("localhost", 6701, "filtering-bolt", 3, 1000, 60);
+  }
+
+  @AfterMethod
+  protected void afterMethod() {
+    consumer.cleanup();
+    server.close();
+  }
+
+  private void prepare(Integer maxPacketBytes, Integer aggregationWindow) {
+    final Map<String, Object> conf = new HashMap<>();
+    conf.put(StatsdMetricConsumer.STATSD_HOST, "localhost");
+    conf.put(StatsdMetricConsumer.STATSD_PORT, server.getLocalPort());
+    conf.put(StatsdMetricConsumer.STATSD_WHITELIST, Arrays.asList(EXECUTE_COUNT,
+        LATENCY + "." + LatencyHistograms.COUNT, LATENCY + "." + LatencyHistograms.P99,
+        DB_LATENCY + "." + LatencyHistograms.COUNT, DB_LATENCY + "." + LatencyHistograms.P99,
+        STATE_SIZE + "." + StateSizes.SIZE, STATE_SIZE + "." + StateSizes.ESTIMATED_BYTES));
+    final Map<String, String> metricMap = new HashMap<>();
+    metricMap.put(EXECUTE_COUNT, "thresh.filtering.metrics");
+    conf.put(StatsdMetricConsumer.STATSD_METRICMAP, metricMap);
+    if (maxPacketBytes != null) {
+      conf.put(StatsdMetricConsumer.STATSD_MAX_PACKET_BYTES, maxPacketBytes);
+    }
+    if (aggregationWindow != null) {
+      conf.put(StatsdMetricConsumer.STATSD_AGGREGATION_WINDOW, aggregationWindow);
+    }
+    consumer.prepare(conf, null, mock(TopologyContext.class), null);
+    dimensions = consumer.statsdDimensions;
+  }
+
+  private static DataPoint executeCount(long count) {
+    final Map<String, Long> counts = new HashMap<>();
+    counts.put("metrics-spout:default", count);
+    return new DataPoint("__execute-count", counts);
+  }
+
+  private static DataPoint latency(long count, long p99) {
+    final Map<String, Long> percentiles = new LinkedHashMap<>();
+    percentiles.put(LatencyHistograms.COUNT, count);
+    percentiles.put(LatencyHistograms.P50, p99 / 2);
+    percentiles.put(LatencyHistograms.P99, p99);
+    final Map<String, Object> streams = new HashMap<>();
+    streams.put("metrics-spout:default", percentiles);
+    return new DataPoint(LatencyHistograms.EXECUTE_LATENCY, streams);
+  }
+
+  private String receive() throws Exception {
+    final DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+    server.receive(packet);
+    return new String(packet.getData(), 0, packet.getLength(), Charset.defaultCharset());
+  }
+
+  public void shouldSendMetricsInOnePacket() throws Exception {
+    prepare(null, null);
+    consumer.handleDataPoints(taskInfo, Arrays.asList(executeCount(5), latency(10, 250),
+        new DataPoint("__emit-count", 8L)));
+
+    assertEquals(receive(), "thresh.filtering.metrics:5.0|c" + dimensions + "\n"
+        + LATENCY + ".count:10.0|c" + dimensions + "\n"
+        + LATENCY + ".p99:250.0|g" + dimensions);
+
+    // The names are cached, so a second report must be the same
+    consumer.handleDataPoints(taskInfo, Arrays.asList(executeCount(2)));
+    assertEquals(receive(), "thresh.filtering.metrics:2.0|c" + dimensions);
+  }
+
+  public void shouldSplitPacketsAtMaxSize() throws Exception {
+    final String first = "thresh.filtering.metrics:5.0|c";
+    prepare(first.length() + dimensions.length() + 10, null);
+    consumer.handleDataPoints(taskInfo, Arrays.asList(executeCount(5), latency(10, 250)));
+
+    assertEquals(receive(), first + dimensions);
+    assertEquals(receive(), LATENCY + ".count:10.0|c" + dimensions);
+    assertEquals(receive(), LATENCY + ".p99:250.0|g" + dimensions);
+  }
+
+  public void shouldFlattenNestedMapsAndSendGauges() throws Exception {
+    prepare(null, null);
+    final Map<String, Long> percentiles = new LinkedHashMap<>();
+    percentiles.put(LatencyHistograms.COUNT, 3L);
+    percentiles.put(LatencyHistograms.P50, 120L);
+    percentiles.put(LatencyHistograms.P99, 400L);
+    percentiles.put(LatencyHistograms.MAX, 900L);
+    final Map<String, Object> methods = new HashMap<>();
+    // As named by LatencyHistograms.timed
+    methods.put("AlarmDAO.updateStates", percentiles);
+    final Map<String, Long> sizes = new LinkedHashMap<>();
+    sizes.put(StateSizes.SIZE, 10L);
+    sizes.put(StateSizes.ESTIMATED_BYTES, 15000L);
+    final Map<String, Object> states = new HashMap<>();
+    states.put("alarms", sizes);
+    consumer.handleDataPoints(new TaskInfo("localhost", 6701, "thresholding-bolt", 5, 1000, 60),
+        Arrays.asList(new DataPoint(LatencyHistograms.DB_LATENCY, methods),
+            new DataPoint(StateSizes.STATE_SIZE, states)));
+
+    // Only the count of latencies is a counter, the percentiles and sizes are gauges. The
+    // percentiles that are not in the whitelist are not sent
+    assertEquals(receive(), DB_LATENCY + ".count:3.0|c" + dimensions + "\n"
+        + DB_LATENCY + ".p99:400.0|g" + dimensions + "\n"
+        + STATE_SIZE + ".size:10.0|g" + dimensions + "\n"
+        + STATE_SIZE + ".estimated-bytes:15000.0|g" + dimensions);
+  }
+
+  public void shouldAggregateOverWindow() throws Exception {
+    prepare(null, 60);
+    consumer.handleDataPoints(taskInfo, Arrays.asList(executeCount(5), latency(10, 250)));
+    consumer.currentTime += 30000;
+    consumer.handleDataPoints(new TaskInfo("localhost", 6701, "filtering-bolt", 4, 31000, 60),
+        Arrays.asList(executeCount(3), latency(4, 100)));
+    consumer.currentTime += 30000;
+    consumer.handleDataPoints(taskInfo, Arrays.asList(executeCount(1)));
+
+    // Counters are summed and the percentiles take the maximum of the tasks
+    assertEquals(receive(), "thresh.filtering.metrics:9.0|c" + dimensions + "\n"
+        + LATENCY + ".count:14.0|c" + dimensions + "\n"
+        + LATENCY + ".p99:250.0|g" + dimensions);
+  }
+
+  public void shouldCombineGaugesOfTasks() throws Exception {
+    prepare(null, 120);
+    final TaskInfo task5 = new TaskInfo("localhost", 6701, "thresholding-bolt", 5, 1000, 60);
+    final TaskInfo task6 = new TaskInfo("localhost", 6702, "thresholding-bolt", 6, 1000, 60);
+    consumer.handleDataPoints(task5, Arrays.asList(dbLatency(400), stateSize(10, 15000)));
+    consumer.handleDataPoints(task6, Arrays.asList(dbLatency(700), stateSize(30, 45000)));
+    consumer.currentTime += 60000;
+    // A second report from a task replaces its first one
+    consumer.handleDataPoints(task5, Arrays.asList(dbLatency(300), stateSize(20, 30000)));
+    consumer.currentTime += 60000;
+    consumer.handleDataPoints(task6, Collections.<DataPoint>emptyList());
+
+    // The sizes of the tasks are summed and the percentiles take the maximum
+    assertEquals(receive(), DB_LATENCY + ".p99:700.0|g" + dimensions + "\n"
+        + STATE_SIZE + ".size:50.0|g" + dimensions + "\n"
+        + STATE_SIZE + ".estimated-bytes:75000.0|g" + dimensions);
+  }
+
+  private static DataPoint dbLatency(long p99) {
+    final Map<String, Long> percentiles = new LinkedHashMap<>();
+    percentiles.put(LatencyHistograms.P99, p99);
+    final Map<String, Object> methods = new HashMap<>();
+    methods.put("AlarmDAO.updateStates", percentiles);
+    return new DataPoint(LatencyHistograms.DB_LATENCY, methods);
+  }
+
+  private static DataPoint stateSize(long size, long estimatedBytes) {
+    final Map<String, Long> sizes = new LinkedHashMap<>();
+    sizes.put(StateSizes.SIZE, size);
+    sizes.put(StateSizes.ESTIMATED_BYTES, estimatedBytes);
+    final Map<String, Object> states = new HashMap<>();
+    states.put("alarms", sizes);
+    return new DataPoint(StateSizes.STATE_SIZE, states);
+  }
+
+  private static class MockStatsdMetricConsumer extends StatsdMetricConsumer {
+    private long currentTime = 1000000;
+
+    @Override
+    protected long getCurrentTime() {
+      return currentTime;
+    }
+  }
+}